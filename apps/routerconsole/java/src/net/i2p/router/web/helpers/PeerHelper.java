@@ -262,8 +262,10 @@ public class PeerHelper extends HelperBase {
            .append(_t("The number of sent messages awaiting acknowledgement")).append(" /<br>\n")
            .append(_t("The maximum number of concurrent messages to send")).append(" /<br>\n")
            .append(_t("The number of pending sends which exceed congestion window")).append("</td></tr>\n")
-           .append("<tr><td><b id=\"def.ssthresh\">SST</b></td><td>").append(_t("The slow start threshold")).append("</td></tr>\n")
-           .append("<tr><td><b id=\"def.rtt\">RTT</b></td><td>").append(_t("The round trip time in milliseconds")).append("</td></tr>\n")
+           .append("<tr><td><b id=\"def.ssthresh\">SST</b></td><td>").append(_t("The slow start threshold")).append(" /<br>\n")
+           .append(_t("The pacing rate, if paced (KBytes per second)")).append("</td></tr>\n")
+           .append("<tr><td><b id=\"def.rtt\">RTT</b></td><td>").append(_t("The round trip time in milliseconds")).append(" /<br>\n")
+           .append(_t("The minimum round trip time, if tracked")).append("</td></tr>\n")
            //.append("<tr><td><b id=\"def.dev\">").append(_t("Dev")).append("</b></td><td>").append(_t("The standard deviation of the round trip time in milliseconds")).append("</td></tr>\n")
            .append("<tr><td><b id=\"def.rto\">RTO</b></td><td>").append(_t("The retransmit timeout in milliseconds")).append("</td></tr>\n")
            .append("<tr><td><b id=\"def.mtu\">MTU</b></td><td>").append(_t("Current maximum send packet size / estimated maximum receive packet size (bytes)")).append("</td></tr>\n");
@@ -627,7 +629,11 @@ public class PeerHelper extends HelperBase {
 
                 buf.append("<td class=\"cells\" align=\"right\">");
                 buf.append(peer.getSlowStartThreshold()/1024);
-                buf.append("K</td>");
+                buf.append("K");
+                int pacing = peer.getPacingRate();
+                if (pacing > 0)
+                    buf.append(THINSP).append(pacing/1024).append("K");
+                buf.append("</td>");
 
                 rtt = peer.getRTT();
                 rto = peer.getRTO();
@@ -637,6 +643,9 @@ public class PeerHelper extends HelperBase {
                     buf.append(DataHelper.formatDuration2(rtt));
                 else
                     buf.append("n/a");
+                int minRTT = peer.getMinRTT();
+                if (minRTT > 0)
+                    buf.append(THINSP).append(DataHelper.formatDuration2(minRTT));
                 buf.append("</td>");
 
                 //buf.append("<td class=\"cells\" align=\"right\">");
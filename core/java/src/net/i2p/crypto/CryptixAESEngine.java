@@ -64,6 +64,17 @@ public final class CryptixAESEngine extends AESEngine {
         }
     }
 
+    /**
+     *  Is the JVM's AES (javax.crypto) used for data of at least 704 bytes?
+     *  Callers encrypting many such messages with the same key
+     *  may keep their own keyed Cipher instead.
+     *
+     *  @since 0.9.47
+     */
+    public static boolean usesSystemAES() {
+        return USE_SYSTEM_AES;
+    }
+
     /** */
     public CryptixAESEngine(I2PAppContext context) {
         super(context);
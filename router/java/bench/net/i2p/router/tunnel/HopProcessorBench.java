@@ -0,0 +1,73 @@
+package net.i2p.router.tunnel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.i2p.I2PAppContext;
+
+/**
+ * Participating hop throughput, messages per second per thread,
+ * AESEngine vs. the keyed Cipher, with 1 and 4 threads (see main()).
+ *
+ * Each thread has its own hop, as each tunnel does.
+ *
+ * @since 0.9.47
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class HopProcessorBench {
+    /** TunnelDataMessage without the tunnel ID */
+    private static final int SIZE = 1024;
+
+    @Param({"engine", "cipher"})
+    public String impl;
+
+    HopProcessor processor;
+    byte[] data;
+
+    @Setup
+    public void prepare() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        HopConfig cfg = new HopConfig();
+        cfg.setIVKey(ctx.keyGenerator().generateSessionKey());
+        cfg.setLayerKey(ctx.keyGenerator().generateSessionKey());
+        processor = new HopProcessor(ctx, cfg, DummyValidator.getInstance(), impl.equals("cipher"));
+        data = new byte[SIZE];
+        ctx.random().nextBytes(data);
+    }
+
+    /** in place, so the data is different each time */
+    @Benchmark
+    public boolean process() {
+        return processor.process(data, 0, SIZE, null);
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        for (int threads : new int[] { 1, 4 }) {
+            Options opt = new OptionsBuilder()
+                    .include(HopProcessorBench.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
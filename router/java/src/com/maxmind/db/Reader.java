@@ -251,6 +251,90 @@ public final class Reader implements Closeable {
         return decoder.decode(resolved);
     }
 
+    /**
+     * I2P - Callback for walk()
+     *
+     * @since 0.9.47
+     */
+    public interface Walker {
+        /**
+         * @param prefix the network, left-aligned, first 64 bits only
+         * @param length the prefix length in bits
+         * @param pointer the data record, shared by all networks with the same data,
+         *                pass to resolve() to decode
+         */
+        public void network(long prefix, int length, int pointer) throws IOException;
+    }
+
+    /**
+     * I2P - Visit every network in the tree in address order,
+     * for compiling the data into another format.
+     *
+     * Only the first maxDepth bits are walked. If a network is
+     * split further below that, only the data for the lowest address in it
+     * is reported, as if looking up the network address itself.
+     * The IPv4 aliases in an IPv6 tree (e.g. 2002::/16) are skipped.
+     *
+     * @param ipv4 walk the IPv4 tree (32 bits) or the IPv6 tree
+     * @param maxDepth 1-64
+     * @since 0.9.47
+     */
+    public void walk(boolean ipv4, int maxDepth, Walker walker) throws IOException {
+        if (maxDepth <= 0 || maxDepth > 64)
+            throw new IllegalArgumentException();
+        if (!ipv4 && this.metadata.getIpVersion() == 4)
+            return;
+        ByteBuffer buffer = this.getBufferHolder().get();
+        int start = ipv4 ? this.ipV4Start : 0;
+        int nodeCount = this.metadata.getNodeCount();
+        if (start > nodeCount) {
+            walker.network(0, 0, start);
+            return;
+        }
+        if (start == nodeCount)
+            return;
+        if (ipv4)
+            maxDepth = Math.min(maxDepth, 32);
+        this.walk(buffer, start, 0, 0, maxDepth, !ipv4, walker);
+    }
+
+    /** recursion depth is at most maxDepth */
+    private void walk(ByteBuffer buffer, int node, long prefix, int depth, int maxDepth,
+                      boolean skipAliases, Walker walker) throws IOException {
+        int nodeCount = this.metadata.getNodeCount();
+        int next = depth + 1;
+        for (int bit = 0; bit < 2; bit++) {
+            int record = this.readNode(buffer, node, bit);
+            long p = bit == 0 ? prefix : prefix | (1L << (63 - depth));
+            if (record == nodeCount)
+                continue;
+            if (record > nodeCount) {
+                walker.network(p, next, record);
+                continue;
+            }
+            if (skipAliases && record == this.ipV4Start)
+                continue;
+            if (next >= maxDepth) {
+                for (int i = next; i < 128 && record < nodeCount; i++) {
+                    record = this.readNode(buffer, record, 0);
+                }
+                if (record > nodeCount)
+                    walker.network(p, next, record);
+                continue;
+            }
+            this.walk(buffer, record, p, next, maxDepth, skipAliases, walker);
+        }
+    }
+
+    /**
+     * I2P - Decode the data record from walk()
+     *
+     * @since 0.9.47
+     */
+    public Object resolve(int pointer) throws IOException {
+        return this.resolveDataPointer(this.getBufferHolder().get(), pointer);
+    }
+
     /*
      * Apparently searching a file for a sequence is not a solved problem in
      * Java. This searches from the end of the file for metadata start.
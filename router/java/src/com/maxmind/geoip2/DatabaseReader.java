@@ -214,6 +214,33 @@ public class DatabaseReader implements Closeable {
     public String country(String ipAddress) throws IOException {
         InetAddress ia = InetAddress.getByName(ipAddress);
         Object o = get(ia, "Country");
+        return country(o);
+    }
+
+    /**
+     * Visit every network in the database.
+     * Use country(pointer) for the data.
+     *
+     * @param ipv4 the IPv4 networks (32 bits) or the IPv6 networks (first 64 bits only)
+     * @since 0.9.47
+     */
+    public void walk(boolean ipv4, Reader.Walker walker) throws IOException {
+        this.reader.walk(ipv4, ipv4 ? 32 : 64, walker);
+    }
+
+    /**
+     * @param pointer from walk()
+     * @return upper case or null
+     * @since 0.9.47
+     */
+    public String country(int pointer) throws IOException {
+        return country(this.reader.resolve(pointer));
+    }
+
+    /**
+     * @since 0.9.47 split out from country(String)
+     */
+    private static String country(Object o) {
         if (!(o instanceof Map))
             return null;
         Map m = (Map) o;
@@ -31,6 +31,7 @@ import net.i2p.data.Hash;
 import net.i2p.data.router.RouterAddress;
 import net.i2p.data.router.RouterInfo;
 import net.i2p.router.networkdb.kademlia.FloodfillNetworkDatabaseFacade;
+import net.i2p.router.util.PrefixTree;
 import net.i2p.util.Addresses;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.LHMCache;
@@ -58,6 +59,10 @@ import net.i2p.util.Translate;
  *   3) A list of single IPs, initially empty, added to as needed
  *</pre>
  *
+ * IPv4 ranges are kept in a sorted array, and IPv6 ranges in a
+ * PrefixTree, which is built while reading the files and
+ * then swapped in, so lookups never see a partial list.
+ *
  * Read in the IP blocklist from a file, store it in-memory as efficiently
  * as we can, and perform tests against it as requested.
  *
@@ -65,8 +70,8 @@ import net.i2p.util.Translate;
  * banlist it forever, then go back to the file to get the original
  * entry so we can add the reason to the banlist text.
  *
- * On-disk blocklist supports IPv4 only.
- * In-memory supports both IPv4 and IPv6.
+ * On-disk blocklist supports IPv4 and IPv6 ranges.
+ * In-memory singles support both IPv4 and IPv6.
  */
 public class Blocklist {
     private final Log _log;
@@ -80,6 +85,10 @@ public class Blocklist {
     private boolean _started;
     // temp
     private Map<Hash, String> _peerBlocklist = new HashMap<Hash, String>(4);
+    /** IPv6 ranges from the files, replaced as a whole, never modified once set */
+    private volatile PrefixTree _ipv6Blocklist;
+    /** IPv6 ranges being read in, under _lock */
+    private PrefixTree _pendingIPv6;
     
     private static final String PROP_BLOCKLIST_ENABLED = "router.blocklist.enable";
     private static final String PROP_BLOCKLIST_DETAIL = "router.blocklist.detail";
@@ -179,10 +188,18 @@ public class Blocklist {
             if (_blocklist == null)
                 return;
             if (ccount <= 0) {
-                disable();
-                return;
+                if (_ipv6Blocklist == null) {
+                    disable();
+                    return;
+                }
+                // IPv6 only
+                synchronized (_lock) {
+                    _blocklistSize = 0;
+                    _blocklist = null;
+                }
+            } else {
+                merge(ccount);
             }
-            merge(ccount);
          /**** debug, and now run before netdb is initialized anyway
             if (_log.shouldLog(Log.WARN)) {
                 if (_blocklistSize <= 0)
@@ -205,10 +222,23 @@ public class Blocklist {
             int count = 0;
             synchronized (_lock) {
                 try {
+                    _pendingIPv6 = new PrefixTree(128);
                     for (File f : _files) {
                         count = readBlocklistFile(f, count);
                     }
+                    PrefixTree ipv6 = _pendingIPv6;
+                    _pendingIPv6 = null;
+                    if (ipv6.getPrefixCount() > 0) {
+                        ipv6.trim();
+                        _ipv6Blocklist = ipv6;
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("IPv6 blocklist: " + ipv6.getPrefixCount() + " prefixes in " +
+                                      ipv6.getNodeCount() + " nodes, " + ipv6.getMemoryUsage() + " bytes");
+                    } else {
+                        _ipv6Blocklist = null;
+                    }
                 } catch (OutOfMemoryError oom) {
+                    _pendingIPv6 = null;
                     _log.log(Log.CRIT, "OOM processing the blocklist");
                     disable();
                     return 0;
@@ -233,6 +263,7 @@ public class Blocklist {
         synchronized (_lock) {
             _blocklistSize = 0;
             _blocklist = null;
+            _ipv6Blocklist = null;
         }
     }
 
@@ -271,6 +302,9 @@ public class Blocklist {
     * Acceptable formats (IPV6 only):
     *   comment:IPv6 (must replace : with ; e.g. abcd;1234;0;12;;ff)
     *   IPv6 (must replace : with ; e.g. abcd;1234;0;12;;ff)
+    *   IPv6-IPv6 (same)
+    *   IPv6/masklength (same)
+    *   (comments also allowed before any of the above)
     *
     * No whitespace allowed after the last ':'.
     *
@@ -324,9 +358,15 @@ public class Blocklist {
                         store(ip1, ip2, count++);
                         ipcount += 1 + toInt(ip2) - toInt(ip1); // includes dups, oh well
                     }
-                } else {
-                    // IPv6
+                } else if (isFeedFile || _pendingIPv6 == null) {
+                    // IPv6, temporary
                     add(ip1);
+                } else {
+                    // IPv6 range
+                    if (e.mask >= 0)
+                        _pendingIPv6.add(ip1, e.mask);
+                    else
+                        _pendingIPv6.addRange(ip1, e.ip2);
                 }
             }
         } catch (IOException ioe) {
@@ -399,12 +439,20 @@ public class Blocklist {
         final byte ip1[];
         final byte ip2[];
         final Hash peer;
+        /** prefix length if IP/masklength, else -1 */
+        final int mask;
 
         public Entry(String c, Hash h, byte[] i1, byte[] i2) {
+             this(c, h, i1, i2, -1);
+        }
+
+        /** @since 0.9.47 */
+        public Entry(String c, Hash h, byte[] i1, byte[] i2, int m) {
              comment = c;
              peer = h;
              ip1 = i1;
              ip2 = i2;
+             mask = m;
         }
     }
 
@@ -426,6 +474,7 @@ public class Blocklist {
         //    return null;  // blank
         int start2 = -1;
         int mask = -1;
+        int m = -1;
         String comment = null;
         int index = buf.indexOf('#');
         if (index == 0)
@@ -463,12 +512,12 @@ public class Blocklist {
             //if (ip1.length != 4)
             //    throw new UnknownHostException();
             if (start2 >= 0) {
-                pi = InetAddress.getByName(buf.substring(start2));
+                pi = InetAddress.getByName(buf.substring(start2).replace(';', ':'));
                 if (pi == null) return null;
                 ip2 = pi.getAddress();
-                if (ip2.length != 4)
+                if (ip2.length != ip1.length)
                     throw new UnknownHostException();
-                if ((ip1[0] & 0xff) < 0x80 && (ip2[0] & 0xff) >= 0x80) {
+                if (ip1.length == 4 && (ip1[0] & 0xff) < 0x80 && (ip2[0] & 0xff) >= 0x80) {
                     if (_wrapSave == null) {
                         // don't cross the boundary 127.255.255.255 - 128.0.0.0
                         // because we are sorting using signed arithmetic
@@ -479,22 +528,23 @@ public class Blocklist {
                         throw new NumberFormatException();
 
                 }
-                for (int i = 0; i < 4; i++) {
+                for (int i = 0; i < ip1.length; i++) {
                      if ((ip2[i] & 0xff) > (ip1[i] & 0xff))
                         break;
                      if ((ip2[i] & 0xff) < (ip1[i] & 0xff))
                         throw new NumberFormatException(); // backwards
                 }
             } else if (mask >= 0) {
-                int m = Integer.parseInt(buf.substring(mask));
-                if (m < 3 || m > 32)
+                m = Integer.parseInt(buf.substring(mask));
+                int bits = ip1.length * 8;
+                if (m < 3 || m > bits)
                     throw new NumberFormatException();
-                ip2 = new byte[4];
+                ip2 = new byte[ip1.length];
                 // ick
-                for (int i = 0; i < 4; i++)
+                for (int i = 0; i < ip1.length; i++)
                     ip2[i] = ip1[i];
-                for (int i = 0; i < 32-m; i++)
-                    ip2[(31-i)/8] |= (0x01 << (i%8));
+                for (int i = 0; i < bits-m; i++)
+                    ip2[(bits-1-i)/8] |= (0x01 << (i%8));
             } else {
                 ip2 = ip1;
             }
@@ -511,7 +561,7 @@ public class Blocklist {
                 _log.logAlways(Log.WARN, "Format error in the blocklist file: " + buf);
             return null;
         }
-        return new Entry(comment, null, ip1, ip2);
+        return new Entry(comment, null, ip1, ip2, m);
     }
 
     /**
@@ -756,8 +806,12 @@ public class Blocklist {
     public boolean isBlocklisted(byte ip[]) {
         if (ip.length == 4)
             return isBlocklisted(toInt(ip));
-        if (ip.length == 16)
+        if (ip.length == 16) {
+            PrefixTree ipv6 = _ipv6Blocklist;
+            if (ipv6 != null && ipv6.contains(ip))
+                return true;
             return isOnSingleList(new BigInteger(1, ip));
+        }
         return false;
     }
 
@@ -873,6 +927,19 @@ public class Blocklist {
         return rv;
     }
 
+    /**
+     *  Unsigned compare of two IPs of the same length
+     *  @since 0.9.47
+     */
+    private static int compare(byte[] ip1, byte[] ip2) {
+        for (int i = 0; i < ip1.length; i++) {
+            int rv = (ip1[i] & 0xff) - (ip2[i] & 0xff);
+            if (rv != 0)
+                return rv;
+        }
+        return 0;
+    }
+
     private static String toStr(long entry) {
         StringBuilder buf = new StringBuilder(32);
         for (int i = 7; i >= 0; i--) {
@@ -977,7 +1044,7 @@ public class Blocklist {
         // look through the file for each address to find which one was the cause
         for (Iterator<byte[]> iter = ips.iterator(); iter.hasNext(); ) {
             byte ip[] = iter.next();
-            int ipint = toInt(ip);
+            int ipint = ip.length == 4 ? toInt(ip) : 0;
             BufferedReader br = null;
             try {
                 br = new BufferedReader(new InputStreamReader(
@@ -986,10 +1053,11 @@ public class Blocklist {
                 // assume the file is unsorted, so go through the whole thing
                 while ((buf = br.readLine()) != null) {
                     Entry e = parse(buf, false);
-                    if (e == null || e.peer != null) {
+                    if (e == null || e.peer != null || e.ip1.length != ip.length) {
                         continue;
                     }
-                    if (match(ipint, toEntry(e.ip1, e.ip2))) {
+                    if (ip.length == 4 ? match(ipint, toEntry(e.ip1, e.ip2))
+                                       : (compare(ip, e.ip1) >= 0 && compare(ip, e.ip2) <= 0)) {
                         try { br.close(); } catch (IOException ioe) {}
                         String reason = _x("IP banned by blocklist.txt entry {0}");
                         // only one translate parameter for now
@@ -398,9 +398,30 @@ public class CommSystemFacadeImpl extends CommSystemFacade {
     private static final int LOOKUP_TIME = 30*60*1000;
 
     private void startGeoIP() {
+        if (_context.getBooleanProperty(GeoIP.PROP_GEOIP_TABLE))
+            (new TableThread()).start();
         _context.simpleTimer2().addEvent(new QueueAll(), START_DELAY);
     }
 
+    /**
+     *  Compile or open the GeoIP table.
+     *  @since 0.9.47
+     */
+    private class TableThread extends I2PThread {
+
+        public TableThread() {
+            super("GeoIP Table");
+            setDaemon(true);
+        }
+
+        public void run() {
+            long start = System.currentTimeMillis();
+            _geoIP.loadTable();
+            if (_log.shouldLog(Log.INFO))
+                _log.info("GeoIP table load took " + (System.currentTimeMillis() - start));
+        }
+    }
+
     /**
      * Collect the IPs for all routers in the DB, and queue them for lookup,
      * then fire off the periodic lookup task for the first time.
@@ -30,12 +30,37 @@ import net.i2p.util.Log;
  *  methods for the common case where we are under the bandwidth limits.
  *  And the volatile counters are now AtomicIntegers / AtomicLongs.
  *
+ *  As of 0.9.47, the shortcuts may optionally go through TokenStripes,
+ *  so that threads sending at the same time don't all contend
+ *  on the same counters. See PROP_STRIPES.
+ *
  */
 public class FIFOBandwidthLimiter {
     private final Log _log;
     private final I2PAppContext _context;
     private final List<SimpleRequest> _pendingInboundRequests;
-    private final List<SimpleRequest> _pendingOutboundRequests;
+    /**
+     *  Pending outbound requests by priority class, synch on _outboundLock.
+     *  With only one class in use, this is FIFO as before.
+     *  @since 0.9.47 was a single list
+     */
+    private final List<SimpleRequest>[] _pendingOutboundRequests;
+    private final Object _outboundLock = new Object();
+    /** total in _pendingOutboundRequests, only changed with the lock held */
+    private final AtomicInteger _pendingOutboundCount = new AtomicInteger();
+    /** deficit round robin state, synch on _outboundLock */
+    private final int[] _outboundDeficit;
+    private int _nextOutboundClass;
+    private final boolean _usePriorityClasses;
+    /**
+     *  Outbound queue delay histogram by priority class, synch on _outboundLock.
+     *  Bucket 0 counts waits under 1 ms, bucket i waits of 2^(i-1) to 2^i - 1 ms,
+     *  and the last bucket everything longer.
+     *  @since 0.9.47
+     */
+    private final long[][] _outboundDelayHistogram;
+    /** histogram at the last stats update, refiller thread only */
+    private final long[][] _lastOutboundDelayHistogram;
     /** how many bytes we can consume for inbound transmission immediately */
     private final AtomicInteger _availableInbound = new AtomicInteger();
     /** how many bytes we can consume for outbound transmission immediately */
@@ -62,6 +87,37 @@ public class FIFOBandwidthLimiter {
     private final AtomicLong _totalAllocatedOutboundBytes = new AtomicLong();
     // following is temp until switch to PBQ
     private static final AtomicLong __requestId = new AtomicLong();
+    /** null if disabled */
+    private final TokenStripes _inboundStripes, _outboundStripes;
+
+    /**
+     *  Number of token stripes for the lockless shortcuts,
+     *  0 (default) to use the shared counters directly.
+     *  @since 0.9.47
+     */
+    public static final String PROP_STRIPES = "i2np.bandwidth.stripes";
+    private static final int MAX_STRIPES = 64;
+
+    /**
+     *  Schedule waiting outbound requests by priority class with
+     *  deficit round robin, instead of FIFO. Default false.
+     *  @since 0.9.47
+     */
+    public static final String PROP_PRIORITY_CLASSES = "i2np.bandwidth.priorityClasses";
+    /** our own traffic: client data, our builds and netdb lookups (OutNetMessage priority 425 and up) */
+    private static final int CLASS_HIGH = 0;
+    /** everything else, including requests without a priority */
+    private static final int CLASS_NORMAL = 1;
+    /** participating traffic, floods, netdb exploration (OutNetMessage priority 1 to 200) */
+    private static final int CLASS_LOW = 2;
+    private static final String[] CLASS_NAMES = { "High", "Normal", "Low" };
+    private static final int MIN_HIGH_PRIORITY = 425;
+    private static final int MAX_LOW_PRIORITY = 200;
+    /** bytes added to each class's deficit per round, i.e. the weights 4:2:1 */
+    private static final int[] QUANTUM = { 4*1024, 2*1024, 1024 };
+    /** up to 65 seconds, then everything longer */
+    static final int DELAY_BUCKETS = 18;
+    private static final int[] PERCENTILES = { 50, 90, 99 };
 
     /** lifetime counter of tokens available for use but exceeded our maxInboundBurst size */
     //private final AtomicLong _totalWastedInboundBytes = new AtomicLong();
@@ -92,9 +148,41 @@ public class FIFOBandwidthLimiter {
         _context.statManager().createRateStat("bwLimiter.outboundDelayedTime", "How long it takes to honor an outbound request (ignoring ones with that go instantly)?", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
         _context.statManager().createRateStat("bwLimiter.inboundDelayedTime", "How long it takes to honor an inbound request (ignoring ones with that go instantly)?", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
         _pendingInboundRequests = new ArrayList<SimpleRequest>(16);
-        _pendingOutboundRequests = new ArrayList<SimpleRequest>(16);
-        _lastTotalSent = _totalAllocatedOutboundBytes.get();
-        _lastTotalReceived = _totalAllocatedInboundBytes.get();
+        _usePriorityClasses = context.getBooleanProperty(PROP_PRIORITY_CLASSES);
+        if (_usePriorityClasses) {
+            for (int i = 0; i < CLASS_NAMES.length; i++) {
+                _context.statManager().createRateStat("bwLimiter.outboundDelayedTime" + CLASS_NAMES[i],
+                                                      "How long it takes to honor an outbound request in this priority class (ignoring ones with that go instantly)?",
+                                                      "BandwidthLimiter", new long[] { 60*1000l, 5*60*1000l, 60*60*1000l });
+                _context.statManager().createRateStat("bwLimiter.pendingOutboundRequests" + CLASS_NAMES[i],
+                                                      "How many outbound requests in this priority class are ahead of the current one?",
+                                                      "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
+                for (int pct : PERCENTILES) {
+                    _context.statManager().createRateStat("bwLimiter.outboundDelayedTime" + CLASS_NAMES[i] + 'P' + pct,
+                                                          pct + "th percentile of the queue delay in this priority class over about the last second (upper bound of its histogram bucket)",
+                                                          "BandwidthLimiter", new long[] { 60*1000l, 5*60*1000l, 60*60*1000l });
+                }
+            }
+        }
+        @SuppressWarnings("unchecked")
+        List<SimpleRequest>[] pending = (List<SimpleRequest>[]) new List<?>[_usePriorityClasses ? CLASS_NAMES.length : 1];
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = new ArrayList<SimpleRequest>(16);
+        }
+        _pendingOutboundRequests = pending;
+        _outboundDeficit = new int[pending.length];
+        _outboundDelayHistogram = new long[pending.length][DELAY_BUCKETS];
+        _lastOutboundDelayHistogram = new long[pending.length][DELAY_BUCKETS];
+        int stripes = Math.min(MAX_STRIPES, context.getProperty(PROP_STRIPES, 0));
+        if (stripes > 0) {
+            _inboundStripes = new TokenStripes(_availableInbound, stripes);
+            _outboundStripes = new TokenStripes(_availableOutbound, stripes);
+        } else {
+            _inboundStripes = null;
+            _outboundStripes = null;
+        }
+        _lastTotalSent = getTotalAllocatedOutboundBytes();
+        _lastTotalReceived = getTotalAllocatedInboundBytes();
         _lastStatsUpdated = now();
         _refiller = new FIFOBandwidthRefiller(_context, this);
         _refillerThread = new I2PThread(_refiller, "BWRefiller", true);
@@ -104,8 +192,19 @@ public class FIFOBandwidthLimiter {
 
     //public long getAvailableInboundBytes() { return _availableInboundBytes; }
     //public long getAvailableOutboundBytes() { return _availableOutboundBytes; }
-    public long getTotalAllocatedInboundBytes() { return _totalAllocatedInboundBytes.get(); }
-    public long getTotalAllocatedOutboundBytes() { return _totalAllocatedOutboundBytes.get(); }
+    public long getTotalAllocatedInboundBytes() {
+        long rv = _totalAllocatedInboundBytes.get();
+        if (_inboundStripes != null)
+            rv += _inboundStripes.getGranted();
+        return rv;
+    }
+
+    public long getTotalAllocatedOutboundBytes() {
+        long rv = _totalAllocatedOutboundBytes.get();
+        if (_outboundStripes != null)
+            rv += _outboundStripes.getGranted();
+        return rv;
+    }
     //public long getTotalWastedInboundBytes() { return _totalWastedInboundBytes.get(); }
     //public long getTotalWastedOutboundBytes() { return _totalWastedOutboundBytes.get(); }
     //public long getMaxInboundBytes() { return _maxInboundBytes; }
@@ -171,8 +270,18 @@ public class FIFOBandwidthLimiter {
 
     /** @since 0.8.8 */
     private void clear() {
+        if (_inboundStripes != null) {
+            _inboundStripes.drain();
+            _outboundStripes.drain();
+        }
         _pendingInboundRequests.clear();
-        _pendingOutboundRequests.clear();
+        synchronized (_outboundLock) {
+            for (int i = 0; i < _pendingOutboundRequests.length; i++) {
+                _pendingOutboundRequests[i].clear();
+                _outboundDeficit[i] = 0;
+            }
+            _pendingOutboundCount.set(0);
+        }
         _availableInbound.set(0);
         _availableOutbound.set(0);
         _maxInbound = 0;
@@ -239,6 +348,9 @@ public class FIFOBandwidthLimiter {
 
     /**
      * Request some bytes. Does not block.
+     *
+     * @param priority OutNetMessage priority, 0 if unknown.
+     *                 Only used if PROP_PRIORITY_CLASSES is set.
      */
     public Request requestOutbound(int bytesOut, int priority, String purpose) {
         // try to satisfy without grabbing the global lock
@@ -253,14 +365,34 @@ public class FIFOBandwidthLimiter {
         // don't init twice - uncomment if we make public again?
         //req.init(0, bytesOut, purpose);
         int pending;
-        synchronized (_pendingOutboundRequests) {
-            pending = _pendingOutboundRequests.size();
-            _pendingOutboundRequests.add(req);
+        int cls = getOutboundClass(req.getPriority());
+        int ahead;
+        synchronized (_outboundLock) {
+            pending = _pendingOutboundCount.getAndIncrement();
+            List<SimpleRequest> queue = _pendingOutboundRequests[cls];
+            ahead = queue.size();
+            queue.add(req);
         }
         satisfyOutboundRequests(req.satisfiedBuffer);
         req.satisfiedBuffer.clear();
         if (pending > 0)
             _context.statManager().addRateData("bwLimiter.pendingOutboundRequests", pending);
+        if (_usePriorityClasses && ahead > 0)
+            _context.statManager().addRateData("bwLimiter.pendingOutboundRequests" + CLASS_NAMES[cls], ahead);
+    }
+
+    /**
+     *  @return index into _pendingOutboundRequests
+     *  @since 0.9.47
+     */
+    private int getOutboundClass(int priority) {
+        if (!_usePriorityClasses)
+            return 0;
+        if (priority >= MIN_HIGH_PRIORITY)
+            return CLASS_HIGH;
+        if (priority > 0 && priority <= MAX_LOW_PRIORITY)
+            return CLASS_LOW;
+        return CLASS_NORMAL;
     }
     
     void setInboundBurstKBps(int kbytesPerSecond) {
@@ -300,6 +432,15 @@ public class FIFOBandwidthLimiter {
         // it changes out from under us
         // This never had locks before concurrent, anyway
 
+        // Put the unused striped tokens back so the burst accounting sees them
+        if (_inboundStripes != null) {
+            _inboundStripes.drain();
+            _outboundStripes.drain();
+            int n = _inboundStripes.getStripeCount();
+            _inboundStripes.setChunk((int) (bytesInbound / (4 * n)));
+            _outboundStripes.setChunk((int) (bytesOutbound / (4 * n)));
+        }
+
         // FIXME wrap - change to AtomicLong or detect
         int avi = _availableInbound.addAndGet((int) bytesInbound);
         if (avi > _maxInbound) {
@@ -371,13 +512,15 @@ public class FIFOBandwidthLimiter {
         long time = now - _lastStatsUpdated;
         // If at least one second has passed
         if (time >= 1000) {
-            long totS = _totalAllocatedOutboundBytes.get();
-            long totR = _totalAllocatedInboundBytes.get();
+            long totS = getTotalAllocatedOutboundBytes();
+            long totR = getTotalAllocatedInboundBytes();
             long sent = totS - _lastTotalSent; // How much we sent meanwhile
             long recv = totR - _lastTotalReceived; // How much we received meanwhile
             _lastTotalSent = totS;
             _lastTotalReceived = totR;
             _lastStatsUpdated = now;
+            if (_usePriorityClasses)
+                updateDelayStats();
 
             if (_sendBps <= 0)
                 _sendBps = (sent*1000f)/time;
@@ -437,6 +580,8 @@ public class FIFOBandwidthLimiter {
      */
     private final void satisfyInboundRequests(List<Request> satisfied) {
         synchronized (_pendingInboundRequests) {
+            if (_inboundStripes != null)
+                _inboundStripes.drain();
             if (_inboundUnlimited) {
                 locked_satisfyInboundUnlimited(satisfied);
             } else {
@@ -477,11 +622,13 @@ public class FIFOBandwidthLimiter {
     /** called from debug logging only */
     private long locked_getLongestOutboundWait() {
         long start = -1;
-        for (int i = 0; i < _pendingOutboundRequests.size(); i++) {
-            Request req = _pendingOutboundRequests.get(i);
-            if (req == null) continue;
-            if ( (start < 0) || (start > req.getRequestTime()) )
-                start = req.getRequestTime();
+        for (List<SimpleRequest> queue : _pendingOutboundRequests) {
+            for (int i = 0; i < queue.size(); i++) {
+                Request req = queue.get(i);
+                if (req == null) continue;
+                if ( (start < 0) || (start > req.getRequestTime()) )
+                    start = req.getRequestTime();
+            }
         }
         if (start == -1)
             return 0;
@@ -586,7 +733,9 @@ public class FIFOBandwidthLimiter {
      * @param satisfied Out parameter, returned with the satisfied requests added
      */
     private final void satisfyOutboundRequests(List<Request> satisfied) {
-        synchronized (_pendingOutboundRequests) {
+        synchronized (_outboundLock) {
+            if (_outboundStripes != null)
+                _outboundStripes.drain();
             if (_outboundUnlimited) {
                 locked_satisfyOutboundUnlimited(satisfied);
             } else {
@@ -595,7 +744,7 @@ public class FIFOBandwidthLimiter {
                 } else {
                     // no bandwidth available
                     if (_log.shouldLog(Log.INFO))
-                        _log.info("Still denying the " + _pendingOutboundRequests.size() 
+                        _log.info("Still denying the " + _pendingOutboundCount.get() 
                                   + " pending outbound requests (status: " + getStatus().toString()
                                   + ", longest waited " + locked_getLongestOutboundWait() + ')');
                 }
@@ -615,20 +764,23 @@ public class FIFOBandwidthLimiter {
      *
      */
     private final void locked_satisfyOutboundUnlimited(List<Request> satisfied) {
-        while (!_pendingOutboundRequests.isEmpty()) {
-            SimpleRequest req = _pendingOutboundRequests.remove(0);
-            int allocated = req.getPendingRequested();
-            _totalAllocatedOutboundBytes.addAndGet(allocated);
-            req.allocateBytes(allocated);
-            satisfied.add(req);
-            long waited = now() - req.getRequestTime();
-            if (_log.shouldLog(Log.DEBUG))
-                 _log.debug("Granting outbound request " + req + " fully (waited " 
-                            + waited
-                            + "ms) pending " + _pendingOutboundRequests.size()
-                            + ", longest waited " + locked_getLongestOutboundWait() + " out");
-            if (waited > 10)
-                _context.statManager().addRateData("bwLimiter.outboundDelayedTime", waited);
+        for (int c = 0; c < _pendingOutboundRequests.length; c++) {
+            List<SimpleRequest> queue = _pendingOutboundRequests[c];
+            while (!queue.isEmpty()) {
+                SimpleRequest req = queue.remove(0);
+                _pendingOutboundCount.decrementAndGet();
+                int allocated = req.getPendingRequested();
+                _totalAllocatedOutboundBytes.addAndGet(allocated);
+                req.allocateBytes(allocated);
+                satisfied.add(req);
+                long waited = now() - req.getRequestTime();
+                if (_log.shouldLog(Log.DEBUG))
+                     _log.debug("Granting outbound request " + req + " fully (waited " 
+                                + waited
+                                + "ms) pending " + _pendingOutboundCount.get()
+                                + ", longest waited " + locked_getLongestOutboundWait() + " out");
+                addOutboundDelay(c, waited);
+            }
         }
     }
     
@@ -636,70 +788,183 @@ public class FIFOBandwidthLimiter {
      * ok, we have limits, so lets iterate through the requests, allocating as much
      * bandwidth as we can to those who have used what we have given them and are waiting
      * for more (giving priority to the first ones who requested it)
+     *
+     * As of 0.9.47, the priority classes are served by deficit round robin,
+     * and FIFO within each class. With one class this is FIFO as before.
+     * A class may only use bandwidth that another class isn't waiting for,
+     * beyond its share, and an empty class doesn't build up credit.
      * 
      * @return list of requests that were completely satisfied
      */
     private final void locked_satisfyOutboundAvailable(List<Request> satisfied) {
-        for (int i = 0; i < _pendingOutboundRequests.size(); i++) {
-            SimpleRequest req = _pendingOutboundRequests.get(i);
-            long waited = now() - req.getRequestTime();
-            if (req.getAborted()) {
-                // connection decided they dont want the data anymore
-                if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Aborting outbound request to " 
-                                + req
-                                + " waited " 
-                                + waited
-                                + "ms) pending " + _pendingOutboundRequests.size());
-                _pendingOutboundRequests.remove(i);
-                i--;
+        final int classes = _pendingOutboundRequests.length;
+        // stop after a full round in which nothing was granted
+        int idle = 0;
+        while (idle < classes && _pendingOutboundCount.get() > 0) {
+            int c = _nextOutboundClass;
+            _nextOutboundClass = (c + 1) % classes;
+            List<SimpleRequest> queue = _pendingOutboundRequests[c];
+            if (queue.isEmpty()) {
+                _outboundDeficit[c] = 0;
+                idle++;
                 continue;
             }
-            int avo = _availableOutbound.get();
-            if (avo <= 0) break;
-            // NO, don't do this, since SSU requires a full allocation to proceed.
-            // By stopping after a partial allocation, we stall SSU.
-            // This never affected NTCP (which also requires a full allocation)
-            // since it registers a CompleteListener, so getAllocationsSinceWait() was always zero.
-            //if (req.getAllocationsSinceWait() > 0) {
-                // we have already allocated some values to this request, but
-                // they haven't taken advantage of it yet (most likely they're
-                // IO bound)
-            //    if (_log.shouldLog(Log.WARN))
-            //        _log.warn("multiple allocations since wait... ntcp shouldn't do this: " + req);
-            //    continue;
-            //}
-            // ok, they are really waiting for us to give them stuff
-            int requested = req.getPendingRequested();
-            int allocated;
-            if (avo >= requested) 
-                allocated = requested;
+            if (classes > 1)
+                _outboundDeficit[c] += QUANTUM[c];
             else
-                allocated = avo;
-            _availableOutbound.addAndGet(0 - allocated);
-            _totalAllocatedOutboundBytes.addAndGet(allocated);
-            req.allocateBytes(allocated);
-            satisfied.add(req);
-            if (req.getPendingRequested() > 0) {
-                if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Allocating " + allocated + " bytes outbound as a partial grant to " 
-                                + req
-                                + " waited " 
-                                + waited
-                                + "ms) pending " + _pendingOutboundRequests.size()
-                                + ", longest waited " + locked_getLongestOutboundWait() + " out");
-            } else {
-                if (_log.shouldLog(Log.DEBUG))
-                     _log.debug("Allocating " + allocated + " bytes outbound to finish the partial grant to " 
-                                + req
-                                + " waited " 
-                                + waited
-                                + "ms) pending " + _pendingOutboundRequests.size()
-                                + ", longest waited " + locked_getLongestOutboundWait() + " out)");
-                _pendingOutboundRequests.remove(i);
-                i--;
-                if (waited > 10)
-                    _context.statManager().addRateData("bwLimiter.outboundDelayedTime", waited);
+                _outboundDeficit[c] = Integer.MAX_VALUE;
+            boolean granted = false;
+            while (!queue.isEmpty() && _outboundDeficit[c] > 0) {
+                SimpleRequest req = queue.get(0);
+                long waited = now() - req.getRequestTime();
+                if (req.getAborted()) {
+                    // connection decided they dont want the data anymore
+                    if (_log.shouldLog(Log.DEBUG))
+                         _log.debug("Aborting outbound request to " 
+                                    + req
+                                    + " waited " 
+                                    + waited
+                                    + "ms) pending " + _pendingOutboundCount.get());
+                    queue.remove(0);
+                    _pendingOutboundCount.decrementAndGet();
+                    continue;
+                }
+                int avo = _availableOutbound.get();
+                if (avo <= 0)
+                    return;
+                // NO, don't skip requests with allocations since the last wait(),
+                // since SSU requires a full allocation to proceed.
+                // See the inbound side.
+                // ok, they are really waiting for us to give them stuff
+                int requested = req.getPendingRequested();
+                int allocated = Math.min(requested, avo);
+                if (classes > 1)
+                    allocated = Math.min(allocated, _outboundDeficit[c]);
+                _outboundDeficit[c] -= allocated;
+                _availableOutbound.addAndGet(0 - allocated);
+                _totalAllocatedOutboundBytes.addAndGet(allocated);
+                req.allocateBytes(allocated);
+                satisfied.add(req);
+                granted = true;
+                if (req.getPendingRequested() > 0) {
+                    if (_log.shouldLog(Log.DEBUG))
+                         _log.debug("Allocating " + allocated + " bytes outbound as a partial grant to " 
+                                    + req
+                                    + " waited " 
+                                    + waited
+                                    + "ms) pending " + _pendingOutboundCount.get()
+                                    + ", longest waited " + locked_getLongestOutboundWait() + " out");
+                    // out of bandwidth or out of deficit for this round
+                    if (classes <= 1)
+                        return;
+                    break;
+                } else {
+                    if (_log.shouldLog(Log.DEBUG))
+                         _log.debug("Allocating " + allocated + " bytes outbound to finish the partial grant to " 
+                                    + req
+                                    + " waited " 
+                                    + waited
+                                    + "ms) pending " + _pendingOutboundCount.get()
+                                    + ", longest waited " + locked_getLongestOutboundWait() + " out)");
+                    queue.remove(0);
+                    _pendingOutboundCount.decrementAndGet();
+                    addOutboundDelay(c, waited);
+                }
+            }
+            if (queue.isEmpty())
+                _outboundDeficit[c] = 0;
+            if (granted)
+                idle = 0;
+            else
+                idle++;
+        }
+    }
+
+    /**
+     *  @param c priority class
+     *  @since 0.9.47
+     */
+    private void addOutboundDelay(int c, long waited) {
+        _outboundDelayHistogram[c][getDelayBucket(waited)]++;
+        if (waited <= 10)
+            return;
+        _context.statManager().addRateData("bwLimiter.outboundDelayedTime", waited);
+        if (_usePriorityClasses)
+            _context.statManager().addRateData("bwLimiter.outboundDelayedTime" + CLASS_NAMES[c], waited);
+    }
+
+    /**
+     *  @return index into a delay histogram
+     *  @since 0.9.47
+     */
+    static int getDelayBucket(long waited) {
+        if (waited <= 0)
+            return 0;
+        return Math.min(DELAY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(waited));
+    }
+
+    /**
+     *  @return the largest delay in ms counted in the bucket,
+     *          or Long.MAX_VALUE for the last bucket
+     *  @since 0.9.47
+     */
+    static long getDelayBucketLimit(int bucket) {
+        if (bucket >= DELAY_BUCKETS - 1)
+            return Long.MAX_VALUE;
+        return (1L << bucket) - 1;
+    }
+
+    /**
+     *  A copy of the outbound queue delay histogram for the priority class
+     *  of this OutNetMessage priority, since the limiter started.
+     *  Requests granted without waiting are not counted.
+     *  See getDelayBucket() for the buckets.
+     *
+     *  @param priority OutNetMessage priority, 0 if unknown
+     *  @since 0.9.47
+     */
+    public long[] getOutboundDelayHistogram(int priority) {
+        int c = getOutboundClass(priority);
+        synchronized (_outboundLock) {
+            return _outboundDelayHistogram[c].clone();
+        }
+    }
+
+    /**
+     *  Add the percentiles of each class's queue delay since the last call.
+     *  Refiller thread only.
+     *
+     *  @since 0.9.47
+     */
+    private void updateDelayStats() {
+        for (int c = 0; c < _outboundDelayHistogram.length; c++) {
+            long[] hist;
+            synchronized (_outboundLock) {
+                hist = _outboundDelayHistogram[c].clone();
+            }
+            long[] last = _lastOutboundDelayHistogram[c];
+            long total = 0;
+            for (int i = 0; i < DELAY_BUCKETS; i++) {
+                long n = hist[i];
+                hist[i] -= last[i];
+                last[i] = n;
+                total += hist[i];
+            }
+            if (total <= 0)
+                continue;
+            for (int pct : PERCENTILES) {
+                // first bucket where the running count reaches pct% of the total
+                long want = (total * pct + 99) / 100;
+                long count = 0;
+                int i = 0;
+                for ( ; i < DELAY_BUCKETS - 1; i++) {
+                    count += hist[i];
+                    if (count >= want)
+                        break;
+                }
+                // the last bucket is open-ended, so report where it starts
+                long limit = i < DELAY_BUCKETS - 1 ? getDelayBucketLimit(i) : 1L << (DELAY_BUCKETS - 2);
+                _context.statManager().addRateData("bwLimiter.outboundDelayedTime" + CLASS_NAMES[c] + 'P' + pct, limit);
             }
         }
     }
@@ -714,6 +979,10 @@ public class FIFOBandwidthLimiter {
      *  @since 0.7.13
      */
     private boolean shortcutSatisfyInboundRequest(int requested) {
+        if (_inboundStripes != null && !_inboundUnlimited) {
+            return _pendingInboundRequests.isEmpty() &&
+                   _inboundStripes.tryAcquire(requested);
+        }
         boolean rv = _inboundUnlimited ||
                      (_pendingInboundRequests.isEmpty() &&
                       _availableInbound.get() >= requested);
@@ -736,8 +1005,12 @@ public class FIFOBandwidthLimiter {
      *  @since 0.7.13
      */
     private boolean shortcutSatisfyOutboundRequest(int requested) {
+        if (_outboundStripes != null && !_outboundUnlimited) {
+            return _pendingOutboundCount.get() == 0 &&
+                   _outboundStripes.tryAcquire(requested);
+        }
         boolean rv = _outboundUnlimited ||
-                     (_pendingOutboundRequests.isEmpty() &&
+                     (_pendingOutboundCount.get() == 0 &&
                       _availableOutbound.get() >= requested);
         if (rv) {
             _availableOutbound.addAndGet(0 - requested);
@@ -798,7 +1071,7 @@ public class FIFOBandwidthLimiter {
         private final int _priority;
         
         /**
-         *  @param priority 0 for now
+         *  @param priority OutNetMessage priority, 0 if unknown
          */
         public SimpleRequest(int bytes, int priority) {
             satisfiedBuffer = new ArrayList<Request>(1);
@@ -11,6 +11,8 @@ import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -18,6 +20,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.maxmind.db.CHMCache;
+import com.maxmind.db.Reader;
 import com.maxmind.geoip.InvalidDatabaseException;
 import com.maxmind.geoip.LookupService;
 import com.maxmind.geoip2.DatabaseReader;
@@ -51,6 +54,10 @@ import net.i2p.util.SystemVersion;
  * (unlike in Blocklist.java, where it's in-memory so we want to be
  * space-efficient)
  *
+ * As of 0.9.47, if i2np.geoip.table is true, the databases are compiled
+ * at startup into a memory-mapped GeoIPTable, and get() answers from
+ * it directly, without queueing or caching, for the families it covers.
+ *
  * @author zzz
  */
 public class GeoIP {
@@ -68,6 +75,7 @@ public class GeoIP {
     private final Set<Long> _notFound;
     private final AtomicBoolean _lock;
     private int _lookupRunCount;
+    private volatile GeoIPTable _table;
     
     static final String PROP_GEOIP_ENABLED = "routerconsole.geoip.enable";
     public static final String PROP_GEOIP_DIR = "geoip.dir";
@@ -78,6 +86,12 @@ public class GeoIP {
     public static final String PROP_IP_COUNTRY = "i2np.lastCountry";
     public static final String PROP_DEBIAN_GEOIP = "geoip.dat";
     public static final String PROP_DEBIAN_GEOIPV6 = "geoip.v6.dat";
+    /** @since 0.9.47 */
+    public static final String PROP_GEOIP_TABLE = "i2np.geoip.table";
+    /** in the config dir, @since 0.9.47 */
+    private static final String TABLE_FILE = "geoip-table.dat";
+    /** change to force a recompile, @since 0.9.47 */
+    private static final long TABLE_VERSION = 1;
     private static final String DEBIAN_GEOIP_FILE = "/usr/share/GeoIP/GeoIP.dat";
     private static final String DEBIAN_GEOIPV6_FILE = "/usr/share/GeoIP/GeoIPv6.dat";
     private static final boolean DISABLE_DEBIAN = false;
@@ -107,6 +121,7 @@ public class GeoIP {
      *  @since 0.9.3
      */
     public void shutdown() {
+        _table = null;
         _codeToName.clear();
         _codeCache.clear();
         _IPToCountry.clear();
@@ -347,6 +362,170 @@ public class GeoIP {
         }
     }
 
+    /**
+     *  Compile the databases that a lookup would search into a GeoIPTable,
+     *  or open the one compiled at a previous startup if they haven't changed,
+     *  and answer lookups from it from now on.
+     *  Blocking, may take a second or two to compile.
+     *
+     *  The old Debian (MaxMind v1) databases can't be compiled;
+     *  if they would be used, that family is looked up as before.
+     *
+     *  @since 0.9.47
+     */
+    public void loadTable() {
+        if (! _context.getBooleanPropertyDefaultTrue(PROP_GEOIP_ENABLED))
+            return;
+        long start = _context.clock().now();
+        File geoip2 = getGeoIP2();
+        File f = new File(_context.getProperty(PROP_DEBIAN_GEOIP, DEBIAN_GEOIP_FILE));
+        File src4 = null;
+        if (!(ENABLE_DEBIAN && f.exists() &&
+              (geoip2 == null || f.lastModified() > geoip2.lastModified()))) {
+            if (geoip2 != null) {
+                src4 = geoip2;
+            } else {
+                f = getGeoIPFile();
+                if (f.exists())
+                    src4 = f;
+            }
+        }
+        f = new File(_context.getProperty(PROP_DEBIAN_GEOIPV6, DEBIAN_GEOIPV6_FILE));
+        File src6 = null;
+        if (!(ENABLE_DEBIAN && f.exists() &&
+              (geoip2 == null || f.lastModified() > geoip2.lastModified()))) {
+            if (geoip2 != null) {
+                src6 = geoip2;
+            } else {
+                f = GeoIPv6.getGeoIPFile(_context);
+                if (f.exists())
+                    src6 = f;
+            }
+        }
+        if (src4 == null && src6 == null)
+            return;
+        long stamp = TABLE_VERSION;
+        stamp = stamp * 31 + stamp(src4);
+        stamp = stamp * 31 + stamp(src6);
+        File tf = new File(_context.getConfigDir(), TABLE_FILE);
+        try {
+            GeoIPTable table = GeoIPTable.open(tf, stamp, _codeCache);
+            if (table == null) {
+                GeoIPTable.Builder b4 = src4 != null ? new GeoIPTable.Builder() : null;
+                GeoIPTable.Builder b6 = src6 != null ? new GeoIPTable.Builder() : null;
+                if (src4 != null && src4 == geoip2 || src6 != null && src6 == geoip2) {
+                    DatabaseReader dbr = openGeoIP2(geoip2);
+                    try {
+                        if (src4 == geoip2)
+                            walkGeoIP2(dbr, true, b4);
+                        if (src6 == geoip2)
+                            walkGeoIP2(dbr, false, b6);
+                    } finally {
+                        try { dbr.close(); } catch (IOException ioe) {}
+                    }
+                }
+                if (src4 != null && src4 != geoip2) {
+                    if (!readGeoIPFile(b4))
+                        b4 = null;
+                }
+                if (src6 != null && src6 != geoip2) {
+                    if (!GeoIPv6.readGeoIPFile(_context, b6, _codeCache))
+                        b6 = null;
+                }
+                if (b4 == null && b6 == null)
+                    return;
+                GeoIPTable.write(tf, stamp, b4, b6);
+                table = GeoIPTable.open(tf, stamp, _codeCache);
+                if (table == null)
+                    throw new IOException("Failed to open " + tf);
+                if (_log.shouldInfo())
+                    _log.info("Compiled GeoIP table, IPv4 ranges: " + table.size(true) +
+                              " IPv6 ranges: " + table.size(false) +
+                              " time: " + (_context.clock().now() - start));
+            } else {
+                if (geoip2 != null)
+                    notifyVersion("GeoIP2", geoip2.lastModified());
+            }
+            _table = table;
+            // the cache is no longer needed for the covered families
+            for (Iterator<Long> iter = _IPToCountry.keySet().iterator(); iter.hasNext(); ) {
+                if (table.covers(isIPv4(iter.next().longValue())))
+                    iter.remove();
+            }
+            for (Iterator<Long> iter = _notFound.iterator(); iter.hasNext(); ) {
+                if (table.covers(isIPv4(iter.next().longValue())))
+                    iter.remove();
+            }
+            if (table.covers(true))
+                _pendingSearch.clear();
+            if (table.covers(false))
+                _pendingIPv6Search.clear();
+        } catch (IOException ioe) {
+            _log.error("GeoIP table failure", ioe);
+        }
+    }
+
+    /**
+     *  Add all the networks in a GeoIP2 database to the table
+     *
+     *  @since 0.9.47
+     */
+    private void walkGeoIP2(final DatabaseReader dbr, final boolean ipv4, final GeoIPTable.Builder table) throws IOException {
+        // data record to code, or "" if unknown
+        final Map<Integer, String> codes = new HashMap<Integer, String>(1024);
+        dbr.walk(ipv4, new Reader.Walker() {
+            public void network(long prefix, int length, int pointer) throws IOException {
+                Integer ptr = Integer.valueOf(pointer);
+                String lc = codes.get(ptr);
+                if (lc == null) {
+                    // returns upper case or null
+                    String uc = dbr.country(pointer);
+                    if (uc != null && !uc.equals(UNKNOWN_COUNTRY_CODE2)) {
+                        lc = uc.toLowerCase(Locale.US);
+                        String cached = _codeCache.get(lc);
+                        if (cached != null)
+                            lc = cached;
+                    } else {
+                        lc = "";
+                    }
+                    codes.put(ptr, lc);
+                }
+                if (lc.length() == 0)
+                    return;
+                long start, end;
+                if (ipv4) {
+                    start = prefix >>> 32;
+                    end = start + (1L << (32 - length)) - 1;
+                } else {
+                    start = prefix;
+                    end = length >= 64 ? prefix : prefix | (-1L >>> length);
+                }
+                table.add(start, end, lc);
+            }
+        });
+    }
+
+    /**
+     *  @param f may be null
+     *  @since 0.9.47
+     */
+    private static long stamp(File f) {
+        if (f == null)
+            return 0;
+        long rv = f.getAbsolutePath().hashCode();
+        rv = rv * 31 + f.lastModified();
+        rv = rv * 31 + f.length();
+        return rv;
+    }
+
+    /**
+     *  see above for ip-to-long mapping
+     *  @since 0.9.47
+     */
+    private static boolean isIPv4(long ip) {
+        return ip >= 0 && ip < (1L << 32);
+    }
+
    /**
     * Get the GeoIP2 database file
     *
@@ -462,11 +641,7 @@ public class GeoIP {
     *
     */
     private String[] readGeoIPFile(Long[] search) {
-        String geoDir = _context.getProperty(PROP_GEOIP_DIR, GEOIP_DIR_DEFAULT);
-        File geoFile = new File(geoDir);
-        if (!geoFile.isAbsolute())
-            geoFile = new File(_context.getBaseDir(), geoDir);
-        geoFile = new File(geoFile, GEOIP_FILE_DEFAULT);
+        File geoFile = getGeoIPFile();
         if (!geoFile.exists()) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("GeoIP file not found: " + geoFile.getAbsolutePath());
@@ -513,6 +688,60 @@ public class GeoIP {
         return rv;
     }
 
+    /**
+     *  @return the Tor-style file, whether or not it exists
+     *  @since 0.9.47 split out from readGeoIPFile()
+     */
+    private File getGeoIPFile() {
+        String geoDir = _context.getProperty(PROP_GEOIP_DIR, GEOIP_DIR_DEFAULT);
+        File geoFile = new File(geoDir);
+        if (!geoFile.isAbsolute())
+            geoFile = new File(_context.getBaseDir(), geoDir);
+        return new File(geoFile, GEOIP_FILE_DEFAULT);
+    }
+
+    /**
+     *  Read the whole Tor-style file, for compiling a GeoIPTable.
+     *  See above for format.
+     *
+     *  @return success
+     *  @since 0.9.47
+     */
+    private boolean readGeoIPFile(GeoIPTable.Builder table) {
+        File geoFile = getGeoIPFile();
+        BufferedReader br = null;
+        try {
+            String buf = null;
+            br = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(geoFile), "ISO-8859-1"));
+            notifyVersion("Torv4", geoFile.lastModified());
+            while ((buf = br.readLine()) != null) {
+                try {
+                    if (buf.charAt(0) == '#') {
+                        continue;
+                    }
+                    String[] s = DataHelper.split(buf, ",");
+                    long ip1 = Long.parseLong(s[0]);
+                    long ip2 = Long.parseLong(s[1]);
+                    String lc = s[2].toLowerCase(Locale.US);
+                    String cached = _codeCache.get(lc);
+                    if (cached == null)
+                        cached = lc;
+                    table.add(ip1, ip2, cached);
+                } catch (IndexOutOfBoundsException ioobe) {
+                } catch (NumberFormatException nfe) {
+                }
+            }
+            return true;
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.ERROR))
+                _log.error("Error reading the geoFile", ioe);
+            return false;
+        } finally {
+            if (br != null) try { br.close(); } catch (IOException ioe) {}
+        }
+    }
+
     /**
      *  Tell the update manager.
      *
@@ -623,6 +852,9 @@ public class GeoIP {
      * @param ip IPv4 or IPv6
      */
     public void add(byte ip[]) {
+        GeoIPTable table = _table;
+        if (table != null && table.covers(ip.length == 4))
+            return;
         add(toLong(ip));
     }
 
@@ -630,7 +862,7 @@ public class GeoIP {
     private void add(long ip) {
         Long li = Long.valueOf(ip);
         if (!(_IPToCountry.containsKey(li) || _notFound.contains(li))) {
-            if (ip >= 0 && ip < (1L << 32))
+            if (isIPv4(ip))
                 _pendingSearch.add(li);
             else
                 _pendingIPv6Search.add(li);
@@ -651,11 +883,19 @@ public class GeoIP {
     }
 
     /**
-     * Get the country for an IP from the cache.
+     * Get the country for an IP from the table or the cache.
      * @param ip IPv4 or IPv6
      * @return lower-case code, generally two letters, or null.
      */
     String get(byte ip[]) {
+        GeoIPTable table = _table;
+        if (table != null) {
+            boolean ipv4 = ip.length == 4;
+            if (table.covers(ipv4)) {
+                long ipl = toLong(ip);
+                return ipv4 ? table.getIPv4(ipl) : table.getIPv6(ipl);
+            }
+        }
         return get(toLong(ip));
     }
 
@@ -0,0 +1,356 @@
+package net.i2p.router.transport;
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Use at your own risk.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.data.DataHelper;
+import net.i2p.util.FileUtil;
+
+/**
+ *  A compiled, memory-mapped table of IP ranges to countries,
+ *  so that lookups are synchronous, O(log n), and need no cache.
+ *
+ *  The table is compiled by GeoIP from whichever databases it would
+ *  otherwise search, and rebuilt when they change.
+ *  Each family is a sorted array of range start addresses with a country
+ *  index each, with no gaps; unknown ranges have index 0.
+ *  IPv6 uses the first 64 bits only, as in the rest of GeoIP.
+ *
+ *<pre>
+ * File format, big-endian:
+ *   Bytes 0-15: Magic number "I2PGeoIPTable\0\0\001"
+ *   Bytes 16-23: Source stamp (long)
+ *   int: number of country codes n, then n entries of
+ *        1 byte length, ASCII lower case code. Code 0 is unknown.
+ *   int: number of IPv4 ranges n4, or -1 if not in the table, then
+ *        n4 4-byte unsigned start addresses, then n4 2-byte code indexes
+ *   int: number of IPv6 ranges n6, or -1 if not in the table, then
+ *        n6 8-byte unsigned start addresses (/64), then n6 2-byte code indexes
+ *</pre>
+ *
+ *  Thread safe after open(). Not a public API.
+ *
+ *  @since 0.9.47
+ */
+class GeoIPTable {
+
+    private static final String MAGIC = "I2PGeoIPTable\0\0\001";
+    private static final String UNKNOWN = "--";
+
+    private final ByteBuffer _buf;
+    private final String[] _codes;
+    private final int _count4, _starts4, _codes4;
+    private final int _count6, _starts6, _codes6;
+
+    private GeoIPTable(ByteBuffer buf, String[] codes, int count4, int starts4, int count6, int starts6) {
+        _buf = buf;
+        _codes = codes;
+        _count4 = count4;
+        _starts4 = starts4;
+        _codes4 = starts4 + 4 * Math.max(0, count4);
+        _count6 = count6;
+        _starts6 = starts6;
+        _codes6 = starts6 + 8 * Math.max(0, count6);
+    }
+
+    /**
+     *  Map the file.
+     *  The header and sizes are checked with plain reads first, so a stale
+     *  or corrupt file is never mapped, and can be replaced on any OS.
+     *
+     *  @param stamp the expected source stamp
+     *  @param codeCache to canonicalize the country codes, may be null
+     *  @return null if not found, corrupt, or the stamp doesn't match
+     */
+    public static GeoIPTable open(File f, long stamp, Map<String, String> codeCache) throws IOException {
+        if (!f.exists())
+            return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "r");
+            byte[] magic = new byte[MAGIC.length()];
+            raf.readFully(magic);
+            if (!DataHelper.eq(magic, DataHelper.getASCII(MAGIC)))
+                return null;
+            if (raf.readLong() != stamp)
+                return null;
+            int n = raf.readInt();
+            if (n <= 0 || n > 65536)
+                return null;
+            String[] codes = new String[n];
+            byte[] b = new byte[255];
+            for (int i = 0; i < n; i++) {
+                int len = raf.readUnsignedByte();
+                raf.readFully(b, 0, len);
+                String lc = new String(b, 0, len, "ISO-8859-1");
+                String cached = codeCache != null ? codeCache.get(lc) : null;
+                codes[i] = cached != null ? cached : lc;
+            }
+            int count4 = raf.readInt();
+            long starts4 = raf.getFilePointer();
+            if (count4 > 0)
+                raf.seek(starts4 + 6L * count4);
+            int count6 = raf.readInt();
+            long starts6 = raf.getFilePointer();
+            long size = raf.length();
+            if (starts6 + 10L * Math.max(0, count6) != size || size > Integer.MAX_VALUE)
+                return null;
+            FileChannel fc = raf.getChannel();
+            MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new GeoIPTable(buf, codes, count4, (int) starts4, count6, (int) starts6);
+        } catch (EOFException eofe) {
+            return null;
+        } finally {
+            // the mapping stays valid
+            if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  @return true if the table has data for the family
+     */
+    public boolean covers(boolean ipv4) {
+        return (ipv4 ? _count4 : _count6) >= 0;
+    }
+
+    /**
+     *  @return the number of ranges, or -1 if not covered
+     */
+    public int size(boolean ipv4) {
+        return ipv4 ? _count4 : _count6;
+    }
+
+    /**
+     *  @param ip IPv4 as 0 to 2**32 - 1
+     *  @return lower case code or null
+     */
+    public String getIPv4(long ip) {
+        int lo = 0;
+        int hi = _count4 - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long start = _buf.getInt(_starts4 + 4 * mid) & 0xffffffffL;
+            if (start <= ip) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found < 0)
+            return null;
+        return getCode(_buf.getShort(_codes4 + 2 * found));
+    }
+
+    /**
+     *  6to4 addresses (2002::/16) are looked up by their embedded
+     *  IPv4 address if IPv4 is covered, as the GeoIP2 databases do.
+     *
+     *  @param ip first 64 bits of IPv6
+     *  @return lower case code or null
+     */
+    public String getIPv6(long ip) {
+        if ((ip >>> 48) == 0x2002 && _count4 >= 0)
+            return getIPv4((ip >>> 16) & 0xffffffffL);
+        int lo = 0;
+        int hi = _count6 - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long start = _buf.getLong(_starts6 + 8 * mid);
+            if (Long.compareUnsigned(start, ip) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found < 0)
+            return null;
+        return getCode(_buf.getShort(_codes6 + 2 * found));
+    }
+
+    private String getCode(short idx) {
+        int i = idx & 0xffff;
+        if (i == 0 || i >= _codes.length)
+            return null;
+        return _codes[i];
+    }
+
+    /**
+     *  Collects the ranges for one family, in any order.
+     *  Overlaps are resolved in favor of the earlier start.
+     *  Not thread safe.
+     */
+    public static class Builder {
+        private final List<Range> _ranges = new ArrayList<Range>(1024);
+
+        /**
+         *  @param start inclusive, unsigned
+         *  @param end inclusive, unsigned
+         *  @param code lower case
+         */
+        public void add(long start, long end, String code) {
+            if (Long.compareUnsigned(start, end) > 0)
+                return;
+            _ranges.add(new Range(start, end, code));
+        }
+
+        public int size() {
+            return _ranges.size();
+        }
+    }
+
+    private static class Range {
+        final long start, end;
+        final String code;
+
+        Range(long s, long e, String c) {
+            start = s; end = e; code = c;
+        }
+    }
+
+    private static class RangeComparator implements Comparator<Range>, java.io.Serializable {
+        public int compare(Range l, Range r) {
+            return Long.compareUnsigned(l.start, r.start);
+        }
+    }
+
+    /**
+     *  Compile and write the table, atomically replacing any old one.
+     *
+     *  @param v4 null if not covered
+     *  @param v6 null if not covered
+     */
+    public static void write(File f, long stamp, Builder v4, Builder v6) throws IOException {
+        Map<String, Integer> codeIdx = new HashMap<String, Integer>(512);
+        List<String> codes = new ArrayList<String>(512);
+        codes.add(UNKNOWN);
+        codeIdx.put(UNKNOWN, Integer.valueOf(0));
+        long[][] t4 = v4 != null ? compile(v4, 0xffffffffL, codes, codeIdx) : null;
+        long[][] t6 = v6 != null ? compile(v6, -1L, codes, codeIdx) : null;
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean ok = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.write(DataHelper.getASCII(MAGIC));
+            out.writeLong(stamp);
+            out.writeInt(codes.size());
+            for (String c : codes) {
+                byte[] b = DataHelper.getASCII(c);
+                out.write(b.length);
+                out.write(b);
+            }
+            if (t4 != null) {
+                int n = t4[0].length;
+                out.writeInt(n);
+                for (int i = 0; i < n; i++) {
+                    out.writeInt((int) t4[0][i]);
+                }
+                for (int i = 0; i < n; i++) {
+                    out.writeShort((int) t4[1][i]);
+                }
+            } else {
+                out.writeInt(-1);
+            }
+            if (t6 != null) {
+                int n = t6[0].length;
+                out.writeInt(n);
+                for (int i = 0; i < n; i++) {
+                    out.writeLong(t6[0][i]);
+                }
+                for (int i = 0; i < n; i++) {
+                    out.writeShort((int) t6[1][i]);
+                }
+            } else {
+                out.writeInt(-1);
+            }
+            out.close();
+            out = null;
+            ok = FileUtil.rename(tmp, f);
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            if (!ok)
+                tmp.delete();
+        }
+        if (!ok)
+            throw new IOException("Unable to write " + f);
+    }
+
+    /**
+     *  Sort, resolve overlaps, fill gaps with unknown, merge neighbors with the same code.
+     *
+     *  @param max highest address
+     *  @return starts, code indexes
+     */
+    private static long[][] compile(Builder b, long max, List<String> codes, Map<String, Integer> codeIdx) {
+        List<Range> ranges = b._ranges;
+        Collections.sort(ranges, new RangeComparator());
+        long[] starts = new long[2 * ranges.size() + 1];
+        long[] idx = new long[starts.length];
+        int n = 0;
+        // first address not yet covered
+        long next = 0;
+        boolean all = false;
+        for (Range r : ranges) {
+            if (Long.compareUnsigned(r.end, max) > 0)
+                continue;
+            long start = r.start;
+            if (Long.compareUnsigned(start, next) < 0) {
+                if (Long.compareUnsigned(r.end, next) < 0)
+                    continue;
+                start = next;
+            }
+            if (start != next)
+                n = append(starts, idx, n, next, 0);
+            Integer ci = codeIdx.get(r.code);
+            if (ci == null) {
+                ci = Integer.valueOf(codes.size());
+                codes.add(r.code);
+                codeIdx.put(r.code, ci);
+            }
+            n = append(starts, idx, n, start, ci.intValue());
+            if (r.end == max) {
+                all = true;
+                break;
+            }
+            next = r.end + 1;
+        }
+        if (!all)
+            n = append(starts, idx, n, next, 0);
+        return new long[][] { Arrays.copyOf(starts, n), Arrays.copyOf(idx, n) };
+    }
+
+    /**
+     *  Add a range start unless it has the same code as the one before
+     *  @return new n
+     */
+    private static int append(long[] starts, long[] idx, int n, long start, int code) {
+        if (n > 0 && idx[n - 1] == code)
+            return n;
+        starts[n] = start;
+        idx[n] = code;
+        return n + 1;
+    }
+}
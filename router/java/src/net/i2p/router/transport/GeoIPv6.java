@@ -68,6 +68,63 @@ public class GeoIPv6 {
         return readGeoIPFile(context, geoFile, search, codeCache, log);
     }
 
+    /**
+     * @return the geoip file, whether or not it exists
+     * @since 0.9.47
+     */
+    static File getGeoIPFile(I2PAppContext context) {
+        File geoFile = new File(context.getBaseDir(), GEOIP_DIR_DEFAULT);
+        return new File(geoFile, GEOIP_FILE_DEFAULT);
+    }
+
+    /**
+     * Read all the entries in the geoip file, for compiling a GeoIPTable.
+     * See below for format.
+     *
+     * @return success
+     * @since 0.9.47
+     */
+    static boolean readGeoIPFile(I2PAppContext context, GeoIPTable.Builder table, Map<String, String> codeCache) {
+        Log log = context.logManager().getLog(GeoIPv6.class);
+        File geoFile = getGeoIPFile(context);
+        if (!geoFile.exists())
+            return false;
+        InputStream in = null;
+        try {
+            in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(geoFile)));
+            GeoIP.notifyVersion(context, "I2Pv6", geoFile.lastModified());
+            byte[] magic = new byte[MAGIC.length()];
+            DataHelper.read(in, magic);
+            if (!DataHelper.eq(magic, DataHelper.getASCII(MAGIC)))
+                throw new IOException("Not a IPv6 geoip data file");
+            // skip timestamp and comments
+            DataHelper.skip(in, HEADER_LEN - MAGIC.length());
+            byte[] buf = new byte[18];
+            while (true) {
+                try {
+                    DataHelper.read(in, buf);
+                } catch (EOFException eofe) {
+                    break;
+                }
+                long ip1 = readLong(buf, 0);
+                long ip2 = readLong(buf, 8);
+                // written in lower case
+                String lc = new String(buf, 16, 2, "ISO-8859-1");
+                String cached = codeCache.get(lc);
+                if (cached == null)
+                    cached = lc;
+                table.add(ip1, ip2, cached);
+            }
+            return true;
+        } catch (IOException ioe) {
+            if (log.shouldLog(Log.ERROR))
+                log.error("Error reading the geoFile", ioe);
+            return false;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
     /**
      * Lookup search items in the geoip file.
      * See below for format.
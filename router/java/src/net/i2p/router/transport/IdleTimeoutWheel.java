@@ -0,0 +1,109 @@
+package net.i2p.router.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2p.router.RouterContext;
+import net.i2p.router.util.TimingWheel;
+
+/**
+ *  Idle connection expiry for the transports, so that they don't have to
+ *  iterate over every connection to find the few that have been idle too long.
+ *
+ *  Each connection is scheduled for its next idle check.
+ *  Activity does not touch the wheel; the transports already record
+ *  the last send and receive times, and the checker looks at them
+ *  when the check comes due. A connection that was active since
+ *  is simply rescheduled for when it could next be idle.
+ *  This keeps the synchronized wheel off the data path,
+ *  and each connection is visited about once per idle timeout
+ *  instead of once per scan.
+ *
+ *  Enabled with the router property i2np.idleTimeoutWheel, default false,
+ *  in which case the transports do a full scan as before.
+ *
+ *  @since 0.9.47
+ */
+public class IdleTimeoutWheel<E> {
+
+    private final TimingWheel<E> _wheel;
+    private final IdleChecker<E> _checker;
+    /** only touched by the thread calling expire() */
+    private final List<E> _due;
+
+    public static final String PROP_ENABLE = "i2np.idleTimeoutWheel";
+    private static final long TICK = 1000;
+    /** 17 minutes per revolution, longer than the max idle timeouts */
+    private static final int SLOTS = 1024;
+
+    public interface IdleChecker<E> {
+        /**
+         *  Called for each connection whose check time has passed.
+         *  Close it if it is idle.
+         *
+         *  @return the time of the next check, or 0 if it was closed
+         */
+        public long checkIdle(E con, long now);
+    }
+
+    public IdleTimeoutWheel(RouterContext ctx, IdleChecker<E> checker) {
+        _wheel = new TimingWheel<E>(TICK, SLOTS, ctx.clock().now());
+        _checker = checker;
+        _due = new ArrayList<E>();
+    }
+
+    /**
+     *  @return true if the transports should use a wheel
+     */
+    public static boolean isEnabled(RouterContext ctx) {
+        return ctx.getBooleanProperty(PROP_ENABLE);
+    }
+
+    /**
+     *  Start tracking the connection, or reschedule it if already tracked.
+     *
+     *  @param when time of the first check
+     */
+    public void add(E con, long when) {
+        _wheel.schedule(con, when);
+    }
+
+    /**
+     *  Stop tracking the connection. Call when it is closed.
+     */
+    public void remove(E con) {
+        _wheel.remove(con);
+    }
+
+    public int size() {
+        return _wheel.size();
+    }
+
+    public void clear() {
+        _wheel.clear();
+    }
+
+    /**
+     *  Run the checker on all connections that are due,
+     *  and reschedule the ones that are still open.
+     *  Only one thread may call this.
+     *
+     *  A connection closed by another thread during the check may be
+     *  rescheduled after its remove(); the checker will then return 0
+     *  at its next check.
+     *
+     *  @return the number of connections checked
+     */
+    public int expire(long now) {
+        _wheel.expire(now, _due);
+        int rv = _due.size();
+        for (int i = 0; i < rv; i++) {
+            E con = _due.get(i);
+            long next = _checker.checkIdle(con, now);
+            if (next > 0)
+                _wheel.schedule(con, next);
+        }
+        _due.clear();
+        return rv;
+    }
+}
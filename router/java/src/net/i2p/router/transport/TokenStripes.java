@@ -0,0 +1,140 @@
+package net.i2p.router.transport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Token buckets striped by thread, in front of a shared bucket.
+ *
+ *  Each stripe takes tokens from the shared AtomicInteger in chunks,
+ *  and requests are then satisfied by a CAS on the stripe,
+ *  which is usually only touched by one thread. Unlike the old shortcut,
+ *  a request never drives a bucket below zero.
+ *
+ *  Tokens sitting in the stripes are not in the shared bucket,
+ *  so the owner must drain() them back before looking at the
+ *  shared bucket for refill or burst accounting.
+ *  At most stripes * chunk bytes are held at any time.
+ *
+ *  All methods are lock-free.
+ *
+ *  @since 0.9.47
+ */
+class TokenStripes {
+    /** one stripe per 64-byte cache line */
+    private static final int INT_PAD = 16;
+    private static final int LONG_PAD = 8;
+
+    private final AtomicInteger _shared;
+    private final AtomicIntegerArray _tokens;
+    /** lifetime bytes granted per stripe */
+    private final AtomicLongArray _granted;
+    private final int _mask;
+    private volatile int _chunk = 1;
+
+    /**
+     *  @param shared the bucket to take from and drain to
+     *  @param stripes will be rounded up to a power of 2
+     */
+    public TokenStripes(AtomicInteger shared, int stripes) {
+        int sz = Integer.highestOneBit(Math.max(1, stripes));
+        if (sz < stripes)
+            sz <<= 1;
+        _shared = shared;
+        _mask = sz - 1;
+        _tokens = new AtomicIntegerArray(sz * INT_PAD);
+        _granted = new AtomicLongArray(sz * LONG_PAD);
+    }
+
+    public int getStripeCount() {
+        return _mask + 1;
+    }
+
+    /**
+     *  How many tokens a stripe takes from the shared bucket at a time,
+     *  beyond what the request needs.
+     *  Should be small compared to what is added to the shared bucket
+     *  per refill.
+     *
+     *  @param bytes minimum 1
+     */
+    public void setChunk(int bytes) {
+        _chunk = Math.max(1, bytes);
+    }
+
+    /**
+     *  Take all the requested tokens or none.
+     *
+     *  @return true if granted
+     */
+    public boolean tryAcquire(int bytes) {
+        int i = (int) Thread.currentThread().getId() & _mask;
+        int idx = i * INT_PAD;
+        while (true) {
+            int avail = _tokens.get(idx);
+            if (avail < bytes)
+                break;
+            if (_tokens.compareAndSet(idx, avail, avail - bytes)) {
+                _granted.addAndGet(i * LONG_PAD, bytes);
+                return true;
+            }
+        }
+        // not enough in our stripe, take a chunk from the shared bucket
+        int want = Math.max(bytes, _chunk);
+        int take;
+        while (true) {
+            int avail = _shared.get();
+            if (avail < bytes)
+                return false;
+            take = Math.min(avail, want);
+            if (_shared.compareAndSet(avail, avail - take))
+                break;
+        }
+        if (take > bytes)
+            _tokens.addAndGet(idx, take - bytes);
+        _granted.addAndGet(i * LONG_PAD, bytes);
+        return true;
+    }
+
+    /**
+     *  Move all tokens in the stripes back to the shared bucket.
+     *  Tokens added to a stripe concurrently may stay there
+     *  until the next drain, but none are lost.
+     *
+     *  @return the number of tokens moved
+     */
+    public int drain() {
+        int rv = 0;
+        for (int i = 0; i <= _mask; i++) {
+            int idx = i * INT_PAD;
+            if (_tokens.get(idx) != 0)
+                rv += _tokens.getAndSet(idx, 0);
+        }
+        if (rv != 0)
+            _shared.addAndGet(rv);
+        return rv;
+    }
+
+    /**
+     *  @return lifetime total granted by tryAcquire()
+     */
+    public long getGranted() {
+        long rv = 0;
+        for (int i = 0; i <= _mask; i++) {
+            rv += _granted.get(i * LONG_PAD);
+        }
+        return rv;
+    }
+
+    /**
+     *  @return tokens currently held in the stripes
+     */
+    public int getHeld() {
+        int rv = 0;
+        for (int i = 0; i <= _mask; i++) {
+            rv += _tokens.get(i * INT_PAD);
+        }
+        return rv;
+    }
+}
@@ -24,4 +24,12 @@ public interface TransportEventListener {
     public void messageReceived(I2NPMessage message, RouterIdentity fromRouter, Hash fromRouterHash);
 
     public void transportAddressChanged();
+
+    /**
+     * A transport established a connection to the peer,
+     * or marked it unreachable.
+     *
+     * @since 0.9.47
+     */
+    public void peerStateChanged(Hash peer);
 }
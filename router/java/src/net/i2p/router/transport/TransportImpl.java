@@ -882,6 +882,8 @@ public abstract class TransportImpl implements Transport {
             _lastReachablePeer = null;
         // This is not cleared when they contact us
         markWasUnreachable(peer, true);
+        if (_listener != null)
+            _listener.peerStateChanged(peer);
     }
 
     /** called when we establish a peer connection (outbound or inbound) */
@@ -891,6 +893,8 @@ public abstract class TransportImpl implements Transport {
         _unreachableEntries.remove(peer);
         if (!isInbound)
             markWasUnreachable(peer, false);
+        if (_listener != null)
+            _listener.peerStateChanged(peer);
     }
 
     private class CleanupUnreachable implements SimpleTimer.TimedEvent {
@@ -78,6 +78,8 @@ public class TransportManager implements TransportEventListener {
     private final boolean _enableUDP;
     private final boolean _enableNTCP1;
     private boolean _upnpUpdateQueued;
+    /** null if disabled */
+    private final Map<Hash, CachedBid> _bidCache;
 
     /** default true */
     public final static String PROP_ENABLE_UDP = "i2np.udp.enable";
@@ -101,6 +103,20 @@ public class TransportManager implements TransportEventListener {
     /** not forever, since they may update */
     private static final long SIGTYPE_BANLIST_DURATION = 36*60*60*1000L;
 
+    /**
+     *  Cache the bid results for peers we aren't connected to.
+     *  Default false.
+     *  @since 0.9.47
+     */
+    public static final String PROP_BID_CACHE = "i2np.bidCache";
+    private static final long BID_CACHE_TTL = 5*1000;
+    private static final int BID_CACHE_MAX_PEERS = 4096;
+    /**
+     *  The bids don't depend on the message size below this,
+     *  comfortably under the NTCP 1 max message size
+     */
+    private static final int BID_CACHE_MAX_MSG_SIZE = 8*1024;
+
     public TransportManager(RouterContext context) {
         _context = context;
         _log = _context.logManager().getLog(TransportManager.class);
@@ -111,6 +127,13 @@ public class TransportManager implements TransportEventListener {
         _context.statManager().createRateStat("transport.bidFailSelf", "Could not attempt to bid on message, as it targeted ourselves", "Transport", new long[] { 60*1000, 10*60*1000, 60*60*1000 });
         _context.statManager().createRateStat("transport.bidFailNoTransports", "Could not attempt to bid on message, as none of the transports could attempt it", "Transport", new long[] { 60*1000, 10*60*1000, 60*60*1000 });
         _context.statManager().createRateStat("transport.bidFailAllTransports", "Could not attempt to bid on message, as all of the transports had failed", "Transport", new long[] { 60*1000, 10*60*1000, 60*60*1000 });
+        if (_context.getBooleanProperty(PROP_BID_CACHE)) {
+            _bidCache = new ConcurrentHashMap<Hash, CachedBid>(256);
+            _context.statManager().createRateStat("transport.bidCacheHit", "Bid for an unconnected peer found in the cache", "Transport", new long[] { 60*1000, 10*60*1000, 60*60*1000 });
+            _context.statManager().createRateStat("transport.bidCacheMiss", "Bid for an unconnected peer not in the cache", "Transport", new long[] { 60*1000, 10*60*1000, 60*60*1000 });
+        } else {
+            _bidCache = null;
+        }
         _transports = new ConcurrentHashMap<String, Transport>(2);
         _pluggableTransports = new HashMap<String, Transport>(2);
 
@@ -494,6 +517,8 @@ public class TransportManager implements TransportEventListener {
             t.stopListening();
         }
         _transports.clear();
+        if (_bidCache != null)
+            _bidCache.clear();
     }
     
     
@@ -824,7 +849,83 @@ public class TransportManager implements TransportEventListener {
         return rv;
     }
     
+    /**
+     *  The result of getNextBid() for a peer we aren't connected to.
+     *  @since 0.9.47
+     */
+    private static class CachedBid {
+        /** null for no bid */
+        public final TransportBid bid;
+        /** transports the message was failed on */
+        public final String[] failed;
+        /** of the RouterInfo */
+        public final long published;
+        public final long expires;
+
+        public CachedBid(TransportBid bid, String[] failed, long published, long expires) {
+            this.bid = bid;
+            this.failed = failed;
+            this.published = published;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     *  Get the best bid, from the cache if enabled.
+     *
+     *  Only the first attempt for small messages to peers we aren't connected to
+     *  is cached, since those are the ones where the transports must look at the
+     *  peer's addresses, and the results don't depend on the message.
+     *  Entries are removed when a transport connects to the peer or marks it
+     *  unreachable, when the RouterInfo changes, when our addresses change,
+     *  or after a few seconds.
+     */
     TransportBid getNextBid(OutNetMessage msg) {
+        if (_bidCache == null ||
+            msg.getMessageSize() > BID_CACHE_MAX_MSG_SIZE ||
+            !msg.getFailedTransports().isEmpty())
+            return getNextBidUncached(msg);
+        RouterInfo target = msg.getTarget();
+        Hash peer = target.getIdentity().calculateHash();
+        long now = _context.clock().now();
+        CachedBid cb = _bidCache.get(peer);
+        if (cb != null) {
+            if (cb.expires > now && cb.published == target.getPublished()) {
+                for (int i = 0; i < cb.failed.length; i++) {
+                    msg.transportFailed(cb.failed[i]);
+                }
+                _context.statManager().addRateData("transport.bidCacheHit", 1);
+                return cb.bid;
+            }
+            _bidCache.remove(peer, cb);
+        }
+        TransportBid rv = getNextBidUncached(msg);
+        // bids for established peers aren't cached, so they aren't misses either
+        if (rv == null || !rv.getTransport().isEstablished(peer)) {
+            _context.statManager().addRateData("transport.bidCacheMiss", 1);
+            if (_bidCache.size() >= BID_CACHE_MAX_PEERS)
+                _bidCache.clear();
+            Set<String> failed = msg.getFailedTransports();
+            cb = new CachedBid(rv, failed.toArray(new String[failed.size()]),
+                               target.getPublished(), now + BID_CACHE_TTL);
+            _bidCache.put(peer, cb);
+        }
+        return rv;
+    }
+
+    /**
+     *  A transport connected to the peer or marked it unreachable.
+     *  @since 0.9.47
+     */
+    public void peerStateChanged(Hash peer) {
+        if (_bidCache != null)
+            _bidCache.remove(peer);
+    }
+
+    /**
+     *  @since 0.9.47 split out from getNextBid()
+     */
+    private TransportBid getNextBidUncached(OutNetMessage msg) {
         int unreachableTransports = 0;
         Hash peer = msg.getTarget().getIdentity().calculateHash();
         Set<String> failedTransports = msg.getFailedTransports();
@@ -922,6 +1023,8 @@ public class TransportManager implements TransportEventListener {
      *  calls UPnPManager rescan() and update()
      */
     public void transportAddressChanged() {
+        if (_bidCache != null)
+            _bidCache.clear();
         if (_upnpManager != null) {
             synchronized (_upnpManager) {
                 if (!_upnpUpdateQueued) {
@@ -15,6 +15,7 @@ import java.util.Set;
 import net.i2p.router.RouterContext;
 import static net.i2p.router.transport.Transport.AddressSource.SOURCE_UPNP;
 import net.i2p.util.Addresses;
+import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
 import net.i2p.util.SimpleTimer2;
 import net.i2p.util.Translate;
@@ -41,6 +42,12 @@ class UPnPManager {
     private final DelayedCallback _delayedCallback;
     private volatile boolean _isRunning;
     private volatile boolean _shouldBeRunning;
+    /** async start thread is running, protected by this */
+    private boolean _isStarting;
+    /** held while starting and stopping the UPnP stack, so we don't hold this */
+    private final Object _startLock = new Object();
+    /** when runPlugin() was last called, for the first mapping stat, 0 after recorded */
+    private volatile long _startedAt;
     private volatile long _lastRescan;
     private boolean _errorLogged;
     private boolean _disconLogged;
@@ -66,6 +73,12 @@ class UPnPManager {
     // make these generic so we don't advertise we're running I2P
     private static final String TCP_PORT_NAME = "TCP";
     private static final String UDP_PORT_NAME = "UDP";
+    /**
+     *  Start the UPnP stack in a separate thread, so a slow gateway
+     *  doesn't hold up transport startup
+     *  @since 0.9.47
+     */
+    private static final String PROP_ASYNC_START = "i2np.upnp.asyncStart";
 
     public UPnPManager(RouterContext context, TransportManager manager) {
         _context = context;
@@ -92,46 +105,131 @@ class UPnPManager {
         _scannerCallback = _context.router().getUPnPScannerCallback();
         _delayedCallback = (_scannerCallback != null) ? new DelayedCallback() : null;
         _rescanner = new Rescanner();
+        _context.statManager().createRateStat("transport.upnpStartTime", "How long to start UPnP (ms)", "Transport", new long[] { 60*60*1000 });
+        _context.statManager().createRateStat("transport.upnpFirstMapping", "How long from UPnP start to the first successful port mapping (ms)", "Transport", new long[] { 60*60*1000 });
     }
     
     /**
-     *  Blocking, may take a while.
+     *  Blocking, may take a while, unless i2np.upnp.asyncStart is true.
      *  May be called even if already running.
      */
-    public synchronized void start() {
-        _shouldBeRunning = true;
-        if (!_isRunning && Addresses.isConnected()) {
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("UPnP Start");
-            long b = _context.clock().now();
-            try {
-                // We set these here every time, because ControlPoint auto-decrements on failure,
-                // and will eventually hit 1024 and then negative
-                _upnp.setHTTPPort(_context.getProperty(PROP_HTTP_PORT, DEFAULT_HTTP_PORT));
-                _upnp.setSSDPPort(_context.getProperty(PROP_SSDP_PORT, DEFAULT_SSDP_PORT));
-                if (_scannerCallback != null) {
-                    _scannerCallback.beforeScan();
+    public void start() {
+        if (_context.getBooleanProperty(PROP_ASYNC_START)) {
+            synchronized(this) {
+                _shouldBeRunning = true;
+                if (_isStarting)
+                    return;
+                if (_isRunning || !Addresses.isConnected()) {
+                    afterStart();
+                    return;
                 }
-                _isRunning = _upnp.runPlugin();
-                if (_scannerCallback != null) {
-                    if (_isRunning)
-                        _delayedCallback.reschedule();
-                    else
-                        _scannerCallback.afterScan();
+                _isStarting = true;
+            }
+            I2PThread t = new I2PThread(new Starter(), "UPnP Start", true);
+            t.start();
+        } else {
+            synchronized(this) {
+                _shouldBeRunning = true;
+                if (!_isRunning && Addresses.isConnected()) {
+                    synchronized(_startLock) {
+                        _isRunning = startPlugin();
+                    }
                 }
-                if (_log.shouldDebug())
-                    _log.info("UPnP runPlugin took " + (_context.clock().now() - b));
-            } catch (RuntimeException e) {
-                // NPE in UPnP (ticket #728), can't let it bring us down
-                if (!_errorLogged) {
-                    _log.error("UPnP error, please report", e);
-                    _errorLogged = true;
+                afterStart();
+            }
+        }
+    }
+
+    /**
+     *  Start the UPnP stack off the caller's thread, then push the ports.
+     *
+     *  @since 0.9.47
+     */
+    private class Starter implements Runnable {
+        public void run() {
+            try {
+                synchronized(_startLock) {
+                    // stop() may have been called while we were waiting
+                    if (!_shouldBeRunning)
+                        return;
+                    _isRunning = startPlugin();
                 }
-                if (_scannerCallback != null) {
-                    _scannerCallback.afterScan();
+            } finally {
+                synchronized(UPnPManager.this) {
+                    _isStarting = false;
+                    if (_shouldBeRunning)
+                        afterStart();
                 }
             }
+            // don't wait for the delayed update in TransportManager, it may have already fired
+            if (_isRunning && _shouldBeRunning)
+                _manager.transportAddressChanged();
+        }
+    }
+
+    /**
+     *  Blocking, may take a while.
+     *  Caller must synch on _startLock.
+     *
+     *  @return success
+     *  @since 0.9.47 split out of start()
+     */
+    private boolean startPlugin() {
+        boolean rv = false;
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("UPnP Start");
+        long b = _context.clock().now();
+        _startedAt = b;
+        try {
+            // We set these here every time, because ControlPoint auto-decrements on failure,
+            // and will eventually hit 1024 and then negative
+            _upnp.setHTTPPort(_context.getProperty(PROP_HTTP_PORT, DEFAULT_HTTP_PORT));
+            _upnp.setSSDPPort(_context.getProperty(PROP_SSDP_PORT, DEFAULT_SSDP_PORT));
+            if (_scannerCallback != null) {
+                _scannerCallback.beforeScan();
+            }
+            rv = runPlugin();
+            if (_scannerCallback != null) {
+                if (rv)
+                    _delayedCallback.reschedule();
+                else
+                    _scannerCallback.afterScan();
+            }
+            long time = _context.clock().now() - b;
+            _context.statManager().addRateData("transport.upnpStartTime", time);
+            if (_log.shouldDebug())
+                _log.info("UPnP runPlugin took " + time);
+        } catch (RuntimeException e) {
+            // NPE in UPnP (ticket #728), can't let it bring us down
+            if (!_errorLogged) {
+                _log.error("UPnP error, please report", e);
+                _errorLogged = true;
+            }
+            if (_scannerCallback != null) {
+                _scannerCallback.afterScan();
+            }
         }
+        return rv;
+    }
+
+    /**
+     *  Blocking, may take a while.
+     *  Package private for testing.
+     *
+     *  @return success
+     *  @since 0.9.47
+     */
+    boolean runPlugin() {
+        return _upnp.runPlugin();
+    }
+
+    /**
+     *  Schedule the rescan and log failures.
+     *  Caller must synch on this.
+     *
+     *  @since 0.9.47 split out of start()
+     */
+    private void afterStart() {
         if (_isRunning) {
             _rescanner.schedule(RESCAN_LONG_DELAY);
         } else {
@@ -157,9 +255,11 @@ class UPnPManager {
             _log.debug("UPnP Stop");
         _shouldBeRunning = false;
         _rescanner.cancel();
-        if (_isRunning)
-            _upnp.terminate();
-        _isRunning = false;
+        synchronized(_startLock) {
+            if (_isRunning)
+                _upnp.terminate();
+            _isRunning = false;
+        }
         _detectedAddress = null;
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("UPnP Stop Done");
@@ -364,6 +464,14 @@ class UPnPManager {
                     continue;
                 }
                 boolean success = fps.status >= ForwardPortStatus.MAYBE_SUCCESS;
+                if (success) {
+                    long started = _startedAt;
+                    if (started > 0) {
+                        _startedAt = 0;
+                        _context.statManager().addRateData("transport.upnpFirstMapping",
+                                                           _context.clock().now() - started);
+                    }
+                }
                 // deadlock path 2
                 _manager.forwardPortStatus(style, ipaddr, fp.portNumber, fps.externalPort, success, fps.reasonString);
             }
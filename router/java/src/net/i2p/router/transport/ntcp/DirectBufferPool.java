@@ -0,0 +1,91 @@
+package net.i2p.router.transport.ntcp;
+
+import java.nio.ByteBuffer;
+
+import net.i2p.util.TryCache;
+
+/**
+ *  A size-class pool of direct ByteBuffers for outbound frames.
+ *
+ *  Writing a heap buffer to a channel makes the JDK copy it into a
+ *  temporary direct buffer first. With these, we copy once when the
+ *  frame is queued and the channel writes straight from them.
+ *
+ *  Sizes are powers of 2 from 512 bytes to 128 KB, which covers
+ *  the largest NTCP2 frame. Larger requests get an unpooled buffer.
+ *  Each class has its own TryCache, so acquire() and release() never block.
+ *
+ *  Direct memory is only freed by GC, so don't allocate these
+ *  for anything that isn't going to be released.
+ *
+ *  @since 0.9.47
+ */
+class DirectBufferPool {
+    private static final int MIN_SHIFT = 9;
+    private static final int MAX_SHIFT = 17;
+    /** approximate max bytes cached per size class */
+    private static final int CLASS_BYTES = 256*1024;
+    private static final int MIN_PER_CLASS = 4;
+    private static final int MAX_PER_CLASS = 64;
+
+    private final TryCache<ByteBuffer>[] _caches;
+
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool() {
+        _caches = (TryCache<ByteBuffer>[]) new TryCache<?>[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < _caches.length; i++) {
+            final int size = 1 << (MIN_SHIFT + i);
+            int count = Math.max(MIN_PER_CLASS, Math.min(MAX_PER_CLASS, CLASS_BYTES / size));
+            _caches[i] = new TryCache<ByteBuffer>(new TryCache.ObjectFactory<ByteBuffer>() {
+                public ByteBuffer newInstance() {
+                    return ByteBuffer.allocateDirect(size);
+                }
+            }, count);
+        }
+    }
+
+    /**
+     *  @param size greater than zero
+     *  @return a cleared direct buffer with position 0 and limit size,
+     *          capacity may be larger
+     */
+    public ByteBuffer acquire(int size) {
+        int idx = sizeClass(size);
+        ByteBuffer rv;
+        if (idx < 0)
+            rv = ByteBuffer.allocateDirect(size);
+        else
+            rv = _caches[idx].acquire();
+        rv.clear();
+        rv.limit(size);
+        return rv;
+    }
+
+    /**
+     *  Return a buffer from acquire().
+     *  Others are ignored. Do not release the same buffer twice.
+     */
+    public void release(ByteBuffer buf) {
+        if (!buf.isDirect())
+            return;
+        int cap = buf.capacity();
+        if (Integer.bitCount(cap) != 1)
+            return;
+        int idx = sizeClass(cap);
+        if (idx >= 0)
+            _caches[idx].release(buf);
+    }
+
+    /**
+     *  @return index into _caches, or -1 if too big
+     */
+    static int sizeClass(int size) {
+        if (size <= (1 << MIN_SHIFT))
+            return 0;
+        // smallest power of 2 >= size
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift > MAX_SHIFT)
+            return -1;
+        return shift - MIN_SHIFT;
+    }
+}
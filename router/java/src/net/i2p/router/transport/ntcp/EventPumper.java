@@ -16,6 +16,7 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.Queue;
@@ -24,28 +25,36 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import net.i2p.I2PAppContext;
-import net.i2p.data.ByteArray;
 import net.i2p.data.router.RouterAddress;
 import net.i2p.data.router.RouterIdentity;
 import net.i2p.router.CommSystemFacade.Status;
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.FIFOBandwidthLimiter;
+import net.i2p.router.util.CountMinSketch;
 import net.i2p.util.TryCache;
 import net.i2p.util.Addresses;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
-import net.i2p.util.ObjectCounter;
 import net.i2p.util.SystemVersion;
 
 /**
  *  The main NTCP NIO thread.
+ *
+ *  As of 0.9.47, there may be more than one, see NTCPTransport.PROP_PUMPERS.
+ *  Each has its own Selector and owns a partition of the connections.
+ *  The listening sockets are registered with pumper 0 only,
+ *  which hands accepted connections to the others round-robin.
  */
 class EventPumper implements Runnable {
     private final RouterContext _context;
     private final Log _log;
     private volatile boolean _alive;
     private Selector _selector;
+    /** 0 to count-1 */
+    private final int _id;
+    /** "" if only one, else "." + id */
+    private final String _statSuffix;
     private final Set<NTCPConnection> _wantsWrite = new ConcurrentHashSet<NTCPConnection>(32);
     /**
      *  The following 3 are unbounded and lockless for performance in runDelayedEvents()
@@ -53,10 +62,19 @@ class EventPumper implements Runnable {
     private final Queue<NTCPConnection> _wantsRead = new ConcurrentLinkedQueue<NTCPConnection>();
     private final Queue<ServerSocketChannel> _wantsRegister = new ConcurrentLinkedQueue<ServerSocketChannel>();
     private final Queue<NTCPConnection> _wantsConRegister = new ConcurrentLinkedQueue<NTCPConnection>();
+    /** accepted by another pumper, for us to register, @since 0.9.47 */
+    private final Queue<SocketChannel> _wantsAcceptRegister = new ConcurrentLinkedQueue<SocketChannel>();
     private final NTCPTransport _transport;
-    private final ObjectCounter<ByteArray> _blockedIPs;
+    /** only the exact heavy hitter counts are used for blocking */
+    private final CountMinSketch _blockedIPs;
     private long _expireIdleWriteTime;
     private static final boolean _useDirect = false;
+    /** outbound only, see PROP_DIRECT */
+    private final boolean _useDirectWrites;
+    /** for gathering writes, pumper thread only */
+    private final ByteBuffer[] _gather;
+    private static final int MAX_GATHER = 16;
+    private static final DirectBufferPool _directPool = new DirectBufferPool();
     
     /**
      *  This probably doesn't need to be bigger than the largest typical
@@ -85,13 +103,15 @@ class EventPumper implements Runnable {
      */
     private static final long FAILSAFE_ITERATION_FREQ = 2*1000l;
     private static final int FAILSAFE_LOOP_COUNT = 512;
+    /** @since 0.9.47 */
+    private static final long WHEEL_SCAN_FREQ = 15*1000l;
     private static final long SELECTOR_LOOP_DELAY = 200;
     private static final long BLOCKED_IP_FREQ = 3*60*1000;
 
     /** tunnel test now disabled, but this should be long enough to allow an active tunnel to get started */
     private static final long MIN_EXPIRE_IDLE_TIME = 120*1000l;
     private static final long MAX_EXPIRE_IDLE_TIME = 11*60*1000l;
-    private static final long MAY_DISCON_TIMEOUT = 10*1000;
+    static final long MAY_DISCON_TIMEOUT = 10*1000;
 
     /**
      *  Do we use direct buffers for reading? Default false.
@@ -99,9 +119,13 @@ class EventPumper implements Runnable {
      *
      *  Unsupported, set _useDirect above.
      *
+     *  As of 0.9.47, this enables pooled direct buffers and
+     *  gathering writes for the outbound path only. Default false.
+     *
      *  @see java.nio.ByteBuffer
+     *  @since 0.9.47 was commented out
      */
-    //private static final String PROP_DIRECT = "i2np.ntcp.useDirectBuffers";
+    public static final String PROP_DIRECT = "i2np.ntcp.useDirectBuffers";
 
     private static final int MIN_MINB = 4;
     private static final int MAX_MINB = 12;
@@ -116,16 +140,30 @@ class EventPumper implements Runnable {
     private static final Set<Status> STATUS_OK =
         EnumSet.of(Status.OK, Status.IPV4_OK_IPV6_UNKNOWN, Status.IPV4_OK_IPV6_FIREWALLED);
 
-    public EventPumper(RouterContext ctx, NTCPTransport transport) {
+    /**
+     *  @param id 0 to count-1
+     *  @param count total number of pumpers
+     *  @param blockedIPs shared by all pumpers
+     *  @since 0.9.47 added id, count, blockedIPs
+     */
+    public EventPumper(RouterContext ctx, NTCPTransport transport, int id, int count,
+                       CountMinSketch blockedIPs) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _transport = transport;
+        _id = id;
+        _statSuffix = count > 1 ? "." + id : "";
         _expireIdleWriteTime = MAX_EXPIRE_IDLE_TIME;
-        _blockedIPs = new ObjectCounter<ByteArray>();
-        _context.statManager().createRateStat("ntcp.pumperKeySetSize", "", "ntcp", new long[] {10*60*1000} );
-        //_context.statManager().createRateStat("ntcp.pumperKeysPerLoop", "", "ntcp", new long[] {10*60*1000} );
-        _context.statManager().createRateStat("ntcp.pumperLoopsPerSecond", "", "ntcp", new long[] {10*60*1000} );
+        _blockedIPs = blockedIPs;
+        _useDirectWrites = ctx.getBooleanProperty(PROP_DIRECT);
+        _gather = _useDirectWrites ? new ByteBuffer[MAX_GATHER] : null;
+        _context.statManager().createRateStat("ntcp.pumperKeySetSize" + _statSuffix, "Connections on this selector", "ntcp", new long[] {10*60*1000} );
+        _context.statManager().createRateStat("ntcp.pumperKeysPerLoop" + _statSuffix, "Average selected keys per non-empty select", "ntcp", new long[] {10*60*1000} );
+        _context.statManager().createRateStat("ntcp.pumperLoopsPerSecond" + _statSuffix, "", "ntcp", new long[] {10*60*1000} );
+        _context.statManager().createRateStat("ntcp.pumperLoopTime" + _statSuffix, "Average processing time per selector loop (us)", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.zeroRead", "", "ntcp", new long[] {10*60*1000} );
+        if (_useDirectWrites)
+            _context.statManager().createRateStat("ntcp.writeGatherCount", "Buffers per gathering write", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.zeroReadDrop", "", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.dropInboundNoMessage", "", "ntcp", new long[] {10*60*1000} );
     }
@@ -136,7 +174,7 @@ class EventPumper implements Runnable {
         try {
             _selector = Selector.open();
             _alive = true;
-            new I2PThread(this, "NTCP Pumper", true).start();
+            new I2PThread(this, "NTCP Pumper" + (_statSuffix.length() > 0 ? " " + _id : ""), true).start();
         } catch (IOException ioe) {
             _log.log(Log.CRIT, "Error opening the NTCP selector", ioe);
         } catch (java.lang.InternalError jlie) {
@@ -162,6 +200,7 @@ class EventPumper implements Runnable {
      *  Register the acceptor.
      *  This is only called from NTCPTransport.bindAddress(), so it isn't clear
      *  why this needs a queue. 
+     *  Only call on pumper 0.
      */
     public void register(ServerSocketChannel chan) {
         if (_log.shouldLog(Log.DEBUG)) _log.debug("Registering server socket channel");
@@ -179,6 +218,16 @@ class EventPumper implements Runnable {
         _wantsConRegister.offer(con);
         _selector.wakeup();
     }
+
+    /**
+     *  Inbound, accepted by pumper 0, to be registered with our selector.
+     *
+     *  @since 0.9.47
+     */
+    private void registerAccepted(SocketChannel chan) {
+        _wantsAcceptRegister.offer(chan);
+        _selector.wakeup();
+    }
     
     /**
      *  The selector loop.
@@ -187,23 +236,31 @@ class EventPumper implements Runnable {
      */
     public void run() {
         int loopCount = 0;
+        // for stats, reset every FAILSAFE_ITERATION_FREQ
+        long busyTime = 0;
+        int selectCount = 0;
+        int keyCount = 0;
         int failsafeLoopCount = FAILSAFE_LOOP_COUNT;
         long lastFailsafeIteration = System.currentTimeMillis();
         long lastBlockedIPClear = lastFailsafeIteration;
+        long lastFullScan = lastFailsafeIteration;
         while (_alive && _selector.isOpen()) {
             try {
                 loopCount++;
 
                 try {
                     int count = _selector.select(SELECTOR_LOOP_DELAY);
+                    long begin = System.nanoTime();
                     if (count > 0) {
                         Set<SelectionKey> selected = _selector.selectedKeys();
-                        //_context.statManager().addRateData("ntcp.pumperKeysPerLoop", selected.size());
+                        selectCount++;
+                        keyCount += selected.size();
                         processKeys(selected);
                         // does clear() do anything useful?
                         selected.clear();
                     }
                     runDelayedEvents();
+                    busyTime += System.nanoTime() - begin;
                 } catch (ClosedSelectorException cse) {
                     continue;
                 } catch (IOException ioe) {
@@ -225,8 +282,15 @@ class EventPumper implements Runnable {
                     try {
                         Set<SelectionKey> all = _selector.keys();
                         int lastKeySetSize = all.size();
-                        _context.statManager().addRateData("ntcp.pumperKeySetSize", lastKeySetSize);
-                        _context.statManager().addRateData("ntcp.pumperLoopsPerSecond", loopCount / (FAILSAFE_ITERATION_FREQ / 1000));
+                        _context.statManager().addRateData("ntcp.pumperKeySetSize" + _statSuffix, lastKeySetSize);
+                        _context.statManager().addRateData("ntcp.pumperLoopsPerSecond" + _statSuffix, loopCount / (FAILSAFE_ITERATION_FREQ / 1000));
+                        if (loopCount > 0)
+                            _context.statManager().addRateData("ntcp.pumperLoopTime" + _statSuffix, busyTime / (1000 * loopCount));
+                        if (selectCount > 0)
+                            _context.statManager().addRateData("ntcp.pumperKeysPerLoop" + _statSuffix, keyCount / selectCount);
+                        busyTime = 0;
+                        selectCount = 0;
+                        keyCount = 0;
                         // reset the failsafe loop counter,
                         // and recalculate the max loops before failsafe sleep, based on number of keys
                         loopCount = 0;
@@ -242,74 +306,70 @@ class EventPumper implements Runnable {
                             _expireIdleWriteTime = Math.min(_expireIdleWriteTime + 1000, MAX_EXPIRE_IDLE_TIME);
                         else
                             _expireIdleWriteTime = Math.max(_expireIdleWriteTime - 3000, MIN_EXPIRE_IDLE_TIME);
-                        for (SelectionKey key : all) {
-                            try {
-                                Object att = key.attachment();
-                                if (!(att instanceof NTCPConnection))
-                                    continue; // to the next con
-                                NTCPConnection con = (NTCPConnection)att;
+                        // With the idle wheel, the scan is only for the failsafe checks
+                        // and doesn't need to run as often
+                        boolean useWheel = _transport.hasIdleWheel();
+                        if (!useWheel || lastFullScan + WHEEL_SCAN_FREQ < now) {
+                            lastFullScan = now;
+                            long scanBegin = System.nanoTime();
+                            for (SelectionKey key : all) {
+                                try {
+                                    Object att = key.attachment();
+                                    if (!(att instanceof NTCPConnection))
+                                        continue; // to the next con
+                                    NTCPConnection con = (NTCPConnection)att;
                                 
-                                /**
-                                 * 100% CPU bug
-                                 * http://forums.java.net/jive/thread.jspa?messageID=255525
-                                 * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6595055
-                                 * 
-                                 * The problem is around a channel that was originally registered with Selector for i/o gets
-                                 * closed on the server side (due to early client side exit).  But the server side can know
-                                 * about such channel only when it does i/o (read/write) and thereby getting into an IO exception.
-                                 * In this case, (bug 6595055)there are times (erroneous) when server side (selector) did not
-                                 * know the channel is already closed (peer-reset), but continue to do the selection cycle on
-                                 * a key set whose associated channel is alreay closed or invalid. Hence, selector's slect(..)
-                                 * keep spinging with zero return without blocking for the timeout period.
-                                 * 
-                                 * One fix is to have a provision in the application, to check if any of the Selector's keyset
-                                 * is having a closed channel/or invalid registration due to channel closure.
-                                 */
-                                if ((!key.isValid()) &&
-                                    (!((SocketChannel)key.channel()).isConnectionPending()) &&
-                                    con.getTimeSinceCreated(now) > 2 * NTCPTransport.ESTABLISH_TIMEOUT) {
-                                    if (_log.shouldLog(Log.INFO))
-                                        _log.info("Removing invalid key for " + con);
-                                    // this will cancel the key, and it will then be removed from the keyset
-                                    con.close();
-                                    key.cancel();
-                                    failsafeInvalid++;
-                                    continue;
-                                }
+                                    /**
+                                     * 100% CPU bug
+                                     * http://forums.java.net/jive/thread.jspa?messageID=255525
+                                     * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6595055
+                                     * 
+                                     * The problem is around a channel that was originally registered with Selector for i/o gets
+                                     * closed on the server side (due to early client side exit).  But the server side can know
+                                     * about such channel only when it does i/o (read/write) and thereby getting into an IO exception.
+                                     * In this case, (bug 6595055)there are times (erroneous) when server side (selector) did not
+                                     * know the channel is already closed (peer-reset), but continue to do the selection cycle on
+                                     * a key set whose associated channel is alreay closed or invalid. Hence, selector's slect(..)
+                                     * keep spinging with zero return without blocking for the timeout period.
+                                     * 
+                                     * One fix is to have a provision in the application, to check if any of the Selector's keyset
+                                     * is having a closed channel/or invalid registration due to channel closure.
+                                     */
+                                    if ((!key.isValid()) &&
+                                        (!((SocketChannel)key.channel()).isConnectionPending()) &&
+                                        con.getTimeSinceCreated(now) > 2 * NTCPTransport.ESTABLISH_TIMEOUT) {
+                                        if (_log.shouldLog(Log.INFO))
+                                            _log.info("Removing invalid key for " + con);
+                                        // this will cancel the key, and it will then be removed from the keyset
+                                        con.close();
+                                        key.cancel();
+                                        failsafeInvalid++;
+                                        continue;
+                                    }
 
-                                if ( (!con.isWriteBufEmpty()) &&
-                                     ((key.interestOps() & SelectionKey.OP_WRITE) == 0) ) {
-                                    // the data queued to be sent has already passed through
-                                    // the bw limiter and really just wants to get shoved
-                                    // out the door asap.
-                                    if (_log.shouldLog(Log.INFO))
-                                        _log.info("Failsafe write for " + con);
-                                    key.interestOps(SelectionKey.OP_WRITE | key.interestOps());
-                                    failsafeWrites++;
-                                }
+                                    if ( (!con.isWriteBufEmpty()) &&
+                                         ((key.interestOps() & SelectionKey.OP_WRITE) == 0) ) {
+                                        // the data queued to be sent has already passed through
+                                        // the bw limiter and really just wants to get shoved
+                                        // out the door asap.
+                                        if (_log.shouldLog(Log.INFO))
+                                            _log.info("Failsafe write for " + con);
+                                        key.interestOps(SelectionKey.OP_WRITE | key.interestOps());
+                                        failsafeWrites++;
+                                    }
                                 
-                                final long expire;
-                                if ((!haveCap || !con.isInbound()) &&
-                                    con.getMayDisconnect() &&
-                                    con.getMessagesReceived() <= 2 && con.getMessagesSent() <= 1) {
-                                    expire = MAY_DISCON_TIMEOUT;
-                                    if (_log.shouldInfo())
-                                        _log.info("Possible early disconnect for " + con);
-                                } else {
-                                    expire = _expireIdleWriteTime;
-                                }
-
-                                if ( con.getTimeSinceSend(now) > expire &&
-                                     con.getTimeSinceReceive(now) > expire) {
-                                    // we haven't sent or received anything in a really long time, so lets just close 'er up
-                                    con.sendTerminationAndClose();
-                                    key.cancel();
-                                    if (_log.shouldInfo())
-                                        _log.info("Failsafe or expire close for " + con);
-                                    failsafeCloses++;
+                                    if (!useWheel && checkIdle(con, now, haveCap) == 0) {
+                                        if (_log.shouldInfo())
+                                            _log.info("Failsafe or expire close for " + con);
+                                        failsafeCloses++;
+                                    }
+                                } catch (CancelledKeyException cke) {
+                                    // cancelled while updating the interest ops.  ah well
                                 }
-                            } catch (CancelledKeyException cke) {
-                                // cancelled while updating the interest ops.  ah well
+                            }
+                            if (!useWheel) {
+                                _context.statManager().addRateData("ntcp.idleExpireTime", (System.nanoTime() - scanBegin) / 1000);
+                                _context.statManager().addRateData("ntcp.idleExpireVisited", lastKeySetSize);
                             }
                         }
                         if (failsafeWrites > 0)
@@ -334,7 +394,7 @@ class EventPumper implements Runnable {
                         } catch (InterruptedException ie) {}
                     }
                 }
-                if (lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
+                if (_id == 0 && lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
                     _blockedIPs.clear();
                     lastBlockedIPClear = now;
                 }
@@ -372,6 +432,10 @@ class EventPumper implements Runnable {
             _log.error("Error closing keys on pumper shutdown", e);
         }
         _wantsConRegister.clear();
+        SocketChannel schan;
+        while ((schan = _wantsAcceptRegister.poll()) != null) {
+            try { schan.close(); } catch (IOException ioe) {}
+        }
         _wantsRead.clear();
         _wantsRegister.clear();
         _wantsWrite.clear();
@@ -410,7 +474,10 @@ class EventPumper implements Runnable {
                     processRead(key);
                 }
                 if (write) {
-                    processWrite(key);
+                    if (_useDirectWrites)
+                        processGatheringWrite(key);
+                    else
+                        processWrite(key);
                 }
                 //if (!(accept || connect || read || write)) {
                 //    if (_log.shouldLog(Log.INFO))
@@ -440,8 +507,28 @@ class EventPumper implements Runnable {
      *  @since 0.9.35 off/len version
      */
     public void wantsWrite(NTCPConnection con, byte data[], int off, int len) {
-        ByteBuffer buf = ByteBuffer.wrap(data, off, len);
-        FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestOutbound(len, 0, "NTCP write");//con, buf);
+        wantsWrite(con, data, off, len, 0);
+    }
+
+    /**
+     *  Called by the connection when it has data ready to write.
+     *  If we have bandwidth, calls con.Write() which calls wantsWrite(con).
+     *  If no bandwidth, calls con.queuedWrite().
+     *
+     *  @param priority for the bandwidth limiter, OutNetMessage priority or 0 if unknown
+     *  @since 0.9.47
+     */
+    public void wantsWrite(NTCPConnection con, byte data[], int off, int len, int priority) {
+        ByteBuffer buf;
+        if (_useDirectWrites) {
+            // copy once here rather than in the JDK on every write attempt
+            buf = _directPool.acquire(len);
+            buf.put(data, off, len);
+            ((Buffer)buf).flip();
+        } else {
+            buf = ByteBuffer.wrap(data, off, len);
+        }
+        FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestOutbound(len, priority, "NTCP write");//con, buf);
         if (req.getPendingRequested() > 0) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("queued write on " + con + " for " + len);
@@ -494,6 +581,17 @@ class EventPumper implements Runnable {
         _bufferCache.release(buf);
     }
     
+    /**
+     *  Return a write buffer to the pool if it came from there.
+     *  Only call after it is completely written and removed from the connection.
+     *
+     *  @since 0.9.47
+     */
+    static void releaseWriteBuf(ByteBuffer buf) {
+        if (buf.isDirect())
+            _directPool.release(buf);
+    }
+    
     private void processAccept(SelectionKey key) {
         ServerSocketChannel servChan = (ServerSocketChannel)key.attachment();
         try {
@@ -518,10 +616,9 @@ class EventPumper implements Runnable {
                 return;
             }
 
-            ByteArray ba = new ByteArray(ip);
-            int count = _blockedIPs.count(ba);
+            int count = _blockedIPs.heavyCount(ip);
             if (count > 0) {
-                count = _blockedIPs.increment(ba);
+                count = _blockedIPs.increment(ip);
                 if (_log.shouldLog(Log.WARN))
                    _log.warn("Blocking accept of IP with count " + count + ": " + Addresses.toString(ip));
                 _context.statManager().addRateData("ntcp.dropInboundNoMessage", count);
@@ -532,14 +629,28 @@ class EventPumper implements Runnable {
             if (shouldSetKeepAlive(chan))
                 chan.socket().setKeepAlive(true);
 
-            SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
-            NTCPConnection con = new NTCPConnection(_context, _transport, chan, ckey);
-            ckey.attach(con);
-            _transport.establishing(con);
+            EventPumper pumper = _transport.getPumperForAccept();
+            if (pumper == this)
+                registerInbound(chan);
+            else
+                pumper.registerAccepted(chan);
         } catch (IOException ioe) {
             _log.error("Error accepting", ioe);
         }
     }
+
+    /**
+     *  Register an accepted channel with our selector and create the connection.
+     *  @since 0.9.47 split out of processAccept()
+     */
+    private void registerInbound(SocketChannel chan) throws IOException {
+        SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
+        NTCPConnection con = new NTCPConnection(_context, _transport, chan, ckey);
+        con.setPumper(this);
+        ckey.attach(con);
+        _transport.establishing(con);
+        _transport.idleTrack(con);
+    }
     
     private void processConnect(SelectionKey key) {
         final NTCPConnection con = (NTCPConnection)key.attachment();
@@ -612,8 +723,7 @@ class EventPumper implements Runnable {
                         int count;
                         if (addr != null) {
                             byte[] ip = addr.getAddress();
-                            ByteArray ba = new ByteArray(ip);
-                            count = _blockedIPs.increment(ba);
+                            count = _blockedIPs.increment(ip);
                             if (_log.shouldLog(Log.WARN))
                                 _log.warn("EOF on inbound before receiving any, blocking IP " + Addresses.toString(ip) + " with count " + count + ": " + con);
                         } else {
@@ -692,8 +802,7 @@ class EventPumper implements Runnable {
                 int count;
                 if (addr != null) {
                     byte[] ip = addr.getAddress();
-                    ByteArray ba = new ByteArray(ip);
-                    count = _blockedIPs.increment(ba);
+                    count = _blockedIPs.increment(ip);
                     if (_log.shouldLog(Log.WARN))
                         _log.warn("Blocking IP " + Addresses.toString(ip) + " with count " + count + ": " + con, ioe);
                 } else {
@@ -781,6 +890,58 @@ class EventPumper implements Runnable {
         }
     }
     
+    /**
+     *  As processWrite(), but writes up to MAX_GATHER buffers in one call.
+     *  OP_WRITE will always be set before this is called.
+     *  This method will disable the interest if no more writes remain.
+     *  High-frequency path in thread.
+     *
+     *  @since 0.9.47
+     */
+    private void processGatheringWrite(SelectionKey key) {
+        final NTCPConnection con = (NTCPConnection)key.attachment();
+        final SocketChannel chan = con.getChannel();
+        int count = 0;
+        try {
+            while (true) {
+                count = con.getWriteBufs(_gather);
+                if (count <= 0) {
+                    // Nothing more to write
+                    if (key.isValid())
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    break;
+                }
+                long written = chan.write(_gather, 0, count);
+                if (count > 1)
+                    _context.statManager().addRateData("ntcp.writeGatherCount", count);
+                int done = 0;
+                for ( ; done < count; done++) {
+                    ByteBuffer buf = _gather[done];
+                    if (buf.hasRemaining())
+                        break;
+                    con.removeWriteBuf(buf);
+                }
+                Arrays.fill(_gather, 0, count, null);
+                count = 0;
+                if (written == 0 && done == 0) {
+                    // socket buffer full, stay interested
+                    break;
+                }
+            }
+        } catch (CancelledKeyException cke) {
+            if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, cke);
+            _context.statManager().addRateData("ntcp.writeError", 1);
+            con.close();
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, ioe);
+            _context.statManager().addRateData("ntcp.writeError", 1);
+            con.close();
+        } finally {
+            if (count > 0)
+                Arrays.fill(_gather, 0, count, null);
+        }
+    }
+    
     /**
      *  Pull off the 4 _wants* queues and update the interest ops,
      *  which may, according to the javadocs, be a "naive" implementation and block.
@@ -850,12 +1011,23 @@ class EventPumper implements Runnable {
             }
         }
         
+        SocketChannel achan;
+        while ((achan = _wantsAcceptRegister.poll()) != null) {
+            try {
+                registerInbound(achan);
+            } catch (IOException ioe) {
+                _log.error("Error accepting", ioe);
+                try { achan.close(); } catch (IOException e) {}
+            }
+        }
+        
         while ((con = _wantsConRegister.poll()) != null) {
             final SocketChannel schan = con.getChannel();
             try {
                 SelectionKey key = schan.register(_selector, SelectionKey.OP_CONNECT);
                 key.attach(con);
                 con.setKey(key);
+                _transport.idleTrack(con);
                 RouterAddress naddr = con.getRemoteAddress();
                 try {
                     // no DNS lookups, do not use host names
@@ -890,7 +1062,7 @@ class EventPumper implements Runnable {
         }
         
         long now = System.currentTimeMillis();
-        if (_lastExpired + 1000 <= now) {
+        if (_id == 0 && _lastExpired + 1000 <= now) {
             expireTimedOut();
             _lastExpired = now;
         }
@@ -903,4 +1075,38 @@ class EventPumper implements Runnable {
     }
 
     public long getIdleTimeout() { return _expireIdleWriteTime; }
+
+    /**
+     *  Close the connection if it hasn't sent or received anything in too long.
+     *  Called from the failsafe scan, or from the idle wheel in NTCPTransport
+     *  for connections registered with this pumper.
+     *
+     *  @param haveCap from _transport.haveCapacity(33)
+     *  @return the next time to check, or 0 if closed
+     *  @since 0.9.47 split out of run()
+     */
+    long checkIdle(NTCPConnection con, long now, boolean haveCap) {
+        final long expire;
+        if ((!haveCap || !con.isInbound()) &&
+            con.getMayDisconnect() &&
+            con.getMessagesReceived() <= 2 && con.getMessagesSent() <= 1) {
+            expire = MAY_DISCON_TIMEOUT;
+            if (_log.shouldInfo())
+                _log.info("Possible early disconnect for " + con);
+        } else {
+            expire = _expireIdleWriteTime;
+        }
+
+        long idle = Math.min(con.getTimeSinceSend(now), con.getTimeSinceReceive(now));
+        if (idle > expire) {
+            // we haven't sent or received anything in a really long time, so lets just close 'er up
+            con.sendTerminationAndClose();
+            SelectionKey key = con.getKey();
+            if (key != null)
+                key.cancel();
+            return 0;
+        }
+        // The idle timeout may go down before then, so don't wait longer than the minimum
+        return now + Math.min(expire - idle, MIN_EXPIRE_IDLE_TIME) + 1;
+    }
 }
@@ -67,16 +67,24 @@ class NTCP2Options {
      *  @return null on error
      */
     public static NTCP2Options fromByteArray(byte[] options) {
-        if (options.length < 12)
+        return fromByteArray(options, 0, options.length);
+    }
+
+    /**
+     *  @return null on error
+     *  @since 0.9.47
+     */
+    public static NTCP2Options fromByteArray(byte[] options, int off, int len) {
+        if (len < 12)
             return null;
-        float tmin = (options[0] & 0xff) / 16.0f;
-        float tmax = (options[1] & 0xff) / 16.0f;
-        float rmin = (options[2] & 0xff) / 16.0f;
-        float rmax = (options[3] & 0xff) / 16.0f;
-        int tdummy = (int) DataHelper.fromLong(options, 4, 2);
-        int rdummy = (int) DataHelper.fromLong(options, 6, 2);
-        int tdelay = (int) DataHelper.fromLong(options, 8, 2);
-        int rdelay = (int) DataHelper.fromLong(options, 10, 2);
+        float tmin = (options[off] & 0xff) / 16.0f;
+        float tmax = (options[off + 1] & 0xff) / 16.0f;
+        float rmin = (options[off + 2] & 0xff) / 16.0f;
+        float rmax = (options[off + 3] & 0xff) / 16.0f;
+        int tdummy = (int) DataHelper.fromLong(options, off + 4, 2);
+        int rdummy = (int) DataHelper.fromLong(options, off + 6, 2);
+        int tdelay = (int) DataHelper.fromLong(options, off + 8, 2);
+        int rdelay = (int) DataHelper.fromLong(options, off + 10, 2);
         return new NTCP2Options(tmin, tmax, rmin, rmax,
                                 tdummy, rdummy, tdelay, rdelay);
     }
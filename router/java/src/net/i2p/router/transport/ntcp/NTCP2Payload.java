@@ -23,12 +23,12 @@ class NTCP2Payload {
 
     public static final int BLOCK_HEADER_SIZE = 3;
 
-    private static final int BLOCK_DATETIME = 0;
-    private static final int BLOCK_OPTIONS = 1;
-    private static final int BLOCK_ROUTERINFO = 2;
-    private static final int BLOCK_I2NP = 3;
-    private static final int BLOCK_TERMINATION = 4;
-    private static final int BLOCK_PADDING = 254;
+    static final int BLOCK_DATETIME = 0;
+    static final int BLOCK_OPTIONS = 1;
+    static final int BLOCK_ROUTERINFO = 2;
+    static final int BLOCK_I2NP = 3;
+    static final int BLOCK_TERMINATION = 4;
+    static final int BLOCK_PADDING = 254;
 
     /**
      *  For all callbacks, recommend throwing exceptions only from the handshake.
@@ -66,6 +66,31 @@ class NTCP2Payload {
         public void gotUnknown(int type, int len);
     }
 
+    /**
+     *  Optional extension of PayloadCallback that is handed
+     *  the options and I2NP blocks in place, without a copy.
+     *  The callback decides whether to build a message from the block.
+     *  The data is only valid for the duration of the call.
+     *
+     *  @since 0.9.47
+     */
+    public interface RawPayloadCallback extends PayloadCallback {
+
+        /**
+         *  Called instead of gotOptions(byte[], boolean).
+         *
+         *  @param isHandshake true only for message 3 part 2
+         */
+        public void gotOptions(byte[] data, int off, int len, boolean isHandshake) throws DataFormatException;
+
+        /**
+         *  Called instead of gotI2NP(I2NPMessage).
+         *  The block has the short 9-byte header, use
+         *  I2NPMessageImpl.fromRawByteArrayNTCP2() to parse it.
+         */
+        public void gotI2NP(byte[] data, int off, int len) throws I2NPMessageException;
+    }
+
     /**
      *  Incoming payload. Calls the callback for each received block.
      *
@@ -77,29 +102,31 @@ class NTCP2Payload {
     public static int processPayload(I2PAppContext ctx, PayloadCallback cb,
                                      byte[] payload, int off, int length, boolean isHandshake)
                                     throws IOException, DataFormatException, I2NPMessageException {
-        int blocks = 0;
-        boolean gotPadding = false;
-        boolean gotTermination = false;
-        int i = off;
-        final int end = off + length;
-        while (i < end) {
-            int type = payload[i++] & 0xff;
-            if (gotPadding)
-                throw new IOException("Illegal block after padding: " + type);
-            if (gotTermination && type != BLOCK_PADDING)
-                throw new IOException("Illegal block after termination: " + type);
-            if (isHandshake && blocks == 0 && type != BLOCK_ROUTERINFO)
-                throw new IOException("Illegal first block in handshake: " + type);
-            int len = (int) DataHelper.fromLong(payload, i, 2);
-            i += 2;
-            if (i + len > end) {
-                throw new IOException("Block " + blocks + " type " + type + " length " + len +
-                                      " at offset " + (i - 3 - off) + " runs over frame of size " + length +
-                                      '\n' + net.i2p.util.HexDump.dump(payload, off, length));
-            }
-            switch (type) {
-                // don't modify i inside switch
+        return processPayload(ctx, cb, new BlockIterator(), payload, off, length, isHandshake);
+    }
 
+    /**
+     *  Incoming payload. Calls the callback for each received block.
+     *  If cb is a RawPayloadCallback, options and I2NP blocks are
+     *  passed in place and not copied or parsed here.
+     *
+     *  @param iter will be reset, may be reused by the caller for the next frame
+     *  @return number of blocks processed
+     *  @throws IOException on major errors
+     *  @throws DataFormatException on parsing of individual blocks
+     *  @throws I2NPMessageException on parsing of I2NP block
+     *  @since 0.9.47
+     */
+    public static int processPayload(I2PAppContext ctx, PayloadCallback cb, BlockIterator iter,
+                                     byte[] payload, int off, int length, boolean isHandshake)
+                                    throws IOException, DataFormatException, I2NPMessageException {
+        RawPayloadCallback rcb = (cb instanceof RawPayloadCallback) ? (RawPayloadCallback) cb : null;
+        iter.reset(payload, off, length, isHandshake);
+        while (iter.next()) {
+            int type = iter.getType();
+            int i = iter.getOffset();
+            int len = iter.getLength();
+            switch (type) {
                 case BLOCK_DATETIME:
                     if (isHandshake)
                         throw new IOException("Illegal block in handshake: " + type);
@@ -110,9 +137,13 @@ class NTCP2Payload {
                     break;
 
                 case BLOCK_OPTIONS:
-                    byte[] options = new byte[len];
-                    System.arraycopy(payload, i, options, 0, len);
-                    cb.gotOptions(options, isHandshake);
+                    if (rcb != null) {
+                        rcb.gotOptions(payload, i, len, isHandshake);
+                    } else {
+                        byte[] options = new byte[len];
+                        System.arraycopy(payload, i, options, 0, len);
+                        cb.gotOptions(options, isHandshake);
+                    }
                     break;
 
                 case BLOCK_ROUTERINFO:
@@ -126,8 +157,12 @@ class NTCP2Payload {
                 case BLOCK_I2NP:
                     if (isHandshake)
                         throw new IOException("Illegal block in handshake: " + type);
-                    I2NPMessage msg = I2NPMessageImpl.fromRawByteArrayNTCP2(ctx, payload, i, len, null);
-                    cb.gotI2NP(msg);
+                    if (rcb != null) {
+                        rcb.gotI2NP(payload, i, len);
+                    } else {
+                        I2NPMessage msg = I2NPMessageImpl.fromRawByteArrayNTCP2(ctx, payload, i, len, null);
+                        cb.gotI2NP(msg);
+                    }
                     break;
 
                 case BLOCK_TERMINATION:
@@ -138,11 +173,9 @@ class NTCP2Payload {
                     long last = DataHelper.fromLong8(payload, i);
                     int rsn = payload[i + 8] & 0xff;
                     cb.gotTermination(rsn, last);
-                    gotTermination = true;
                     break;
 
                 case BLOCK_PADDING:
-                    gotPadding = true;
                     cb.gotPadding(len, length);
                     break;
 
@@ -151,14 +184,103 @@ class NTCP2Payload {
                         throw new IOException("Illegal block in handshake: " + type);
                     cb.gotUnknown(type, len);
                     break;
+            }
+        }
+        return iter.getBlockCount();
+    }
+
+    /**
+     *  A reusable view over the blocks of a decrypted frame.
+     *  Checks the block lengths against the frame and the block order
+     *  (padding last, nothing but padding after termination,
+     *  RouterInfo first in the handshake), but not the block contents.
+     *  Does no allocation except for the exception message on error.
+     *
+     *  Not thread-safe.
+     *
+     *  @since 0.9.47
+     */
+    public static class BlockIterator {
+        private byte[] _data;
+        private int _frameOff, _frameLen;
+        private int _pos, _end;
+        private boolean _isHandshake, _gotPadding, _gotTermination;
+        private int _blocks;
+        private int _type, _off, _len;
+
+        /**
+         *  Start over on a new frame. Call next() to get the first block.
+         */
+        public void reset(byte[] data, int off, int length, boolean isHandshake) {
+            _data = data;
+            _frameOff = off;
+            _frameLen = length;
+            _pos = off;
+            _end = off + length;
+            _isHandshake = isHandshake;
+            _gotPadding = false;
+            _gotTermination = false;
+            _blocks = 0;
+            _type = -1;
+            _off = 0;
+            _len = 0;
+        }
 
+        /**
+         *  Advance to the next block.
+         *
+         *  @return false at the end of the frame
+         *  @throws IOException on bad length or illegal block order
+         */
+        public boolean next() throws IOException {
+            if (_type >= 0) {
+                _blocks++;
+                _type = -1;
             }
-            i += len;
-            blocks++;
+            if (_pos >= _end) {
+                if (_isHandshake && _blocks == 0)
+                    throw new IOException("No blocks in handshake");
+                _data = null;
+                return false;
+            }
+            int type = _data[_pos] & 0xff;
+            if (_gotPadding)
+                throw new IOException("Illegal block after padding: " + type);
+            if (_gotTermination && type != BLOCK_PADDING)
+                throw new IOException("Illegal block after termination: " + type);
+            if (_isHandshake && _blocks == 0 && type != BLOCK_ROUTERINFO)
+                throw new IOException("Illegal first block in handshake: " + type);
+            if (_pos + BLOCK_HEADER_SIZE > _end)
+                throw new IOException("Block " + _blocks + " type " + type + " header runs over frame of size " + _frameLen);
+            int len = (int) DataHelper.fromLong(_data, _pos + 1, 2);
+            int off = _pos + BLOCK_HEADER_SIZE;
+            if (off + len > _end) {
+                throw new IOException("Block " + _blocks + " type " + type + " length " + len +
+                                      " at offset " + (_pos - _frameOff) + " runs over frame of size " + _frameLen +
+                                      '\n' + net.i2p.util.HexDump.dump(_data, _frameOff, _frameLen));
+            }
+            if (type == BLOCK_PADDING)
+                _gotPadding = true;
+            else if (type == BLOCK_TERMINATION)
+                _gotTermination = true;
+            _type = type;
+            _off = off;
+            _len = len;
+            _pos = off + len;
+            return true;
         }
-        if (isHandshake && blocks == 0)
-            throw new IOException("No blocks in handshake");
-        return blocks;
+
+        /** the block type, only valid after next() returns true */
+        public int getType() { return _type; }
+
+        /** offset of the block data in the frame array, not including the 3 byte header */
+        public int getOffset() { return _off; }
+
+        /** length of the block data, not including the 3 byte header */
+        public int getLength() { return _len; }
+
+        /** number of blocks completed, i.e. not including the current block */
+        public int getBlockCount() { return _blocks; }
     }
 
     /**
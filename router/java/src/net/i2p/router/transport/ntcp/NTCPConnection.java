@@ -7,6 +7,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -36,6 +37,7 @@ import net.i2p.data.i2np.DatabaseStoreMessage;
 import net.i2p.data.i2np.I2NPMessage;
 import net.i2p.data.i2np.I2NPMessageException;
 import net.i2p.data.i2np.I2NPMessageHandler;
+import net.i2p.data.i2np.I2NPMessageImpl;
 import net.i2p.router.OutNetMessage;
 import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
@@ -85,6 +87,7 @@ public class NTCPConnection implements Closeable {
     private final Log _log;
     private SocketChannel _chan;
     private SelectionKey _conKey;
+    private volatile EventPumper _pumper;
     private final FIFOBandwidthLimiter.CompleteListener _inboundListener;
     private final FIFOBandwidthLimiter.CompleteListener _outboundListener;
     /**
@@ -101,6 +104,14 @@ public class NTCPConnection implements Closeable {
     /** Requests that were not granted immediately */
     private final Set<FIFOBandwidthLimiter.Request> _bwInRequests;
     private final Set<FIFOBandwidthLimiter.Request> _bwOutRequests;
+    /**
+     *  Encrypted buffers not yet in _writeBufs, in the order they were encrypted.
+     *  The bandwidth limiter may grant requests out of order (priority classes),
+     *  but NTCP2 frames must go out in order for the AEAD nonces and
+     *  the SipHash length IVs. Synch on itself.
+     *  @since 0.9.47
+     */
+    private final Queue<QueuedWrite> _orderedWrites;
     private long _establishedOn;
     private volatile EstablishState _establishState;
     private final NTCPTransport _transport;
@@ -277,6 +288,7 @@ public class NTCPConnection implements Closeable {
         _writeBufs = new ConcurrentLinkedQueue<ByteBuffer>();
         _bwInRequests = new ConcurrentHashSet<Request>(2);
         _bwOutRequests = new ConcurrentHashSet<Request>(8);
+        _orderedWrites = new ArrayDeque<QueuedWrite>(8);
         //_outbound = new CoDelPriorityBlockingQueue(ctx, "NTCP-Connection", 32);
         _outbound = new PriBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection", 32);
         _currentOutbound = new ArrayList<OutNetMessage>(1);
@@ -297,6 +309,16 @@ public class NTCPConnection implements Closeable {
     public synchronized void setChannel(SocketChannel chan) { _chan = chan; }
     public synchronized void setKey(SelectionKey key) { _conKey = key; }
 
+    /**
+     *  The pumper that owns our channel.
+     *  Set before registration with the pumper's selector.
+     *  @since 0.9.47
+     */
+    EventPumper getPumper() { return _pumper; }
+
+    /** @since 0.9.47 */
+    void setPumper(EventPumper pumper) { _pumper = pumper; }
+
     public boolean isInbound() { return _isInbound; }
     public boolean isEstablished() { return _establishState.isComplete(); }
 
@@ -553,6 +575,7 @@ public class NTCPConnection implements Closeable {
         if (_conKey != null) _conKey.cancel();
         _establishState = EstablishBase.FAILED;
         NTCPConnection old = _transport.removeCon(this);
+        _transport.idleUntrack(this);
         _transport.getReader().connectionClosed(this);
         _transport.getWriter().connectionClosed(this);
 
@@ -566,7 +589,12 @@ public class NTCPConnection implements Closeable {
             req.abort();
         }
         _bwOutRequests.clear();
+        synchronized (_orderedWrites) {
+            _orderedWrites.clear();
+        }
 
+        // Don't release direct write buffers to the pool here,
+        // the pumper may still be writing them. GC will get them.
         _writeBufs.clear();
         ByteBuffer bb;
         while ((bb = _readBufs.poll()) != null) {
@@ -782,7 +810,7 @@ public class NTCPConnection implements Closeable {
         bufferedPrepare(msg, buf);
         _context.aes().encrypt(buf.unencrypted, 0, buf.encrypted, 0, _sessionKey, _prevWriteEnd, 0, buf.unencryptedLength);
         System.arraycopy(buf.encrypted, buf.encrypted.length-16, _prevWriteEnd, 0, _prevWriteEnd.length);
-        _transport.getPumper().wantsWrite(this, buf.encrypted);
+        getPumper().wantsWrite(this, buf.encrypted);
 
         // for every 6-12 hours that we are connected to a peer, send them
 	// our updated netDb info (they may not accept it and instead query
@@ -861,6 +889,7 @@ public class NTCPConnection implements Closeable {
      */
     private void prepareNextWriteNTCP2(PrepBuffer buf) {
         int size = OutboundNTCP2State.MAC_SIZE;
+        int priority;
         List<Block> blocks = new ArrayList<Block>(4);
         long now = _context.clock().now();
         synchronized (_currentOutbound) {
@@ -881,6 +910,8 @@ public class NTCPConnection implements Closeable {
                 _transport.afterSend(msg, false, false, msg.getLifetime());
             }
             _currentOutbound.add(msg);
+            // highest priority in the frame, as _outbound is a priority queue
+            priority = msg.getPriority();
             I2NPMessage m = msg.getMessage();
             Block block = new NTCP2Payload.I2NPBlock(m);
             blocks.add(block);
@@ -947,7 +978,7 @@ public class NTCPConnection implements Closeable {
             size += block.getTotalLength();
         }
         byte[] tmp = size <= BUFFER_SIZE ? buf.unencrypted : new byte[size];
-        sendNTCP2(tmp, blocks);
+        sendNTCP2(tmp, blocks, priority);
     }
 
     /**
@@ -1104,7 +1135,19 @@ public class NTCPConnection implements Closeable {
      *         must have room for block output. May be released immediately on return.
      *  @since 0.9.36
      */
-    private synchronized void sendNTCP2(byte[] tmp, List<Block> blocks) {
+    private void sendNTCP2(byte[] tmp, List<Block> blocks) {
+        sendNTCP2(tmp, blocks, 0);
+    }
+
+    /**
+     *  NTCP2 only
+     *
+     *  @param tmp to be used for output of NTCP2Payload.writePayload(),
+     *         must have room for block output. May be released immediately on return.
+     *  @param priority for the bandwidth limiter, OutNetMessage priority or 0 if unknown
+     *  @since 0.9.47
+     */
+    private synchronized void sendNTCP2(byte[] tmp, List<Block> blocks, int priority) {
         if (_sender == null) {
             if (_log.shouldInfo())
                 _log.info("sender gone", new Exception());
@@ -1136,7 +1179,7 @@ public class NTCPConnection implements Closeable {
             }
             _log.debug(buf.toString());
         }
-        _transport.getPumper().wantsWrite(this, enc);
+        getPumper().wantsWrite(this, enc, 0, enc.length, priority);
         toLong8LE(_sendSipIV, 0, sipIV);
     }
     
@@ -1173,7 +1216,7 @@ public class NTCPConnection implements Closeable {
             // our reads used to be bw throttled (during which time we were no
             // longer interested in reading from the network), but we aren't
             // throttled anymore, so we should resume being interested in reading
-            _transport.getPumper().wantsRead(NTCPConnection.this);
+            getPumper().wantsRead(NTCPConnection.this);
         }
     }
 
@@ -1187,11 +1230,49 @@ public class NTCPConnection implements Closeable {
             ByteBuffer buf = (ByteBuffer)req.attachment();
             if (!_closed.get()) {
                 _context.statManager().addRateData("ntcp.throttledWriteComplete", (_context.clock().now()-req.getRequestTime()));
-                write(buf);
+                releaseOrderedWrites();
             }
         }
     }
 
+    /**
+     *  An encrypted buffer and its bandwidth request.
+     *  @since 0.9.47
+     */
+    private static class QueuedWrite {
+        final ByteBuffer buf;
+        /** null if granted without waiting */
+        final FIFOBandwidthLimiter.Request req;
+
+        QueuedWrite(ByteBuffer buf, FIFOBandwidthLimiter.Request req) {
+            this.buf = buf;
+            this.req = req;
+        }
+
+        boolean isGranted() {
+            return req == null || req.getPendingRequested() <= 0;
+        }
+    }
+
+    /**
+     *  Move the granted buffers at the head of _orderedWrites to _writeBufs,
+     *  stopping at the first one still waiting for bandwidth.
+     *  @since 0.9.47
+     */
+    private void releaseOrderedWrites() {
+        boolean released = false;
+        synchronized (_orderedWrites) {
+            QueuedWrite qw;
+            while ((qw = _orderedWrites.peek()) != null && qw.isGranted()) {
+                _orderedWrites.poll();
+                _writeBufs.offer(qw.buf);
+                released = true;
+            }
+        }
+        if (released)
+            getPumper().wantsWrite(this);
+    }
+
     private void removeIBRequest(FIFOBandwidthLimiter.Request req) {
         _bwInRequests.remove(req);
     }
@@ -1223,8 +1304,12 @@ public class NTCPConnection implements Closeable {
     /** ditto for writes */
     void queuedWrite(ByteBuffer buf, FIFOBandwidthLimiter.Request req) {
         req.attach(buf);
-        req.setCompleteListener(_outboundListener);
+        // queue before setting the listener, which may be called right away
+        synchronized (_orderedWrites) {
+            _orderedWrites.offer(new QueuedWrite(buf, req));
+        }
         addOBRequest(req);
+        req.setCompleteListener(_outboundListener);
     }
     
     /**
@@ -1250,10 +1335,17 @@ public class NTCPConnection implements Closeable {
     /**
      * The contents of the buffer have been encrypted / padded / etc and have
      * been fully allocated for the bandwidth limiter.
+     * If earlier buffers are still waiting for bandwidth, it waits behind them.
      */
     void write(ByteBuffer buf) {
-        _writeBufs.offer(buf);
-        _transport.getPumper().wantsWrite(this);
+        synchronized (_orderedWrites) {
+            if (!_orderedWrites.isEmpty()) {
+                _orderedWrites.offer(new QueuedWrite(buf, null));
+                return;
+            }
+            _writeBufs.offer(buf);
+        }
+        getPumper().wantsWrite(this);
     }
     
     /** @return null if none available */
@@ -1273,6 +1365,34 @@ public class NTCPConnection implements Closeable {
     ByteBuffer getNextWriteBuf() {
         return _writeBufs.peek(); // not remove!  we removeWriteBuf afterwards
     }
+
+    /**
+     *  For gathering writes. Not removed, call removeWriteBuf() afterwards.
+     *
+     *  @param bufs out parameter, filled from the head of the queue
+     *  @return number of buffers, 0 if none
+     *  @since 0.9.47
+     */
+    int getWriteBufs(ByteBuffer[] bufs) {
+        int rv = 0;
+        for (ByteBuffer buf : _writeBufs) {
+            bufs[rv++] = buf;
+            if (rv >= bufs.length)
+                break;
+        }
+        return rv;
+    }
+
+    /**
+     *  The frame size.
+     *  Wrapped heap buffers cover the whole array;
+     *  pooled direct buffers have a larger capacity.
+     *
+     *  @since 0.9.47
+     */
+    private static int getWriteBufSize(ByteBuffer buf) {
+        return buf.isDirect() ? buf.limit() : buf.capacity();
+    }
     
     /**
      *  Remove the buffer, which _should_ be the one at the head of _writeBufs
@@ -1280,15 +1400,17 @@ public class NTCPConnection implements Closeable {
     void removeWriteBuf(ByteBuffer buf) {
         // never clear OutNetMessages during establish phase
         boolean clearMessage = isEstablished();
+        int size = getWriteBufSize(buf);
         synchronized(this) {
-            _bytesSent += buf.capacity();
-            if (_sendingMeta && (buf.capacity() == META_SIZE)) {
+            _bytesSent += size;
+            if (_sendingMeta && (size == META_SIZE)) {
                 _sendingMeta = false;
                 clearMessage = false;
             }
             updateStats();
         }
-        _writeBufs.remove(buf);
+        if (_writeBufs.remove(buf))
+            EventPumper.releaseWriteBuf(buf);
         if (clearMessage) {
             List<OutNetMessage> msgs = null;
             // see synchronization comments in prepareNextWriteFast()
@@ -1310,7 +1432,7 @@ public class NTCPConnection implements Closeable {
                         _log.debug("I2NP message " + _messagesWritten + "/" + msg.getMessageId() + " sent after " 
                                   + msg.getSendTime() + "/"
                                   + msg.getLifetime()
-                                  + " with " + buf.capacity() + " bytes (uid=" + System.identityHashCode(msg)+" on " + toString() + ")");
+                                  + " with " + size + " bytes (uid=" + System.identityHashCode(msg)+" on " + toString() + ")");
                     }
                     _transport.sendComplete(msg);
                 }
@@ -1468,7 +1590,7 @@ public class NTCPConnection implements Closeable {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Sending NTCP metadata");
         _sendingMeta = true;
-        _transport.getPumper().wantsWrite(this, data);
+        getPumper().wantsWrite(this, data);
     }
     
     private static final int MAX_HANDLERS = 4;
@@ -1950,7 +2072,7 @@ public class NTCPConnection implements Closeable {
      *
      * @since 0.9.36
      */
-    private class NTCP2ReadState implements ReadState, NTCP2Payload.PayloadCallback {
+    private class NTCP2ReadState implements ReadState, NTCP2Payload.RawPayloadCallback {
         // temp to read the encrypted lengh into
         private final byte[] _recvLen = new byte[2];
         private final long _sipk1, _sipk2;
@@ -1967,6 +2089,8 @@ public class NTCPConnection implements Closeable {
         // for logging only
         private int _blockCount;
         private boolean _terminated;
+        // reused for every frame
+        private final NTCP2Payload.BlockIterator _blockIter = new NTCP2Payload.BlockIterator();
 
         /**
          *  @param keyData using first 24 bytes
@@ -2099,7 +2223,7 @@ public class NTCPConnection implements Closeable {
             }
             // no payload processing errors in the data phase are fatal
             try {
-                int blocks = NTCP2Payload.processPayload(_context, this, data, off,
+                int blocks = NTCP2Payload.processPayload(_context, this, _blockIter, data, off,
                                                          _framelen - OutboundNTCP2State.MAC_SIZE, false);
                 if (_log.shouldDebug())
                     _log.debug("Processed " + blocks + " blocks in frame");
@@ -2173,11 +2297,44 @@ public class NTCPConnection implements Closeable {
             _messagesRead.incrementAndGet();
         }
 
+        /**
+         *  Only build the message if we are going to use it.
+         *  Drop it unparsed if we're closed or it's expired;
+         *  InNetMessagePool would drop an expired message anyway.
+         *  @since 0.9.47
+         */
+        public void gotI2NP(byte[] data, int off, int len) throws I2NPMessageException {
+            if (_closed.get()) {
+                if (_log.shouldInfo())
+                    _log.info("Dropping I2NP block after close on " + NTCPConnection.this);
+                return;
+            }
+            if (len >= 9) {
+                // same calculation as in I2NPMessageImpl.fromRawByteArrayNTCP2()
+                long expiration = (DataHelper.fromLong(data, off + 5, 4) * 1000) + 500;
+                if (_context.messageValidator().validateMessage(expiration) != null) {
+                    _context.statManager().addRateData("ntcp.dropExpiredI2NP", 1);
+                    _lastReceiveTime = _context.clock().now();
+                    _messagesRead.incrementAndGet();
+                    return;
+                }
+            }
+            gotI2NP(I2NPMessageImpl.fromRawByteArrayNTCP2(_context, data, off, len, null));
+        }
+
         public void gotOptions(byte[] options, boolean isHandshake) {
-            NTCP2Options hisPadding = NTCP2Options.fromByteArray(options);
+            gotOptions(options, 0, options.length, isHandshake);
+        }
+
+        /**
+         *  Parse the options in place
+         *  @since 0.9.47
+         */
+        public void gotOptions(byte[] data, int off, int len, boolean isHandshake) {
+            NTCP2Options hisPadding = NTCP2Options.fromByteArray(data, off, len);
             if (hisPadding == null) {
                 if (_log.shouldWarn())
-                    _log.warn("Got options length " + options.length + " on: " + this);
+                    _log.warn("Got options length " + len + " on: " + this);
                 return;
             }
             _paddingConfig = OUR_PADDING.merge(hisPadding);
@@ -24,6 +24,7 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.crypto.EncType;
 import net.i2p.crypto.KeyPair;
@@ -42,6 +43,7 @@ import net.i2p.data.i2np.I2NPMessage;
 import net.i2p.router.CommSystemFacade.Status;
 import net.i2p.router.OutNetMessage;
 import net.i2p.router.RouterContext;
+import net.i2p.router.transport.IdleTimeoutWheel;
 import net.i2p.router.transport.Transport;
 import static net.i2p.router.transport.Transport.AddressSource.*;
 import net.i2p.router.transport.TransportBid;
@@ -51,6 +53,7 @@ import net.i2p.router.transport.TransportUtil;
 import static net.i2p.router.transport.TransportUtil.IPv6Config.*;
 import net.i2p.router.transport.crypto.DHSessionKeyBuilder;
 import net.i2p.router.transport.crypto.X25519KeyFactory;
+import net.i2p.router.util.CountMinSketch;
 import net.i2p.router.util.DecayingHashSet;
 import net.i2p.router.util.DecayingBloomFilter;
 import net.i2p.router.util.EventLog;
@@ -75,7 +78,11 @@ public class NTCPTransport extends TransportImpl {
     private final SharedBid _transientFail;
     private final Object _conLock;
     private final ConcurrentHashMap<Hash, NTCPConnection> _conByIdent;
+    /** the first one also handles accepts and establishment timeouts */
     private final EventPumper _pumper;
+    /** all of them, including _pumper, @since 0.9.47 */
+    private final EventPumper[] _pumpers;
+    private final AtomicInteger _nextAcceptPumper = new AtomicInteger();
     private final Reader _reader;
     private net.i2p.router.transport.ntcp.Writer _writer;
     private int _ssuPort;
@@ -88,6 +95,11 @@ public class NTCPTransport extends TransportImpl {
      * want to remove on establishment or close on timeout
      */
     private final Set<NTCPConnection> _establishing;
+    /** null if disabled, @since 0.9.47 */
+    private final IdleTimeoutWheel<NTCPConnection> _idleWheel;
+    /** only used by the pumper thread calling expireTimedOut(), @since 0.9.47 */
+    private boolean _idleHaveCap;
+    private int _idleCloses;
     /** "bloom filter" */
     private final DecayingBloomFilter _replayFilter;
 
@@ -111,6 +123,19 @@ public class NTCPTransport extends TransportImpl {
     /** this is rarely if ever used, default is to bind to wildcard address */
     public static final String PROP_BIND_INTERFACE = "i2np.ntcp.bindInterface";
 
+    /**
+     *  Number of EventPumpers, each with its own selector thread.
+     *  Default 1. Capped at the number of cores.
+     *  @since 0.9.47
+     */
+    public static final String PROP_PUMPERS = "i2np.ntcp.pumpers";
+    private static final int DEFAULT_PUMPERS = 1;
+    private static final int MAX_PUMPERS = 8;
+    /** blocked IP counts, 4 x 1024 ints, the top 1024 counted exactly */
+    private static final int BLOCKED_IP_WIDTH = 1024;
+    private static final int BLOCKED_IP_DEPTH = 4;
+    private static final int MAX_BLOCKED_IPS = 1024;
+
     private final NTCPSendFinisher _finisher;
     private final DHSessionKeyBuilder.Factory _dhFactory;
     private final X25519KeyFactory _xdhFactory;
@@ -180,6 +205,7 @@ public class NTCPTransport extends TransportImpl {
         _context.statManager().createRateStat("ntcp.corruptDecryptedI2NP", "", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.corruptI2NPCRC", "", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.corruptI2NPIME", "", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.dropExpiredI2NP", "Expired I2NP blocks dropped before parsing", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.corruptI2NPIOE", "", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.corruptMetaCRC", "", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.corruptSkew", "", "ntcp", RATES);
@@ -220,15 +246,26 @@ public class NTCPTransport extends TransportImpl {
         _context.statManager().createRateStat("ntcp.wantsQueuedWrite", "", "ntcp", RATES);
         //_context.statManager().createRateStat("ntcp.write", "", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.writeError", "", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.idleExpireTime", "Time to look for idle connections per pass (us)", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.idleExpireVisited", "Connections checked for idle per pass", "ntcp", RATES);
         _endpoints = new HashSet<InetSocketAddress>(4);
         _establishing = new ConcurrentHashSet<NTCPConnection>(16);
+        _idleWheel = IdleTimeoutWheel.isEnabled(ctx) ?
+                     new IdleTimeoutWheel<NTCPConnection>(ctx, new IdleChecker()) : null;
         _conLock = new Object();
         _conByIdent = new ConcurrentHashMap<Hash, NTCPConnection>(64);
         _replayFilter = new DecayingHashSet(ctx, 10*60*1000, 8, "NTCP-Hx^HI");
 
         _finisher = new NTCPSendFinisher(ctx, this);
 
-        _pumper = new EventPumper(ctx, this);
+        int pumpers = Math.max(1, Math.min(Math.min(MAX_PUMPERS, SystemVersion.getCores()),
+                                           ctx.getProperty(PROP_PUMPERS, DEFAULT_PUMPERS)));
+        _pumpers = new EventPumper[pumpers];
+        CountMinSketch blockedIPs = new CountMinSketch(BLOCKED_IP_WIDTH, BLOCKED_IP_DEPTH, MAX_BLOCKED_IPS, 1);
+        for (int i = 0; i < pumpers; i++) {
+            _pumpers[i] = new EventPumper(ctx, this, i, pumpers, blockedIPs);
+        }
+        _pumper = _pumpers[0];
         _reader = new Reader(ctx);
         _writer = new net.i2p.router.transport.ntcp.Writer(ctx);
 
@@ -365,6 +402,7 @@ public class NTCPTransport extends TransportImpl {
                         if (newVersion != 0) {
                             try {
                                 con = new NTCPConnection(_context, this, ident, addr, newVersion);
+                                con.setPumper(getPumper(ih));
                                 establishing(con);
                                 //if (_log.shouldLog(Log.DEBUG))
                                 //    _log.debug("Send on a new con: " + con + " at " + addr + " for " + ih);
@@ -428,7 +466,7 @@ public class NTCPTransport extends TransportImpl {
                     SocketChannel channel = SocketChannel.open();
                     con.setChannel(channel);
                     channel.configureBlocking(false);
-                    _pumper.registerConnect(con);
+                    con.getPumper().registerConnect(con);
                     con.getEstablishState().prepareOutbound();
                 } catch (IOException ioe) {
                     if (_log.shouldLog(Log.ERROR))
@@ -837,7 +875,7 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void startListening() {
         // try once again to prevent two pumpers which is fatal
-        if (_pumper.isAlive())
+        if (isAlive())
             return;
         if (_log.shouldLog(Log.WARN)) _log.warn("Starting NTCP transport listening");
 
@@ -932,7 +970,9 @@ public class NTCPTransport extends TransportImpl {
      */
     private void startIt() {
         _finisher.start();
-        _pumper.startPumping();
+        for (EventPumper pumper : _pumpers) {
+            pumper.startPumping();
+        }
 
         long maxMemory = SystemVersion.getMaxMemory();
         int nr, nw;
@@ -949,7 +989,11 @@ public class NTCPTransport extends TransportImpl {
     }
 
     public boolean isAlive() {
-        return _pumper.isAlive();
+        for (EventPumper pumper : _pumpers) {
+            if (pumper.isAlive())
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -1109,9 +1153,24 @@ public class NTCPTransport extends TransportImpl {
     }
 
     /**
-     *  Hook for NTCPConnection
+     *  The pumper for a new outbound connection, by hash
+     *  @since 0.9.47, was getPumper() for NTCPConnection
+     */
+    private EventPumper getPumper(Hash peer) {
+        if (_pumpers.length == 1)
+            return _pumper;
+        return _pumpers[(peer.hashCode() & Integer.MAX_VALUE) % _pumpers.length];
+    }
+
+    /**
+     *  The pumper for a new inbound connection, round-robin
+     *  @since 0.9.47
      */
-    EventPumper getPumper() { return _pumper; }
+    EventPumper getPumperForAccept() {
+        if (_pumpers.length == 1)
+            return _pumper;
+        return _pumpers[(_nextAcceptPumper.getAndIncrement() & Integer.MAX_VALUE) % _pumpers.length];
+    }
 
     /**
      *  @return null if not configured for NTCP1
@@ -1173,6 +1232,63 @@ public class NTCPTransport extends TransportImpl {
 
         if (expired > 0)
             _context.statManager().addRateData("ntcp.outboundEstablishFailed", expired);
+
+        if (_idleWheel != null) {
+            long begin = System.nanoTime();
+            _idleHaveCap = haveCapacity(33);
+            _idleCloses = 0;
+            int checked = _idleWheel.expire(now);
+            _context.statManager().addRateData("ntcp.idleExpireTime", (System.nanoTime() - begin) / 1000);
+            _context.statManager().addRateData("ntcp.idleExpireVisited", checked);
+            if (_idleCloses > 0)
+                _context.statManager().addRateData("ntcp.failsafeCloses", _idleCloses);
+        }
+    }
+
+    /**
+     *  @return true if idle connections are expired by expireTimedOut()
+     *          instead of the pumpers' failsafe scan
+     *  @since 0.9.47
+     */
+    boolean hasIdleWheel() {
+        return _idleWheel != null;
+    }
+
+    /**
+     *  Start checking the connection for idle timeout, if we have a wheel.
+     *  Called by the pumper when it registers the connection.
+     *  @since 0.9.47
+     */
+    void idleTrack(NTCPConnection con) {
+        if (_idleWheel != null)
+            _idleWheel.add(con, _context.clock().now() + EventPumper.MAY_DISCON_TIMEOUT);
+    }
+
+    /**
+     *  Called on close
+     *  @since 0.9.47
+     */
+    void idleUntrack(NTCPConnection con) {
+        if (_idleWheel != null)
+            _idleWheel.remove(con);
+    }
+
+    /**
+     *  The timeout depends on the connection's pumper
+     *  @since 0.9.47
+     */
+    private class IdleChecker implements IdleTimeoutWheel.IdleChecker<NTCPConnection> {
+        public long checkIdle(NTCPConnection con, long now) {
+            if (con.isClosed())
+                return 0;
+            long rv = con.getPumper().checkIdle(con, now, _idleHaveCap);
+            if (rv == 0) {
+                if (_log.shouldInfo())
+                    _log.info("Idle close for " + con);
+                _idleCloses++;
+            }
+            return rv;
+        }
     }
 
     //private boolean bindAllInterfaces() { return true; }
@@ -1848,7 +1964,9 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void stopListening() {
         if (_log.shouldLog(Log.WARN)) _log.warn("Stopping ntcp transport");
-        _pumper.stopPumping();
+        for (EventPumper pumper : _pumpers) {
+            pumper.stopPumping();
+        }
         _writer.stopWriting();
         _reader.stopReading();
         _finisher.stop();
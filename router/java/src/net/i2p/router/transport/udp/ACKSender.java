@@ -1,7 +1,6 @@
 package net.i2p.router.transport.udp;
 
 import java.util.HashSet;
-import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
@@ -164,16 +163,14 @@ class ACKSender implements Runnable {
                 long lastSend = peer.getLastACKSend();
                 // set above before the break
                 //long wanted = peer.getWantedACKSendSince();
-                List<ACKBitfield> ackBitfields = peer.retrieveACKBitfields(false);
-                
                 if (wanted < 0) {
                     if (_log.shouldLog(Log.WARN))
-                        _log.warn("why are we acking something they dont want?  remaining=" + remaining + ", peer=" + peer + ", bitfields=" + ackBitfields);
+                        _log.warn("why are we acking something they dont want?  remaining=" + remaining + ", peer=" + peer);
                     continue;
                 }
-                
-                if (!ackBitfields.isEmpty()) {
-                    _context.statManager().addRateData("udp.sendACKCount", ackBitfields.size());
+
+                UDPPacket ack = _builder.buildACK(peer);
+                if (ack != null) {
                     if (remaining > 0)
                         _context.statManager().addRateData("udp.sendACKRemaining", remaining);
                     // set above before the break
@@ -181,14 +178,12 @@ class ACKSender implements Runnable {
                     if (lastSend < 0)
                         lastSend = now - 1;
                     _context.statManager().addRateData("udp.ackFrequency", now-lastSend, now-wanted);
-                    //_context.statManager().getStatLog().addData(peer.getRemoteHostId().toString(), "udp.peer.sendACKCount", ackBitfields.size());
-                    UDPPacket ack = _builder.buildACK(peer, ackBitfields);
                     ack.markType(1);
                     ack.setFragmentCount(-1);
                     ack.setMessageType(PacketBuilder.TYPE_ACK);
                     
                     if (_log.shouldLog(Log.INFO))
-                        _log.info("Sending " + ackBitfields + " to " + peer);
+                        _log.info("Sending ACK to " + peer);
                     // locking issues, we ignore the result, and acks are small,
                     // so don't even bother allocating
                     //peer.allocateSendingBytes(ack.getPacket().getLength(), true);
@@ -197,7 +192,7 @@ class ACKSender implements Runnable {
                     
                     if ( (wanted > 0) && (wanted <= peer.getWantedACKSendSince()) ) {
                         // still full packets left to be ACKed, since wanted time
-                        // is reset by retrieveACKBitfields when all of the IDs are
+                        // is reset by writeACKs() when all of the IDs are
                         // removed
                         if (_log.shouldInfo())
                             _log.info("Precautionary rerequest ACK for peer " + peer);
@@ -0,0 +1,203 @@
+package net.i2p.router.transport.udp;
+
+import net.i2p.data.DataHelper;
+
+/**
+ *  The full acks for one peer, without boxing.
+ *
+ *  New acks are kept in a growable ring, oldest first, until they are
+ *  written to a packet. They then move to a fixed-size ring of acks
+ *  to be sent again as duplicates, in case the first packet was lost.
+ *  That ring is in send order, so expired and overflowing entries
+ *  are always at the head.
+ *
+ *  Thread safe.
+ *
+ *  @since 0.9.47 replaces the Set and Queue in PeerState
+ */
+class ACKTracker {
+
+    private static final int INITIAL_NEW = 16;
+
+    // new acks, ring, locked by this
+    private long[] _new;
+    private int _newHead;
+    private int _newSize;
+
+    // sent acks, ring, locked by this
+    private final long[] _resend;
+    private final long[] _resendTime;
+    private int _resendHead;
+    private int _resendSize;
+    private final long _resendTimeout;
+
+    /**
+     *  @param maxResend the max number of sent acks to keep
+     *  @param resendTimeout how long to keep them
+     */
+    public ACKTracker(int maxResend, long resendTimeout) {
+        _new = new long[INITIAL_NEW];
+        _resend = new long[maxResend];
+        _resendTime = new long[maxResend];
+        _resendTimeout = resendTimeout;
+    }
+
+    /**
+     *  Add a new ack. Duplicates of unsent acks are ignored.
+     *
+     *  @return true if added
+     */
+    public synchronized boolean add(long id) {
+        int mask = _new.length - 1;
+        for (int i = 0; i < _newSize; i++) {
+            if (_new[(_newHead + i) & mask] == id)
+                return false;
+        }
+        if (_newSize == _new.length) {
+            long[] n = new long[_new.length * 2];
+            for (int i = 0; i < _newSize; i++) {
+                n[i] = _new[(_newHead + i) & mask];
+            }
+            _new = n;
+            _newHead = 0;
+            mask = n.length - 1;
+        }
+        _new[(_newHead + _newSize) & mask] = id;
+        _newSize++;
+        return true;
+    }
+
+    /**
+     *  @return the number of acks not yet sent
+     */
+    public synchronized int getNewCount() {
+        return _newSize;
+    }
+
+    /**
+     *  @return the number of sent acks available to send again, may include expired acks
+     */
+    public synchronized int getResendCount() {
+        return _resendSize;
+    }
+
+    /**
+     *  Write acks as 4-byte message IDs, new acks first, oldest first,
+     *  then sent acks, starting at a random place.
+     *  The new acks written are moved to the sent acks.
+     *
+     *  @param max total max to write
+     *  @param maxResend max sent acks to write, if there's room after the new ones
+     *  @param resendIfNoNew if false, don't write any sent acks unless there is a new one
+     *  @param random 0 to Integer.MAX_VALUE, for the starting point in the sent acks
+     *  @return the number written, 0 to max
+     */
+    public synchronized int write(byte[] data, int off, int max, int maxResend,
+                                  boolean resendIfNoNew, long now, int random) {
+        expire(now);
+        int rv = 0;
+        int mask = _new.length - 1;
+        while (rv < max && _newSize > 0) {
+            long id = _new[_newHead];
+            _newHead = (_newHead + 1) & mask;
+            _newSize--;
+            DataHelper.toLong(data, off, 4, id);
+            off += 4;
+            rv++;
+            sent(id, now);
+        }
+        if (rv == 0 && !resendIfNoNew)
+            return 0;
+        // the ones we just sent are at the tail, don't send them again
+        int len = _resend.length;
+        int old = _resendSize - Math.min(rv, len);
+        int resends = Math.min(Math.min(max - rv, maxResend), old);
+        if (resends > 0) {
+            int start = random % old;
+            for (int i = 0; i < resends; i++) {
+                int idx = (_resendHead + ((start + i) % old)) % len;
+                DataHelper.toLong(data, off, 4, _resend[idx]);
+                off += 4;
+                rv++;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Move a new ack to the end of the sent acks.
+     *  Caller must synch
+     */
+    private void sent(long id, long now) {
+        int len = _resend.length;
+        if (len == 0)
+            return;
+        if (_resendSize == len) {
+            _resendHead = (_resendHead + 1) % len;
+            _resendSize--;
+        }
+        int idx = (_resendHead + _resendSize) % len;
+        _resend[idx] = id;
+        _resendTime[idx] = now;
+        _resendSize++;
+    }
+
+    /**
+     *  Drop expired sent acks, which are always at the head.
+     *  Caller must synch
+     */
+    private void expire(long now) {
+        long cutoff = now - _resendTimeout;
+        int len = _resend.length;
+        while (_resendSize > 0 && _resendTime[_resendHead] <= cutoff) {
+            _resendHead = (_resendHead + 1) % len;
+            _resendSize--;
+        }
+    }
+
+    /**
+     *  Move all acks from the old tracker to this one.
+     *  The old one will be empty.
+     */
+    public void loadFrom(ACKTracker old) {
+        long[] n;
+        long[] r;
+        long[] rt;
+        synchronized (old) {
+            n = new long[old._newSize];
+            int mask = old._new.length - 1;
+            for (int i = 0; i < n.length; i++) {
+                n[i] = old._new[(old._newHead + i) & mask];
+            }
+            r = new long[old._resendSize];
+            rt = new long[r.length];
+            int len = old._resend.length;
+            for (int i = 0; i < r.length; i++) {
+                int idx = (old._resendHead + i) % len;
+                r[i] = old._resend[idx];
+                rt[i] = old._resendTime[idx];
+            }
+            old.clear();
+        }
+        synchronized (this) {
+            for (int i = 0; i < r.length; i++) {
+                sent(r[i], rt[i]);
+            }
+            for (int i = 0; i < n.length; i++) {
+                add(n[i]);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        _newHead = 0;
+        _newSize = 0;
+        _resendHead = 0;
+        _resendSize = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ACKs: " + _newSize + " new, " + _resendSize + " sent";
+    }
+}
@@ -0,0 +1,261 @@
+package net.i2p.router.transport.udp;
+
+/**
+ *  A simplified BBR-style congestion control.
+ *
+ *  Instead of reacting to loss, this estimates the bottleneck bandwidth
+ *  (the max delivery rate over the last several rounds) and the
+ *  min RTT (over the last 10 seconds), and limits the bytes in flight
+ *  to a multiple of their product. Sends are paced at a multiple
+ *  of the estimated bandwidth.
+ *
+ *  Modes are as in BBR: STARTUP grows quickly until the bandwidth stops
+ *  growing, DRAIN empties the queue built in STARTUP, and PROBE_BW
+ *  cycles the pacing gain to probe for more bandwidth.
+ *  There is no PROBE_RTT mode, the min RTT simply expires.
+ *
+ *  Pacing is per-message, as all unacked fragments of a message
+ *  are sent together.
+ *
+ *  @since 0.9.47
+ */
+class BBRCongestionControl implements CongestionControl {
+
+    private static final int STARTUP = 0;
+    private static final int DRAIN = 1;
+    private static final int PROBE_BW = 2;
+
+    /** 2 / ln(2) */
+    private static final float HIGH_GAIN = 2.885f;
+    private static final float[] PACING_GAINS = { 1.25f, 0.75f, 1f, 1f, 1f, 1f, 1f, 1f };
+    private static final float CWND_GAIN = 2f;
+    /** rounds to keep bandwidth samples */
+    private static final int BW_FILTER_LEN = 10;
+    private static final long MIN_RTT_WINDOW = 10*1000;
+    /** exit startup after this many rounds without 25% bandwidth growth */
+    private static final int STARTUP_FULL_ROUNDS = 3;
+    /** assumed RTT before we have a sample */
+    private static final int INITIAL_RTT = 1000;
+    /** don't pace more finely than this */
+    private static final long PACING_QUANTUM_MICROS = 2000;
+
+    private int _mode;
+    /** per-round max delivery rate, bytes/sec, ring */
+    private final int[] _bwSamples;
+    private int _round;
+    private long _roundStart;
+    private int _roundDelivered;
+    private int _minRTT;
+    private long _minRTTStamp;
+    private int _fullBW;
+    private int _fullBWRounds;
+    private int _cycleIndex;
+    private int _inflight;
+    private int _cwnd;
+    private int _pacingRate;
+    private long _nextSendMicros;
+
+    public BBRCongestionControl(long now) {
+        _bwSamples = new int[BW_FILTER_LEN];
+        _mode = STARTUP;
+        _roundStart = now;
+        _cwnd = RenoCongestionControl.DEFAULT_SEND_WINDOW_BYTES;
+        _pacingRate = (int) (HIGH_GAIN * RenoCongestionControl.DEFAULT_SEND_WINDOW_BYTES);
+    }
+
+    public synchronized boolean canSend(int size, int pushCount, long now) {
+        if (_nextSendMicros > now * 1000 + PACING_QUANTUM_MICROS)
+            return false;
+        // retransmissions are already counted in flight
+        if (pushCount > 0)
+            return true;
+        // as in Reno, let a huge message through when nothing is in flight
+        return _inflight == 0 || _inflight + size <= _cwnd;
+    }
+
+    public synchronized void sent(int size, int pushCount, long now) {
+        if (pushCount == 0)
+            _inflight += size;
+        long nowMicros = now * 1000;
+        if (_nextSendMicros < nowMicros - PACING_QUANTUM_MICROS)
+            _nextSendMicros = nowMicros - PACING_QUANTUM_MICROS;
+        _nextSendMicros += size * 1000000L / _pacingRate;
+    }
+
+    public synchronized void acked(int bytesACKed, long lifetime, int numSends, long now) {
+        _inflight -= bytesACKed;
+        if (_inflight < 0)
+            _inflight = 0;
+        // RTT samples of retransmitted messages are ambiguous
+        if (numSends <= 1 && lifetime > 0) {
+            int rtt = (int) Math.min(lifetime, Integer.MAX_VALUE);
+            if (_minRTT <= 0 || rtt <= _minRTT || now - _minRTTStamp > MIN_RTT_WINDOW) {
+                _minRTT = rtt;
+                _minRTTStamp = now;
+            }
+        }
+        _roundDelivered += bytesACKed;
+        int rtt = _minRTT > 0 ? _minRTT : INITIAL_RTT;
+        long elapsed = now - _roundStart;
+        if (elapsed >= rtt)
+            endRound(elapsed, now);
+        update();
+    }
+
+    /**
+     *  Record the delivery rate for the round and advance the state machine.
+     *  Caller must synch
+     */
+    private void endRound(long elapsed, long now) {
+        int rate = (int) Math.min(_roundDelivered * 1000L / Math.max(elapsed, 1), Integer.MAX_VALUE);
+        _round++;
+        _bwSamples[_round % BW_FILTER_LEN] = rate;
+        _roundStart = now;
+        _roundDelivered = 0;
+        int bw = getBW();
+        switch (_mode) {
+          case STARTUP:
+            if (bw >= _fullBW + (_fullBW / 4)) {
+                _fullBW = bw;
+                _fullBWRounds = 0;
+            } else if (++_fullBWRounds >= STARTUP_FULL_ROUNDS) {
+                _mode = DRAIN;
+            }
+            break;
+
+          case DRAIN:
+            if (_inflight <= getBDP()) {
+                _mode = PROBE_BW;
+                _cycleIndex = 0;
+            }
+            break;
+
+          case PROBE_BW:
+            _cycleIndex = (_cycleIndex + 1) % PACING_GAINS.length;
+            break;
+        }
+    }
+
+    /**
+     *  Recalculate the window and pacing rate.
+     *  Caller must synch
+     */
+    private void update() {
+        int bw = getBW();
+        if (bw <= 0)
+            return;
+        float pacingGain;
+        float cwndGain;
+        switch (_mode) {
+          case STARTUP:
+            pacingGain = HIGH_GAIN;
+            cwndGain = HIGH_GAIN;
+            break;
+          case DRAIN:
+            pacingGain = 1 / HIGH_GAIN;
+            cwndGain = HIGH_GAIN;
+            break;
+          default:
+            pacingGain = PACING_GAINS[_cycleIndex];
+            cwndGain = CWND_GAIN;
+            break;
+        }
+        _pacingRate = Math.max((int) (pacingGain * bw), RenoCongestionControl.MINIMUM_WINDOW_BYTES);
+        int cwnd = (int) (cwndGain * getBDP());
+        if (cwnd < RenoCongestionControl.MINIMUM_WINDOW_BYTES)
+            cwnd = RenoCongestionControl.MINIMUM_WINDOW_BYTES;
+        else if (cwnd > RenoCongestionControl.MAX_SEND_WINDOW_BYTES)
+            cwnd = RenoCongestionControl.MAX_SEND_WINDOW_BYTES;
+        _cwnd = cwnd;
+    }
+
+    /**
+     *  Max of the recent rounds.
+     *  Caller must synch
+     */
+    private int getBW() {
+        int rv = 0;
+        for (int i = 0; i < BW_FILTER_LEN; i++) {
+            if (_bwSamples[i] > rv)
+                rv = _bwSamples[i];
+        }
+        return rv;
+    }
+
+    /**
+     *  Caller must synch
+     */
+    private int getBDP() {
+        int rtt = _minRTT > 0 ? _minRTT : INITIAL_RTT;
+        return (int) Math.min(((long) getBW()) * rtt / 1000, Integer.MAX_VALUE);
+    }
+
+    /**
+     *  Loss is not a congestion signal here, but a retransmission
+     *  ends startup, as the bottleneck queue is full.
+     *
+     *  @return false always, the window is not shrunk
+     */
+    public synchronized boolean congestionOccurred(int rto, long now) {
+        if (_mode == STARTUP && _round > 0) {
+            _mode = DRAIN;
+            update();
+        }
+        return false;
+    }
+
+    public synchronized void failed(int bytes) {
+        _inflight -= bytes;
+        if (_inflight < 0)
+            _inflight = 0;
+    }
+
+    public synchronized int getWindow() { return _cwnd; }
+
+    public synchronized int getWindowRemaining() { return Math.max(0, _cwnd - _inflight); }
+
+    /** @return the estimated bandwidth-delay product */
+    public synchronized int getSlowStartThreshold() { return getBDP(); }
+
+    public synchronized int getPacingRate() { return _pacingRate; }
+
+    public synchronized int getMinRTT() { return _minRTT; }
+
+    public synchronized long getNextSendTime() {
+        return (_nextSendMicros - PACING_QUANTUM_MICROS) / 1000;
+    }
+
+    /**
+     *  Take the estimates but not the bytes in flight
+     */
+    public void loadFrom(CongestionControl old) {
+        if (!(old instanceof BBRCongestionControl))
+            return;
+        BBRCongestionControl o = (BBRCongestionControl) old;
+        int[] samples = new int[BW_FILTER_LEN];
+        int mode, minRTT, cwnd, rate;
+        long stamp;
+        synchronized(o) {
+            System.arraycopy(o._bwSamples, 0, samples, 0, BW_FILTER_LEN);
+            mode = o._mode;
+            minRTT = o._minRTT;
+            stamp = o._minRTTStamp;
+            cwnd = o._cwnd;
+            rate = o._pacingRate;
+        }
+        synchronized(this) {
+            System.arraycopy(samples, 0, _bwSamples, 0, BW_FILTER_LEN);
+            _mode = mode == STARTUP ? STARTUP : PROBE_BW;
+            _minRTT = minRTT;
+            _minRTTStamp = stamp;
+            _cwnd = cwnd;
+            _pacingRate = rate;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cwin: " + _cwnd + " acwin: " + Math.max(0, _cwnd - _inflight) +
+               " pacing: " + _pacingRate + " minRTT: " + _minRTT;
+    }
+}
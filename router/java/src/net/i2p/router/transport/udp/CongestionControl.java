@@ -0,0 +1,89 @@
+package net.i2p.router.transport.udp;
+
+/**
+ *  Congestion control for sending to a single peer.
+ *  PeerState consults this before allocating an outbound message
+ *  and reports acks, retransmissions, and failures to it.
+ *
+ *  Sizes are the unacked bytes of a whole message, as the
+ *  outbound message state sends all unacked fragments at once.
+ *
+ *  Implementations must be thread safe.
+ *
+ *  @since 0.9.47
+ */
+interface CongestionControl {
+
+    /**
+     *  May we send this many bytes now?
+     *  Does not change any state, call sent() if the bytes are sent.
+     *
+     *  @param pushCount the number of times the message was sent before, 0 for the first time
+     */
+    public boolean canSend(int size, int pushCount, long now);
+
+    /**
+     *  The bytes were allocated for sending.
+     *
+     *  @param pushCount the number of times the message was sent before, 0 for the first time
+     */
+    public void sent(int size, int pushCount, long now);
+
+    /**
+     *  A message was acked.
+     *
+     *  @param lifetime from the first send to the ack, the RTT sample
+     *  @param numSends 1 if it was not retransmitted
+     */
+    public void acked(int bytesACKed, long lifetime, int numSends, long now);
+
+    /**
+     *  A message needed retransmission, or they asked us to back off.
+     *
+     *  @param rto the current retransmission timeout
+     *  @return true if the window shrunk
+     */
+    public boolean congestionOccurred(int rto, long now);
+
+    /**
+     *  A message that was sent expired or failed, with this many bytes.
+     */
+    public void failed(int bytes);
+
+    /**
+     *  @return the congestion window in bytes
+     */
+    public int getWindow();
+
+    /**
+     *  @return how many more bytes may be sent now, ignoring pacing
+     */
+    public int getWindowRemaining();
+
+    /**
+     *  @return the slow start threshold, or the estimated bandwidth-delay product
+     *          if there is no slow start
+     */
+    public int getSlowStartThreshold();
+
+    /**
+     *  @return bytes per second, or 0 if not paced
+     */
+    public int getPacingRate();
+
+    /**
+     *  @return the min RTT in ms, or 0 if not tracked or not known yet
+     */
+    public int getMinRTT();
+
+    /**
+     *  @return when we may send next, or 0 if not paced
+     */
+    public long getNextSendTime();
+
+    /**
+     *  Take over the state of the same peer's old controller.
+     *  Does nothing if it is a different type.
+     */
+    public void loadFrom(CongestionControl old);
+}
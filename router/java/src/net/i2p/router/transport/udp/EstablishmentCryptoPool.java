@@ -0,0 +1,184 @@
+package net.i2p.router.transport.udp;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.router.RouterContext;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ *  A bounded pool of threads for the DH and signature work
+ *  during SSU establishment, so that a burst of inbound session requests
+ *  doesn't stall the Establisher thread for everybody else.
+ *
+ *  Disabled by default, in which case EstablishmentManager does the work
+ *  inline as before.
+ *
+ *  The queue is bounded. EstablishmentManager checks isFull() before
+ *  accepting a new session request, and runs the work inline
+ *  if execute() is rejected for a session already in progress.
+ *
+ *  @since 0.9.47
+ */
+class EstablishmentCryptoPool {
+    private final RouterContext _context;
+    private final Log _log;
+    private final int _threads;
+    private final int _queueSize;
+    private ThreadPoolExecutor _executor;
+    private static final AtomicInteger _count = new AtomicInteger();
+    /** recent latencies for the percentile stats, synch on this */
+    private final long[] _samples;
+    private int _sampleCount;
+
+    /** number of threads, 0 to do the crypto inline on the Establisher thread */
+    public static final String PROP_THREADS = "i2np.udp.establishThreads";
+    public static final String PROP_QUEUE_SIZE = "i2np.udp.establishQueueSize";
+    private static final int DEFAULT_THREADS = 0;
+    private static final int MAX_THREADS = 8;
+    private static final int DEFAULT_QUEUE_SIZE = 64;
+    private static final int SAMPLES = 128;
+
+    public EstablishmentCryptoPool(RouterContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(EstablishmentCryptoPool.class);
+        _threads = Math.min(Math.min(MAX_THREADS, SystemVersion.getCores()),
+                            ctx.getProperty(PROP_THREADS, DEFAULT_THREADS));
+        _queueSize = Math.max(1, ctx.getProperty(PROP_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+        _samples = new long[SAMPLES];
+        if (_threads > 0) {
+            _context.statManager().createRateStat("udp.establishCryptoQueue", "Crypto tasks queued when a new task is added", "udp", UDPTransport.RATES);
+            _context.statManager().createRateStat("udp.establishCryptoTime", "Time from queueing to completion of a crypto task", "udp", UDPTransport.RATES);
+            _context.statManager().createRateStat("udp.establishCryptoTimeP50", "Median of the last " + SAMPLES + " crypto task times", "udp", UDPTransport.RATES);
+            _context.statManager().createRateStat("udp.establishCryptoTimeP90", "90th percentile of the last " + SAMPLES + " crypto task times", "udp", UDPTransport.RATES);
+            _context.statManager().createRateStat("udp.establishCryptoTimeP99", "99th percentile of the last " + SAMPLES + " crypto task times", "udp", UDPTransport.RATES);
+            _context.statManager().createRateStat("udp.establishCryptoRejected", "Crypto queue full", "udp", UDPTransport.RATES);
+        }
+    }
+
+    public synchronized void start() {
+        if (_threads > 0)
+            _executor = new CustomThreadPoolExecutor(_threads, _queueSize);
+    }
+
+    public synchronized void stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+    }
+
+    /**
+     *  @return true if tasks should be passed to execute()
+     */
+    public boolean isEnabled() {
+        return _threads > 0;
+    }
+
+    /**
+     *  Back-pressure for new inbound sessions.
+     *  @return true if enabled and the queue is full
+     */
+    public boolean isFull() {
+        ThreadPoolExecutor ex = _executor;
+        if (ex == null)
+            return false;
+        boolean rv = ex.getQueue().remainingCapacity() <= 0;
+        if (rv)
+            _context.statManager().addRateData("udp.establishCryptoRejected", 1);
+        return rv;
+    }
+
+    /**
+     *  Non-blocking.
+     *
+     *  @return false if not enabled, stopped, or the queue is full;
+     *          the caller must then run the task itself or drop it
+     */
+    public boolean execute(Runnable task) {
+        ThreadPoolExecutor ex = _executor;
+        if (ex == null)
+            return false;
+        BlockingQueue<Runnable> queue = ex.getQueue();
+        int depth = queue.size();
+        try {
+            ex.execute(new Task(task));
+        } catch (RejectedExecutionException ree) {
+            _context.statManager().addRateData("udp.establishCryptoRejected", 1);
+            return false;
+        }
+        _context.statManager().addRateData("udp.establishCryptoQueue", depth);
+        return true;
+    }
+
+    /**
+     *  Add a latency sample, and every SAMPLES samples,
+     *  add the percentiles of the window to the stats.
+     */
+    private void addSample(long time) {
+        _context.statManager().addRateData("udp.establishCryptoTime", time);
+        long[] sorted;
+        synchronized(this) {
+            _samples[_sampleCount++] = time;
+            if (_sampleCount < SAMPLES)
+                return;
+            _sampleCount = 0;
+            sorted = _samples.clone();
+        }
+        Arrays.sort(sorted);
+        _context.statManager().addRateData("udp.establishCryptoTimeP50", sorted[SAMPLES / 2]);
+        _context.statManager().addRateData("udp.establishCryptoTimeP90", sorted[SAMPLES * 90 / 100]);
+        _context.statManager().addRateData("udp.establishCryptoTimeP99", sorted[SAMPLES * 99 / 100]);
+    }
+
+    private static class CustomThreadPoolExecutor extends ThreadPoolExecutor {
+        public CustomThreadPoolExecutor(int num, int queueSize) {
+             // bounded queue, execute() throws RejectedExecutionException when full
+             super(num, num, 10*1000, TimeUnit.MILLISECONDS,
+                   new ArrayBlockingQueue<Runnable>(queueSize), new CustomThreadFactory(num));
+        }
+    }
+
+    private static class CustomThreadFactory implements ThreadFactory {
+        private final int _num;
+
+        public CustomThreadFactory(int num) { _num = num; }
+
+        public Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("UDP Establish Crypto " + _count.incrementAndGet() + '/' + _num);
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+
+    /**
+     *  Wrap the task for timing and error handling
+     */
+    private class Task implements Runnable {
+        private final Runnable _task;
+        private final long _queued;
+
+        public Task(Runnable task) {
+            _task = task;
+            _queued = _context.clock().now();
+        }
+
+        public void run() {
+            try {
+                _task.run();
+            } catch (Throwable t) {
+                _log.log(Log.CRIT, "Error in establishment crypto", t);
+            }
+            addSample(_context.clock().now() - _queued);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.i2p.data.Hash;
@@ -27,6 +28,7 @@ import static net.i2p.router.transport.udp.OutboundEstablishState.OutboundState.
 import net.i2p.router.util.DecayingHashSet;
 import net.i2p.router.util.DecayingBloomFilter;
 import net.i2p.util.Addresses;
+import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
 import net.i2p.util.VersionComparator;
@@ -90,6 +92,11 @@ class EstablishmentManager {
 
     /** "bloom filter" */
     private final DecayingBloomFilter _replayFilter;
+
+    /** @since 0.9.47 */
+    private final EstablishmentCryptoPool _crypto;
+    /** InboundEstablishStates and OutboundEstablishStates queued in _crypto */
+    private final Set<Object> _cryptoPending;
     
     /** max outbound in progress - max inbound is half of this */
     private final int DEFAULT_MAX_CONCURRENT_ESTABLISH;
@@ -152,6 +159,8 @@ class EstablishmentManager {
         _outboundByHash = new ConcurrentHashMap<Hash, OutboundEstablishState>();
         _activityLock = new Object();
         _replayFilter = new DecayingHashSet(ctx, 10*60*1000, 8, "SSU-DH-X");
+        _crypto = new EstablishmentCryptoPool(ctx);
+        _cryptoPending = new ConcurrentHashSet<Object>();
         DEFAULT_MAX_CONCURRENT_ESTABLISH = Math.max(DEFAULT_LOW_MAX_CONCURRENT_ESTABLISH,
                                                     Math.min(DEFAULT_HIGH_MAX_CONCURRENT_ESTABLISH,
                                                              ctx.bandwidthLimiter().getOutboundKBytesPerSecond() / 2));
@@ -174,6 +183,7 @@ class EstablishmentManager {
         _context.statManager().createRateStat("udp.receiveBps", "How fast we are receiving when a packet is fully received (at most one per second)", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.mtuIncrease", "How many retransmissions have there been to the peer when the MTU was increased", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.mtuDecrease", "How many retransmissions have there been to the peer when the MTU was decreased", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.mtuProbeFailed", "Size of a failed MTU probe", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.rejectConcurrentActive", "How many messages are currently being sent to the peer when we reject it (period is how many concurrent packets we allow)", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.allowConcurrentActive", "How many messages are currently being sent to the peer when we accept it (period is how many concurrent packets we allow)", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.rejectConcurrentSequence", "How many consecutive concurrency rejections have we had when we stop rejecting (period is how many concurrent packets we are on)", "udp", UDPTransport.RATES);
@@ -184,12 +194,15 @@ class EstablishmentManager {
     
     public synchronized void startup() {
         _alive = true;
+        _crypto.start();
         I2PThread t = new I2PThread(new Establisher(), "UDP Establisher", true);
         t.start();
     }
 
     public synchronized void shutdown() { 
         _alive = false;
+        _crypto.stop();
+        _cryptoPending.clear();
         notifyActivity();
     }
     
@@ -467,6 +480,14 @@ class EstablishmentManager {
                     _context.statManager().addRateData("udp.establishDropped", 1);
                     return; // drop the packet
                 }
+                if (_crypto.isFull()) {
+                    // reject before we do any work for it
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Dropping inbound establish, crypto queue full, increase " +
+                                  EstablishmentCryptoPool.PROP_THREADS);
+                    _context.statManager().addRateData("udp.establishDropped", 1);
+                    return; // drop the packet
+                }
             
                 if (_context.blocklist().isBlocklisted(from.getIP())) {
                     if (_log.shouldLog(Log.WARN))
@@ -1096,6 +1117,98 @@ class EstablishmentManager {
         state.confirmedPacketsSent();
     }
     
+    /**
+     *  Run the task in the crypto pool if enabled, synchronized on the state.
+     *  The state is skipped by handleInbound() and handleOutbound()
+     *  until the task completes.
+     *  Runs the task inline if the pool is disabled or full.
+     *  Caller must synch on state.
+     *
+     *  @param state an InboundEstablishState or OutboundEstablishState
+     *  @since 0.9.47
+     */
+    private void runCrypto(final Object state, final Runnable task) {
+        if (!_crypto.isEnabled()) {
+            task.run();
+            return;
+        }
+        if (!_cryptoPending.add(state))
+            return;
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    synchronized (state) {
+                        task.run();
+                    }
+                } finally {
+                    _cryptoPending.remove(state);
+                    notifyActivity();
+                }
+            }
+        };
+        if (!_crypto.execute(r)) {
+            _cryptoPending.remove(state);
+            task.run();
+        }
+    }
+
+    /**
+     *  DH and sign, maybe in the crypto pool
+     *  @since 0.9.47
+     */
+    private void sendCreatedAsync(final InboundEstablishState state) {
+        runCrypto(state, new Runnable() {
+            public void run() { sendCreated(state); }
+        });
+    }
+
+    /**
+     *  Verify the signature and complete, maybe in the crypto pool.
+     *  State has been removed from _inboundStates.
+     *  @since 0.9.47 split out of handleInbound()
+     */
+    private void verifyConfirmedAsync(final InboundEstablishState state) {
+        runCrypto(state, new Runnable() {
+            public void run() { verifyConfirmed(state); }
+        });
+    }
+
+    /**
+     *  Verify the signature and complete.
+     *  Caller must synch on state.
+     *  @since 0.9.47 split out of handleInbound()
+     */
+    private void verifyConfirmed(InboundEstablishState inboundState) {
+        RouterIdentity remote = inboundState.getConfirmedIdentity();
+        if (remote != null) {
+            if (_context.banlist().isBanlistedForever(remote.calculateHash())) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Dropping inbound connection from permanently banlisted peer: " + remote.calculateHash());
+                // So next time we will not accept the con, rather than doing the whole handshake
+                _context.blocklist().add(inboundState.getSentIP());
+                inboundState.fail();
+                processExpired(inboundState);
+            } else {
+                handleCompletelyEstablished(inboundState);
+            }
+        } else {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("confirmed with invalid? " + inboundState);
+            inboundState.fail();
+            processExpired(inboundState);
+        }
+    }
+
+    /**
+     *  DH, verify, and sign, maybe in the crypto pool
+     *  @since 0.9.47
+     */
+    private void sendConfirmationAsync(final OutboundEstablishState state) {
+        runCrypto(state, new Runnable() {
+            public void run() { sendConfirmation(state); }
+        });
+    }
+    
     /**
      *  Tell the other side never mind.
      *  This is only useful after we have received SessionCreated,
@@ -1145,6 +1258,10 @@ class EstablishmentManager {
 
             for (Iterator<InboundEstablishState> iter = _inboundStates.values().iterator(); iter.hasNext(); ) {
                 InboundEstablishState cur = iter.next();
+                if (_cryptoPending.contains(cur)) {
+                    // the crypto thread will notify us when done
+                    continue;
+                }
                 if (cur.getState() == IB_STATE_CONFIRMED_COMPLETELY) {
                     // completely received (though the signature may be invalid)
                     iter.remove();
@@ -1192,7 +1309,7 @@ class EstablishmentManager {
                     if (expired)
                         processExpired(inboundState);
                     else
-                        sendCreated(inboundState);
+                        sendCreatedAsync(inboundState);
                     break;
 
                   case IB_STATE_CREATED_SENT: // fallthrough
@@ -1201,29 +1318,12 @@ class EstablishmentManager {
                         sendDestroy(inboundState);
                         processExpired(inboundState);
                     } else if (inboundState.getNextSendTime() <= now) {
-                        sendCreated(inboundState);
+                        sendCreatedAsync(inboundState);
                     }
                     break;
 
                   case IB_STATE_CONFIRMED_COMPLETELY:
-                    RouterIdentity remote = inboundState.getConfirmedIdentity();
-                    if (remote != null) {
-                        if (_context.banlist().isBanlistedForever(remote.calculateHash())) {
-                            if (_log.shouldLog(Log.WARN))
-                                _log.warn("Dropping inbound connection from permanently banlisted peer: " + remote.calculateHash());
-                            // So next time we will not accept the con, rather than doing the whole handshake
-                            _context.blocklist().add(inboundState.getSentIP());
-                            inboundState.fail();
-                            processExpired(inboundState);
-                        } else {
-                            handleCompletelyEstablished(inboundState);
-                        }
-                    } else {
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("confirmed with invalid? " + inboundState);
-                        inboundState.fail();
-                        processExpired(inboundState);
-                    }
+                    verifyConfirmedAsync(inboundState);
                     break;
 
                   case IB_STATE_COMPLETE:  // fall through
@@ -1260,6 +1360,10 @@ class EstablishmentManager {
 
             for (Iterator<OutboundEstablishState> iter = _outboundStates.values().iterator(); iter.hasNext(); ) {
                 OutboundEstablishState cur = iter.next();
+                if (_cryptoPending.contains(cur)) {
+                    // the crypto thread will notify us when done
+                    continue;
+                }
                 OutboundEstablishState.OutboundState state = cur.getState();
                 if (state == OB_STATE_CONFIRMED_COMPLETELY ||
                     state == OB_STATE_VALIDATION_FAILED) {
@@ -1328,7 +1432,7 @@ class EstablishmentManager {
                         if (expired)
                             processExpired(outboundState);
                         else if (outboundState.getNextSendTime() <= now)
-                            sendConfirmation(outboundState);
+                            sendConfirmationAsync(outboundState);
                         break;
 
                     case OB_STATE_CONFIRMED_PARTIALLY:
@@ -1337,7 +1441,7 @@ class EstablishmentManager {
                             sendDestroy(outboundState);
                             processExpired(outboundState);
                         } else if (outboundState.getNextSendTime() <= now) {
-                            sendConfirmation(outboundState);
+                            sendConfirmationAsync(outboundState);
                         }
                         break;
 
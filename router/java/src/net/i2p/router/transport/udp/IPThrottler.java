@@ -1,22 +1,71 @@
 package net.i2p.router.transport.udp;
 
-import net.i2p.util.ObjectCounter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.data.ByteArray;
+import net.i2p.router.util.CountMinSketch;
+import net.i2p.util.RandomSource;
 import net.i2p.util.SimpleTimer;
 import net.i2p.util.SimpleTimer2;
-import net.i2p.util.SipHash;
 
 /**
  * Count IPs
  *
+ * As of 0.9.47, counts are estimated in fixed memory,
+ * so a scan from many IPs does not grow a map without bound.
+ *
+ * The estimate is only used to pick candidates. It is never low,
+ * so an IP at or under the max by the estimate is not throttled.
+ * But a flood from many (spoofed) IPs can push every estimate over the max,
+ * so an IP is only throttled on its exact count, kept from when it
+ * first went over the max by the estimate, for a bounded number of IPs.
+ * An IP may therefore get up to about twice the max before it is throttled,
+ * or a little more if it starts sending during a flood.
+ *
+ * When the table is full, a new IP replaces the one with the smallest
+ * estimate in a small random sample, and only if its own estimate is larger.
+ * An IP that keeps sending has a larger estimate than IPs seen once,
+ * so a flood of new IPs does not push it out.
+ *
  * @since 0.9.3
  */
 class IPThrottler {
-    private ObjectCounter<Integer> _counter;
+    private final CountMinSketch _counter;
+    /** the IPs counted exactly */
+    private final Map<ByteArray, Tracked> _tracked;
+    /** the same entries, for sampling, synch on _tracked */
+    private final Tracked[] _slots;
+    private int _slotCount;
     private final int _max;
 
+    /** 4 x 4096 ints = 64 KB */
+    private static final int WIDTH = 4096;
+    private static final int DEPTH = 4;
+    private static final int MAX_TRACKED = 1024;
+    /** entries looked at to find one to replace */
+    private static final int REPLACE_SAMPLES = 8;
+
+    private static class Tracked {
+        final ByteArray key;
+        /** requests since it was tracked */
+        final AtomicInteger count = new AtomicInteger(1);
+        /** the sketch estimate at its last request */
+        volatile int estimate;
+
+        Tracked(ByteArray key, int estimate) {
+            this.key = key;
+            this.estimate = estimate;
+        }
+    }
+
     public IPThrottler(int max, long time) {
         _max = max;
-        _counter = new ObjectCounter<Integer>();
+        _counter = new CountMinSketch(WIDTH, DEPTH);
+        _tracked = new ConcurrentHashMap<ByteArray, Tracked>(64);
+        _slots = new Tracked[MAX_TRACKED];
         SimpleTimer2.getInstance().addPeriodicEvent(new Cleaner(), time);
     }
 
@@ -24,25 +73,58 @@ class IPThrottler {
      *  Increments before checking
      */
     public boolean shouldThrottle(byte[] ip) {
-        // for IPv4 we simply use the IP;
-        // for IPv6 we use a secure hash as an attacker could select the lower bytes
-        Integer key;
-        if (ip.length == 4)
-            key = toInt(ip);
-        else
-            key = Integer.valueOf(SipHash.hashCode(ip));
-        return _counter.increment(key) > _max;
+        // keys are SipHashed, so an attacker can't select IPv6 lower bytes to collide
+        int estimate = _counter.increment(ip);
+        Tracked t = _tracked.get(new ByteArray(ip));
+        if (t != null) {
+            t.estimate = estimate;
+            return t.count.incrementAndGet() > _max;
+        }
+        if (estimate > _max)
+            track(ip, estimate);
+        return false;
     }
 
-    private static Integer toInt(byte ip[]) {
-        int rv = 0;
-        for (int i = 0; i < 4; i++)
-            rv |= (ip[i] & 0xff) << ((3-i)*8);
-        return Integer.valueOf(rv);
+    /**
+     *  Start counting exactly, if there's room or it has a larger estimate
+     *  than the smallest of a random sample.
+     */
+    private void track(byte[] ip, int estimate) {
+        ByteArray key = new ByteArray(ip.clone());
+        synchronized (_tracked) {
+            if (_tracked.containsKey(key))
+                return;
+            int slot;
+            if (_slotCount < MAX_TRACKED) {
+                slot = _slotCount++;
+            } else {
+                slot = -1;
+                int min = estimate;
+                for (int i = 0; i < REPLACE_SAMPLES; i++) {
+                    int j = RandomSource.getInstance().nextInt(MAX_TRACKED);
+                    int e = _slots[j].estimate;
+                    if (e < min) {
+                        min = e;
+                        slot = j;
+                    }
+                }
+                if (slot < 0)
+                    return;
+                _tracked.remove(_slots[slot].key);
+            }
+            Tracked t = new Tracked(key, estimate);
+            _slots[slot] = t;
+            _tracked.put(key, t);
+        }
     }
 
     private class Cleaner implements SimpleTimer.TimedEvent {
         public void timeReached() {
+            synchronized (_tracked) {
+                _tracked.clear();
+                Arrays.fill(_slots, null);
+                _slotCount = 0;
+            }
             _counter.clear();
         }
     }
@@ -235,19 +235,19 @@ class InboundMessageFragments /*implements UDPTransport.PartialACKSource */{
             }
         }
         if (data.readACKBitfieldsIncluded()) {
-            ACKBitfield bitfields[] = data.readACKBitfields();
-            if (bitfields != null) {
-                rv += bitfields.length;
-                //_context.statManager().getStatLog().addData(from.getRemoteHostId().toString(), "udp.peer.receivePartialACKCount", bitfields.length, 0);
+            // views into the packet, valid only until the next readACKBitfield()
+            int count = data.readACKBitfieldCount();
+            rv += count;
+            //_context.statManager().getStatLog().addData(from.getRemoteHostId().toString(), "udp.peer.receivePartialACKCount", bitfields.length, 0);
 
-                for (int i = 0; i < bitfields.length; i++) {
-                    if (from.acked(bitfields[i])) {
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("Final partial ACK received: " + bitfields[i] + " from " + from.getRemotePeer());
-                        newAck = true;
-                    } else if (_log.shouldLog(Log.DEBUG)) {
-                        _log.debug("Partial ACK received: " + bitfields[i] + " from " + from.getRemotePeer());
-                    }
+            for (int i = 0; i < count; i++) {
+                ACKBitfield bitfield = data.readACKBitfield(i);
+                if (from.acked(bitfield)) {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Final partial ACK received: " + bitfield + " from " + from.getRemotePeer());
+                    newAck = true;
+                } else if (_log.shouldLog(Log.DEBUG)) {
+                    _log.debug("Partial ACK received: " + bitfield + " from " + from.getRemotePeer());
                 }
             }
         }
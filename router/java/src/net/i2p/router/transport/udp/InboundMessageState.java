@@ -104,8 +104,10 @@ class InboundMessageState implements CDQEntry {
             // new fragment, read it
             ByteArray message = _fragmentCache.acquire();
             try {
-                data.readMessageFragment(dataFragment, message.getData(), 0);
+                // the only copy out of the packet buffer
                 int size = data.readMessageFragmentSize(dataFragment);
+                System.arraycopy(data.getData(), data.readMessageFragmentOffset(dataFragment),
+                                 message.getData(), 0, size);
                 if (size <= 0) {
                     // Bug in routers prior to 0.8.12
                     // If the msg size was an exact multiple of the fragment size,
@@ -1,6 +1,7 @@
 package net.i2p.router.transport.udp;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -15,6 +16,7 @@ import net.i2p.data.router.RouterInfo;
 import net.i2p.router.OutNetMessage;
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.udp.PacketBuilder.Fragment;
+import net.i2p.router.util.TimingWheel;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
 
@@ -29,6 +31,9 @@ import net.i2p.util.Log;
  * {@link InboundMessageFragments}, signaling that we can stop sending a
  * message.
  *
+ * If PROP_TIMER_WHEEL is true, the active peers are kept in a timing wheel
+ * keyed on each peer's next send time, so that getNextVolley() only
+ * visits the peers that are due, instead of iterating over all of them.
  */
 class OutboundMessageFragments {
     private final RouterContext _context;
@@ -54,6 +59,25 @@ class OutboundMessageFragments {
     private volatile boolean _alive;
     private final PacketBuilder _builder;
 
+    /**
+     *  Timer wheel mode only, else null.
+     *  Active peers not yet due, keyed by next send time.
+     *  Locked by _activePeers, as is _duePeers.
+     */
+    private final TimingWheel<PeerState> _wheel;
+    /** Timer wheel mode only, else null. Active peers due now. */
+    private final ArrayDeque<PeerState> _duePeers;
+
+    /**
+     *  Use a timing wheel to find the peers with something to send.
+     *  @since 0.9.47
+     */
+    private static final String PROP_TIMER_WHEEL = "i2np.udp.timerWheel";
+    /** ms */
+    private static final long WHEEL_TICK = 10;
+    /** about 5 seconds per revolution, longer than MAX_WAIT */
+    private static final int WHEEL_SLOTS = 512;
+
     /** if we can handle more messages explicitly, set this to true */
     // private boolean _allowExcess; // LINT not used??
     // private volatile long _packetsRetransmitted; // LINT not used??
@@ -70,6 +94,14 @@ class OutboundMessageFragments {
         // _throttle = throttle;
         _activePeers = new ConcurrentHashSet<PeerState>(256);
         _builder = new PacketBuilder(ctx, transport);
+        if (ctx.getBooleanProperty(PROP_TIMER_WHEEL)) {
+            _wheel = new TimingWheel<PeerState>(WHEEL_TICK, WHEEL_SLOTS, ctx.clock().now());
+            _duePeers = new ArrayDeque<PeerState>(64);
+            _context.statManager().createRateStat("udp.sendPeersVisited", "How many peers the pusher visited before finding one to send to", "udp", UDPTransport.RATES);
+        } else {
+            _wheel = null;
+            _duePeers = null;
+        }
         _alive = true;
         // _allowExcess = false;
         _context.statManager().createRateStat("udp.sendVolleyTime", "Long it takes to send a full volley", "udp", UDPTransport.RATES);
@@ -99,6 +131,10 @@ class OutboundMessageFragments {
         _alive = false;
         _activePeers.clear();
         synchronized (_activePeers) {
+            if (_wheel != null) {
+                _wheel.clear();
+                _duePeers.clear();
+            }
             _activePeers.notify();
         }
     }
@@ -108,6 +144,12 @@ class OutboundMessageFragments {
             _log.info("Dropping peer " + peer.getRemotePeer());
         peer.dropOutbound();
         _activePeers.remove(peer);
+        if (_wheel != null) {
+            synchronized (_activePeers) {
+                _wheel.remove(peer);
+                _duePeers.remove(peer);
+            }
+        }
     }
 
     /**
@@ -231,8 +273,17 @@ class OutboundMessageFragments {
         // or not reflect the addition.
         if (added || size <= 0 || peer.getSendWindowBytesRemaining() >= size) {
             synchronized (_activePeers) {
+                if (_wheel != null)
+                    _wheel.schedule(peer, 0);
                 _activePeers.notify();
             }
+        } else if (_wheel != null) {
+            // The peer is already active, and there isn't room in the window now.
+            // It will be rescheduled by getNextVolley(), or by add(peer, 0) when we get an ACK.
+            // Failsafe, in case it isn't scheduled.
+            synchronized (_activePeers) {
+                _wheel.scheduleIfEarlier(peer, _context.clock().now() + MAX_WAIT);
+            }
         }
     }
 
@@ -266,6 +317,8 @@ class OutboundMessageFragments {
      * @return null only on shutdown
      */
     public List<UDPPacket> getNextVolley() {
+        if (_wheel != null)
+            return getNextVolleyWheel();
         PeerState peer = null;
         List<OutboundMessageState> states = null;
         // Keep track of how many we've looked at, since we don't start the iterator at the beginning.
@@ -370,6 +423,76 @@ class OutboundMessageFragments {
         return packets;
     }
 
+    /**
+     * Timer wheel version of getNextVolley().
+     * Only the peers that are due are visited.
+     * A peer with nothing to send now is rescheduled for its next send time,
+     * but no later than MAX_WAIT, so that finishMessages() is called regularly.
+     *
+     * NOT thread-safe. Called by the PacketPusher thread only.
+     *
+     * @return null only on shutdown
+     * @since 0.9.47
+     */
+    private List<UDPPacket> getNextVolleyWheel() {
+        PeerState peer = null;
+        List<OutboundMessageState> states = null;
+        int visited = 0;
+        while (_alive && states == null) {
+            long now = _context.clock().now();
+            synchronized (_activePeers) {
+                if (_duePeers.isEmpty())
+                    _wheel.expire(now, _duePeers);
+                peer = _duePeers.poll();
+                if (peer == null) {
+                    long next = _wheel.getNextExpiration(now);
+                    long toWait = Math.min(Math.max(next - now, 10), MAX_WAIT);
+                    try {
+                        _activePeers.wait(toWait);
+                    } catch (InterruptedException ie) {}
+                    continue;
+                }
+            }
+            visited++;
+            int remaining = peer.finishMessages(now);
+            if (remaining <= 0) {
+                // race with add(), which will reschedule it
+                _activePeers.remove(peer);
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("No more pending messages for " + peer.getRemotePeer());
+                continue;
+            }
+            long paced = peer.getNextSendTime();
+            if (paced > now) {
+                // paced, don't bother iterating its messages
+                synchronized (_activePeers) {
+                    _wheel.scheduleIfEarlier(peer, Math.min(paced, now + MAX_WAIT));
+                }
+                continue;
+            }
+            states = peer.allocateSend();
+            long next;
+            if (states != null) {
+                // there may be more, check again after everybody else that is due
+                next = now;
+            } else {
+                int delay = peer.getNextDelay();
+                next = now + Math.min(Math.max(delay, 1), MAX_WAIT);
+            }
+            synchronized (_activePeers) {
+                // add() may have scheduled it sooner while we weren't looking
+                _wheel.scheduleIfEarlier(peer, next);
+            }
+        }
+        if (visited > 0)
+            _context.statManager().addRateData("udp.sendPeersVisited", visited);
+
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Sending " + DataHelper.toString(states));
+
+        return preparePackets(states, peer);
+    }
+
     /**
      *  @return null if state or peer is null
      */
@@ -378,15 +501,10 @@ class OutboundMessageFragments {
             return null;
 
         // ok, simplest possible thing is to always tack on the bitfields if
-        List<Long> msgIds = peer.getCurrentFullACKs();
-        int newFullAckCount = msgIds.size();
-        msgIds.addAll(peer.getCurrentResendACKs());
+        // The full acks are pulled from the peer by buildPacket()
         List<ACKBitfield> partialACKBitfields = new ArrayList<ACKBitfield>();
         peer.fetchPartialACKs(partialACKBitfields);
         int piggybackedPartialACK = partialACKBitfields.size();
-        // getCurrentFullACKs() already makes a copy, do we need to copy again?
-        // YES because buildPacket() now removes them (maybe)
-        Set<Long> remaining = new HashSet<Long>(msgIds);
 
         // build the list of fragments to send
         List<Fragment> toSend = new ArrayList<Fragment>(8);
@@ -454,8 +572,7 @@ class OutboundMessageFragments {
                 }
             }
 
-            int before = remaining.size();
-            UDPPacket pkt = _builder.buildPacket(sendNext, peer, remaining, newFullAckCount, partialACKBitfields);
+            UDPPacket pkt = _builder.buildPacket(sendNext, peer, partialACKBitfields);
             if (pkt != null) {
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Built packet with " + sendNext.size() + " fragments totalling " + curTotalDataSize +
@@ -470,25 +587,16 @@ class OutboundMessageFragments {
             }
             rv.add(pkt);
 
-            int after = remaining.size();
-            newFullAckCount = Math.max(0, newFullAckCount - (before - after));
-
-            int piggybackedAck = 0;
-            if (msgIds.size() != remaining.size()) {
-                for (int j = 0; j < msgIds.size(); j++) {
-                    Long id = msgIds.get(j);
-                    if (!remaining.contains(id)) {
-                        peer.removeACKMessage(id);
-                        piggybackedAck++;
-                    }
-                }
-            }
-
-            if (piggybackedAck > 0)
-                _context.statManager().addRateData("udp.sendPiggyback", piggybackedAck);
             if (piggybackedPartialACK - partialACKBitfields.size() > 0)
                 _context.statManager().addRateData("udp.sendPiggybackPartial", piggybackedPartialACK - partialACKBitfields.size(), state.getLifetime());
 
+            // highest priority of the fragments, for the bandwidth limiter
+            int priority = 0;
+            for (int j = 0; j < sendNext.size(); j++) {
+                priority = Math.max(priority, sendNext.get(j).state.getPriority());
+            }
+            pkt.setPriority(priority);
+
             // following for debugging and stats
             pkt.setFragmentCount(sendNext.size());
             pkt.setMessageType(msgType);  //type of first fragment
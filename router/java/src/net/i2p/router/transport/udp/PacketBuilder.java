@@ -5,7 +5,6 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -165,6 +164,16 @@ class PacketBuilder {
      */
     private static final int MAX_RESEND_ACKS_SMALL = 4;
 
+    /**
+     *  The max number of duplicate acks sent in each ack-only messge.
+     *  Doesn't really matter, we have plenty of room...
+     *  @since 0.9.47 moved from PeerState
+     */
+    private static final int MAX_RESEND_ACKS_ACK_ONLY_LARGE = 21;
+
+    /** for small MTU */
+    private static final int MAX_RESEND_ACKS_ACK_ONLY_SMALL = 12;
+
     private static final String PROP_PADDING = "i2np.udp.padding";
     private static final boolean DEFAULT_ENABLE_PADDING = true;
 
@@ -272,14 +281,8 @@ class PacketBuilder {
      * it's (47 + 4*explict acks + padding) added to the
      * fragment length.
      *
-     * @param ackIdsRemaining list of messageIds (Long) that should be acked by this packet.  
-     *                        The list itself is passed by reference, and if a messageId is
-     *                        transmitted it will be removed from the list.
-     *                        Not all message IDs will necessarily be sent, there may not be room.
-     *                        non-null.
-     *
-     * @param newAckCount the number of ackIdsRemaining entries that are new. These must be the first
-     *                    ones in the list
+     * The full acks are taken from the peer's ACKTracker; all new ones are
+     * included if there is room, plus a few already sent.
      *
      * @param partialACKsRemaining list of messageIds (ACKBitfield) that should be acked by this packet.  
      *                        The list itself is passed by reference, and if a messageId is
@@ -291,10 +294,9 @@ class PacketBuilder {
      * @return null on error
      */
     public UDPPacket buildPacket(OutboundMessageState state, int fragment, PeerState peer,
-                                 Collection<Long> ackIdsRemaining, int newAckCount,
                                  List<ACKBitfield> partialACKsRemaining) {
         List<Fragment> frags = Collections.singletonList(new Fragment(state, fragment));
-        return buildPacket(frags, peer, ackIdsRemaining, newAckCount, partialACKsRemaining);
+        return buildPacket(frags, peer, partialACKsRemaining);
     }
 
     /*
@@ -303,7 +305,6 @@ class PacketBuilder {
      *  @since 0.9.16
      */
     public UDPPacket buildPacket(List<Fragment> fragments, PeerState peer,
-                                 Collection<Long> ackIdsRemaining, int newAckCount,
                                  List<ACKBitfield> partialACKsRemaining) {
         StringBuilder msg = null;
         if (_log.shouldLog(Log.INFO)) {
@@ -389,43 +390,40 @@ class PacketBuilder {
         }
 
 
-        // Only include acks if we have at least 5 bytes available and at least
-        // one ack is requested.
-        if (availableForExplicitAcks >= 5 && !ackIdsRemaining.isEmpty()) {
-            data[off] |= UDPPacket.DATA_FLAG_EXPLICIT_ACK;
+        // Only include acks if we have at least 5 bytes available.
+        // Always send all the new acks if we have room.
+        // They go after the count, which we fill in after.
+        int explicitToSend = 0;
+        if (availableForExplicitAcks >= 5) {
+            int maxAcks = Math.min(ABSOLUTE_MAX_ACKS, (availableForExplicitAcks - 1) / 4);
+            explicitToSend = peer.writeACKs(data, off + 2, maxAcks,
+                                            currentMTU > PeerState.MIN_MTU ? MAX_RESEND_ACKS_LARGE : MAX_RESEND_ACKS_SMALL,
+                                            false);
+            if (explicitToSend > 0)
+                data[off] |= UDPPacket.DATA_FLAG_EXPLICIT_ACK;
         }
         off++;
 
         if (msg != null) {
             msg.append(" Total data: ").append(dataSize).append(" bytes, mtu: ")
                .append(currentMTU).append(", ")
-               .append(newAckCount).append(" new full acks requested, ")
-               .append(ackIdsRemaining.size() - newAckCount).append(" resend acks requested, ")
                .append(partialACKsRemaining.size()).append(" partial acks requested, ")
                .append(availableForAcks).append(" avail. for all acks, ")
                .append(availableForExplicitAcks).append(" for full acks, ");
         }
 
-        // always send all the new acks if we have room
-        int explicitToSend = Math.min(ABSOLUTE_MAX_ACKS,
-                                      Math.min(newAckCount + (currentMTU > PeerState.MIN_MTU ? MAX_RESEND_ACKS_LARGE : MAX_RESEND_ACKS_SMALL),
-                                               Math.min((availableForExplicitAcks - 1) / 4, ackIdsRemaining.size())));
         if (explicitToSend > 0) {
             if (msg != null)
                 msg.append(explicitToSend).append(" full acks included:");
             DataHelper.toLong(data, off, 1, explicitToSend);
             off++;
-            Iterator<Long> iter = ackIdsRemaining.iterator();
-            for (int i = 0; i < explicitToSend && iter.hasNext(); i++) {
-                Long ackId = iter.next();
-                iter.remove();
-                // NPE here, how did a null get in the List?
-                DataHelper.toLong(data, off, 4, ackId.longValue());
-                off += 4;        
-                if (msg != null) // logging it
-                    msg.append(' ').append(ackId.longValue());
+            if (msg != null) {
+                for (int i = 0; i < explicitToSend; i++) {
+                    msg.append(' ').append(DataHelper.fromLong(data, off + (4 * i), 4));
+                }
             }
-            //acksIncluded = true;
+            off += 4 * explicitToSend;
+            _context.statManager().addRateData("udp.sendPiggyback", explicitToSend);
         }
 
         if (partialAcksToSend > 0) {
@@ -525,7 +523,19 @@ class PacketBuilder {
         
         // pad up so we're on the encryption boundary
         off = pad1(data, off);
-        off = pad2(data, off, currentMTU - (ipHeaderSize + UDP_HEADER_SIZE));
+        // maybe pad it all the way out to probe a larger MTU
+        int probeMTU = peer.startMTUProbe(fragments.get(0).state);
+        if (probeMTU > currentMTU) {
+            int padSize = probeMTU - (ipHeaderSize + UDP_HEADER_SIZE) - off;
+            if (padSize > 0) {
+                _context.random().nextBytes(data, off, padSize);
+                off += padSize;
+            }
+            if (msg != null)
+                msg.append(" MTU probe ").append(probeMTU);
+        } else {
+            off = pad2(data, off, currentMTU - (ipHeaderSize + UDP_HEADER_SIZE));
+        }
         pkt.setLength(off);
 
         if (msg != null) {
@@ -581,6 +591,111 @@ class PacketBuilder {
         return buildACK(peer, Collections.<ACKBitfield> emptyList());
     }
 
+    /**
+     *  Build an ack-only packet with the densest set of the peer's acks that fits:
+     *  all the new full acks, a few duplicates of acks already sent if there were
+     *  new ones, then as many partial acks as there is room for.
+     *
+     *  @return null if there is nothing to ack
+     *  @since 0.9.47
+     */
+    public UDPPacket buildACK(PeerState peer) {
+        UDPPacket packet = buildPacketHeader(DATA_FLAG_BYTE);
+        DatagramPacket pkt = packet.getPacket();
+        byte data[] = pkt.getData();
+        int off = HEADER_SIZE;
+        int flagOff = off;
+        off++;
+        int bytesRemaining = peer.countMaxACKData();
+        int maxResend = peer.getMTU() > PeerState.MIN_MTU ? MAX_RESEND_ACKS_ACK_ONLY_LARGE : MAX_RESEND_ACKS_ACK_ONLY_SMALL;
+        int fullACKCount = peer.writeACKs(data, off + 1, Math.min(ABSOLUTE_MAX_ACKS, bytesRemaining / 4),
+                                          maxResend, true);
+        if (fullACKCount > 0) {
+            data[flagOff] |= UDPPacket.DATA_FLAG_EXPLICIT_ACK;
+            DataHelper.toLong(data, off, 1, fullACKCount);
+            off += 1 + (4 * fullACKCount);
+            bytesRemaining -= 4 * fullACKCount;
+        }
+
+        int partialACKCount = 0;
+        if (bytesRemaining > 4) {
+            List<ACKBitfield> partial = new ArrayList<ACKBitfield>();
+            peer.fetchPartialACKs(partial);
+            if (!partial.isEmpty()) {
+                int countOff = off;
+                off++;
+                for (int i = 0; i < partial.size() && bytesRemaining > 4 && partialACKCount < ABSOLUTE_MAX_ACKS; i++) {
+                    ACKBitfield bitfield = partial.get(i);
+                    int bytes = (bitfield.fragmentCount() / 7) + 1;
+                    if (bytesRemaining > bytes + 4) { // msgId + bitfields
+                        off = writePartialACK(data, off, bitfield);
+                        bytesRemaining -= bytes + 4;
+                        partialACKCount++;
+                    }
+                    // else continue on to another partial, in case there's a
+                    // smaller one that will fit
+                }
+                if (partialACKCount > 0) {
+                    data[flagOff] |= UDPPacket.DATA_FLAG_ACK_BITFIELDS;
+                    DataHelper.toLong(data, countOff, 1, partialACKCount);
+                } else {
+                    off--;
+                }
+            }
+        }
+
+        if (fullACKCount <= 0 && partialACKCount <= 0) {
+            packet.release();
+            return null;
+        }
+        _context.statManager().addRateData("udp.sendACKCount", fullACKCount + partialACKCount);
+        if (partialACKCount > 0)
+            _context.statManager().addRateData("udp.sendACKPartial", partialACKCount, fullACKCount);
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("building ACK packet to " + peer.getRemotePeer().toBase64().substring(0,6) +
+                       " with " + fullACKCount + " full and " + partialACKCount + " partial acks");
+
+        DataHelper.toLong(data, off, 1, 0); // no fragments in this message
+        off++;
+
+        // pad up so we're on the encryption boundary
+        off = pad1(data, off);
+        off = pad2(data, off);
+        pkt.setLength(off);
+        authenticate(packet, peer.getCurrentCipherKey(), peer.getCurrentMACKey());
+        setTo(packet, peer.getRemoteIPAddress(), peer.getRemotePort());
+        return packet;
+    }
+
+    /**
+     *  Write the message ID and the bitfield bytes, only as many as we have to.
+     *
+     *  @return the new offset
+     *  @since 0.9.47 split out from buildACK()
+     */
+    private static int writePartialACK(byte[] data, int off, ACKBitfield bitfield) {
+        DataHelper.toLong(data, off, 4, bitfield.getMessageId());
+        off += 4;
+        //int bits = bitfield.fragmentCount();
+        int bits = bitfield.highestReceived() + 1;
+        int size = bits / 7;
+        if (bits == 0 || bits % 7 > 0)
+            size++;
+        for (int curByte = 0; curByte < size; curByte++) {
+            if (curByte + 1 < size)
+                data[off] = (byte)(1 << 7);
+            else
+                data[off] = 0;
+
+            for (int curBit = 0; curBit < 7; curBit++) {
+                if (bitfield.received(curBit + 7*curByte))
+                    data[off] |= (byte)(1 << curBit);
+            }
+            off++;
+        }
+        return off;
+    }
+
     /**
      *  Build the ack packet. The list need not be sorted into full and partial;
      *  this method will put all fulls before the partials in the outgoing packet.
@@ -646,29 +761,12 @@ class PacketBuilder {
             for (int i = 0; i < ackBitfields.size(); i++) {
                 ACKBitfield bitfield = ackBitfields.get(i);
                 if (bitfield.receivedComplete()) continue;
-                DataHelper.toLong(data, off, 4, bitfield.getMessageId());
-                off += 4;
+                int start = off;
                 // only send what we have to
-                //int bits = bitfield.fragmentCount();
-                int bits = bitfield.highestReceived() + 1;
-                int size = bits / 7;
-                if (bits == 0 || bits % 7 > 0)
-                    size++;
-                for (int curByte = 0; curByte < size; curByte++) {
-                    if (curByte + 1 < size)
-                        data[off] = (byte)(1 << 7);
-                    else
-                        data[off] = 0;
-                    
-                    for (int curBit = 0; curBit < 7; curBit++) {
-                        if (bitfield.received(curBit + 7*curByte))
-                            data[off] |= (byte)(1 << curBit);
-                    }
-                    off++;
-                }
+                off = writePartialACK(data, off, bitfield);
                 
                 if (msg != null) // logging it
-                    msg.append(" partial ack: ").append(bitfield).append(" with ack bytes: ").append(size);
+                    msg.append(" partial ack: ").append(bitfield).append(" with ack bytes: ").append(off - start - 4);
             }
         }
         
@@ -26,6 +26,9 @@ import net.i2p.util.SystemVersion;
  * an actual pool of packet handler threads, each pulling off the inbound
  * receiver's queue and pushing them as necessary.
  *
+ * If PROP_SHARDS is set, each handler thread has its own queue instead,
+ * and packets are assigned to a handler by a hash of the RemoteHostId,
+ * so that all packets from a peer are processed by the same thread.
  */
 class PacketHandler {
     private final RouterContext _context;
@@ -38,8 +41,19 @@ class PacketHandler {
     private volatile boolean _keepReading;
     private final Handler[] _handlers;
     private final Map<RemoteHostId, Object> _failCache;
+    /** shared by all handlers, null if sharded */
     private final BlockingQueue<UDPPacket> _inboundQueue;
+    private final boolean _sharded;
     private static final Object DUMMY = new Object();
+
+    /**
+     *  Number of handler threads, each with its own queue,
+     *  with packets assigned by remote host.
+     *  0 (default) for a single queue shared by all handlers.
+     *  @since 0.9.47
+     */
+    private static final String PROP_SHARDS = "i2np.udp.handlerShards";
+    private static final int MAX_SHARDS = 16;
     
     private static final int TYPE_POISON = -99999;
     private static final int MIN_QUEUE_SIZE = 16;
@@ -65,17 +79,30 @@ class PacketHandler {
 
         long maxMemory = SystemVersion.getMaxMemory();
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (2*1024*1024)));
-        _inboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver", qsize);
-        int num_handlers;
-        if (maxMemory < 32*1024*1024)
-            num_handlers = 1;
-        else if (maxMemory < 64*1024*1024)
-            num_handlers = 2;
-        else
-            num_handlers = Math.max(MIN_NUM_HANDLERS, Math.min(MAX_NUM_HANDLERS, ctx.bandwidthLimiter().getInboundKBytesPerSecond() / 20));
-        _handlers = new Handler[num_handlers];
-        for (int i = 0; i < num_handlers; i++) {
-            _handlers[i] = new Handler();
+        int shards = Math.min(MAX_SHARDS, Math.min(SystemVersion.getCores(), ctx.getProperty(PROP_SHARDS, 0)));
+        _sharded = shards > 1;
+        if (_sharded) {
+            _inboundQueue = null;
+            _handlers = new Handler[shards];
+            for (int i = 0; i < shards; i++) {
+                BlockingQueue<UDPPacket> q = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver-" + i, qsize);
+                _handlers[i] = new Handler(q, i);
+                _context.statManager().createRateStat(_handlers[i]._depthStat, "Queue depth of the packet handler shard when adding a packet", "udp", UDPTransport.RATES);
+                _context.statManager().createRateStat(_handlers[i]._dropStat, "Packets dropped because the packet handler shard queue was full", "udp", UDPTransport.RATES);
+            }
+        } else {
+            _inboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver", qsize);
+            int num_handlers;
+            if (maxMemory < 32*1024*1024)
+                num_handlers = 1;
+            else if (maxMemory < 64*1024*1024)
+                num_handlers = 2;
+            else
+                num_handlers = Math.max(MIN_NUM_HANDLERS, Math.min(MAX_NUM_HANDLERS, ctx.bandwidthLimiter().getInboundKBytesPerSecond() / 20));
+            _handlers = new Handler[num_handlers];
+            for (int i = 0; i < num_handlers; i++) {
+                _handlers[i] = new Handler(_inboundQueue, i);
+            }
         }
 
         //_context.statManager().createRateStat("udp.handleTime", "How long it takes to handle a received packet after its been pulled off the queue", "udp", UDPTransport.RATES);
@@ -127,6 +154,8 @@ class PacketHandler {
         for (int i = 0; i < _handlers.length; i++) {
             Handler handler = _handlers[i];
             rv.append(" handler ").append(i).append(" state: ").append(handler._state);
+            if (_sharded)
+                rv.append(" queued: ").append(handler._queue.size());
         }
         return rv.toString();
     }
@@ -138,7 +167,54 @@ class PacketHandler {
      * @since IPv6 moved from UDPReceiver
      */
     public void queueReceived(UDPPacket packet) throws InterruptedException {
-        _inboundQueue.put(packet);
+        if (_sharded)
+            queueSharded(packet);
+        else
+            _inboundQueue.put(packet);
+    }
+
+    /**
+     * Non-blocking. Add to the queue of the handler for the packet's remote host.
+     * If that queue is full, the packet is dropped, so that one busy peer
+     * does not block the receiver for all the others.
+     *
+     * @since 0.9.47
+     */
+    private void queueSharded(UDPPacket packet) {
+        int h = packet.getRemoteHost().hashCode();
+        h ^= h >>> 16;
+        int shard = (h & 0x7fffffff) % _handlers.length;
+        Handler handler = _handlers[shard];
+        BlockingQueue<UDPPacket> q = handler._queue;
+        if (q.offer(packet)) {
+            _context.statManager().addRateData(handler._depthStat, q.size());
+        } else {
+            _context.statManager().addRateData(handler._dropStat, 1);
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Packet handler shard " + shard + " full, dropping " + packet);
+            packet.release();
+        }
+    }
+
+    /**
+     * Blocking call to queue a batch of received packets, in order.
+     * On interruption, the packets not yet queued are released.
+     *
+     * @param packets non-empty, not modified
+     * @since 0.9.47
+     */
+    public void queueReceived(List<UDPPacket> packets) throws InterruptedException {
+        int sz = packets.size();
+        for (int i = 0; i < sz; i++) {
+            try {
+                queueReceived(packets.get(i));
+            } catch (InterruptedException ie) {
+                for (int j = i; j < sz; j++) {
+                    packets.get(j).release();
+                }
+                throw ie;
+            }
+        }
     }
 
 
@@ -148,32 +224,49 @@ class PacketHandler {
      * @since IPv6 moved from UDPReceiver
      */
     private void stopQueue() {
-        _inboundQueue.clear();
+        for (int i = 0; i < _handlers.length; i++) {
+            _handlers[i]._queue.clear();
+        }
         for (int i = 0; i < _handlers.length; i++) {
             UDPPacket poison = UDPPacket.acquire(_context, false);
             poison.setMessageType(TYPE_POISON);
-            _inboundQueue.offer(poison);
+            _handlers[i]._queue.offer(poison);
         }
-        for (int i = 1; i <= 5 && !_inboundQueue.isEmpty(); i++) {
+        for (int i = 1; i <= 5 && !isEmpty(); i++) {
             try {
                 Thread.sleep(i * 50);
             } catch (InterruptedException ie) {}
         }
-        _inboundQueue.clear();
+        for (int i = 0; i < _handlers.length; i++) {
+            _handlers[i]._queue.clear();
+        }
+    }
+
+    /**
+     * @return true if all handler queues are empty
+     * @since 0.9.47
+     */
+    private boolean isEmpty() {
+        for (int i = 0; i < _handlers.length; i++) {
+            if (!_handlers[i]._queue.isEmpty())
+                return false;
+        }
+        return true;
     }
 
     /**
      * Blocking call to retrieve the next inbound packet, or null if we have
      * shut down.
      *
+     * @param queue the shared queue, or the handler's own queue if sharded
      * @since IPv6 moved from UDPReceiver
      */
-    public UDPPacket receiveNext() {
+    private UDPPacket receiveNext(BlockingQueue<UDPPacket> queue) {
         UDPPacket rv = null;
         //int remaining = 0;
         while (_keepReading && rv == null) {
             try {
-                rv = _inboundQueue.take();
+                rv = queue.take();
             } catch (InterruptedException ie) {}
             if (rv != null && rv.getMessageType() == TYPE_POISON)
                 return null;
@@ -198,18 +291,29 @@ class PacketHandler {
     
     private class Handler implements Runnable { 
         private final UDPPacketReader _reader;
+        /** may be shared with other handlers */
+        private final BlockingQueue<UDPPacket> _queue;
+        /** sharded only */
+        private final String _depthStat, _dropStat;
         // TODO comment out all uses of _state
         public /* volatile */ int _state;
 
-        public Handler() {
+        /**
+         *  @param queue the shared queue, or this handler's own queue if sharded
+         *  @param id for stats
+         */
+        public Handler(BlockingQueue<UDPPacket> queue, int id) {
             _reader = new UDPPacketReader(_context);
+            _queue = queue;
+            _depthStat = "udp.handlerShardDepth." + id;
+            _dropStat = "udp.handlerShardDropped." + id;
         }
         
         public void run() {
             _state = 1;
             while (_keepReading) {
                 _state = 2;
-                UDPPacket packet = receiveNext();
+                UDPPacket packet = receiveNext(_queue);
                 _state = 3;
                 if (packet == null) break; // keepReading is probably false, or bind failed...
 
@@ -3,14 +3,10 @@ package net.i2p.router.transport.udp;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.data.Hash;
@@ -21,7 +17,6 @@ import net.i2p.router.util.CachedIteratorCollection;
 import net.i2p.router.util.CoDelPriorityBlockingQueue;
 import net.i2p.router.util.PriBlockingQueue;
 import net.i2p.util.Log;
-import net.i2p.util.ConcurrentHashSet;
 
 /**
  * Contain all of the state about a UDP connection to a peer.
@@ -95,19 +90,12 @@ public class PeerState {
     // private long _lastFailedSendPeriod;
 
     /**
-     *  Set of messageIds (Long) that we have received but not yet sent
-     *  Since even with the smallest MTU we can fit 131 acks in a message,
-     *  we are unlikely to get backed up on acks, so we don't keep
-     *  them in any particular order.
+     *  The messageIds that we have received but not yet sent,
+     *  and the most recent ones that we have received and sent
+     *  an ACK for. We keep a few of those around to retransmit with the new ones,
+     *  hopefully saving some spurious retransmissions
      */
-    private final Set<Long> _currentACKs;
-
-    /** 
-     * list of the most recent messageIds (Long) that we have received and sent
-     * an ACK for.  We keep a few of these around to retransmit with _currentACKs,
-     * hopefully saving some spurious retransmissions
-     */
-    private final Queue<ResendACK> _currentACKsResend;
+    private final ACKTracker _acks;
 
     /** when did we last send ACKs to the peer? */
     private volatile long _lastACKSend;
@@ -120,10 +108,9 @@ public class PeerState {
      * the previous second's ACKs be sent?
      */
     //private boolean _remoteWantsPreviousACKs;
-    /** how many bytes should we send to the peer in a second */
-    private int _sendWindowBytes;
-    /** how many bytes can we send to the peer in the current second */
-    private int _sendWindowBytesRemaining;
+    /** the send window, pacing, and slow start threshold */
+    private final CongestionControl _cc;
+    /** for _sendBps only */
     private long _lastSendRefill;
     // smoothed value, for display only
     private int _sendBps;
@@ -136,13 +123,6 @@ public class PeerState {
     //private int _receiveACKBps;
     //private int _receiveACKBytes;
     private long _receivePeriodBegin;
-    private volatile long _lastCongestionOccurred;
-    /** 
-     * when sendWindowBytes is below this, grow the window size quickly,
-     * but after we reach it, grow it slowly
-     *
-     */
-    private volatile int _slowStartThreshold;
     /** what IP is the peer sending and receiving packets on? */
     private final byte[] _remoteIP;
     /** cached IP address */
@@ -177,6 +157,16 @@ public class PeerState {
     //private long _mtuLastChecked;
     private int _mtuIncreases;
     private int _mtuDecreases;
+    /** step the MTU up by probing, instead of jumping to _largeMTU */
+    private final boolean _mtuProbing;
+    /** the message whose first packet was padded to _mtuProbeSize, or -1 */
+    private volatile long _mtuProbeMessageId = -1;
+    /** following are locked by this */
+    private int _mtuProbeSize;
+    private long _mtuProbeTime;
+    private long _mtuLastChange;
+    private int _mtuProbeFailedSize;
+    private long _mtuProbeFailedTime;
     /** current round trip time estimate */
     private int _rtt;
     /** smoothed mean deviation in the rtt */
@@ -242,9 +232,11 @@ public class PeerState {
     /** Last time it was made an introducer **/
     private long _lastIntroducerTime;
 
-    private static final int DEFAULT_SEND_WINDOW_BYTES = 8*1024;
-    private static final int MINIMUM_WINDOW_BYTES = DEFAULT_SEND_WINDOW_BYTES;
-    private static final int MAX_SEND_WINDOW_BYTES = 1024*1024;
+    /**
+     *  "reno" (default) or "bbr"
+     *  @since 0.9.47
+     */
+    public static final String PROP_CONGESTION_CONTROL = "i2np.udp.congestionControl";
 
     /** max number of msgs returned from allocateSend() */
     private static final int MAX_ALLOCATE_SEND = 2;
@@ -313,6 +305,35 @@ public class PeerState {
      *  @since 0.9.28
      */
     public static final int MAX_MTU = Math.max(LARGE_MTU, MAX_IPV6_MTU);
+
+    /**
+     *  Probe each peer for a larger MTU a step at a time, by padding a packet
+     *  of an outbound message out to the next step, and going up
+     *  if the message is acked without retransmission.
+     *  Default false.
+     *  @since 0.9.47
+     */
+    public static final String PROP_MTU_PROBE = "i2np.udp.mtuProbe";
+
+    /**
+     *  IPv4 MTU steps for probing, all % 16 == 12.
+     *  Common path MTUs for tunnels and PPPoE.
+     *  @since 0.9.47
+     */
+    private static final int[] MTU_STEPS = { MIN_MTU, 1276, 1404, 1452, LARGE_MTU };
+
+    /**
+     *  IPv6 MTU steps for probing, all % 16 == 0.
+     *  @since 0.9.47
+     */
+    private static final int[] IPV6_MTU_STEPS = { MIN_IPV6_MTU, 1392, 1440, MAX_IPV6_MTU };
+
+    /** min time between MTU changes or probes */
+    private static final long MTU_PROBE_INTERVAL = 30*1000;
+    /** min time to probe the same size again after a failure */
+    private static final long MTU_PROBE_FAIL_INTERVAL = 10*60*1000;
+    /** give up on an outstanding probe that we never heard about */
+    private static final long MTU_PROBE_TIMEOUT = 60*1000;
     
     private static final int MIN_RTO = 1000;
     private static final int INIT_RTO = 1000;
@@ -324,14 +345,6 @@ public class PeerState {
      *  The max number of acks we save to send as duplicates
      */
     private static final int MAX_RESEND_ACKS = 64;
-    /**
-     *  The max number of duplicate acks sent in each ack-only messge.
-     *  Doesn't really matter, we have plenty of room...
-     *  @since 0.7.13
-     */
-    private static final int MAX_RESEND_ACKS_LARGE = MAX_RESEND_ACKS / 3;
-    /** for small MTU */
-    private static final int MAX_RESEND_ACKS_SMALL = MAX_RESEND_ACKS / 5;
 
     private static final long RESEND_ACK_TIMEOUT = 5*60*1000;
 
@@ -348,14 +361,13 @@ public class PeerState {
         _keyEstablishedTime = now;
         _lastSendTime = now;
         _lastReceiveTime = now;
-        _currentACKs = new ConcurrentHashSet<Long>();
-        _currentACKsResend = new LinkedBlockingQueue<ResendACK>();
-        _sendWindowBytes = DEFAULT_SEND_WINDOW_BYTES;
-        _sendWindowBytesRemaining = DEFAULT_SEND_WINDOW_BYTES;
-        _slowStartThreshold = MAX_SEND_WINDOW_BYTES/2;
+        _acks = new ACKTracker(MAX_RESEND_ACKS, RESEND_ACK_TIMEOUT);
+        if ("bbr".equals(ctx.getProperty(PROP_CONGESTION_CONTROL)))
+            _cc = new BBRCongestionControl(now);
+        else
+            _cc = new RenoCongestionControl(ctx.random(), now);
         _lastSendRefill = now;
         _receivePeriodBegin = now;
-        _lastCongestionOccurred = -1;
         _remotePort = remotePort;
         if (remoteIP.length == 4) {
             _mtu = DEFAULT_MTU;
@@ -367,6 +379,8 @@ public class PeerState {
             _largeMTU = transport.getMTU(true);
         }
         //_mtuLastChecked = -1;
+        _mtuProbing = ctx.getBooleanProperty(PROP_MTU_PROBE);
+        _mtuLastChange = now;
         _lastACKSend = -1;
 
         _rto = INIT_RTO;
@@ -481,16 +495,36 @@ public class PeerState {
      *  candidate for removal
      */
     public int getSendWindowBytes() {
-        synchronized(_outboundMessages) {
-            return _sendWindowBytes;
-        }
+        return _cc.getWindow();
     }
 
     /** how many bytes can we send to the peer in the current second */
     public int getSendWindowBytesRemaining() {
-        synchronized(_outboundMessages) {
-            return _sendWindowBytesRemaining;
-        }
+        return _cc.getWindowRemaining();
+    }
+
+    /**
+     *  @return bytes per second, or 0 if not paced
+     *  @since 0.9.47
+     */
+    public int getPacingRate() {
+        return _cc.getPacingRate();
+    }
+
+    /**
+     *  @return ms, or 0 if not tracked or not known yet
+     *  @since 0.9.47
+     */
+    public int getMinRTT() {
+        return _cc.getMinRTT();
+    }
+
+    /**
+     *  @return when the pacing allows the next send, or 0 if not paced
+     *  @since 0.9.47
+     */
+    public long getNextSendTime() {
+        return _cc.getNextSendTime();
     }
 
     /** what IP is the peer sending and receiving packets on? */
@@ -704,7 +738,6 @@ public class PeerState {
         long now = _context.clock().now();
         long duration = now - _lastSendRefill;
         if (duration >= 1000) {
-            _sendWindowBytesRemaining = _sendWindowBytes;
             _sendBytes += size;
             _sendBps = (int)(0.9f*_sendBps + 0.1f*(_sendBytes * (1000f/duration)));
             //if (isForACK) {
@@ -716,15 +749,7 @@ public class PeerState {
             _lastSendRefill = now;
         }
 
-        // Ticket 2505
-        // We always send all unacked fragments for a message,
-        // because we don't have any mechanism in OutboundMessageFragments
-        // to track the next send time for fragments individually.
-        // Huge messages that are larger than the window size could never
-        // get sent and block the outbound queue forever.
-        // So we let it through when the window is empty (full window remaining).
-        if (size <= _sendWindowBytesRemaining ||
-            (size > _sendWindowBytes && _sendWindowBytesRemaining >= _sendWindowBytes)) {
+        if (_cc.canSend(size, messagePushCount, now)) {
             // move this check to getSendWindowBytesRemaining() ?
             if (messagePushCount == 0 && _outboundMessages.size() > _concurrentMessagesAllowed) {
                 _consecutiveRejections++;
@@ -736,9 +761,7 @@ public class PeerState {
                     _context.statManager().addRateData("udp.rejectConcurrentSequence", _consecutiveRejections, _outboundMessages.size());
                 _consecutiveRejections = 0;
             }
-            _sendWindowBytesRemaining -= size; 
-            if (_sendWindowBytesRemaining < 0)
-                _sendWindowBytesRemaining = 0; 
+            _cc.sent(size, messagePushCount, now);
             _sendBytes += size;
             _lastSendTime = now;
             //if (isForACK) 
@@ -779,7 +802,7 @@ public class PeerState {
      *  stat in SST column, otherwise unused,
      *  candidate for removal
      */
-    public int getSlowStartThreshold() { return _slowStartThreshold; }
+    public int getSlowStartThreshold() { return _cc.getSlowStartThreshold(); }
 
     /**
      *  2nd stat in CWND column, otherwise unused,
@@ -828,14 +851,14 @@ public class PeerState {
      *  We received the message specified completely.
      *  @param bytes if less than or equal to zero, message is a duplicate.
      */
-    void messageFullyReceived(Long messageId, int bytes) { messageFullyReceived(messageId, bytes, false); }
+    void messageFullyReceived(long messageId, int bytes) { messageFullyReceived(messageId, bytes, false); }
 
     /** 
      *  We received the message specified completely.
      *  @param isForACK unused
      *  @param bytes if less than or equal to zero, message is a duplicate.
      */
-    private synchronized void messageFullyReceived(Long messageId, int bytes, boolean isForACK) {
+    private synchronized void messageFullyReceived(long messageId, int bytes, boolean isForACK) {
         if (bytes > 0) {
             _receiveBytes += bytes;
             //if (isForACK)
@@ -864,7 +887,7 @@ public class PeerState {
         
         if (_wantACKSendSince <= 0)
             _wantACKSendSince = now;
-        _currentACKs.add(messageId);
+        _acks.add(messageId);
     }
     
     void messagePartiallyReceived() {
@@ -914,212 +937,48 @@ public class PeerState {
      *  @return true if window shrunk, but nobody uses the return value
      */
     private boolean congestionOccurred() {
-        long now = _context.clock().now();
-        if (_lastCongestionOccurred + _rto > now)
-            return false; // only shrink once every few seconds
-        _lastCongestionOccurred = now;
-        
-        int congestionAt = _sendWindowBytes;
-        //if (true)
-        //    _sendWindowBytes -= 10000;
-        //else
-            _sendWindowBytes = _sendWindowBytes/2; //(_sendWindowBytes*2) / 3;
-        if (_sendWindowBytes < MINIMUM_WINDOW_BYTES)
-            _sendWindowBytes = MINIMUM_WINDOW_BYTES;
-        //if (congestionAt/2 < _slowStartThreshold)
-            _slowStartThreshold = congestionAt/2;
-        return true;
+        return _cc.congestionOccurred(_rto, _context.clock().now());
     }
     
     /**
-     * Grab a list of message ids (Long) that we want to send to the remote
-     * peer, regardless of the packet size, but don't remove it from our 
-     * "want to send" list.  If the message id is transmitted to the peer,
-     * removeACKMessage(Long) should be called.
-     *
-     * The returned list contains acks not yet sent only.
-     * The caller should NOT transmit all of them all the time,
-     * even if there is room,
-     * or the packets will have way too much overhead.
-     *
-     * @return a new list, do as you like with it
-     */
-    List<Long> getCurrentFullACKs() {
-            // no such element exception seen here
-            List<Long> rv = new ArrayList<Long>(_currentACKs);
-            //if (_log.shouldLog(Log.DEBUG))
-            //    _log.debug("Returning " + _currentACKs.size() + " current acks");
-            return rv;
-    }
-
-    /**
-     * Grab a list of message ids (Long) that we want to send to the remote
-     * peer, regardless of the packet size, but don't remove it from our 
-     * "want to send" list.
+     *  Write the full acks into a packet, as 4-byte message IDs.
+     *  All the new acks are written first, if there's room, then up to maxResend
+     *  duplicates of acks already sent, in case those packets were lost.
+     *  The caller should NOT transmit all the duplicates all the time,
+     *  even if there is room,
+     *  or the packets will have way too much overhead.
      *
-     * The returned list contains
-     * a random assortment of acks already sent.
-     * The caller should NOT transmit all of them all the time,
-     * even if there is room,
-     * or the packets will have way too much overhead.
+     *  Side effect - sets _lastACKSend if any were written, and clears
+     *  getWantedACKSendSince() if there is nothing left to ack.
      *
-     * @return a new list, do as you like with it
-     * @since 0.8.12 was included in getCurrentFullACKs()
-     */
-    List<Long> getCurrentResendACKs() {
-            int sz = _currentACKsResend.size();
-            List<Long> randomResends = new ArrayList<Long>(sz);
-            if (sz > 0) {
-                long cutoff = _context.clock().now() - RESEND_ACK_TIMEOUT;
-                int i = 0;
-                for (Iterator<ResendACK> iter = _currentACKsResend.iterator(); iter.hasNext(); ) {
-                    ResendACK rack  = iter.next();
-                    if (rack.time > cutoff && i++ < MAX_RESEND_ACKS) {
-                        randomResends.add(rack.id);
-                    } else {
-                        iter.remove();
-                        if (_log.shouldLog(Log.INFO))
-                            _log.info("Expired ack " + rack.id + " sent " + (cutoff + RESEND_ACK_TIMEOUT - rack.time) +
-                                      " ago, now " + _currentACKsResend.size()  + " resend acks");
-                    }
+     *  @param max the max number of acks to write
+     *  @param ackOnly if true, duplicates are only written along with new acks,
+     *                 and only the full acks need to be sent to clear getWantedACKSendSince()
+     *  @return the number of acks written
+     *  @since 0.9.47 replaces getCurrentFullACKs(), getCurrentResendACKs(),
+     *         removeACKMessage(), and retrieveACKBitfields()
+     */
+    int writeACKs(byte[] data, int off, int max, int maxResend, boolean ackOnly) {
+        long now = _context.clock().now();
+        int rv = _acks.write(data, off, max, maxResend, !ackOnly, now,
+                             _context.random().nextInt(Integer.MAX_VALUE));
+        if (rv > 0)
+            _lastACKSend = now;
+        if (_acks.getNewCount() <= 0) {
+            // If the partial acks went out in a data packet,
+            // the ACKSender may still send them again
+            boolean done = ackOnly;
+            if (!done) {
+                synchronized (_inboundMessages) {
+                    done = _inboundMessages.isEmpty();
                 }
-                if (i > 1)
-                    Collections.shuffle(randomResends, _context.random());
             }
-            return randomResends;
-    }
-
-    /**
-     * The ack was sent.
-     * Side effect - sets _lastACKSend
-     */
-    void removeACKMessage(Long messageId) {
-            boolean removed = _currentACKs.remove(messageId);
-            if (removed) {
-                // only add if removed from current, as this may be called for
-                // acks already in _currentACKsResend.
-                _currentACKsResend.offer(new ResendACK(messageId, _context.clock().now()));
-                // trim happens in getCurrentResendACKs above
-                if (_log.shouldLog(Log.INFO))
-                    _log.info("Sent ack " + messageId + " now " + _currentACKs.size() + " current and " +
-                              _currentACKsResend.size() + " resend acks");
-            }
-            // should we only do this if removed?
-            _lastACKSend = _context.clock().now();
-    }
-    
-    /** 
-     * grab a list of ACKBitfield instances, some of which may fully 
-     * ACK a message while others may only partially ACK a message.  
-     * the values returned are limited in size so that they will fit within
-     * the peer's current MTU as an ACK - as such, not all messages may be
-     * ACKed with this call.  Be sure to check getWantedACKSendSince() which
-     * will be unchanged if there are ACKs remaining.
-     *
-     * @return non-null, possibly empty
-     * @deprecated unused
-     */
-    @Deprecated
-    List<ACKBitfield> retrieveACKBitfields() { return retrieveACKBitfields(true); }
-
-    /**
-     * See above. Only called by ACKSender with alwaysIncludeRetransmissions = false.
-     * So this is only for ACK-only packets, so all the size limiting is useless.
-     * FIXME.
-     * Side effect - sets _lastACKSend if rv is non-empty
-     *
-     * @return non-null, possibly empty
-     */
-    List<ACKBitfield> retrieveACKBitfields(boolean alwaysIncludeRetransmissions) {
-        int bytesRemaining = countMaxACKData();
-
-            // Limit the overhead of all the resent acks when using small MTU
-            // 64 bytes in a 608-byte packet is too much...
-            // Send a random subset of all the queued resend acks.
-            int resendSize = _currentACKsResend.size();
-            int maxResendAcks;
-            if (bytesRemaining < MIN_MTU)
-                maxResendAcks = MAX_RESEND_ACKS_SMALL;
-            else
-                maxResendAcks = MAX_RESEND_ACKS_LARGE;
-            List<ACKBitfield> rv = new ArrayList<ACKBitfield>(maxResendAcks);
-
-            // save to add to currentACKsResend later so we don't include twice
-            List<Long> currentACKsRemoved = new ArrayList<Long>(_currentACKs.size());
-            // As explained above, we include the acks in any order
-            // since we are unlikely to get backed up -
-            // just take them using the Set iterator.
-            Iterator<Long> iter = _currentACKs.iterator();
-            while (bytesRemaining >= 4 && iter.hasNext()) {
-                Long val = iter.next();
-                iter.remove();
-                long id = val.longValue();
-                rv.add(new FullACKBitfield(id));
-                currentACKsRemoved.add(val);
-                bytesRemaining -= 4;
-            }
-            if (_currentACKs.isEmpty())
+            if (done)
                 _wantACKSendSince = -1;
-            if (alwaysIncludeRetransmissions || !rv.isEmpty()) {
-                List<Long> randomResends = getCurrentResendACKs();
-                // now repeat by putting in some old ACKs
-                // randomly selected from the Resend queue.
-                // Maybe we should only resend each one a certain number of times...
-                int oldIndex = Math.min(resendSize, maxResendAcks);
-                iter = randomResends.iterator();
-                while (bytesRemaining >= 4 && oldIndex-- > 0 && iter.hasNext()) {
-                    Long cur = iter.next();
-                    long c = cur.longValue();
-                    FullACKBitfield bf = new FullACKBitfield(c);
-                    // try to avoid duplicates ??
-                    // ACKsResend is not checked for dups at add time
-                    //if (rv.contains(bf)) {
-                    //    iter.remove();
-                    //} else {
-                        rv.add(bf);
-                        bytesRemaining -= 4;
-                    //}
-                }
-                if (!currentACKsRemoved.isEmpty()) {
-                    long now = _context.clock().now();
-                    for (Long val : currentACKsRemoved) {
-                        _currentACKsResend.offer(new ResendACK(val, now));
-                    }
-                    // trim happens in getCurrentResendACKs above
-                }
-            }
-
-        int partialIncluded = 0;
-        if (bytesRemaining > 4) {
-            // ok, there's room to *try* to fit in some partial ACKs, so
-            // we should try to find some packets to partially ACK 
-            // (preferably the ones which have the most received fragments)
-            List<ACKBitfield> partial = new ArrayList<ACKBitfield>();
-            fetchPartialACKs(partial);
-            // we may not be able to use them all, but lets try...
-            for (int i = 0; (bytesRemaining > 4) && (i < partial.size()); i++) {
-                ACKBitfield bitfield = partial.get(i);
-                int bytes = (bitfield.fragmentCount() / 7) + 1;
-                if (bytesRemaining > bytes + 4) { // msgId + bitfields
-                    rv.add(bitfield);
-                    bytesRemaining -= bytes + 4;
-                    partialIncluded++;
-                } else {
-                    // continue on to another partial, in case there's a 
-                    // smaller one that will fit
-                }
-            }
         }
-
-        if (!rv.isEmpty())
-            _lastACKSend = _context.clock().now();
-        //if (rv == null)
-        //    rv = Collections.EMPTY_LIST;
-        if (partialIncluded > 0)
-            _context.statManager().addRateData("udp.sendACKPartial", partialIncluded, rv.size() - partialIncluded);
         return rv;
     }
-    
+
     /**
      *  @param rv out parameter, populated with true partial ACKBitfields.
      *            no full bitfields are included.
@@ -1157,31 +1016,6 @@ public class PeerState {
         }
     }
     
-    /**
-     *  A dummy "partial" ack which represents a full ACK of a message
-     */
-    private static class FullACKBitfield implements ACKBitfield {
-        private final long _msgId;
-
-        public FullACKBitfield(long id) { _msgId = id; }
-
-        public int fragmentCount() { return 1; }
-        public int ackCount() { return 1; }
-        public int highestReceived() { return 0; }
-        public long getMessageId() { return _msgId; }
-        public boolean received(int fragmentNum) { return true; }
-        public boolean receivedComplete() { return true; }
-        @Override
-        public int hashCode() { return (int) _msgId; }
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof FullACKBitfield)) return false;
-            return _msgId == ((ACKBitfield)o).getMessageId();
-        }
-        @Override
-        public String toString() { return "Full ACK " + _msgId; }
-    }
-        
     /**
      *  We sent a message which was ACKed containing the given # of bytes.
      *  Caller should synch on this
@@ -1192,37 +1026,15 @@ public class PeerState {
         if (numSends < 2) {
             if (_context.random().nextInt(_concurrentMessagesAllowed) <= 0)
                 _concurrentMessagesAllowed++;
-            
-            if (_sendWindowBytes <= _slowStartThreshold) {
-                _sendWindowBytes += bytesACKed;
-            } else {
-                //if (false) {
-                //    _sendWindowBytes += 16; // why 16?
-                //} else {
-                    float prob = ((float)bytesACKed) / ((float)(_sendWindowBytes<<1));
-                    float v = _context.random().nextFloat();
-                    if (v < 0) v = 0-v;
-                    if (v <= prob)
-                        _sendWindowBytes += bytesACKed; //512; // bytesACKed;
-                //}
-            }
         } else {
             int allow = _concurrentMessagesAllowed - 1;
             if (allow < MIN_CONCURRENT_MSGS)
                 allow = MIN_CONCURRENT_MSGS;
             _concurrentMessagesAllowed = allow;
         }
-        if (_sendWindowBytes > MAX_SEND_WINDOW_BYTES)
-            _sendWindowBytes = MAX_SEND_WINDOW_BYTES;
         _lastReceiveTime = _context.clock().now();
         _lastSendFullyTime = _lastReceiveTime;
-        
-        //if (true) {
-            if (_sendWindowBytesRemaining + bytesACKed <= _sendWindowBytes)
-                _sendWindowBytesRemaining += bytesACKed;
-            else
-                _sendWindowBytesRemaining = _sendWindowBytes;
-        //}
+        _cc.acked(bytesACKed, lifetime, numSends, _lastReceiveTime);
         
         if (numSends < 2) {
             // caller synchs
@@ -1274,6 +1086,22 @@ public class PeerState {
      *  Caller should synch on this
      */
     private void adjustMTU() {
+        if (_mtuProbing) {
+            // increases are by probes only
+            checkMTUProbeTimeout(_context.clock().now());
+            if (_packetsTransmitted > 10 &&
+                (double)_packetsRetransmitted/(double)_packetsTransmitted >= .30d) {
+                long now = _context.clock().now();
+                int prev = getMTUStep(false);
+                if (prev < _mtu && _mtuLastChange + MTU_PROBE_INTERVAL <= now) {
+                    _mtu = prev;
+                    _mtuLastChange = now;
+                    _mtuDecreases++;
+                    _context.statManager().addRateData("udp.mtuDecrease", _mtuDecreases);
+                }
+            }
+            return;
+        }
         double retransPct = 0;
         if (_packetsTransmitted > 10) {
             retransPct = (double)_packetsRetransmitted/(double)_packetsTransmitted;
@@ -1294,6 +1122,110 @@ public class PeerState {
         }
     }
 
+    /**
+     *  The next step up or down from the current MTU.
+     *  Caller should synch on this
+     *
+     *  @param up true for higher, false for lower
+     *  @return the current MTU if there is none
+     *  @since 0.9.47
+     */
+    private int getMTUStep(boolean up) {
+        int[] steps = _remoteIP.length == 4 ? MTU_STEPS : IPV6_MTU_STEPS;
+        if (up) {
+            for (int i = 0; i < steps.length; i++) {
+                if (steps[i] > _mtu)
+                    return Math.max(_mtu, Math.min(steps[i], _largeMTU));
+            }
+            return Math.max(_mtu, _largeMTU);
+        }
+        for (int i = steps.length - 1; i >= 0; i--) {
+            if (steps[i] < _mtu)
+                return steps[i];
+        }
+        return _mtu;
+    }
+
+    /**
+     *  Should the packet carrying the first send of this message be
+     *  padded out as an MTU probe?
+     *  Only one probe is outstanding at a time.
+     *
+     *  @return the MTU to pad the packet to, or 0 for no probe
+     *  @since 0.9.47
+     */
+    int startMTUProbe(OutboundMessageState state) {
+        if (!_mtuProbing || _mtuProbeMessageId >= 0 || state.getPushCount() > 1)
+            return 0;
+        synchronized(this) {
+            if (_mtuProbeMessageId >= 0 || _packetsTransmitted <= 10)
+                return 0;
+            if ((double)_packetsRetransmitted/(double)_packetsTransmitted >= .30d)
+                return 0;
+            long now = _context.clock().now();
+            if (_mtuLastChange + MTU_PROBE_INTERVAL > now)
+                return 0;
+            int next = getMTUStep(true);
+            if (next <= _mtu)
+                return 0;
+            if (next == _mtuProbeFailedSize && _mtuProbeFailedTime + MTU_PROBE_FAIL_INTERVAL > now)
+                return 0;
+            _mtuProbeMessageId = state.getMessageId();
+            _mtuProbeSize = next;
+            _mtuProbeTime = now;
+            if (_log.shouldLog(Log.INFO))
+                _log.info("MTU probe " + _mtu + " -> " + next + " with msg " + _mtuProbeMessageId + " to " + _remotePeer);
+            return next;
+        }
+    }
+
+    /**
+     *  The message was acked, or is about to be retransmitted or fail.
+     *  If it was the MTU probe, step up or remember the failure.
+     *
+     *  @param success acked on the first send
+     *  @since 0.9.47
+     */
+    private void mtuProbeResult(OutboundMessageState state, boolean success) {
+        if (state.getMessageId() != _mtuProbeMessageId)
+            return;
+        synchronized(this) {
+            if (state.getMessageId() != _mtuProbeMessageId)
+                return;
+            _mtuProbeMessageId = -1;
+            long now = _context.clock().now();
+            _mtuLastChange = now;
+            if (success) {
+                if (_mtuProbeSize > _mtu) {
+                    _mtu = _mtuProbeSize;
+                    _mtuIncreases++;
+                    _context.statManager().addRateData("udp.mtuIncrease", _mtuIncreases);
+                }
+            } else {
+                _mtuProbeFailedSize = _mtuProbeSize;
+                _mtuProbeFailedTime = now;
+                _context.statManager().addRateData("udp.mtuProbeFailed", _mtuProbeSize);
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("MTU probe " + _mtuProbeSize + (success ? " succeeded" : " failed") +
+                          " to " + _remotePeer + ", now " + _mtu);
+        }
+    }
+
+    /**
+     *  Forget an MTU probe that we never heard about, e.g. the message
+     *  was dropped or transferred.
+     *  Caller should synch on this
+     *
+     *  @since 0.9.47
+     */
+    private void checkMTUProbeTimeout(long now) {
+        if (_mtuProbeMessageId >= 0 && _mtuProbeTime + MTU_PROBE_TIMEOUT < now) {
+            _mtuProbeMessageId = -1;
+            _mtuLastChange = now;
+        }
+    }
+
     /**
      *  @since 0.9.2
      */
@@ -1308,7 +1240,7 @@ public class PeerState {
     
     /** we are resending a packet, so lets jack up the rto */
     synchronized void messageRetransmitted(int packets) { 
-        _context.statManager().addRateData("udp.congestionOccurred", _sendWindowBytes);
+        _context.statManager().addRateData("udp.congestionOccurred", _cc.getWindow());
         _context.statManager().addRateData("udp.congestedRTO", _rto, _rttDeviation);
         _packetsRetransmitted += packets;
         congestionOccurred();
@@ -1393,7 +1325,7 @@ public class PeerState {
         synchronized(this) {
             congestionOccurred();
         }
-        _context.statManager().addRateData("udp.congestionOccurred", _sendWindowBytes);
+        _context.statManager().addRateData("udp.congestionOccurred", _cc.getWindow());
         _currentSecondECNReceived = true;
         _lastReceiveTime = _context.clock().now();
     }
@@ -1422,14 +1354,14 @@ public class PeerState {
     boolean unsentACKThresholdReached() {
         //int threshold = countMaxACKData() / 4;
         //return _currentACKs.size() >= threshold;
-        return _currentACKs.size() >= MAX_RESEND_ACKS / 2;
+        return _acks.getNewCount() >= MAX_RESEND_ACKS / 2;
     }
 
     /**
      *  @return how many bytes available for acks in an ack-only packet, == MTU - 83
      *          Max of 1020
      */
-    private int countMaxACKData() {
+    int countMaxACKData() {
         return Math.min(PacketBuilder.ABSOLUTE_MAX_ACKS * 4,
                 _mtu 
                 - (_remoteIP.length == 4 ? PacketBuilder.IP_HEADER_SIZE : PacketBuilder.IPV6_HEADER_SIZE)
@@ -1643,6 +1575,9 @@ public class PeerState {
         
         for (int i = 0; failed != null && i < failed.size(); i++) {
             OutboundMessageState state = failed.get(i);
+            mtuProbeResult(state, false);
+            if (state.getPushCount() > 0)
+                _cc.failed(state.getMessageSize());
             OutNetMessage msg = state.getMessage();
             if (msg != null) {
                 msg.timestamp("expired in the active pool");
@@ -1863,6 +1798,7 @@ public class PeerState {
 
                 int rto = getRTO();
                 if (state.getPushCount() > 0) {
+                    mtuProbeResult(state, false);
                     _retransmitter = state;
                     rto = Math.min(MAX_RTO, rto << state.getPushCount()); // Section 5.5 RFC 6298
                 }
@@ -1884,8 +1820,14 @@ public class PeerState {
                     _log.info("Allocation of " + size + " rejected w/ wsize=" + getSendWindowBytes()
                               + " available=" + getSendWindowBytesRemaining()
                               + " for message " + state.getMessageId() + ": " + state);
-                state.setNextSendTime(now + (ACKSender.ACK_FREQUENCY / 2) +
-                                      _context.random().nextInt(ACKSender.ACK_FREQUENCY)); //(now + 1024) & ~SECOND_MASK);
+                long paced = _cc.getNextSendTime();
+                if (paced > now) {
+                    // window is fine, just not yet
+                    state.setNextSendTime(paced);
+                } else {
+                    state.setNextSendTime(now + (ACKSender.ACK_FREQUENCY / 2) +
+                                          _context.random().nextInt(ACKSender.ACK_FREQUENCY)); //(now + 1024) & ~SECOND_MASK);
+                }
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Retransmit after choke for next send time in " + (state.getNextSendTime()-now) + "ms");
                 //_throttle.choke(peer.getRemotePeer());
@@ -1947,6 +1889,7 @@ public class PeerState {
                 _context.statManager().addRateData("udp.sendConfirmFragments", state.getFragmentCount());
             _context.statManager().addRateData("udp.sendConfirmVolley", numSends);
             _transport.succeeded(state);
+            mtuProbeResult(state, numSends <= 1);
             // this adjusts the rtt/rto/window/etc
             messageACKed(state.getMessageSize(), state.getLifetime(), numSends);
             //if (getSendWindowBytesRemaining() > 0)
@@ -2018,6 +1961,7 @@ public class PeerState {
                 //if (state.getMessage() != null)
                 //    state.getMessage().timestamp("partial ack to complete after " + numSends);
                 _transport.succeeded(state);
+                mtuProbeResult(state, numSends <= 1);
                 
                 // this adjusts the rtt/rto/window/etc
                 messageACKed(state.getMessageSize(), state.getLifetime(), numSends);
@@ -2046,29 +1990,13 @@ public class PeerState {
         _rto = oldPeer._rto;
         _rtt = oldPeer._rtt;
         _rttDeviation = oldPeer._rttDeviation;
-        _slowStartThreshold = oldPeer._slowStartThreshold;
-        _sendWindowBytes = oldPeer._sendWindowBytes;
+        _cc.loadFrom(oldPeer._cc);
         oldPeer._dead = true;
         
-        List<Long> tmp = new ArrayList<Long>();
-        // AIOOBE from concurrent access
-        //tmp.addAll(oldPeer._currentACKs);
-        for (Long l : oldPeer._currentACKs) {
-            tmp.add(l);
-        }
-        oldPeer._currentACKs.clear();
-
-        if (!_dead) {
-            _currentACKs.addAll(tmp);
-	}
-        
-        List<ResendACK> tmp3 = new ArrayList<ResendACK>();
-        tmp3.addAll(oldPeer._currentACKsResend);
-        oldPeer._currentACKsResend.clear();
-
-        if (!_dead) {
-            _currentACKsResend.addAll(tmp3);
-	}
+        if (!_dead)
+            _acks.loadFrom(oldPeer._acks);
+        else
+            oldPeer._acks.clear();
         
         Map<Long, InboundMessageState> msgs = new HashMap<Long, InboundMessageState>();
         synchronized (oldPeer._inboundMessages) {
@@ -2104,20 +2032,6 @@ public class PeerState {
         return _transport;
     }
 
-    /**
-     *  A message ID and a timestamp. Used for the resend ACKS.
-     *  @since 0.9.17
-     */
-    private static class ResendACK {
-        public final Long id;
-        public final long time;
-
-        public ResendACK(Long id, long time) {
-            this.id = id;
-            this.time = time;
-        }
-    }
-
     // why removed? Some risk of dups in OutboundMessageFragments._activePeers ???
 
     /*
@@ -2156,8 +2070,7 @@ public class PeerState {
         buf.append(" sendAttemptAge: ").append(now-_lastSendTime);
         buf.append(" sendACKAge: ").append(now-_lastACKSend);
         buf.append(" lifetime: ").append(now-_keyEstablishedTime);
-        buf.append(" cwin: ").append(_sendWindowBytes);
-        buf.append(" acwin: ").append(_sendWindowBytesRemaining);
+        buf.append(' ').append(_cc);
         buf.append(" consecFail: ").append(_consecutiveFailedSends);
         buf.append(" msgs rcvd: ").append(_messagesReceived);
         buf.append(" msgs sent: ").append(_messagesSent);
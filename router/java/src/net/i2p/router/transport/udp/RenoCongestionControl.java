@@ -0,0 +1,137 @@
+package net.i2p.router.transport.udp;
+
+import net.i2p.util.RandomSource;
+
+/**
+ *  The classic SSU congestion control, moved from PeerState.
+ *
+ *  The window is the number of bytes we may send in a second,
+ *  refilled every second and as messages are acked.
+ *  It grows by the acked bytes below the slow start threshold,
+ *  and probabilistically above it, and is halved on congestion,
+ *  at most once per RTO.
+ *
+ *  @since 0.9.47 moved from PeerState
+ */
+class RenoCongestionControl implements CongestionControl {
+
+    private final RandomSource _random;
+    /** how many bytes should we send to the peer in a second */
+    private int _sendWindowBytes;
+    /** how many bytes can we send to the peer in the current second */
+    private int _sendWindowBytesRemaining;
+    private long _lastSendRefill;
+    private long _lastCongestionOccurred;
+    /**
+     * when sendWindowBytes is below this, grow the window size quickly,
+     * but after we reach it, grow it slowly
+     *
+     */
+    private int _slowStartThreshold;
+
+    static final int DEFAULT_SEND_WINDOW_BYTES = 8*1024;
+    static final int MINIMUM_WINDOW_BYTES = DEFAULT_SEND_WINDOW_BYTES;
+    static final int MAX_SEND_WINDOW_BYTES = 1024*1024;
+
+    public RenoCongestionControl(RandomSource random, long now) {
+        _random = random;
+        _sendWindowBytes = DEFAULT_SEND_WINDOW_BYTES;
+        _sendWindowBytesRemaining = DEFAULT_SEND_WINDOW_BYTES;
+        _slowStartThreshold = MAX_SEND_WINDOW_BYTES/2;
+        _lastSendRefill = now;
+        _lastCongestionOccurred = -1;
+    }
+
+    public synchronized boolean canSend(int size, int pushCount, long now) {
+        if (now - _lastSendRefill >= 1000) {
+            _sendWindowBytesRemaining = _sendWindowBytes;
+            _lastSendRefill = now;
+        }
+        // Ticket 2505
+        // We always send all unacked fragments for a message,
+        // because we don't have any mechanism in OutboundMessageFragments
+        // to track the next send time for fragments individually.
+        // Huge messages that are larger than the window size could never
+        // get sent and block the outbound queue forever.
+        // So we let it through when the window is empty (full window remaining).
+        return size <= _sendWindowBytesRemaining ||
+               (size > _sendWindowBytes && _sendWindowBytesRemaining >= _sendWindowBytes);
+    }
+
+    public synchronized void sent(int size, int pushCount, long now) {
+        _sendWindowBytesRemaining -= size;
+        if (_sendWindowBytesRemaining < 0)
+            _sendWindowBytesRemaining = 0;
+    }
+
+    public synchronized void acked(int bytesACKed, long lifetime, int numSends, long now) {
+        if (numSends < 2) {
+            if (_sendWindowBytes <= _slowStartThreshold) {
+                _sendWindowBytes += bytesACKed;
+            } else {
+                    float prob = ((float)bytesACKed) / ((float)(_sendWindowBytes<<1));
+                    float v = _random.nextFloat();
+                    if (v < 0) v = 0-v;
+                    if (v <= prob)
+                        _sendWindowBytes += bytesACKed; //512; // bytesACKed;
+            }
+        }
+        if (_sendWindowBytes > MAX_SEND_WINDOW_BYTES)
+            _sendWindowBytes = MAX_SEND_WINDOW_BYTES;
+        if (_sendWindowBytesRemaining + bytesACKed <= _sendWindowBytes)
+            _sendWindowBytesRemaining += bytesACKed;
+        else
+            _sendWindowBytesRemaining = _sendWindowBytes;
+    }
+
+    public synchronized boolean congestionOccurred(int rto, long now) {
+        if (_lastCongestionOccurred + rto > now)
+            return false; // only shrink once every few seconds
+        _lastCongestionOccurred = now;
+
+        int congestionAt = _sendWindowBytes;
+        _sendWindowBytes = _sendWindowBytes/2; //(_sendWindowBytes*2) / 3;
+        if (_sendWindowBytes < MINIMUM_WINDOW_BYTES)
+            _sendWindowBytes = MINIMUM_WINDOW_BYTES;
+        _slowStartThreshold = congestionAt/2;
+        return true;
+    }
+
+    /** nothing to do, the window is refilled every second */
+    public void failed(int bytes) {}
+
+    public synchronized int getWindow() { return _sendWindowBytes; }
+
+    public synchronized int getWindowRemaining() { return _sendWindowBytesRemaining; }
+
+    public synchronized int getSlowStartThreshold() { return _slowStartThreshold; }
+
+    /** @return 0 */
+    public int getPacingRate() { return 0; }
+
+    /** @return 0 */
+    public int getMinRTT() { return 0; }
+
+    /** @return 0 */
+    public long getNextSendTime() { return 0; }
+
+    public void loadFrom(CongestionControl old) {
+        if (!(old instanceof RenoCongestionControl))
+            return;
+        RenoCongestionControl o = (RenoCongestionControl) old;
+        int window, sst;
+        synchronized(o) {
+            window = o._sendWindowBytes;
+            sst = o._slowStartThreshold;
+        }
+        synchronized(this) {
+            _sendWindowBytes = window;
+            _slowStartThreshold = sst;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cwin: " + _sendWindowBytes + " acwin: " + _sendWindowBytesRemaining;
+    }
+}
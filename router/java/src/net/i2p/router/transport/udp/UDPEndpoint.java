@@ -5,7 +5,10 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.router.RouterContext;
@@ -15,6 +18,9 @@ import net.i2p.util.Log;
 /**
  * Coordinate the low-level datagram socket, creating and managing the UDPSender and
  * UDPReceiver.
+ *
+ * If PROP_USE_NIO is true, the socket is opened as a non-blocking DatagramChannel,
+ * and the UDPReceiver drains all available packets on each wakeup.
  */
 class UDPEndpoint implements SocketListener {
     private final RouterContext _context;
@@ -24,9 +30,19 @@ class UDPEndpoint implements SocketListener {
     private UDPSender _sender;
     private UDPReceiver _receiver;
     private DatagramSocket _socket;
+    /** non-null in NIO mode only */
+    private DatagramChannel _channel;
     private final InetAddress _bindAddress;
     private final boolean _isIPv4, _isIPv6;
     private static final AtomicInteger _counter = new AtomicInteger();
+
+    /**
+     *  Use a non-blocking DatagramChannel instead of a DatagramSocket.
+     *  Change takes effect at endpoint restart.
+     *  @since 0.9.47
+     */
+    private static final String PROP_USE_NIO = "i2np.udp.useNIO";
+    private static final boolean DEFAULT_USE_NIO = false;
     
     /**
      *  @param transport may be null for unit testing ONLY
@@ -58,10 +74,16 @@ class UDPEndpoint implements SocketListener {
             throw new SocketException("SSU Unable to bind to a port on " + _bindAddress);
         }
         int count = _counter.incrementAndGet();
-        _sender = new UDPSender(_context, _socket, "UDPSender " + count, this);
+        if (_channel != null)
+            _sender = new UDPSender(_context, _channel, "UDPSender " + count, this);
+        else
+            _sender = new UDPSender(_context, _socket, "UDPSender " + count, this);
         _sender.startup();
         if (_transport != null) {
-            _receiver = new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count, this);
+            if (_channel != null)
+                _receiver = new UDPReceiver(_context, _transport, _channel, "UDPReceiver " + count, this);
+            else
+                _receiver = new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count, this);
             _receiver.startup();
         }
     }
@@ -72,8 +94,10 @@ class UDPEndpoint implements SocketListener {
             _receiver.shutdown();
         }
         if (_socket != null) {
+            // closes the channel too
             _socket.close();
         }
+        _channel = null;
     }
     
     public void setListenPort(int newPort) { _listenPort = newPort; }
@@ -104,8 +128,10 @@ class UDPEndpoint implements SocketListener {
      *  If _listenPort <= 0, or requested port is busy, repeatedly try a new random port.
      *  @return null on failure
      *  Sets _listenPort to actual port or -1 on failure
+     *  Sets _channel in NIO mode
      */
     private DatagramSocket getSocket() {
+        boolean useNIO = _context.getProperty(PROP_USE_NIO, DEFAULT_USE_NIO);
         DatagramSocket socket = null;
         int port = _listenPort;
         if (port > 0 && !TransportUtil.isValidPort(port)) {
@@ -120,14 +146,18 @@ class UDPEndpoint implements SocketListener {
                  port = TransportUtil.selectRandomPort(_context, UDPTransport.STYLE);
              }
              try {
-                 if (_bindAddress == null)
+                 if (useNIO) {
+                     _channel = openChannel(port);
+                     socket = _channel.socket();
+                 } else if (_bindAddress == null) {
                      socket = new DatagramSocket(port);
-                 else
+                 } else {
                      socket = new DatagramSocket(port, _bindAddress);
+                 }
                  break;
-             } catch (SocketException se) {
+             } catch (IOException ioe) {
                  if (_log.shouldLog(Log.WARN))
-                     _log.warn("Binding to port " + port + " failed", se);
+                     _log.warn("Binding to port " + port + " failed", ioe);
              }
              port = -1;
         }
@@ -144,6 +174,27 @@ class UDPEndpoint implements SocketListener {
     }
 
 
+    /**
+     *  Open a non-blocking channel bound to the port and _bindAddress.
+     *
+     *  @return non-null
+     *  @throws IOException on failure, channel is closed
+     *  @since 0.9.47
+     */
+    private DatagramChannel openChannel(int port) throws IOException {
+        DatagramChannel chan = DatagramChannel.open();
+        try {
+            InetSocketAddress addr = _bindAddress == null ? new InetSocketAddress(port)
+                                                          : new InetSocketAddress(_bindAddress, port);
+            chan.socket().bind(addr);
+            chan.configureBlocking(false);
+        } catch (IOException ioe) {
+            chan.close();
+            throw ioe;
+        }
+        return chan;
+    }
+
     /** call after startup() to get actual port or -1 on startup failure */
     public int getListenPort() { return _listenPort; }
     public UDPSender getSender() { return _sender; }
@@ -168,6 +219,21 @@ class UDPEndpoint implements SocketListener {
     public UDPPacket receive() { 
         UDPPacket packet = UDPPacket.acquire(_context, true);
         try {
+            if (_channel != null) {
+                // non-blocking, poll
+                ByteBuffer buf = packet.getReceiveBuffer();
+                InetSocketAddress from;
+                while ((from = (InetSocketAddress) _channel.receive(buf)) == null) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException ie) {
+                        packet.release();
+                        return null;
+                    }
+                }
+                packet.setReceived(from, buf.position());
+                return packet;
+            }
             _socket.receive(packet.getPacket());
             return packet; 
         } catch (IOException ioe) {
@@ -2,6 +2,8 @@ package net.i2p.router.transport.udp;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -30,6 +32,8 @@ class UDPPacket implements CDQEntry {
     private volatile long _initializeTime;
     //private volatile long _expiration;
     private final byte[] _data;
+    /** wraps _data, for NIO only */
+    private final ByteBuffer _buffer;
     private final byte[] _validateBuf;
     private final byte[] _ivBuf;
     private volatile int _markedType;
@@ -140,6 +144,7 @@ class UDPPacket implements CDQEntry {
         // the data buffer is clobbered on init(..), but we need it to bootstrap
         _data = new byte[MAX_PACKET_SIZE];
         _packet = new DatagramPacket(_data, MAX_PACKET_SIZE);
+        _buffer = ByteBuffer.wrap(_data);
         _validateBuf = new byte[MAX_VALIDATE_SIZE];
         _ivBuf = new byte[IV_SIZE];
         init(ctx);
@@ -167,6 +172,7 @@ class UDPPacket implements CDQEntry {
         _enqueueTime = 0;
         _receivedTime = 0;
         _fragmentCount = 0;
+        _priority = 0;
     }
     
   /****
@@ -180,7 +186,56 @@ class UDPPacket implements CDQEntry {
 
     /** */
     public synchronized DatagramPacket getPacket() { verifyNotReleased(); return _packet; }
+
+    /**
+     *  For NIO receive. The buffer is backed by the same array as the DatagramPacket,
+     *  so a DatagramChannel may receive into it without a copy.
+     *  Call setReceived() after the receive.
+     *
+     *  @return the cleared buffer, position 0, limit MAX_PACKET_SIZE
+     *  @since 0.9.47
+     */
+    synchronized ByteBuffer getReceiveBuffer() {
+        verifyNotReleased();
+        _buffer.clear();
+        return _buffer;
+    }
+
+    /**
+     *  For NIO receive. Set the DatagramPacket source and length
+     *  after a DatagramChannel received into getReceiveBuffer().
+     *
+     *  @param from non-null
+     *  @since 0.9.47
+     */
+    synchronized void setReceived(InetSocketAddress from, int len) {
+        verifyNotReleased();
+        _packet.setSocketAddress(from);
+        _packet.setLength(len);
+    }
+
+    /**
+     *  For NIO send. The buffer is backed by the same array as the DatagramPacket,
+     *  with the position and limit set to the DatagramPacket offset and length.
+     *
+     *  @since 0.9.47
+     */
+    synchronized ByteBuffer getSendBuffer() {
+        verifyNotReleased();
+        _buffer.clear();
+        int off = _packet.getOffset();
+        _buffer.position(off);
+        _buffer.limit(off + _packet.getLength());
+        return _buffer;
+    }
     public synchronized short getPriority() { verifyNotReleased(); return _priority; }
+
+    /**
+     *  For the bandwidth limiter. Call before requestOutboundBandwidth().
+     *  @param priority OutNetMessage priority, 0 if unknown
+     *  @since 0.9.47
+     */
+    synchronized void setPriority(int priority) { _priority = (short) priority; }
     //public long getExpiration() { verifyNotReleased(); return _expiration; }
     public synchronized long getBegin() { verifyNotReleased(); return _initializeTime; }
     public long getLifetime() { /** verifyNotReleased(); */ return _context.clock().now() - _initializeTime; }
@@ -361,7 +416,7 @@ class UDPPacket implements CDQEntry {
      */
     public synchronized void requestOutboundBandwidth() {
         verifyNotReleased();
-        _bandwidthRequest = _context.bandwidthLimiter().requestOutbound(_packet.getLength(), 0, "UDP sender");
+        _bandwidthRequest = _context.bandwidthLimiter().requestOutbound(_packet.getLength(), _priority, "UDP sender");
     }
     
     /**
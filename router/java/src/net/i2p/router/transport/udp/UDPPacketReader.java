@@ -31,6 +31,19 @@ class UDPPacketReader {
     private final RelayRequestReader _relayRequestReader;
     private final RelayIntroReader _relayIntroReader;
     private final RelayResponseReader _relayResponseReader;
+    /**
+     *  DataReader offset cache, reset by initialize().
+     *  Offset of the fragment count byte, or -1 if not yet parsed.
+     */
+    private int _fragmentsBegin;
+    /** fragment index and offset of the last fragment looked up */
+    private int _cachedFragment;
+    private int _cachedFragmentOffset;
+    /** bitfield index and offset of the last bitfield looked up */
+    private int _cachedBitfield;
+    private int _cachedBitfieldOffset;
+    /** reused view returned by DataReader.readACKBitfield() */
+    private final PacketACKBitfield _bitfieldView;
     
     private static final int KEYING_MATERIAL_LENGTH = 64;
     
@@ -45,6 +58,7 @@ class UDPPacketReader {
         _relayRequestReader = new RelayRequestReader();
         _relayIntroReader = new RelayIntroReader();
         _relayResponseReader = new RelayResponseReader();
+        _bitfieldView = new PacketACKBitfield();
     }
     
     public void initialize(UDPPacket packet) {
@@ -55,10 +69,14 @@ class UDPPacketReader {
         initialize(packet.getPacket().getData(), off, len);
     }
     
-    private void initialize(byte message[], int payloadOffset, int payloadLength) {
+    /** package private for tests */
+    void initialize(byte message[], int payloadOffset, int payloadLength) {
         _message = message;
         _payloadBeginOffset = payloadOffset;
         _payloadLength = payloadLength;
+        _fragmentsBegin = -1;
+        _cachedFragment = -1;
+        _cachedBitfield = -1;
     }
     
     /** what type of payload is in here? */
@@ -371,15 +389,15 @@ class UDPPacketReader {
             return DataHelper.fromLong(_message, off + (4 * index), 4);
         }
 
+        /**
+         *  Allocates a new array and bitfields.
+         *  Use readACKBitfieldCount() and readACKBitfield() to avoid that.
+         *
+         *  @return null if none
+         */
         public ACKBitfield[] readACKBitfields() throws DataFormatException {
             if (!readACKBitfieldsIncluded()) return null;
-            int off = readBodyOffset() + 1;
-            if (readACKsIncluded()) {
-                int numACKs = _message[off] & 0xff;
-                off++;
-                off += 4 * numACKs;
-            }
-            
+            int off = getBitfieldsBegin();
             int numBitfields = _message[off] & 0xff;
             off++;
             
@@ -390,29 +408,47 @@ class UDPPacketReader {
             }
             return rv;
         }
-        
-        public int readFragmentCount() throws DataFormatException {
-            int off = readBodyOffset() + 1;
-            if (readACKsIncluded()) {
-                int numACKs = _message[off] & 0xff;
-                off++;
-                off += 4 * numACKs;
-            }
-            if (readACKBitfieldsIncluded()) {
-                int numBitfields = _message[off] & 0xff;
-                off++;
 
-                for (int i = 0; i < numBitfields; i++) {
-                    PacketACKBitfield bf = new PacketACKBitfield(off);
-                    off += bf.getByteLength();
-                }
+        /**
+         *  @return the number of ACK bitfields, 0 if none
+         *  @since 0.9.47
+         */
+        public int readACKBitfieldCount() {
+            if (!readACKBitfieldsIncluded()) return 0;
+            return _message[getBitfieldsBegin()] & 0xff;
+        }
+
+        /**
+         *  A view of the bitfield in the packet buffer. Does not allocate.
+         *  The returned object is reused, and is only valid until the next
+         *  call to this method or until the reader is initialized again.
+         *  Do not retain it.
+         *  Sequential access is O(1) per call.
+         *
+         *  @param index 0 to readACKBitfieldCount() - 1
+         *  @since 0.9.47
+         */
+        public ACKBitfield readACKBitfield(int index) throws DataFormatException {
+            int off;
+            int i;
+            if (_cachedBitfield >= 0 && index >= _cachedBitfield) {
+                off = _cachedBitfieldOffset;
+                i = _cachedBitfield;
+            } else {
+                off = getBitfieldsBegin() + 1;
+                i = 0;
             }
-            if (readExtendedDataIncluded()) {
-                int size = _message[off] & 0xff;
-                off++;
-                off += size;
+            for ( ; i < index; i++) {
+                off += 4 + bitfieldSize(off + 4);
             }
-            return _message[off];
+            _cachedBitfield = index;
+            _cachedBitfieldOffset = off;
+            _bitfieldView.setStart(off);
+            return _bitfieldView;
+        }
+        
+        public int readFragmentCount() throws DataFormatException {
+            return _message[getFragmentsBegin()];
         }
         
         public long readMessageId(int fragmentNum) throws DataFormatException {
@@ -446,22 +482,60 @@ class UDPPacketReader {
             off += 2;
             System.arraycopy(_message, off, target, targetOffset, size);
         }
-        
-        private int getFragmentBegin(int fragmentNum) throws DataFormatException {
+
+        /**
+         *  The offset of the fragment data in getData(),
+         *  valid for readMessageFragmentSize() bytes.
+         *  For callers that want to copy the data themselves.
+         *
+         *  @since 0.9.47
+         */
+        public int readMessageFragmentOffset(int fragmentNum) throws DataFormatException {
+            return getFragmentBegin(fragmentNum) + 5 + 2; // messageId + fragment info + size
+        }
+
+        /**
+         *  The underlying packet buffer, NOT a copy.
+         *  Only valid until the packet is released.
+         *
+         *  @since 0.9.47
+         */
+        public byte[] getData() {
+            return _message;
+        }
+
+        /**
+         *  Offset of the bitfield count byte.
+         *  Only valid if readACKBitfieldsIncluded().
+         *
+         *  @since 0.9.47
+         */
+        private int getBitfieldsBegin() {
             int off = readBodyOffset() + 1;
             if (readACKsIncluded()) {
                 int numACKs = _message[off] & 0xff;
                 off++;
                 off += 4 * numACKs;
             }
+            return off;
+        }
+
+        /**
+         *  Offset of the fragment count byte.
+         *  Parsed once per packet and cached.
+         *
+         *  @since 0.9.47
+         */
+        private int getFragmentsBegin() throws DataFormatException {
+            if (_fragmentsBegin >= 0)
+                return _fragmentsBegin;
+            int off = getBitfieldsBegin();
             if (readACKBitfieldsIncluded()) {
                 int numBitfields = _message[off] & 0xff;
                 off++;
 
-                PacketACKBitfield bf[] = new PacketACKBitfield[numBitfields];
                 for (int i = 0; i < numBitfields; i++) {
-                    bf[i] = new PacketACKBitfield(off);
-                    off += bf[i].getByteLength();
+                    off += 4 + bitfieldSize(off + 4);
                 }
             }
             if (readExtendedDataIncluded()) {
@@ -469,15 +543,30 @@ class UDPPacketReader {
                 off++;
                 off += size;
             }
-            off++; // # fragments
-            
-            if (fragmentNum > 0) {
-                for (int i = 0; i < fragmentNum; i++) {
-                    off += 5; // messageId+info
-                    off += ((int)DataHelper.fromLong(_message, off, 2)) & 0x3FFF;
-                    off += 2;
-                }
+            _fragmentsBegin = off;
+            return off;
+        }
+        
+        /**
+         *  Sequential access is O(1) per call.
+         */
+        private int getFragmentBegin(int fragmentNum) throws DataFormatException {
+            int off;
+            int i;
+            if (_cachedFragment >= 0 && fragmentNum >= _cachedFragment) {
+                off = _cachedFragmentOffset;
+                i = _cachedFragment;
+            } else {
+                off = getFragmentsBegin() + 1; // # fragments
+                i = 0;
+            }
+            for ( ; i < fragmentNum; i++) {
+                off += 5; // messageId+info
+                off += ((int)DataHelper.fromLong(_message, off, 2)) & 0x3FFF;
+                off += 2;
             }
+            _cachedFragment = fragmentNum;
+            _cachedFragmentOffset = off;
             return off;
         }
 
@@ -570,24 +659,28 @@ class UDPPacketReader {
      * Helper class to fetch the particular bitfields from the raw packet
      */   
     private class PacketACKBitfield implements ACKBitfield {
-        private final int _start;
-        private final int _bitfieldStart;
-        private final int _bitfieldSize;
+        private int _start;
+        private int _bitfieldStart;
+        private int _bitfieldSize;
 
         public PacketACKBitfield(int start) throws DataFormatException {
+            setStart(start);
+        }
+
+        /**
+         *  Uninitialized, for reuse as a view, setStart() must be called
+         *  @since 0.9.47
+         */
+        public PacketACKBitfield() {}
+
+        /**
+         *  Point this view at a bitfield in the packet
+         *  @since 0.9.47
+         */
+        public void setStart(int start) throws DataFormatException {
             _start = start;
             _bitfieldStart = start + 4;
-            int bfsz = 1;
-            // bitfield is an array of bytes where the high bit is 1 if 
-            // further bytes in the bitfield follow
-            while ((_message[_bitfieldStart + bfsz - 1] & UDPPacket.BITFIELD_CONTINUATION) != 0x0) {
-                bfsz++;
-                //if (bfsz > InboundMessageState.MAX_PARTIAL_BITFIELD_BYTES)
-                //    throw new DataFormatException();
-            }
-            if (bfsz > InboundMessageState.MAX_PARTIAL_BITFIELD_BYTES)
-                throw new DataFormatException("bitfield size: " + bfsz);
-            _bitfieldSize = bfsz;
+            _bitfieldSize = bitfieldSize(_bitfieldStart);
         }
 
         public long getMessageId() { return DataHelper.fromLong(_message, _start, 4); }
@@ -888,6 +981,24 @@ class UDPPacketReader {
         }
     }
     
+    /**
+     *  Bitfield is an array of bytes where the high bit is 1 if 
+     *  further bytes in the bitfield follow.
+     *
+     *  @param start offset of the first bitfield byte (after the message ID)
+     *  @return size in bytes
+     *  @since 0.9.47 pulled out of PacketACKBitfield
+     */
+    private int bitfieldSize(int start) throws DataFormatException {
+        int bfsz = 1;
+        while ((_message[start + bfsz - 1] & UDPPacket.BITFIELD_CONTINUATION) != 0x0) {
+            bfsz++;
+            if (bfsz > InboundMessageState.MAX_PARTIAL_BITFIELD_BYTES)
+                throw new DataFormatException("bitfield size: " + bfsz);
+        }
+        return bfsz;
+    }
+    
     /* ------- End Reader Classes ------- */
     
 /******
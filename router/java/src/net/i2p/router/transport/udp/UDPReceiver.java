@@ -3,7 +3,15 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.FIFOBandwidthLimiter;
@@ -21,38 +29,78 @@ import net.i2p.util.SystemVersion;
  * There is a UDPReceiver for each UDPEndpoint.
  * It contains a thread but no queue. Received packets are queued
  * in the common PacketHandler queue.
+ *
+ * If the endpoint was opened with a DatagramChannel (NIO mode),
+ * the thread waits on a Selector and drains every datagram
+ * available on each wakeup, then queues them together.
  */
 class UDPReceiver {
     private final RouterContext _context;
     private final Log _log;
     private final DatagramSocket _socket;
+    /** null in socket mode */
+    private final DatagramChannel _channel;
     private String _name;
     private volatile boolean _keepRunning;
-    private final Runner _runner;
+    private final Runnable _runner;
+    /** NIO mode only */
+    private volatile Selector _selector;
     private final UDPTransport _transport;
     private final PacketHandler _handler;
     private final SocketListener _endpoint;
 
     private static final boolean _isAndroid = SystemVersion.isAndroid();
 
+    /** NIO mode, max packets drained per wakeup */
+    private static final int MAX_BATCH = 64;
+    /** NIO mode, so we check _keepRunning and the throttle once in a while */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    /**
+     *  Socket mode, one blocking receive per packet.
+     */
     public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket, String name,
                        SocketListener lsnr) {
+        this(ctx, transport, socket, null, name, lsnr);
+    }
+
+    /**
+     *  NIO mode, drains all available packets on each wakeup.
+     *
+     *  @param channel non-blocking, bound
+     *  @since 0.9.47
+     */
+    public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramChannel channel, String name,
+                       SocketListener lsnr) {
+        this(ctx, transport, channel.socket(), channel, name, lsnr);
+    }
+
+    /**
+     *  @param channel null for socket mode
+     *  @since 0.9.47
+     */
+    private UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket,
+                        DatagramChannel channel, String name, SocketListener lsnr) {
         _context = ctx;
         _log = ctx.logManager().getLog(UDPReceiver.class);
         _name = name;
         _socket = socket;
+        _channel = channel;
         _transport = transport;
         _endpoint = lsnr;
         _handler = transport.getPacketHandler();
         if (_handler == null)
             throw new IllegalStateException();
-        _runner = new Runner();
+        _runner = channel != null ? new NIORunner() : new Runner();
         //_context.statManager().createRateStat("udp.receivePacketSize", "How large packets received are", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.receiveRemaining", "How many packets are left sitting on the receiver's queue", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.droppedInbound", "How many packet are queued up but not yet received when we drop", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.receiveHolePunch", "How often we receive a NAT hole punch", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.ignorePacketFromDroplist", "Packet lifetime for those dropped on the drop list", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.receiveFailsafe", "limiter stuck?", "udp", new long[] { 24*60*60*1000L });
+        _context.statManager().createRateStat("udp.receiveHandoffTime", "How long from socket receive until queued for the packet handler (ms)", "udp", UDPTransport.RATES);
+        if (channel != null)
+            _context.statManager().createRateStat("udp.receiveBatchSize", "How many packets the NIO receiver drains per wakeup", "udp", UDPTransport.RATES);
     }
     
     /**
@@ -67,6 +115,9 @@ class UDPReceiver {
     
     public synchronized void shutdown() {
         _keepRunning = false;
+        Selector selector = _selector;
+        if (selector != null)
+            selector.wakeup();
     }
     
 /*********
@@ -145,25 +196,8 @@ class UDPReceiver {
         if (!_keepRunning)
             return 0;
 
-        if (_log.shouldLog(Log.INFO))
-            _log.info("Received: " + packet);
-        
-        RemoteHostId from = packet.getRemoteHost();
-        if (_transport.isInDropList(from)) {
-            if (_log.shouldLog(Log.INFO))
-                _log.info("Ignoring packet from the drop-listed peer: " + from);
-            _context.statManager().addRateData("udp.ignorePacketFromDroplist", packet.getLifetime());
-            packet.release();
+        if (isDropped(packet))
             return 0;
-        }
-
-        // drop anything apparently from our IP (any port)
-        if (Arrays.equals(from.getIP(), _transport.getExternalIP()) && !_transport.allowLocal()) {
-            if (_log.shouldLog(Log.WARN))
-                _log.warn("Dropping (spoofed?) packet from ourselves");
-            packet.release();
-            return 0;
-        }
 
 /****
         packet.enqueue();
@@ -180,8 +214,12 @@ class UDPReceiver {
             }
             if (!rejected) {
 ****/
+                // begin was reset at socket receive
+                // get it now, the packet may be released by a handler as soon as it's queued
+                long begin = packet.getBegin();
                 try {
                     _handler.queueReceived(packet);
+                    _context.statManager().addRateData("udp.receiveHandoffTime", _context.clock().now() - begin);
                 } catch (InterruptedException ie) {
                     packet.release();
                     _keepRunning = false;
@@ -208,6 +246,86 @@ class UDPReceiver {
 ****/
     }
     
+    /**
+     * NIO mode.
+     * BLOCKING if queue between here and PacketHandler is full.
+     *
+     * @param packets will be cleared
+     * @param begin when the first packet was received
+     * @since 0.9.47
+     */
+    private void doReceive(List<UDPPacket> packets, long begin) {
+        if (!_keepRunning) {
+            for (UDPPacket packet : packets) {
+                packet.release();
+            }
+            packets.clear();
+            return;
+        }
+        for (int i = packets.size() - 1; i >= 0; i--) {
+            if (isDropped(packets.get(i)))
+                packets.remove(i);
+        }
+        if (!packets.isEmpty()) {
+            try {
+                _handler.queueReceived(packets);
+                _context.statManager().addRateData("udp.receiveHandoffTime", _context.clock().now() - begin);
+            } catch (InterruptedException ie) {
+                _keepRunning = false;
+            }
+            packets.clear();
+        }
+    }
+
+    /**
+     * BLOCKING until the bandwidth limiter allows it, with failsafe.
+     *
+     * @since 0.9.47 split out from Runner
+     */
+    private void requestInbound(int size) {
+        FIFOBandwidthLimiter.Request req =
+              _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
+        // failsafe, don't wait forever
+        int waitCount = 0;
+        while (req.getPendingRequested() > 0 && waitCount++ < 5) {
+            req.waitForNextAllocation();
+        }
+        if (waitCount >= 5) {
+            // tell FBL we didn't receive it, but receive it anyway
+            req.abort();
+            _context.statManager().addRateData("udp.receiveFailsafe", 1);
+        }
+    }
+
+    /**
+     * Drop list and spoof checks.
+     *
+     * @return true if dropped, packet was released
+     * @since 0.9.47 split out from doReceive()
+     */
+    private boolean isDropped(UDPPacket packet) {
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Received: " + packet);
+        
+        RemoteHostId from = packet.getRemoteHost();
+        if (_transport.isInDropList(from)) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Ignoring packet from the drop-listed peer: " + from);
+            _context.statManager().addRateData("udp.ignorePacketFromDroplist", packet.getLifetime());
+            packet.release();
+            return true;
+        }
+
+        // drop anything apparently from our IP (any port)
+        if (Arrays.equals(from.getIP(), _transport.getExternalIP()) && !_transport.allowLocal()) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Dropping (spoofed?) packet from ourselves");
+            packet.release();
+            return true;
+        }
+        return false;
+    }
+    
   /****
     private class ArtificiallyDelayedReceive implements SimpleTimer.TimedEvent {
         private UDPPacket _packet;
@@ -264,19 +382,7 @@ class UDPReceiver {
                     } else if (size > 0) {
                         //FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
                         //_context.bandwidthLimiter().requestInbound(req, size, "UDP receiver");
-                        FIFOBandwidthLimiter.Request req =
-                              _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
-                        // failsafe, don't wait forever
-                        int waitCount = 0;
-                        while (req.getPendingRequested() > 0 && waitCount++ < 5) {
-                            req.waitForNextAllocation();
-                        }
-                        if (waitCount >= 5) {
-                            // tell FBL we didn't receive it, but receive it anyway
-                            req.abort();
-                            _context.statManager().addRateData("udp.receiveFailsafe", 1);
-                        }
-                        
+                        requestInbound(size);
                         receive(packet);
                         //_context.statManager().addRateData("udp.receivePacketSize", size);
                     } else {
@@ -326,4 +432,122 @@ class UDPReceiver {
         }
       *****/
     }
+
+    /**
+     *  NIO mode. Wait for the channel to be readable, then drain
+     *  everything available (up to MAX_BATCH) into pooled packets,
+     *  request the bandwidth for all of them at once,
+     *  and hand them to the PacketHandler together.
+     *
+     *  @since 0.9.47
+     */
+    private class NIORunner implements Runnable {
+        private final List<UDPPacket> _batch = new ArrayList<UDPPacket>(MAX_BATCH);
+
+        public void run() {
+            Selector selector = null;
+            try {
+                selector = Selector.open();
+                _channel.register(selector, SelectionKey.OP_READ);
+                _selector = selector;
+                while (_keepRunning) {
+                    while (!_context.throttle().acceptNetworkMessage())
+                        try { Thread.sleep(10); } catch (InterruptedException ie) {}
+                    try {
+                        int count = selector.select(SELECT_TIMEOUT);
+                        if (count <= 0)
+                            continue;
+                        selector.selectedKeys().clear();
+                        long begin = _context.clock().now();
+                        int total = drain();
+                        int sz = _batch.size();
+                        if (sz > 0) {
+                            _context.statManager().addRateData("udp.receiveBatchSize", sz);
+                            requestInbound(total);
+                            doReceive(_batch, begin);
+                        }
+                    } catch (IOException ioe) {
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn("Error receiving", ioe);
+                        for (UDPPacket packet : _batch) {
+                            packet.release();
+                        }
+                        _batch.clear();
+                        if (!_channel.isOpen()) {
+                            if (_keepRunning) {
+                                _keepRunning = false;
+                                _endpoint.fail();
+                            }
+                        } else if (_keepRunning) {
+                            try { Thread.sleep(100); } catch (InterruptedException ie) {}
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                _log.error("Unable to open selector on " + _endpoint, ioe);
+                if (_keepRunning) {
+                    _keepRunning = false;
+                    _endpoint.fail();
+                }
+            } finally {
+                _selector = null;
+                if (selector != null) {
+                    try { selector.close(); } catch (IOException ioe) {}
+                }
+            }
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Stop receiving on " + _endpoint);
+        }
+
+        /**
+         *  Non-blocking. Receive until the channel is empty or the batch is full.
+         *  Hole punches and bad packets are handled or released here.
+         *
+         *  @return total bytes added to the batch
+         */
+        private int drain() throws IOException {
+            int total = 0;
+            while (_batch.size() < MAX_BATCH) {
+                UDPPacket packet = UDPPacket.acquire(_context, true);
+                ByteBuffer buf = packet.getReceiveBuffer();
+                SocketAddress from;
+                try {
+                    from = _channel.receive(buf);
+                } catch (IOException ioe) {
+                    packet.release();
+                    throw ioe;
+                }
+                if (from == null) {
+                    // nothing left
+                    packet.release();
+                    break;
+                }
+                int size = buf.position();
+                packet.setReceived((InetSocketAddress) from, size);
+                packet.resetBegin();
+                if (size >= UDPPacket.MAX_PACKET_SIZE) {
+                    // DatagramChannel javadocs: If there are fewer bytes remaining in the buffer
+                    // than are required to hold the datagram then the remainder of the datagram is silently discarded.
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("packet too large! truncated and dropped from: " + packet.getRemoteHost());
+                    packet.release();
+                } else if (_context.commSystem().isDummy()) {
+                    // testing
+                    packet.release();
+                } else if (size > 0) {
+                    _batch.add(packet);
+                    total += size;
+                } else {
+                    _context.statManager().addRateData("udp.receiveHolePunch", 1);
+                    // nat hole punch packets are 0 bytes
+                    DatagramPacket dpacket = packet.getPacket();
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("Received a 0 byte udp packet from " + dpacket.getAddress() + ":" + dpacket.getPort());
+                    _transport.getEstablisher().receiveHolePunch(dpacket.getAddress(), dpacket.getPort());
+                    packet.release();
+                }
+            }
+            return total;
+        }
+    }
 }
@@ -1,9 +1,17 @@
 package net.i2p.router.transport.udp;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.util.concurrent.BlockingQueue;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
 
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.FIFOBandwidthLimiter;
@@ -18,13 +26,20 @@ import net.i2p.util.SystemVersion;
  * There is a UDPSender for each UDPEndpoint.
  * It contains a thread and a queue. Packet to be sent are queued
  * by the PacketPusher.
+ *
+ * If the endpoint was opened with a non-blocking DatagramChannel (NIO mode),
+ * packets are sent with the channel, waiting for it to become writable
+ * if the socket send buffer is full. In NIO mode, each wakeup drains
+ * everything queued and sends it in a tight loop.
  */
 class UDPSender {
     private final RouterContext _context;
     private final Log _log;
     private final DatagramSocket _socket;
+    /** null in socket mode */
+    private final DatagramChannel _channel;
     private String _name;
-    private final BlockingQueue<UDPPacket> _outboundQueue;
+    private final CoDelBlockingQueue<UDPPacket> _outboundQueue;
     private volatile boolean _keepRunning;
     private final Runner _runner;
     private final boolean _dummy;
@@ -37,15 +52,48 @@ class UDPSender {
     // When full, packets back up into the PacketPusher thread, pre-CoDel.
     private static final int MIN_QUEUE_SIZE = 64;
     private static final int MAX_QUEUE_SIZE = 384;
+    /**
+     *  Override the memory-based queue size.
+     *  @since 0.9.47
+     */
+    private static final String PROP_QUEUE_SIZE = "i2np.udp.sendQueueSize";
+    /** NIO mode, how many times to wait for the send buffer to drain */
+    private static final int MAX_WRITE_WAITS = 5;
+    /** NIO mode */
+    private static final long WRITE_WAIT_TIME = 100;
     
+    /**
+     *  Socket mode.
+     */
     public UDPSender(RouterContext ctx, DatagramSocket socket, String name, SocketListener lsnr) {
+        this(ctx, socket, null, name, lsnr);
+    }
+
+    /**
+     *  NIO mode.
+     *
+     *  @param channel non-blocking, bound
+     *  @since 0.9.47
+     */
+    public UDPSender(RouterContext ctx, DatagramChannel channel, String name, SocketListener lsnr) {
+        this(ctx, channel.socket(), channel, name, lsnr);
+    }
+
+    /**
+     *  @param channel null for socket mode
+     *  @since 0.9.47
+     */
+    private UDPSender(RouterContext ctx, DatagramSocket socket, DatagramChannel channel,
+                      String name, SocketListener lsnr) {
         _context = ctx;
         _dummy = false; // ctx.commSystem().isDummy();
         _log = ctx.logManager().getLog(UDPSender.class);
         long maxMemory = SystemVersion.getMaxMemory();
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (1024*1024)));
+        qsize = Math.max(MIN_QUEUE_SIZE, ctx.getProperty(PROP_QUEUE_SIZE, qsize));
         _outboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Sender", qsize);
         _socket = socket;
+        _channel = channel;
         _runner = new Runner();
         _name = name;
         _endpoint = lsnr;
@@ -58,6 +106,10 @@ class UDPSender {
         _context.statManager().createRateStat("udp.sendBWThrottleTime", "How long the send is blocked by the bandwidth throttle", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.sendACKTime", "How long an ACK packet is blocked for (duration == lifetime)", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.sendFailsafe", "limiter stuck?", "udp", new long[] { 24*60*60*1000L });
+        if (channel != null) {
+            _context.statManager().createRateStat("udp.sendBatchSize", "How many packets the NIO sender sends per wakeup", "udp", UDPTransport.RATES);
+            _context.statManager().createRateStat("udp.sendBatchCPUTime", "Sender thread CPU time per NIO batch (us)", "udp", UDPTransport.RATES);
+        }
         // used in RouterWatchdog
         _context.statManager().createRequiredRateStat("udp.sendException", "Send fails (Windows exception?)", "udp", new long[] { 60*1000, 10*60*1000 });
 
@@ -215,10 +267,23 @@ class UDPSender {
     
     private class Runner implements Runnable {
         //private volatile boolean _socketChanged;
+        /** NIO mode only, lazily created */
+        private Selector _writeSelector;
+        /** NIO mode only */
+        private final List<UDPPacket> _batch = new ArrayList<UDPPacket>(MIN_QUEUE_SIZE);
+        /** NIO mode only, null if unsupported */
+        private ThreadMXBean _threadBean;
 
         public void run() {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Running the UDP sender");
+            if (_channel != null && !SystemVersion.isAndroid()) {
+                try {
+                    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+                    if (bean.isCurrentThreadCpuTimeSupported() && bean.isThreadCpuTimeEnabled())
+                        _threadBean = bean;
+                } catch (Throwable t) {}
+            }
             //_socketChanged = false;
             while (_keepRunning) {
                 //if (_socketChanged) {
@@ -228,83 +293,170 @@ class UDPSender {
                 
                 UDPPacket packet = getNextPacket();
                 if (packet != null) {
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("Packet to send known: " + packet);
-                    long acquireTime = _context.clock().now();
-                    int size = packet.getPacket().getLength();
-                    // ?? int size2 = packet.getPacket().getLength();
-                    if (size > 0) {
-                        //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
-                        FIFOBandwidthLimiter.Request req = packet.getBandwidthRequest();
-                        if (req != null) {
-                            // failsafe, don't wait forever
-                            int waitCount = 0;
-                            while (req.getPendingRequested() > 0 && waitCount++ < 5) {
-                                req.waitForNextAllocation();
-                            }
-                            if (waitCount >= 5) {
-                                // tell FBL we didn't send it, but send it anyway
-                                req.abort();
-                                _context.statManager().addRateData("udp.sendFailsafe", 1);
-                            }
-                        }
-                    }
-                    
-                    long afterBW = _context.clock().now();
-                    
-                    //if (_log.shouldLog(Log.DEBUG)) {
-                        //if (len > 128)
-                        //    len = 128;
-                        //_log.debug("Sending packet: (size="+size + "/"+size2 +")\nraw: " + Base64.encode(packet.getPacket().getData(), 0, size));
-                    //}
-                    
-                    if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
-                        _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
-                    
-                    //packet.getPacket().setLength(size);
-                    try {
-                        //long before = _context.clock().now();
-                        //synchronized (Runner.this) {
-                            // synchronization lets us update safely
-                            //_log.debug("Break out datagram for " + packet);
-                            DatagramPacket dp = packet.getPacket();
-                            //if (_log.shouldLog(Log.DEBUG))
-                            //    _log.debug("Just before socket.send of " + packet);
-                            _socket.send(dp);
-                            //if (_log.shouldLog(Log.DEBUG))
-                            //    _log.debug("Just after socket.send of " + packet);
-                        //}
-                        //long sendTime = _context.clock().now() - before;
-                        // less than 50 microsec
-                        //_context.statManager().addRateData("udp.socketSendTime", sendTime, packet.getLifetime());
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("Sent the packet " + packet);
-                        long throttleTime = afterBW - acquireTime;
-                        if (throttleTime > 10)
-                            _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
-                        if (packet.getMarkedType() == 1)
-                            _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
-                        _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
-                        _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
-                    } catch (IOException ioe) {
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Error sending to " + packet.getPacket().getAddress(), ioe);
-                        _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
-                        if (_socket.isClosed()) {
-                            if (_keepRunning) {
-                                _keepRunning = false;
-                                _endpoint.fail();
-                            }
-                        }
-                    }
-                    
-                    // back to the cache
-                    packet.release();
+                    if (_channel != null)
+                        sendBatch(packet);
+                    else
+                        sendPacket(packet);
                 }
             }
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Stop sending on " + _endpoint);
             _outboundQueue.clear();
+            if (_writeSelector != null) {
+                try { _writeSelector.close(); } catch (IOException ioe) {}
+            }
+        }
+
+        /**
+         *  Wait for bandwidth, send, and release the packet.
+         *
+         *  @since 0.9.47 split out from run()
+         */
+        private void sendPacket(UDPPacket packet) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Packet to send known: " + packet);
+            long acquireTime = _context.clock().now();
+            int size = packet.getPacket().getLength();
+            // ?? int size2 = packet.getPacket().getLength();
+            if (size > 0) {
+                //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
+                FIFOBandwidthLimiter.Request req = packet.getBandwidthRequest();
+                if (req != null) {
+                    // failsafe, don't wait forever
+                    int waitCount = 0;
+                    while (req.getPendingRequested() > 0 && waitCount++ < 5) {
+                        req.waitForNextAllocation();
+                    }
+                    if (waitCount >= 5) {
+                        // tell FBL we didn't send it, but send it anyway
+                        req.abort();
+                        _context.statManager().addRateData("udp.sendFailsafe", 1);
+                    }
+                }
+            }
+        
+            long afterBW = _context.clock().now();
+        
+            //if (_log.shouldLog(Log.DEBUG)) {
+                //if (len > 128)
+                //    len = 128;
+                //_log.debug("Sending packet: (size="+size + "/"+size2 +")\nraw: " + Base64.encode(packet.getPacket().getData(), 0, size));
+            //}
+        
+            if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
+                _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
+        
+            //packet.getPacket().setLength(size);
+            try {
+                //long before = _context.clock().now();
+                //synchronized (Runner.this) {
+                    // synchronization lets us update safely
+                    //_log.debug("Break out datagram for " + packet);
+                    //if (_log.shouldLog(Log.DEBUG))
+                    //    _log.debug("Just before socket.send of " + packet);
+                    send(packet);
+                    //if (_log.shouldLog(Log.DEBUG))
+                    //    _log.debug("Just after socket.send of " + packet);
+                //}
+                //long sendTime = _context.clock().now() - before;
+                // less than 50 microsec
+                //_context.statManager().addRateData("udp.socketSendTime", sendTime, packet.getLifetime());
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Sent the packet " + packet);
+                long throttleTime = afterBW - acquireTime;
+                if (throttleTime > 10)
+                    _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
+                if (packet.getMarkedType() == 1)
+                    _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
+                _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
+                _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Error sending to " + packet.getPacket().getAddress(), ioe);
+                _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
+                if (_socket.isClosed()) {
+                    if (_keepRunning) {
+                        _keepRunning = false;
+                        _endpoint.fail();
+                    }
+                }
+            }
+        
+            // back to the cache
+            packet.release();
+        }
+
+        /**
+         *  NIO mode. Send the packet and everything queued behind it,
+         *  taking the queue lock only once.
+         *  The head packet has been through CoDel in getNextPacket();
+         *  the rest are newer, so they are only checked for MAX_HEAD_LIFETIME.
+         *
+         *  @param first non-null
+         *  @since 0.9.47
+         */
+        private void sendBatch(UDPPacket first) {
+            long cpuBefore = _threadBean != null ? _threadBean.getCurrentThreadCpuTime() : 0;
+            _batch.add(first);
+            _outboundQueue.drainAllTo(_batch);
+            int count = 0;
+            for (int i = 0; i < _batch.size(); i++) {
+                UDPPacket packet = _batch.get(i);
+                if (!_keepRunning || packet.getMessageType() == TYPE_POISON) {
+                    packet.release();
+                } else if (packet.getLifetime() > MAX_HEAD_LIFETIME) {
+                    _context.statManager().addRateData("udp.sendQueueTrimmed", 1);
+                    packet.release();
+                } else {
+                    sendPacket(packet);
+                    count++;
+                }
+            }
+            _batch.clear();
+            if (count > 0) {
+                _context.statManager().addRateData("udp.sendBatchSize", count);
+                if (_threadBean != null) {
+                    long cpu = (_threadBean.getCurrentThreadCpuTime() - cpuBefore) / 1000;
+                    _context.statManager().addRateData("udp.sendBatchCPUTime", cpu, count);
+                }
+            }
+        }
+
+        /**
+         *  Send with the socket or channel.
+         *  In NIO mode, if the send buffer is full, wait for it to drain.
+         *
+         *  @since 0.9.47
+         */
+        private void send(UDPPacket packet) throws IOException {
+            DatagramPacket dp = packet.getPacket();
+            if (_channel == null) {
+                _socket.send(dp);
+                return;
+            }
+            ByteBuffer buf = packet.getSendBuffer();
+            SocketAddress to = dp.getSocketAddress();
+            for (int i = 0; i <= MAX_WRITE_WAITS; i++) {
+                if (_channel.send(buf, to) > 0)
+                    return;
+                if (i < MAX_WRITE_WAITS)
+                    waitForWrite();
+            }
+            throw new IOException("Send buffer full");
+        }
+
+        /**
+         *  NIO mode only. Wait for the channel to become writable.
+         *
+         *  @since 0.9.47
+         */
+        private void waitForWrite() throws IOException {
+            if (_writeSelector == null) {
+                _writeSelector = Selector.open();
+                _channel.register(_writeSelector, SelectionKey.OP_WRITE);
+            }
+            if (_writeSelector.select(WRITE_WAIT_TIME) > 0)
+                _writeSelector.selectedKeys().clear();
         }
         
         /** @return next packet in queue. Will discard any packet older than MAX_HEAD_LIFETIME */
@@ -36,6 +36,7 @@ import net.i2p.router.CommSystemFacade.Status;
 import net.i2p.router.OutNetMessage;
 import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
+import net.i2p.router.transport.IdleTimeoutWheel;
 import net.i2p.router.transport.Transport;
 import static net.i2p.router.transport.Transport.AddressSource.*;
 import net.i2p.router.transport.TransportBid;
@@ -323,6 +324,8 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
         _context.statManager().createRateStat("udp.alreadyConnected", "What is the lifetime of a reestablished session", "udp", RATES);
         _context.statManager().createRateStat("udp.droppedPeer", "How long ago did we receive from a dropped peer (duration == session lifetime", "udp", RATES);
         _context.statManager().createRateStat("udp.droppedPeerInactive", "How long ago did we receive from a dropped peer (duration == session lifetime)", "udp", RATES);
+        _context.statManager().createRateStat("udp.idleExpireTime", "Time to look for idle peers per pass (us)", "udp", RATES);
+        _context.statManager().createRateStat("udp.idleExpireVisited", "Peers checked for idle per pass", "udp", RATES);
         //_context.statManager().createRateStat("udp.statusOK", "How many times the peer test returned OK", "udp", RATES);
         //_context.statManager().createRateStat("udp.statusDifferent", "How many times the peer test returned different IP/ports", "udp", RATES);
         //_context.statManager().createRateStat("udp.statusReject", "How many times the peer test returned reject unsolicited", "udp", RATES);
@@ -2928,11 +2931,24 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
         private static final long EXPIRE_INCREMENT = 15*1000;
         private static final long EXPIRE_DECREMENT = 45*1000;
         private static final long MAY_DISCON_TIMEOUT = 10*1000;
+        private static final long INTRODUCER_TIME = 2*60*60*1000;
+        /** null if disabled, @since 0.9.47 */
+        private final IdleTimeoutWheel<PeerState> _idleWheel;
+        private boolean _idleHaveCap;
 
         public ExpirePeerEvent() {
             super(_context.simpleTimer2());
             _expirePeers = new ConcurrentHashSet<PeerState>(128);
             _expireBuffer = new ArrayList<PeerState>();
+            if (IdleTimeoutWheel.isEnabled(_context)) {
+                _idleWheel = new IdleTimeoutWheel<PeerState>(_context, new IdleTimeoutWheel.IdleChecker<PeerState>() {
+                    public long checkIdle(PeerState peer, long now) {
+                        return ExpirePeerEvent.this.checkIdle(peer, now);
+                    }
+                });
+            } else {
+                _idleWheel = null;
+            }
         }
 
         public void timeReached() {
@@ -2955,10 +2971,6 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
                 _expireTimeout = Math.max(_expireTimeout - dec, MIN_EXPIRE_TIMEOUT);
             }
             long now = _context.clock().now();
-            long shortInactivityCutoff = now - _expireTimeout;
-            long longInactivityCutoff = now - EXPIRE_TIMEOUT;
-            final long mayDisconCutoff = now - MAY_DISCON_TIMEOUT;
-            long pingCutoff = now - (2 * 60*60*1000);
             long pingFirewallCutoff = now - PING_FIREWALL_CUTOFF;
             boolean shouldPingFirewall = _reachabilityStatus != Status.OK;
             int currentListenPort = getListenPort(false);
@@ -2968,21 +2980,18 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
             _expireBuffer.clear();
             _runCount++;
 
+            long begin = System.nanoTime();
+            int visited;
+            if (_idleWheel != null && !shouldPingFirewall) {
+                // nothing to ping, only look at the peers that might be idle
+                _idleHaveCap = haveCap;
+                visited = _idleWheel.expire(now);
+            } else {
+                visited = 0;
                 for (Iterator<PeerState> iter = _expirePeers.iterator(); iter.hasNext(); ) {
                     PeerState peer = iter.next();
-                    long inactivityCutoff;
-                    // if we offered to introduce them, or we used them as introducer in last 2 hours
-                    if (peer.getWeRelayToThemAs() > 0 || peer.getIntroducerTime() > pingCutoff) {
-                        inactivityCutoff = longInactivityCutoff;
-                    } else if ((!haveCap || !peer.isInbound()) &&
-                               peer.getMayDisconnect() &&
-                               peer.getMessagesReceived() <= 2 && peer.getMessagesSent() <= 2) {
-                        if (_log.shouldInfo())
-                            _log.info("Possible early disconnect for: " + peer);
-                        inactivityCutoff = mayDisconCutoff;
-                    } else {
-                        inactivityCutoff = shortInactivityCutoff;
-                    }
+                    visited++;
+                    long inactivityCutoff = now - getIdleTimeout(peer, now, haveCap);
                     if ( (peer.getLastReceiveTime() < inactivityCutoff) && (peer.getLastSendTime() < inactivityCutoff) ) {
                         _expireBuffer.add(peer);
                         iter.remove();
@@ -3006,6 +3015,9 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
                             shouldPingFirewall = false;
 		    }
                 }
+            }
+            _context.statManager().addRateData("udp.idleExpireTime", (System.nanoTime() - begin) / 1000);
+            _context.statManager().addRateData("udp.idleExpireVisited", visited);
 
             if (!_expireBuffer.isEmpty()) {
                 if (_log.shouldDebug())
@@ -3025,12 +3037,53 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
                 schedule(shortLoop ? SHORT_LOOP_TIME : LONG_LOOP_TIME);
         }
 
+        /**
+         *  @return the idle timeout for this peer
+         *  @since 0.9.47 split out of timeReached()
+         */
+        private long getIdleTimeout(PeerState peer, long now, boolean haveCap) {
+            // if we offered to introduce them, or we used them as introducer in last 2 hours
+            if (peer.getWeRelayToThemAs() > 0 || peer.getIntroducerTime() > now - INTRODUCER_TIME)
+                return EXPIRE_TIMEOUT;
+            if ((!haveCap || !peer.isInbound()) &&
+                peer.getMayDisconnect() &&
+                peer.getMessagesReceived() <= 2 && peer.getMessagesSent() <= 2) {
+                if (_log.shouldInfo())
+                    _log.info("Possible early disconnect for: " + peer);
+                return MAY_DISCON_TIMEOUT;
+            }
+            return _expireTimeout;
+        }
+
+        /**
+         *  For the idle wheel. Idle peers are added to _expireBuffer
+         *  and dropped by timeReached().
+         *  @since 0.9.47
+         */
+        public long checkIdle(PeerState peer, long now) {
+            if (!_expirePeers.contains(peer))
+                return 0;
+            long timeout = getIdleTimeout(peer, now, _idleHaveCap);
+            long idle = now - Math.max(peer.getLastReceiveTime(), peer.getLastSendTime());
+            if (idle > timeout) {
+                _expireBuffer.add(peer);
+                _expirePeers.remove(peer);
+                return 0;
+            }
+            // The idle timeout may go down before then, so don't wait longer than the minimum
+            return now + Math.min(timeout - idle, MIN_EXPIRE_TIMEOUT) + 1;
+        }
+
         public void add(PeerState peer) {
                 _expirePeers.add(peer);
+                if (_idleWheel != null)
+                    _idleWheel.add(peer, _context.clock().now() + MAY_DISCON_TIMEOUT);
         }
 
         public void remove(PeerState peer) {
                 _expirePeers.remove(peer);
+                if (_idleWheel != null)
+                    _idleWheel.remove(peer);
         }
 
         public void setIsAlive(boolean isAlive) {
@@ -3040,6 +3093,8 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
             } else {
                 cancel();
                 _expirePeers.clear();
+                if (_idleWheel != null)
+                    _idleWheel.clear();
             }
         }
     }
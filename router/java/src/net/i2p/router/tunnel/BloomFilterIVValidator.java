@@ -53,7 +53,7 @@ class BloomFilterIVValidator implements IVValidator {
         // See DBF, BloomSHA1, and KeySelector for details.
         long maxMemory = SystemVersion.getMaxMemory();
         if (_context.getBooleanProperty(PROP_FORCE)) {
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV");  // 2MB fixed
+            _filter = DecayingBloomFilter.create(ctx, HALFLIFE_MS, 16, "TunnelIVV");  // 2MB fixed
         } else if (_context.getBooleanProperty(PROP_DISABLE)) {
             _filter = null;
         } else if (KBps < MIN_SHARE_KBPS_TO_USE_BLOOM || maxMemory < MIN_MEM_TO_USE_BLOOM) {
@@ -61,23 +61,23 @@ class BloomFilterIVValidator implements IVValidator {
                 warn(maxMemory, KBps, MIN_MEM_TO_USE_BLOOM, MIN_SHARE_KBPS_TO_USE_BLOOM);
             _filter = new DecayingHashSet(ctx, HALFLIFE_MS, 16, "TunnelIVV"); // appx. 4MB max
         } else if (KBps >= MIN_SHARE_KBPS_FOR_HUGE3_BLOOM && maxMemory >= MIN_MEM_FOR_HUGE3_BLOOM) {
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV", 27);  // 32MB fixed
+            _filter = DecayingBloomFilter.create(ctx, HALFLIFE_MS, 16, "TunnelIVV", 27);  // 32MB fixed
         } else if (KBps >= MIN_SHARE_KBPS_FOR_HUGE2_BLOOM && maxMemory >= MIN_MEM_FOR_HUGE2_BLOOM) {
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV", 26);  // 16MB fixed
+            _filter = DecayingBloomFilter.create(ctx, HALFLIFE_MS, 16, "TunnelIVV", 26);  // 16MB fixed
             if (KBps >= MIN_SHARE_KBPS_FOR_HUGE3_BLOOM)
                 warn(maxMemory, KBps, MIN_MEM_FOR_HUGE3_BLOOM, MIN_SHARE_KBPS_FOR_HUGE3_BLOOM);
         } else if (KBps >= MIN_SHARE_KBPS_FOR_HUGE_BLOOM && maxMemory >= MIN_MEM_FOR_HUGE_BLOOM) {
             if (KBps >= MIN_SHARE_KBPS_FOR_HUGE2_BLOOM)
                 warn(maxMemory, KBps, MIN_MEM_FOR_HUGE2_BLOOM, MIN_SHARE_KBPS_FOR_HUGE2_BLOOM);
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV", 25);  // 8MB fixed
+            _filter = DecayingBloomFilter.create(ctx, HALFLIFE_MS, 16, "TunnelIVV", 25);  // 8MB fixed
         } else if (KBps >= MIN_SHARE_KBPS_FOR_BIG_BLOOM && maxMemory >= MIN_MEM_FOR_BIG_BLOOM) {
             if (KBps >= MIN_SHARE_KBPS_FOR_HUGE_BLOOM)
                 warn(maxMemory, KBps, MIN_MEM_FOR_HUGE_BLOOM, MIN_SHARE_KBPS_FOR_HUGE_BLOOM);
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV", 24);  // 4MB fixed
+            _filter = DecayingBloomFilter.create(ctx, HALFLIFE_MS, 16, "TunnelIVV", 24);  // 4MB fixed
         } else {
             if (KBps >= MIN_SHARE_KBPS_FOR_BIG_BLOOM)
                 warn(maxMemory, KBps, MIN_MEM_FOR_BIG_BLOOM, MIN_SHARE_KBPS_FOR_BIG_BLOOM);
-            _filter = new DecayingBloomFilter(ctx, HALFLIFE_MS, 16, "TunnelIVV");  // 2MB fixed
+            _filter = DecayingBloomFilter.create(ctx, HALFLIFE_MS, 16, "TunnelIVV");  // 2MB fixed
         }
         ctx.statManager().createRateStat("tunnel.duplicateIV", "Note that a duplicate IV was received", "Tunnels", 
                                          new long[] { 60*60*1000l });
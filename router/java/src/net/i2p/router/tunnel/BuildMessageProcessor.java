@@ -73,7 +73,7 @@ public class BuildMessageProcessor {
         }
         if (log.shouldInfo())
             log.info("Selected Bloom filter m = " + m);
-        return new DecayingBloomFilter(ctx, 60*60*1000, 32, "TunnelBMP", m);
+        return DecayingBloomFilter.create(ctx, 60*60*1000, 32, "TunnelBMP", m);
     }
 
     /**
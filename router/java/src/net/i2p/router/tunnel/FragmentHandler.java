@@ -1,7 +1,8 @@
 package net.i2p.router.tunnel;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.data.Base64;
@@ -13,6 +14,7 @@ import net.i2p.data.i2np.I2NPMessage;
 import net.i2p.data.i2np.I2NPMessageException;
 import net.i2p.data.i2np.I2NPMessageHandler;
 import net.i2p.router.RouterContext;
+import net.i2p.router.util.TimingWheel;
 import net.i2p.util.ByteCache;
 import net.i2p.util.HexDump;
 import net.i2p.util.Log;
@@ -89,12 +91,18 @@ preprocessed payload must be padded to a multiple of 16 bytes.
 The total size, including the tunnel ID and IV, is 1028 bytes.
 </p>
 
+ *
+ * As of 0.9.47, partial messages are in a concurrent map, so fragments
+ * of different messages do not contend, and their expirations are in
+ * a timing wheel, checked by a single timer event per handler.
  *
  */
 class FragmentHandler {
     protected final RouterContext _context;
     protected final Log _log;
-    private final Map<Long, FragmentedMessage> _fragmentedMessages;
+    private final ConcurrentHashMap<Long, FragmentedMessage> _fragmentedMessages;
+    private final TimingWheel<FragmentedMessage> _expirations;
+    private final Expirer _expirer;
     private final DefragmentedReceiver _receiver;
     private final AtomicInteger _completed = new AtomicInteger();
     private final AtomicInteger _failed = new AtomicInteger();
@@ -102,11 +110,23 @@ class FragmentHandler {
     /** don't wait more than 60s to defragment the partial message */
     static long MAX_DEFRAGMENT_TIME = 60*1000;
     private static final ByteCache _cache = ByteCache.getInstance(512, TrivialPreprocessor.PREPROCESSED_SIZE);
+    /** expiration resolution */
+    private static final long EXPIRE_TICK = 1000;
+    /** one revolution is a little more than MAX_DEFRAGMENT_TIME */
+    private static final int EXPIRE_SLOTS = 64;
+    /**
+     *  Fragmented messages up to this size are reassembled in a pooled buffer.
+     *  Most are two or three fragments.
+     */
+    private static final int ASSEMBLY_SIZE = 8*1024;
+    private static final ByteCache _assemblyCache = ByteCache.getInstance(16, ASSEMBLY_SIZE);
 
     public FragmentHandler(RouterContext context, DefragmentedReceiver receiver) {
         _context = context;
         _log = context.logManager().getLog(FragmentHandler.class);
-        _fragmentedMessages = new HashMap<Long, FragmentedMessage>(16);
+        _fragmentedMessages = new ConcurrentHashMap<Long, FragmentedMessage>(16);
+        _expirations = new TimingWheel<FragmentedMessage>(EXPIRE_TICK, EXPIRE_SLOTS, context.clock().now());
+        _expirer = new Expirer();
         _receiver = receiver;
         // all createRateStat in TunnelDispatcher
     }
@@ -360,35 +380,21 @@ class FragmentHandler {
                 _log.warn("Dropping msg at tunnel endpoint with unsupported delivery instruction type " +
                           type + " rcvr: " + _receiver);
         } else if (fragmented) {
-            FragmentedMessage msg;
-            synchronized (_fragmentedMessages) {
-                msg = _fragmentedMessages.get(Long.valueOf(messageId));
-                if (msg == null) {
-                    msg = new FragmentedMessage(_context, messageId);
-                    _fragmentedMessages.put(Long.valueOf(messageId), msg);
-                }
-            }
+            FragmentedMessage msg = getFragmentedMessage(messageId);
 
             // synchronized is required, fragments may be arriving in different threads
             synchronized(msg) {
+                // completed or expired since we got it, this is a dup
+                if (msg.isReleased())
+                    return offset + size;
                 boolean ok = msg.receive(preprocessed, offset, size, false, router, tunnelId);
                 if (!ok) return -1;
                 if (msg.isComplete()) {
-                    synchronized (_fragmentedMessages) {
-                        _fragmentedMessages.remove(Long.valueOf(messageId));
-                    }
-                    if (msg.getExpireEvent() != null)
-                        msg.getExpireEvent().cancel();
+                    _fragmentedMessages.remove(Long.valueOf(messageId), msg);
+                    _expirations.remove(msg);
                     receiveComplete(msg);
                 } else {
                     noteReception(msg.getMessageId(), 0, msg);
-                    if (msg.getExpireEvent() == null) {
-                        RemoveFailed evt = new RemoveFailed(msg);
-                        msg.setExpireEvent(evt);
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("In " + MAX_DEFRAGMENT_TIME + " dropping " + messageId);
-                        evt.schedule(MAX_DEFRAGMENT_TIME);
-                    }
                 }
             }
         } else {
@@ -427,43 +433,50 @@ class FragmentHandler {
             throw new RuntimeException("Preprocessed message was invalid [messageId =" + messageId + " size=" 
                                        + size + " offset=" + offset + " fragment=" + fragmentNum);
         
-        FragmentedMessage msg = null;
-        synchronized (_fragmentedMessages) {
-            msg = _fragmentedMessages.get(Long.valueOf(messageId));
-            if (msg == null) {
-                msg = new FragmentedMessage(_context, messageId);
-                _fragmentedMessages.put(Long.valueOf(messageId), msg);
-            }
-        }
+        FragmentedMessage msg = getFragmentedMessage(messageId);
         
         // synchronized is required, fragments may be arriving in different threads
         synchronized(msg) {
+            // completed or expired since we got it, this is a dup
+            if (msg.isReleased())
+                return offset + size;
             boolean ok = msg.receive(fragmentNum, preprocessed, offset, size, isLast);
             if (!ok) return -1;
             
             if (msg.isComplete()) {
-                synchronized (_fragmentedMessages) {
-                    _fragmentedMessages.remove(Long.valueOf(messageId));
-                }
-                if (msg.getExpireEvent() != null)
-                    msg.getExpireEvent().cancel();
+                _fragmentedMessages.remove(Long.valueOf(messageId), msg);
+                _expirations.remove(msg);
                 _context.statManager().addRateData("tunnel.fragmentedComplete", msg.getFragmentCount(), msg.getLifetime());
                 receiveComplete(msg);
             } else {
                 noteReception(msg.getMessageId(), fragmentNum, msg);
-                if (msg.getExpireEvent() == null) {
-                    RemoveFailed evt = new RemoveFailed(msg);
-                    msg.setExpireEvent(evt);
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("In " + MAX_DEFRAGMENT_TIME + " dropping " + msg.getMessageId() + "/" + fragmentNum);
-                    evt.schedule(MAX_DEFRAGMENT_TIME);
-                }
             }
         }
         
         offset += size;
         return offset;
     }
+
+    /**
+     *  Get the partial message, or add a new one and schedule its expiration.
+     *
+     *  @since 0.9.47
+     */
+    private FragmentedMessage getFragmentedMessage(long messageId) {
+        Long id = Long.valueOf(messageId);
+        FragmentedMessage msg = _fragmentedMessages.get(id);
+        if (msg != null)
+            return msg;
+        msg = new FragmentedMessage(_context, messageId);
+        FragmentedMessage old = _fragmentedMessages.putIfAbsent(id, msg);
+        if (old != null)
+            return old;
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("In " + MAX_DEFRAGMENT_TIME + " dropping " + messageId);
+        _expirations.schedule(msg, _context.clock().now() + MAX_DEFRAGMENT_TIME);
+        _expirer.start();
+        return msg;
+    }
     
     
     private void receiveComplete(FragmentedMessage msg) {
@@ -474,14 +487,23 @@ class FragmentHandler {
         if (_log.shouldLog(Log.DEBUG))
             stringified = msg.toString();
         byte data[] = null;
+        int len = 0;
+        ByteArray ba = null;
         try {
             int fragmentCount = msg.getFragmentCount();
+            int size = msg.getCompleteSize();
+            if (size <= ASSEMBLY_SIZE) {
+                ba = _assemblyCache.acquire();
+                data = ba.getData();
+            } else {
+                data = new byte[size];
+            }
             // toByteArray destroys the contents of the message completely
-            data = msg.toByteArray();
-            if (data == null)
+            len = msg.toByteArray(data);
+            if (len < 0)
                 throw new I2NPMessageException("null data");   // fragments already released???
             if (_log.shouldLog(Log.DEBUG))
-                _log.debug("RECV(" + data.length + "): "); // + Base64.encode(data)  
+                _log.debug("RECV(" + len + "): "); // + Base64.encode(data)  
                            //+ " " + _context.sha().calculateHash(data).toBase64());
 
             // TODO read in as unknown message for outbound tunnels,
@@ -490,7 +512,10 @@ class FragmentHandler {
             // and so the readMessage() call is fast.
             // The unencrypted messages at the OBEP are (V)TBMs
             // and perhaps an occasional DatabaseLookupMessage
-            I2NPMessage m = new I2NPMessageHandler(_context).readMessage(data);
+            // the message is copied out, so the buffer may be reused
+            I2NPMessageHandler h = new I2NPMessageHandler(_context);
+            h.readMessage(data, 0, len);
+            I2NPMessage m = h.lastRead();
             long id = m.getUniqueId();
             noteReception(id, fragmentCount-1, "complete");
             noteCompletion(id);
@@ -499,9 +524,14 @@ class FragmentHandler {
             if (stringified == null) stringified = msg.toString();
             if (_log.shouldLog(Log.WARN)) {
                 _log.warn("Error receiving fragmented message (corrupt?): " + stringified, ime);
-                _log.warn("DUMP:\n" + HexDump.dump(data));
-                _log.warn("RAW:\n" + Base64.encode(data));
+                if (len > 0) {
+                    _log.warn("DUMP:\n" + HexDump.dump(data, 0, len));
+                    _log.warn("RAW:\n" + Base64.encode(data, 0, len));
+                }
             }
+        } finally {
+            if (ba != null)
+                _assemblyCache.release(ba);
         }
     }
 
@@ -559,32 +589,62 @@ class FragmentHandler {
         public void receiveComplete(I2NPMessage msg, Hash toRouter, TunnelId toTunnel);
     }
     
-    private class RemoveFailed extends SimpleTimer2.TimedEvent {
-        private final FragmentedMessage _msg;
+    /**
+     *  Drops the partial messages whose time is up.
+     *  Scheduled only while there are partial messages.
+     *
+     *  @since 0.9.47 replaces one RemoveFailed event per message
+     */
+    private class Expirer extends SimpleTimer2.TimedEvent {
+        /** LOCKING: this */
+        private boolean _pending;
 
-        public RemoveFailed(FragmentedMessage msg) {
+        public Expirer() {
             super(_context.simpleTimer2());
-            _msg = msg;
+        }
+
+        /**
+         *  Call after adding to the wheel
+         */
+        public synchronized void start() {
+            if (!_pending) {
+                _pending = true;
+                schedule(MAX_DEFRAGMENT_TIME);
+            }
         }
 
         public void timeReached() {
-            boolean removed;
-            synchronized (_fragmentedMessages) {
-                removed = (null != _fragmentedMessages.remove(Long.valueOf(_msg.getMessageId())));
+            long now = _context.clock().now();
+            List<FragmentedMessage> expired = new ArrayList<FragmentedMessage>(4);
+            _expirations.expire(now, expired);
+            for (FragmentedMessage msg : expired) {
+                fail(msg);
             }
-            synchronized (_msg) {
-                if (removed && !_msg.getReleased()) {
+            synchronized (this) {
+                long next = _expirations.getNextExpiration(now);
+                if (next != Long.MAX_VALUE)
+                    schedule(Math.max(next - now, EXPIRE_TICK));
+                else if (!_expirations.isEmpty())
+                    schedule(MAX_DEFRAGMENT_TIME);
+                else
+                    _pending = false;
+            }
+        }
+
+        private void fail(FragmentedMessage msg) {
+            boolean removed = _fragmentedMessages.remove(Long.valueOf(msg.getMessageId()), msg);
+            synchronized (msg) {
+                if (removed && !msg.isReleased()) {
                     _failed.incrementAndGet();
-                    noteFailure(_msg.getMessageId(), _msg.toString());
+                    noteFailure(msg.getMessageId(), msg.toString());
                     if (_log.shouldLog(Log.WARN))
-                        _log.warn("Dropped incomplete fragmented message: " + _msg);
-                    _context.statManager().addRateData("tunnel.fragmentedDropped", _msg.getFragmentCount(), _msg.getLifetime());
-                    _msg.failed();
+                        _log.warn("Dropped incomplete fragmented message: " + msg);
+                    _context.statManager().addRateData("tunnel.fragmentedDropped", msg.getFragmentCount(), msg.getLifetime());
+                    msg.failed();
                 } else {
                     // succeeded before timeout
                 }
             }
         }
-        
     }
 }
@@ -7,7 +7,6 @@ import net.i2p.data.Hash;
 import net.i2p.data.TunnelId;
 import net.i2p.util.ByteCache;
 import net.i2p.util.Log;
-import net.i2p.util.SimpleTimer2;
 
 /**
  * Gather fragments of I2NPMessages at a tunnel endpoint, making them available 
@@ -23,12 +22,13 @@ class FragmentedMessage {
     private Hash _toRouter;
     private TunnelId _toTunnel;
     private final ByteArray _fragments[];
+    /** bit n set if fragment n received, since 0.9.47 */
+    private long _received;
     private boolean _lastReceived;
     private int _highFragmentNum;
     private final long _createdOn;
     private boolean _completed;
     private long _releasedAfter;
-    private SimpleTimer2.TimedEvent _expireEvent;
     
     private static final ByteCache _cache = ByteCache.getInstance(512, TrivialPreprocessor.PREPROCESSED_SIZE);
     // 64 is pretty absurd, 32 is too, most likely
@@ -71,6 +71,11 @@ class FragmentedMessage {
                 _log.warn("Length is impossible (" + length + "/" + offset + " out of " + payload.length + ") for messageId " + _messageId);
             return false;
         }
+        if ((_received & (1L << fragmentNum)) != 0) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Dup fragment " + fragmentNum + " for messageId " + _messageId);
+            return true;
+        }
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Receive message " + _messageId + " fragment " + fragmentNum + " with " + length + " bytes (last? " + isLast + ") offset = " + offset);
         // we should just use payload[] and use an offset/length on it
@@ -84,6 +89,7 @@ class FragmentedMessage {
         //               + Base64.encode(ba.getData(), ba.getOffset(), ba.getValid()));
 
         _fragments[fragmentNum] = ba;
+        _received |= 1L << fragmentNum;
         _lastReceived = _lastReceived || isLast;
         if (fragmentNum > _highFragmentNum)
             _highFragmentNum = fragmentNum;
@@ -112,6 +118,11 @@ class FragmentedMessage {
                 _log.warn("Length is impossible (" + length + "/" + offset + " out of " + payload.length + ") for messageId " + _messageId);
             return false;
         }
+        if ((_received & 1) != 0) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Dup fragment 0 for messageId " + _messageId);
+            return true;
+        }
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Receive message " + _messageId + " with " + length + " bytes (last? " + isLast + ") targetting " + toRouter + " / " + toTunnel + " offset=" + offset);
         ByteArray ba = _cache.acquire(); // new ByteArray(payload, offset, length); // new byte[length]);
@@ -123,6 +134,7 @@ class FragmentedMessage {
         //    _log.debug("fragment[0/" + offset + "/" + length + "]: " 
         //               + Base64.encode(ba.getData(), ba.getOffset(), ba.getValid()));
         _fragments[0] = ba;
+        _received |= 1;
         _lastReceived = _lastReceived || isLast;
         _toRouter = toRouter;
         _toTunnel = toTunnel;
@@ -135,32 +147,21 @@ class FragmentedMessage {
     public Hash getTargetRouter() { return _toRouter; }
     public TunnelId getTargetTunnel() { return _toTunnel; }
 
+    /** number of fragments received, still valid after release */
     public int getFragmentCount() { 
-        int found = 0;
-        for (int i = 0; i < _fragments.length; i++)
-            if (_fragments[i] != null)
-                found++;
-        return found;
+        return Long.bitCount(_received);
     }
-
-    /** used in the fragment handler so we can cancel the expire event on success */
-    public SimpleTimer2.TimedEvent getExpireEvent() { return _expireEvent; }
-
-    public void setExpireEvent(SimpleTimer2.TimedEvent evt) { _expireEvent = evt; }
     
     /** have we received all of the fragments? */
     public boolean isComplete() {
-        if (!_lastReceived)
+        if (!_lastReceived || _highFragmentNum < 0)
             return false;
-        for (int i = 0; i <= _highFragmentNum; i++)
-            if (_fragments[i] == null)
-                return false;
-        return true;
+        return _received == (-1L >>> (63 - _highFragmentNum));
     }
     public int getCompleteSize() {
         if (!_lastReceived) 
             throw new IllegalStateException("don't get the completed size when we're not complete!");
-        if (_releasedAfter > 0) {
+        if (_releasedAfter >= 0) {
              RuntimeException e = new RuntimeException("use after free in FragmentedMessage");
              _log.error("FM completeSize()", e);
              throw e;
@@ -179,11 +180,17 @@ class FragmentedMessage {
     /** how long has this fragmented message been alive?  */
     public long getLifetime() { return _context.clock().now() - _createdOn; }
     public boolean getReleased() { return _completed; }
+
+    /**
+     *  Completed or failed, no more fragments should be added.
+     *  @since 0.9.47
+     */
+    public boolean isReleased() { return _completed || _releasedAfter >= 0; }
     
     
 /****
     public void writeComplete(OutputStream out) throws IOException {
-        if (_releasedAfter > 0) {
+        if (_releasedAfter >= 0) {
              RuntimeException e = new RuntimeException("use after free in FragmentedMessage");
              _log.error("FM writeComplete()", e);
              throw e;
@@ -198,7 +205,7 @@ class FragmentedMessage {
 
     /** */
     private void writeComplete(byte target[], int offset) {
-        if (_releasedAfter > 0) {
+        if (_releasedAfter >= 0) {
              RuntimeException e = new RuntimeException("use after free in FragmentedMessage");
              _log.error("FM writeComplete() 2", e);
              throw e;
@@ -213,13 +220,30 @@ class FragmentedMessage {
 
     public byte[] toByteArray() {
         synchronized (this) {
-            if (_releasedAfter > 0) return null;
+            if (_releasedAfter >= 0) return null;
             byte rv[] = new byte[getCompleteSize()];
             writeComplete(rv, 0);
             releaseFragments();
             return rv;
         }
     }
+
+    /**
+     *  Write the complete message into the target, which must be at least
+     *  getCompleteSize() bytes, and release the fragments.
+     *
+     *  @return the size written, or -1 if already released
+     *  @since 0.9.47
+     */
+    public int toByteArray(byte target[]) {
+        synchronized (this) {
+            if (_releasedAfter >= 0) return -1;
+            int rv = getCompleteSize();
+            writeComplete(target, 0);
+            releaseFragments();
+            return rv;
+        }
+    }
     
     public long getReleasedAfter() { return _releasedAfter; }
     public void failed() {
@@ -233,7 +257,7 @@ class FragmentedMessage {
      *
      */
     private void releaseFragments() {
-        if (_releasedAfter > 0) {
+        if (_releasedAfter >= 0) {
              RuntimeException e = new RuntimeException("double free in FragmentedMessage");
              _log.error("FM releaseFragments()", e);
              throw e;
@@ -296,7 +320,7 @@ class FragmentedMessage {
         }
         if (_completed)
             buf.append(" completed");
-        if (_releasedAfter > 0)
+        if (_releasedAfter >= 0)
             buf.append(" released after " + DataHelper.formatDuration(_releasedAfter));
         return buf.toString();
     }
@@ -1,7 +1,14 @@
 package net.i2p.router.tunnel;
 
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import net.i2p.I2PAppContext;
 import net.i2p.crypto.AESEngine;
+import net.i2p.crypto.CryptixAESEngine;
 import net.i2p.data.Base64;
 import net.i2p.data.Hash;
 import net.i2p.data.SessionKey;
@@ -21,6 +28,16 @@ class HopProcessor {
     private final Log _log;
     protected final HopConfig _config;
     private final IVValidator _validator;
+    /** if false, use the context's AESEngine for the layer encryption */
+    private final boolean _useCipher;
+    /**
+     *  Keyed with the layer key on first use, so we don't look up
+     *  a Cipher and expand the key for every message.
+     *  Locked by itself once created.
+     */
+    private Cipher _layerCipher;
+    private SecretKeySpec _layerKeySpec;
+    private boolean _cipherFailed;
         
     /** helpful flag for debugging */
     //static final boolean USE_ENCRYPTION = true;
@@ -42,10 +59,20 @@ class HopProcessor {
     }
     
     public HopProcessor(I2PAppContext ctx, HopConfig config, IVValidator validator) {
+        this(ctx, config, validator, CryptixAESEngine.usesSystemAES());
+    }
+
+    /**
+     *  @param useCipher keep a keyed javax.crypto Cipher for the layer encryption,
+     *                   only faster if the JVM's AES is
+     *  @since 0.9.47
+     */
+    HopProcessor(I2PAppContext ctx, HopConfig config, IVValidator validator, boolean useCipher) {
         _context = ctx;
         _log = ctx.logManager().getLog(HopProcessor.class);
         _config = config;
         _validator = validator;
+        _useCipher = useCipher;
     }
 
     /**
@@ -99,8 +126,10 @@ class HopProcessor {
         AESEngine aes = _context.aes();
         // double IV encryption
         aes.encryptBlock(orig, offset, ivkey, orig, offset);
-        aes.encrypt(orig, offset + IV_LENGTH, orig, offset + IV_LENGTH, _config.getLayerKey(),
-                    orig, offset, length - IV_LENGTH);
+        if (!encryptLayer(orig, offset, length)) {
+            aes.encrypt(orig, offset + IV_LENGTH, orig, offset + IV_LENGTH, _config.getLayerKey(),
+                        orig, offset, length - IV_LENGTH);
+        }
         aes.encryptBlock(orig, offset, ivkey, orig, offset);
 
         //if (_log.shouldLog(Log.DEBUG)) {
@@ -110,6 +139,51 @@ class HopProcessor {
         return true;
     }
 
+    /**
+     *  AES-CBC encrypt the data after the IV with the layer key,
+     *  using our keyed Cipher.
+     *
+     *  @return success, false if not enabled or on failure
+     *  @since 0.9.47
+     */
+    private boolean encryptLayer(byte orig[], int offset, int length) {
+        if (!_useCipher)
+            return false;
+        Cipher cipher;
+        synchronized (this) {
+            if (_cipherFailed)
+                return false;
+            cipher = _layerCipher;
+            if (cipher == null) {
+                try {
+                    cipher = Cipher.getInstance("AES/CBC/NoPadding");
+                } catch (GeneralSecurityException gse) {
+                    _cipherFailed = true;
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("No AES cipher", gse);
+                    return false;
+                }
+                _layerKeySpec = new SecretKeySpec(_config.getLayerKey().getData(), "AES");
+                _layerCipher = cipher;
+            }
+        }
+        // the key schedule is only recalculated when the key changes
+        synchronized (cipher) {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, _layerKeySpec, new IvParameterSpec(orig, offset, IV_LENGTH));
+                cipher.doFinal(orig, offset + IV_LENGTH, length - IV_LENGTH, orig, offset + IV_LENGTH);
+                return true;
+            } catch (GeneralSecurityException gse) {
+                synchronized (this) {
+                    _cipherFailed = true;
+                }
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Layer encrypt fail", gse);
+                return false;
+            }
+        }
+    }
+
     /**
      *  @since 0.8.12
      */
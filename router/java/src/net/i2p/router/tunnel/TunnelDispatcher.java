@@ -2,8 +2,6 @@ package net.i2p.router.tunnel;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -22,6 +20,7 @@ import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
 import net.i2p.router.Service;
 import net.i2p.router.peermanager.PeerProfile;
+import net.i2p.router.util.ConcurrentIntHashMap;
 import net.i2p.util.Log;
 
 /**
@@ -70,14 +69,14 @@ public class TunnelDispatcher implements Service {
     private final RouterContext _context;
     private final Log _log;
     /** us */
-    private final ConcurrentHashMap<TunnelId, TunnelGateway> _outboundGateways;
-    private final ConcurrentHashMap<TunnelId, OutboundTunnelEndpoint> _outboundEndpoints;
+    private final ConcurrentIntHashMap<TunnelGateway> _outboundGateways;
+    private final ConcurrentIntHashMap<OutboundTunnelEndpoint> _outboundEndpoints;
     /** regular participant or IBEP of our own tunnel */
-    private final ConcurrentHashMap<TunnelId, TunnelParticipant> _participants;
+    private final ConcurrentIntHashMap<TunnelParticipant> _participants;
     /** regular IBGW or our own zero-hop inbound */
-    private final ConcurrentHashMap<TunnelId, TunnelGateway> _inboundGateways;
+    private final ConcurrentIntHashMap<TunnelGateway> _inboundGateways;
     /** anything we did not create - IBGW, OBEP, or middle hop */
-    private final ConcurrentHashMap<TunnelId, HopConfig> _participatingConfig;
+    private final ConcurrentIntHashMap<HopConfig> _participatingConfig;
     /** what is the date/time on which the last non-locally-created tunnel expires? */
     private long _lastParticipatingExpiration;
     private BloomFilterIVValidator _validator;
@@ -85,7 +84,6 @@ public class TunnelDispatcher implements Service {
     /** what is the date/time we last deliberately dropped a tunnel? **/
     //private long _lastDropTime;
     private final TunnelGatewayPumper _pumper;
-    private final Object _joinParticipantLock = new Object();
 
     /** for shouldDropParticipatingMessage() */
     enum Location {OBEP, PARTICIPANT, IBGW}
@@ -96,11 +94,11 @@ public class TunnelDispatcher implements Service {
     public TunnelDispatcher(RouterContext ctx) {
         _context = ctx;
         _log = ctx.logManager().getLog(TunnelDispatcher.class);
-        _outboundGateways = new ConcurrentHashMap<TunnelId, TunnelGateway>();
-        _outboundEndpoints = new ConcurrentHashMap<TunnelId, OutboundTunnelEndpoint>();
-        _participants = new ConcurrentHashMap<TunnelId, TunnelParticipant>();
-        _inboundGateways = new ConcurrentHashMap<TunnelId, TunnelGateway>();
-        _participatingConfig = new ConcurrentHashMap<TunnelId, HopConfig>();
+        _outboundGateways = new ConcurrentIntHashMap<TunnelGateway>();
+        _outboundEndpoints = new ConcurrentIntHashMap<OutboundTunnelEndpoint>();
+        _participants = new ConcurrentIntHashMap<TunnelParticipant>();
+        _inboundGateways = new ConcurrentIntHashMap<TunnelGateway>();
+        _participatingConfig = new ConcurrentIntHashMap<HopConfig>();
         _pumper = new TunnelGatewayPumper(ctx);
         _leaveJob = new LeaveTunnel(ctx);
         ctx.statManager().createRequiredRateStat("tunnel.participatingTunnels", 
@@ -258,7 +256,7 @@ public class TunnelDispatcher implements Service {
         } else {
             gw = new TunnelGatewayZeroHop(_context, cfg);
         }
-        TunnelId outId = cfg.getConfig(0).getSendTunnel();
+        int outId = (int) cfg.getConfig(0).getSendTunnel().getTunnelId();
         if (_outboundGateways.putIfAbsent(outId, gw) != null)
             return false;
         if (cfg.getLength() > 1) {
@@ -282,14 +280,14 @@ public class TunnelDispatcher implements Service {
         
         if (cfg.getLength() > 1) {
             TunnelParticipant participant = new TunnelParticipant(_context, new InboundEndpointProcessor(_context, cfg, _validator));
-            TunnelId recvId = cfg.getConfig(cfg.getLength()-1).getReceiveTunnel();
+            int recvId = (int) cfg.getConfig(cfg.getLength()-1).getReceiveTunnel().getTunnelId();
             if (_participants.putIfAbsent(recvId, participant) != null)
                 return false;
             _context.statManager().addRateData("tunnel.joinInboundEndpoint", 1);
             _context.messageHistory().tunnelJoined("inboundEndpoint", cfg);
         } else {
             TunnelGatewayZeroHop gw = new TunnelGatewayZeroHop(_context, cfg);
-            TunnelId recvId = cfg.getConfig(0).getReceiveTunnel();
+            int recvId = (int) cfg.getConfig(0).getReceiveTunnel().getTunnelId();
             if (_inboundGateways.putIfAbsent(recvId, gw) != null)
                 return false;
             _context.statManager().addRateData("tunnel.joinInboundEndpointZeroHop", 1);
@@ -306,15 +304,14 @@ public class TunnelDispatcher implements Service {
     public boolean joinParticipant(HopConfig cfg) {
         if (_log.shouldLog(Log.INFO))
             _log.info("Joining as participant: " + cfg);
-        TunnelId recvId = cfg.getReceiveTunnel();
+        int recvId = (int) cfg.getReceiveTunnel().getTunnelId();
         TunnelParticipant participant = new TunnelParticipant(_context, cfg, new HopProcessor(_context, cfg, _validator));
-        synchronized (_joinParticipantLock) {
-            if (_participatingConfig.putIfAbsent(recvId, cfg) != null)
-                return false;
-            if (_participants.putIfAbsent(recvId, participant) != null) {
-                _participatingConfig.remove(recvId);
-                return false;
-            }
+        if (_participatingConfig.putIfAbsent(recvId, cfg) != null)
+            return false;
+        if (_participants.putIfAbsent(recvId, participant) != null) {
+            // our own tunnel with the same ID
+            _participatingConfig.remove(recvId, cfg);
+            return false;
         }
         _context.messageHistory().tunnelJoined("participant", cfg);
         _context.statManager().addRateData("tunnel.joinParticipant", 1);
@@ -332,15 +329,14 @@ public class TunnelDispatcher implements Service {
     public boolean joinOutboundEndpoint(HopConfig cfg) {
         if (_log.shouldLog(Log.INFO))
             _log.info("Joining as OBEP: " + cfg);
-        TunnelId recvId = cfg.getReceiveTunnel();
+        int recvId = (int) cfg.getReceiveTunnel().getTunnelId();
         OutboundTunnelEndpoint endpoint = new OutboundTunnelEndpoint(_context, cfg, new HopProcessor(_context, cfg, _validator));
-        synchronized (_joinParticipantLock) {
-            if (_participatingConfig.putIfAbsent(recvId, cfg) != null)
-                return false;
-            if (_outboundEndpoints.putIfAbsent(recvId, endpoint) != null) {
-                _participatingConfig.remove(recvId);
-                return false;
-            }
+        if (_participatingConfig.putIfAbsent(recvId, cfg) != null)
+            return false;
+        if (_outboundEndpoints.putIfAbsent(recvId, endpoint) != null) {
+            // our own tunnel with the same ID
+            _participatingConfig.remove(recvId, cfg);
+            return false;
         }
         _context.messageHistory().tunnelJoined("outboundEndpoint", cfg);
         _context.statManager().addRateData("tunnel.joinOutboundEndpoint", 1);
@@ -364,14 +360,13 @@ public class TunnelDispatcher implements Service {
         TunnelGateway.Receiver receiver = new InboundGatewayReceiver(_context, cfg);
         //TunnelGateway gw = new TunnelGateway(_context, preproc, sender, receiver);
         TunnelGateway gw = new ThrottledPumpedTunnelGateway(_context, preproc, sender, receiver, _pumper, cfg);
-        TunnelId recvId = cfg.getReceiveTunnel();
-        synchronized (_joinParticipantLock) {
-            if (_participatingConfig.putIfAbsent(recvId, cfg) != null)
-                return false;
-            if (_inboundGateways.putIfAbsent(recvId, gw) != null) {
-                _participatingConfig.remove(recvId);
-                return false;
-            }
+        int recvId = (int) cfg.getReceiveTunnel().getTunnelId();
+        if (_participatingConfig.putIfAbsent(recvId, cfg) != null)
+            return false;
+        if (_inboundGateways.putIfAbsent(recvId, gw) != null) {
+            // our own tunnel with the same ID
+            _participatingConfig.remove(recvId, cfg);
+            return false;
         }
         _context.messageHistory().tunnelJoined("inboundGateway", cfg);
         _context.statManager().addRateData("tunnel.joinInboundGateway", 1);
@@ -394,11 +389,9 @@ public class TunnelDispatcher implements Service {
      */
     public long getNewOBGWID() {
         long rv;
-        TunnelId tid;
         do {
             rv = 1 + _context.random().nextLong(TunnelId.MAX_ID_VALUE);
-            tid = new TunnelId(rv);
-        } while (_outboundGateways.containsKey(tid));
+        } while (_outboundGateways.containsKey((int) rv));
         return rv;
     }
     
@@ -411,11 +404,9 @@ public class TunnelDispatcher implements Service {
      */
     public long getNewIBEPID() {
         long rv;
-        TunnelId tid;
         do {
             rv = 1 + _context.random().nextLong(TunnelId.MAX_ID_VALUE);
-            tid = new TunnelId(rv);
-        } while (_participants.containsKey(tid));
+        } while (_participants.containsKey((int) rv));
         return rv;
     }
     
@@ -428,11 +419,9 @@ public class TunnelDispatcher implements Service {
      */
     public long getNewIBZeroHopID() {
         long rv;
-        TunnelId tid;
         do {
             rv = 1 + _context.random().nextLong(TunnelId.MAX_ID_VALUE);
-            tid = new TunnelId(rv);
-        } while (_inboundGateways.containsKey(tid));
+        } while (_inboundGateways.containsKey((int) rv));
         return rv;
     }
 
@@ -450,7 +439,7 @@ public class TunnelDispatcher implements Service {
      */
     public void remove(TunnelCreatorConfig cfg) {
         if (cfg.isInbound()) {
-            TunnelId recvId = cfg.getConfig(cfg.getLength()-1).getReceiveTunnel();
+            int recvId = (int) cfg.getConfig(cfg.getLength()-1).getReceiveTunnel().getTunnelId();
             if (_log.shouldLog(Log.INFO))
                 _log.info("removing our own inbound " + cfg);
             TunnelParticipant participant = _participants.remove(recvId);
@@ -472,7 +461,7 @@ public class TunnelDispatcher implements Service {
         } else {
             if (_log.shouldLog(Log.INFO))
                 _log.info("removing our own outbound " + cfg);
-            TunnelId outId = cfg.getConfig(0).getSendTunnel();
+            int outId = (int) cfg.getConfig(0).getSendTunnel().getTunnelId();
             TunnelGateway gw = _outboundGateways.remove(outId);
             if (gw != null) {
                 // update stats based on gw.getMessagesSent()
@@ -494,7 +483,7 @@ public class TunnelDispatcher implements Service {
      *
      */
     public void remove(HopConfig cfg) {
-        TunnelId recvId = cfg.getReceiveTunnel();
+        int recvId = (int) cfg.getReceiveTunnel().getTunnelId();
         
         boolean removed = (null != _participatingConfig.remove(recvId));
         if (removed) {
@@ -524,7 +513,7 @@ public class TunnelDispatcher implements Service {
      */
     public void dispatch(TunnelDataMessage msg, Hash recvFrom) {
         //long before = System.currentTimeMillis();
-        TunnelParticipant participant = _participants.get(msg.getTunnelIdObj());
+        TunnelParticipant participant = _participants.get((int) msg.getTunnelId());
         if (participant != null) {
             // we are either just a random participant or the inbound endpoint 
             if (_log.shouldLog(Log.DEBUG))
@@ -534,7 +523,7 @@ public class TunnelDispatcher implements Service {
             participant.dispatch(msg, recvFrom);
             _context.statManager().addRateData("tunnel.dispatchParticipant", 1);
         } else {
-            OutboundTunnelEndpoint endpoint = _outboundEndpoints.get(msg.getTunnelIdObj());
+            OutboundTunnelEndpoint endpoint = _outboundEndpoints.get((int) msg.getTunnelId());
             if (endpoint != null) {
                 // we are the outobund endpoint
                 if (_log.shouldLog(Log.DEBUG))
@@ -571,7 +560,7 @@ public class TunnelDispatcher implements Service {
      */
     public void dispatch(TunnelGatewayMessage msg) {
         long before = _context.clock().now();
-        TunnelGateway gw = _inboundGateways.get(msg.getTunnelId());
+        TunnelGateway gw = _inboundGateways.get((int) msg.getTunnelId().getTunnelId());
         if (gw != null) {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("dispatch where we are the inbound gateway: " + gw + ": " + msg);
@@ -640,7 +629,7 @@ public class TunnelDispatcher implements Service {
     public void dispatchOutbound(I2NPMessage msg, TunnelId outboundTunnel, TunnelId targetTunnel, Hash targetPeer) {
         if (outboundTunnel == null) throw new IllegalArgumentException("null outbound tunnel?");
         long before = _context.clock().now();
-        TunnelGateway gw = _outboundGateways.get(outboundTunnel);
+        TunnelGateway gw = _outboundGateways.get((int) outboundTunnel.getTunnelId());
         if (gw != null) {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("dispatch outbound through " + outboundTunnel.getTunnelId()
@@ -698,7 +687,7 @@ public class TunnelDispatcher implements Service {
      *  @return a copy
      */
     public List<HopConfig> listParticipatingTunnels() {
-        return new ArrayList<HopConfig>(_participatingConfig.values());
+        return _participatingConfig.values();
     }
 
     /**
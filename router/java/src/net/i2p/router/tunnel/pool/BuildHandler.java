@@ -35,6 +35,7 @@ import net.i2p.router.util.CoDelBlockingQueue;
 import net.i2p.stat.Rate;
 import net.i2p.stat.RateStat;
 import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
 
 /**
  * Handle the received tunnel build message requests and replies,
@@ -60,6 +61,8 @@ class BuildHandler implements Runnable {
     private final Job _buildMessageHandlerJob;
     private final Job _buildReplyMessageHandlerJob;
     private final BlockingQueue<BuildMessageState> _inboundBuildMessages;
+    /** decrypted requests for the reply stage, null if not pipelined */
+    private final BuildReplyStage<DecryptedState> _replyStage;
     private final BuildMessageProcessor _processor;
     private final RequestThrottler _requestThrottler;
     private final ParticipatingThrottler _throttler;
@@ -99,6 +102,16 @@ class BuildHandler implements Runnable {
 
     private static final long JOB_LAG_LIMIT_TUNNEL = 350;
 
+    /**
+     *  If true, the handler threads only decrypt, and pass the request
+     *  to separate reply threads for the throttle decision, join, and reply.
+     *  The number of handler threads is then sized by CPU count,
+     *  see TunnelPoolManager.
+     *  @since 0.9.47
+     */
+    public static final String PROP_PIPELINE = "router.buildHandlerPipeline";
+    private static final int MAX_REPLY_THREADS = 2;
+
 
     public BuildHandler(RouterContext ctx, TunnelPoolManager manager, BuildExecutor exec) {
         _context = ctx;
@@ -109,6 +122,20 @@ class BuildHandler implements Runnable {
         int sz = Math.min(MAX_QUEUE, Math.max(MIN_QUEUE, TunnelDispatcher.getShareBandwidth(ctx) * MIN_QUEUE / 48));
         //_inboundBuildMessages = new CoDelBlockingQueue(ctx, "BuildHandler", sz);
         _inboundBuildMessages = new LinkedBlockingQueue<BuildMessageState>(sz);
+        if (ctx.getBooleanProperty(PROP_PIPELINE)) {
+            int threads = Math.max(1, Math.min(MAX_REPLY_THREADS, SystemVersion.getCores() / 4));
+            _replyStage = new BuildReplyStage<DecryptedState>(ctx, "BuildHandler reply", threads, sz) {
+                protected void handle(DecryptedState ds) {
+                    _context.statManager().addRateData("tunnel.buildHandlerReplyQueueTime",
+                                                       System.currentTimeMillis() - ds.queueTime);
+                    handleDecrypted(ds.state, ds.req, ds.from, ds.decryptTime, ds.timeSinceReceived);
+                }
+            };
+            _context.statManager().createRateStat("tunnel.buildHandlerReplyQueueTime", "Time a decrypted build request waits for the reply stage (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
+        } else {
+            _replyStage = null;
+        }
+        _context.statManager().createRateStat("tunnel.buildHandlerDecryptQueueTime", "Time a build request waits for decryption (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
     
         _context.statManager().createRateStat("tunnel.reject.10", "How often we reject a tunnel probabalistically", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.reject.20", "How often we reject a tunnel because of transient overload", "Tunnels", new long[] { 60*1000, 10*60*1000 });
@@ -198,6 +225,19 @@ class BuildHandler implements Runnable {
      */
     public void restart() {
         _inboundBuildMessages.clear();
+        if (_replyStage != null)
+            _replyStage.clear();
+    }
+
+    /**
+     *  Call after starting the handler threads.
+     *  Does nothing if not pipelined.
+     *
+     *  @since 0.9.47
+     */
+    void startReplyThreads() {
+        if (_replyStage != null)
+            _replyStage.start();
     }
 
     /**
@@ -212,6 +252,9 @@ class BuildHandler implements Runnable {
         for (int i = 0; i < numThreads; i++) {
             _inboundBuildMessages.offer(poison);
         }
+        // also unblocks handler threads waiting to queue for the reply stage
+        if (_replyStage != null)
+            _replyStage.stop();
     }
 
     /**
@@ -251,6 +294,7 @@ class BuildHandler implements Runnable {
             }
 
             long now = _context.clock().now();
+            _context.statManager().addRateData("tunnel.buildHandlerDecryptQueueTime", now - state.recvTime);
             long dropBefore = now - (BuildRequestor.REQUEST_TIMEOUT/4);
             if (state.recvTime <= dropBefore) {
                 if (_log.shouldLog(Log.WARN))
@@ -447,8 +491,10 @@ class BuildHandler implements Runnable {
     /**
      *  Decrypt the request, lookup the RI locally,
      *  and call handleReq() if found or queue a lookup job.
+     *  If pipelined, queue it for the reply stage after decryption.
      *
-     *  @return handle time or -1 if it wasn't completely handled
+     *  @return handle time, 0 if queued for the reply stage,
+     *          or -1 if it wasn't completely handled
      */
     private long handleRequest(BuildMessageState state) {
         long timeSinceReceived = _context.clock().now()-state.recvTime;
@@ -490,6 +536,25 @@ class BuildHandler implements Runnable {
             return -1;
         }
 
+        if (_replyStage != null) {
+            // blocks if the reply stage is behind, so we stop taking new requests
+            if (!_replyStage.put(new DecryptedState(state, req, from, decryptTime, timeSinceReceived)))
+                return -1;
+            return 0;
+        }
+        return handleDecrypted(state, req, from, decryptTime, timeSinceReceived);
+    }
+
+    /**
+     *  Lookup the RI locally,
+     *  and call handleReq() if found or queue a lookup job.
+     *
+     *  @param from may be null
+     *  @return handle time or -1 if it wasn't completely handled
+     *  @since 0.9.47 split out of handleRequest()
+     */
+    private long handleDecrypted(BuildMessageState state, BuildRequestRecord req, Hash from,
+                                 long decryptTime, long timeSinceReceived) {
         long beforeLookup = System.currentTimeMillis();
         Hash nextPeer = req.readNextIdentity();
         long readPeerTime = System.currentTimeMillis()-beforeLookup;
@@ -1142,6 +1207,28 @@ class BuildHandler implements Runnable {
         }
     }
 
+    /**
+     *  A decrypted request waiting for the reply stage
+     *  @since 0.9.47
+     */
+    private static class DecryptedState {
+        final BuildMessageState state;
+        final BuildRequestRecord req;
+        final Hash from;
+        final long decryptTime;
+        final long timeSinceReceived;
+        final long queueTime;
+
+        public DecryptedState(BuildMessageState s, BuildRequestRecord r, Hash h, long dt, long tsr) {
+            state = s;
+            req = r;
+            from = h;
+            decryptTime = dt;
+            timeSinceReceived = tsr;
+            queueTime = System.currentTimeMillis();
+        }
+    }
+
     /** replies for outbound tunnels that we have created */
     private static class BuildReplyMessageState {
         final TunnelBuildReplyMessage msg;
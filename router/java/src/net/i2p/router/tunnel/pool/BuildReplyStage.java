@@ -0,0 +1,146 @@
+package net.i2p.router.tunnel.pool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+
+/**
+ *  The reply stage of BuildHandler, if pipelined.
+ *  A bounded queue of decrypted requests, served by its own threads.
+ *  A full queue blocks the producer in put().
+ *
+ *  Threads are stopped with a flag and an interrupt, not poison,
+ *  so stop() works even if producers have refilled the queue,
+ *  and the stage may be started again after a soft restart.
+ *  Producers blocked in put() check the flag every PUT_WAIT ms.
+ *
+ *  @since 0.9.47
+ */
+abstract class BuildReplyStage<T> {
+    private final Log _log;
+    private final String _name;
+    private final int _numThreads;
+    private final BlockingQueue<T> _queue;
+    /** synch on this */
+    private final List<Worker> _workers;
+    private volatile boolean _isRunning;
+
+    /** how often a producer blocked in put() checks for stop() */
+    private static final long PUT_WAIT = 500;
+
+    /**
+     *  @param name thread name prefix
+     */
+    public BuildReplyStage(I2PAppContext ctx, String name, int numThreads, int queueSize) {
+        _log = ctx.logManager().getLog(BuildReplyStage.class);
+        _name = name;
+        _numThreads = numThreads;
+        _queue = new LinkedBlockingQueue<T>(queueSize);
+        _workers = new ArrayList<Worker>(numThreads);
+    }
+
+    /**
+     *  Called by the stage threads, one item at a time per thread.
+     */
+    protected abstract void handle(T item);
+
+    /**
+     *  Drop anything left from before, and start the threads.
+     *  Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (!_workers.isEmpty())
+            return;
+        _queue.clear();
+        _isRunning = true;
+        for (int i = 1; i <= _numThreads; i++) {
+            Worker w = new Worker();
+            I2PThread t = new I2PThread(w, _name + ' ' + i + '/' + _numThreads, true);
+            w.thread = t;
+            _workers.add(w);
+            t.start();
+        }
+    }
+
+    /**
+     *  Stop the threads, and clear the queue.
+     *  Producers blocked in put() return false.
+     *  Anything left in the queue is dropped at the next start().
+     */
+    public synchronized void stop() {
+        _isRunning = false;
+        for (Worker w : _workers) {
+            w.stop();
+        }
+        _workers.clear();
+        _queue.clear();
+    }
+
+    /**
+     *  Blocks while the queue is full.
+     *
+     *  @return success, false if not running or interrupted
+     */
+    public boolean put(T item) {
+        try {
+            while (_isRunning) {
+                if (_queue.offer(item, PUT_WAIT, TimeUnit.MILLISECONDS))
+                    return true;
+            }
+        } catch (InterruptedException ie) {}
+        return false;
+    }
+
+    public void clear() {
+        _queue.clear();
+    }
+
+    public int size() {
+        return _queue.size();
+    }
+
+    /**
+     *  @return the number of threads started and not yet stopped
+     */
+    synchronized int getThreadCount() {
+        return _workers.size();
+    }
+
+    private class Worker implements Runnable {
+        private volatile boolean _running = true;
+        volatile Thread thread;
+
+        void stop() {
+            _running = false;
+            Thread t = thread;
+            if (t != null)
+                t.interrupt();
+        }
+
+        public void run() {
+            while (_running) {
+                T item;
+                try {
+                    item = _queue.take();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                if (!_running)
+                    break;
+                try {
+                    handle(item);
+                } catch (RuntimeException e) {
+                    _log.log(Log.CRIT, "B0rked in the tunnel reply handler", e);
+                }
+            }
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Done replying");
+        }
+    }
+}
@@ -26,6 +26,7 @@ import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
 import net.i2p.util.ObjectCounter;
 import net.i2p.util.SimpleTimer;
+import net.i2p.util.SystemVersion;
 
 /**
  * Manage all the exploratory and client tunnel pools.
@@ -48,6 +49,7 @@ public class TunnelPoolManager implements TunnelManagerFacade {
 
     private static final int MIN_KBPS_TWO_HANDLERS = 512;
     private static final int MIN_KBPS_THREE_HANDLERS = 1024;
+    private static final int MAX_PIPELINE_HANDLERS = 8;
     private static final double MAX_SHARE_RATIO = 10000d;
     
     public TunnelPoolManager(RouterContext ctx) {
@@ -81,6 +83,9 @@ public class TunnelPoolManager implements TunnelManagerFacade {
             numHandlerThreads = 2;
         else
             numHandlerThreads = 1;
+        // when pipelined, the handler threads only decrypt, so use the cores
+        if (ctx.getBooleanProperty(BuildHandler.PROP_PIPELINE))
+            numHandlerThreads = Math.max(numHandlerThreads, Math.min(MAX_PIPELINE_HANDLERS, SystemVersion.getCores() - 1));
         _numHandlerThreads = ctx.getProperty("router.buildHandlerThreads", numHandlerThreads);
         
         // The following are for TestJob
@@ -578,6 +583,7 @@ public class TunnelPoolManager implements TunnelManagerFacade {
                 I2PThread hThread = new I2PThread(_handler, "BuildHandler " + i + '/' + _numHandlerThreads, true);
                 hThread.start();
             }
+            _handler.startReplyThreads();
         }
         
         _inboundExploratory.startup();
@@ -0,0 +1,300 @@
+package net.i2p.router.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.i2p.util.RandomSource;
+
+/**
+ *  Concurrent map from int keys to objects, without boxing the keys.
+ *  For tunnel IDs, which are 32 bits; cast the long ID to an int.
+ *
+ *  Open addressing with linear probing, split into segments.
+ *  Gets are lock-free. Writers lock only their segment.
+ *  A removed key keeps its slot, with a null value, until the
+ *  segment is next resized, so reads never see an entry move.
+ *
+ *  Key 0 is not allowed, as it marks an empty slot; gets for it return null.
+ *  Null values are not allowed.
+ *
+ *  Keys are mixed with a random per-map seed, so keys chosen by
+ *  a remote peer cannot be made to collide.
+ *
+ *  Not a java.util.Map, and there is no iterator; see values().
+ *
+ *  @since 0.9.47
+ */
+public class ConcurrentIntHashMap<V> {
+
+    private final Segment[] _segments;
+    private final int _segmentShift;
+    private final int _seed;
+
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int MIN_CAPACITY = 16;
+
+    private static class Table {
+        final AtomicIntegerArray keys;
+        final AtomicReferenceArray<Object> vals;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicIntegerArray(capacity);
+            vals = new AtomicReferenceArray<Object>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    /** writes locked by itself */
+    private static class Segment {
+        volatile Table table = new Table(MIN_CAPACITY);
+        /** non-null values */
+        volatile int size;
+        /** non-zero keys, including removed ones */
+        int used;
+    }
+
+    public ConcurrentIntHashMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     *  @param segments number of write locks, will be rounded up to a power of 2
+     */
+    public ConcurrentIntHashMap(int segments) {
+        if (segments <= 0 || segments > (1 << 16))
+            throw new IllegalArgumentException();
+        int sz = Integer.highestOneBit(segments);
+        if (sz < segments)
+            sz <<= 1;
+        _segments = new Segment[sz];
+        for (int i = 0; i < sz; i++) {
+            _segments[i] = new Segment();
+        }
+        // shift of 32 is a no-op in Java, so keep one bit for a single segment
+        _segmentShift = sz > 1 ? 32 - Integer.numberOfTrailingZeros(sz) : 31;
+        _seed = RandomSource.getInstance().nextInt();
+    }
+
+    private int hash(int key) {
+        int h = (key ^ _seed) * 0x9e3779b9;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private Segment segment(int h) {
+        return _segments[(h >>> _segmentShift) & (_segments.length - 1)];
+    }
+
+    /**
+     *  @return the value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        if (key == 0)
+            return null;
+        int h = hash(key);
+        Table t = segment(h).table;
+        for (int i = h & t.mask; ; i = (i + 1) & t.mask) {
+            int k = t.keys.get(i);
+            if (k == key)
+                return (V) t.vals.get(i);
+            if (k == 0)
+                return null;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     *  @param key non-zero
+     *  @param value non-null
+     *  @return the previous value or null
+     */
+    public V put(int key, V value) {
+        return put(key, value, false);
+    }
+
+    /**
+     *  @param key non-zero
+     *  @param value non-null
+     *  @return the current value, or null if it was absent and value was added
+     */
+    public V putIfAbsent(int key, V value) {
+        return put(key, value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(int key, V value, boolean onlyIfAbsent) {
+        if (key == 0)
+            throw new IllegalArgumentException("zero key");
+        if (value == null)
+            throw new IllegalArgumentException("null value");
+        int h = hash(key);
+        Segment s = segment(h);
+        synchronized (s) {
+            Table t = s.table;
+            int i = find(t, h, key);
+            int k = t.keys.get(i);
+            if (k == key) {
+                Object old = t.vals.get(i);
+                if (old == null) {
+                    t.vals.set(i, value);
+                    s.size++;
+                } else if (!onlyIfAbsent) {
+                    t.vals.set(i, value);
+                }
+                return (V) old;
+            }
+            if ((s.used + 1) * 2 > t.keys.length()) {
+                t = rehash(s);
+                i = find(t, h, key);
+            }
+            // value first, so a reader that sees the key sees the value
+            t.vals.set(i, value);
+            t.keys.set(i, key);
+            s.used++;
+            s.size++;
+            return null;
+        }
+    }
+
+    /**
+     *  @return the slot with the key, or the empty slot where it would go
+     */
+    private static int find(Table t, int h, int key) {
+        for (int i = h & t.mask; ; i = (i + 1) & t.mask) {
+            int k = t.keys.get(i);
+            if (k == key || k == 0)
+                return i;
+        }
+    }
+
+    /**
+     *  Copy the live entries to a new table, sized for them at 25% load,
+     *  dropping removed keys. Caller must hold the segment lock.
+     *
+     *  @return the new table, already published
+     */
+    private Table rehash(Segment s) {
+        Table old = s.table;
+        int live = s.size + 1;
+        int cap = Math.max(MIN_CAPACITY, Integer.highestOneBit(live * 4 - 1) << 1);
+        Table t = new Table(cap);
+        int used = 0;
+        for (int j = 0; j < old.keys.length(); j++) {
+            Object v = old.vals.get(j);
+            if (v == null)
+                continue;
+            int key = old.keys.get(j);
+            int i = find(t, hash(key), key);
+            t.vals.set(i, v);
+            t.keys.set(i, key);
+            used++;
+        }
+        s.used = used;
+        s.table = t;
+        return t;
+    }
+
+    /**
+     *  @return the removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        if (key == 0)
+            return null;
+        int h = hash(key);
+        Segment s = segment(h);
+        synchronized (s) {
+            Table t = s.table;
+            int i = find(t, h, key);
+            if (t.keys.get(i) != key)
+                return null;
+            Object old = t.vals.get(i);
+            if (old != null) {
+                t.vals.set(i, null);
+                s.size--;
+            }
+            return (V) old;
+        }
+    }
+
+    /**
+     *  Remove only if currently mapped to this value (identity).
+     *
+     *  @return true if removed
+     */
+    public boolean remove(int key, V value) {
+        if (key == 0 || value == null)
+            return false;
+        int h = hash(key);
+        Segment s = segment(h);
+        synchronized (s) {
+            Table t = s.table;
+            int i = find(t, h, key);
+            if (t.keys.get(i) != key || t.vals.get(i) != value)
+                return false;
+            t.vals.set(i, null);
+            s.size--;
+            return true;
+        }
+    }
+
+    /**
+     *  Not atomic across segments.
+     */
+    public int size() {
+        int rv = 0;
+        for (Segment s : _segments) {
+            rv += s.size;
+        }
+        return rv;
+    }
+
+    public boolean isEmpty() {
+        for (Segment s : _segments) {
+            if (s.size > 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Not atomic across segments.
+     */
+    public void clear() {
+        for (Segment s : _segments) {
+            synchronized (s) {
+                s.table = new Table(MIN_CAPACITY);
+                s.used = 0;
+                s.size = 0;
+            }
+        }
+    }
+
+    /**
+     *  Weakly consistent, as for ConcurrentHashMap.
+     *
+     *  @return a copy of the values
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> rv = new ArrayList<V>(size());
+        for (Segment s : _segments) {
+            Table t = s.table;
+            for (int i = 0; i < t.vals.length(); i++) {
+                Object v = t.vals.get(i);
+                if (v != null)
+                    rv.add((V) v);
+            }
+        }
+        return rv;
+    }
+}
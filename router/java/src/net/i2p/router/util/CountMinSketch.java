@@ -0,0 +1,244 @@
+package net.i2p.router.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import net.i2p.data.ByteArray;
+import net.i2p.util.SipHash;
+
+/**
+ *  Count-min sketch for counting events by key (IPs, hashes) in fixed memory.
+ *  Ref: Cormode and Muthukrishnan, "An Improved Data Stream Summary:
+ *  The Count-Min Sketch and its Applications"
+ *
+ *  Counts are never underestimated. They are overestimated by at most
+ *  2 * total / width with probability 1 - 2**-depth.
+ *  Increments are lock-free.
+ *
+ *  Optionally, keys whose estimate reaches a threshold are counted exactly
+ *  in a small table of heavy hitters, for callers that must not act on
+ *  an overestimate, e.g. to ban or block. When the table is full,
+ *  a new key replaces the smallest entry only if its estimate is larger.
+ *
+ *  Call clear() or decay() periodically, there is no timer here.
+ *
+ *  Keys are hashed with SipHash, so an attacker cannot choose
+ *  keys that collide with a victim's.
+ *
+ *  @since 0.9.47
+ */
+public class CountMinSketch {
+
+    private final AtomicIntegerArray _counts;
+    private final int _depth;
+    private final int _mask;
+    private final int _log2Width;
+    private final int _maxHeavy;
+    private final int _heavyThreshold;
+    private final Map<ByteArray, AtomicInteger> _heavy;
+
+    /**
+     *  No heavy hitters
+     *
+     *  @param width counters per row, will be rounded up to a power of 2
+     *  @param depth number of rows, 1-8
+     */
+    public CountMinSketch(int width, int depth) {
+        this(width, depth, 0, 0);
+    }
+
+    /**
+     *  @param width counters per row, will be rounded up to a power of 2
+     *  @param depth number of rows, 1-8
+     *  @param maxHeavy max number of keys to count exactly, 0 for none
+     *  @param heavyThreshold minimum estimate to be counted exactly, 1 or more
+     */
+    public CountMinSketch(int width, int depth, int maxHeavy, int heavyThreshold) {
+        if (width <= 0 || depth <= 0 || depth > 8 || maxHeavy < 0 ||
+            (maxHeavy > 0 && heavyThreshold <= 0))
+            throw new IllegalArgumentException();
+        int sz = Integer.highestOneBit(width);
+        if (sz < width)
+            sz <<= 1;
+        _mask = sz - 1;
+        _log2Width = Integer.numberOfTrailingZeros(sz);
+        _depth = depth;
+        _counts = new AtomicIntegerArray(sz * depth);
+        _maxHeavy = maxHeavy;
+        _heavyThreshold = heavyThreshold;
+        _heavy = maxHeavy > 0 ? new ConcurrentHashMap<ByteArray, AtomicInteger>(Math.min(maxHeavy, 64))
+                              : null;
+    }
+
+    /**
+     *  Increment the count for the key.
+     *
+     *  @param key non-null, not copied, do not modify
+     *  @return the new count, exact if it is a heavy hitter, otherwise the estimate
+     */
+    public int increment(byte[] key) {
+        long h = SipHash.digest(key);
+        ByteArray ba = null;
+        if (_heavy != null) {
+            ba = new ByteArray(key);
+            AtomicInteger exact = _heavy.get(ba);
+            if (exact != null) {
+                add(h);
+                return exact.incrementAndGet();
+            }
+        }
+        int rv = add(h);
+        if (_heavy != null && rv >= _heavyThreshold)
+            rv = admit(ba, rv);
+        return rv;
+    }
+
+    /**
+     *  @param key non-null
+     *  @return the count, exact if it is a heavy hitter, otherwise the estimate, may be 0
+     */
+    public int count(byte[] key) {
+        if (_heavy != null) {
+            AtomicInteger exact = _heavy.get(new ByteArray(key));
+            if (exact != null)
+                return exact.get();
+        }
+        return estimate(SipHash.digest(key));
+    }
+
+    /**
+     *  Nonzero only for keys that were actually incremented,
+     *  unlike count(), which may be nonzero for any key.
+     *  May include an overestimate from before the key became a heavy hitter.
+     *
+     *  @param key non-null
+     *  @return the exact count if it is a heavy hitter, otherwise 0
+     */
+    public int heavyCount(byte[] key) {
+        if (_heavy == null)
+            return 0;
+        AtomicInteger exact = _heavy.get(new ByteArray(key));
+        return exact != null ? exact.get() : 0;
+    }
+
+    /**
+     *  @return a copy of the current heavy hitter keys, in no particular order
+     */
+    public List<byte[]> getHeavyHitters() {
+        if (_heavy == null)
+            return new ArrayList<byte[]>(0);
+        List<byte[]> rv = new ArrayList<byte[]>(_heavy.size());
+        for (ByteArray ba : _heavy.keySet()) {
+            rv.add(ba.getData());
+        }
+        return rv;
+    }
+
+    /**
+     *  Halve all counts, and drop heavy hitters that reach zero.
+     *  Concurrent increments may be lost.
+     */
+    public void decay() {
+        for (int i = 0; i < _counts.length(); i++) {
+            int c = _counts.get(i);
+            if (c != 0)
+                _counts.set(i, c >>> 1);
+        }
+        if (_heavy != null) {
+            synchronized (_heavy) {
+                for (Map.Entry<ByteArray, AtomicInteger> e : _heavy.entrySet()) {
+                    AtomicInteger exact = e.getValue();
+                    int c = exact.get() >>> 1;
+                    exact.set(c);
+                    if (c == 0)
+                        _heavy.remove(e.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     *  Zero all counts. Concurrent increments may survive.
+     */
+    public void clear() {
+        for (int i = 0; i < _counts.length(); i++) {
+            _counts.set(i, 0);
+        }
+        if (_heavy != null)
+            _heavy.clear();
+    }
+
+    /**
+     *  Increment each row, double hashing for the indexes.
+     *  @return the new estimate
+     */
+    private int add(long h) {
+        int h1 = (int) h;
+        int h2 = ((int) (h >>> 32)) | 1;
+        int rv = Integer.MAX_VALUE;
+        for (int i = 0; i < _depth; i++) {
+            int idx = (i << _log2Width) | ((h1 + i * h2) & _mask);
+            int c = _counts.incrementAndGet(idx);
+            if (c < rv)
+                rv = c;
+        }
+        return rv;
+    }
+
+    /**
+     *  @return the current estimate
+     */
+    private int estimate(long h) {
+        int h1 = (int) h;
+        int h2 = ((int) (h >>> 32)) | 1;
+        int rv = Integer.MAX_VALUE;
+        for (int i = 0; i < _depth; i++) {
+            int idx = (i << _log2Width) | ((h1 + i * h2) & _mask);
+            int c = _counts.get(idx);
+            if (c < rv)
+                rv = c;
+        }
+        return rv;
+    }
+
+    /**
+     *  Add to the heavy hitters if there's room or it is larger than the smallest.
+     *  O(maxHeavy) when full, but only called at or above the threshold.
+     *
+     *  @return the count to report
+     */
+    private int admit(ByteArray key, int estimate) {
+        synchronized (_heavy) {
+            AtomicInteger exact = _heavy.get(key);
+            if (exact != null)
+                return exact.incrementAndGet();
+            if (_heavy.size() >= _maxHeavy) {
+                ByteArray min = null;
+                int minCount = Integer.MAX_VALUE;
+                for (Map.Entry<ByteArray, AtomicInteger> e : _heavy.entrySet()) {
+                    int c = e.getValue().get();
+                    if (c < minCount) {
+                        minCount = c;
+                        min = e.getKey();
+                    }
+                }
+                if (minCount >= estimate)
+                    return estimate;
+                _heavy.remove(min);
+            }
+            // it is exact from here on
+            _heavy.put(key, new AtomicInteger(estimate));
+            return estimate;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CountMinSketch " + (_mask + 1) + 'x' + _depth +
+               (_heavy != null ? " heavy hitters: " + _heavy.size() : "");
+    }
+}
@@ -150,6 +150,36 @@ public class DecayingBloomFilter {
         context.addShutdownTask(new Shutdown());
     }
     
+    /**
+     * Use a lock-free BlockedBloomFilter from create()
+     * @since 0.9.47
+     */
+    public static final String PROP_BLOCKED = "router.blockedBloomFilter";
+
+    /**
+     * A DecayingBloomFilter, or a BlockedBloomFilter if so configured.
+     * Uses default m of 23, memory usage is 2 MB.
+     *
+     * @param name just for logging / debugging / stats
+     * @since 0.9.47
+     */
+    public static DecayingBloomFilter create(I2PAppContext context, int durationMs, int entryBytes, String name) {
+        return create(context, durationMs, entryBytes, name, context.getProperty("router.decayingBloomFilterM", DEFAULT_M));
+    }
+
+    /**
+     * A DecayingBloomFilter, or a BlockedBloomFilter if so configured.
+     * Memory usage is 2 * (2**m) bits or 2**(m-2) bytes.
+     *
+     * @param m filter size exponent, max is 29
+     * @since 0.9.47
+     */
+    public static DecayingBloomFilter create(I2PAppContext context, int durationMs, int entryBytes, String name, int m) {
+        if (context.getBooleanProperty(PROP_BLOCKED))
+            return new BlockedBloomFilter(context, durationMs, entryBytes, name, m);
+        return new DecayingBloomFilter(context, durationMs, entryBytes, name, m);
+    }
+
     /**
      * @since 0.8.8
      */
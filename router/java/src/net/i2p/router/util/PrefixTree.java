@@ -0,0 +1,502 @@
+package net.i2p.router.util;
+
+import java.util.Arrays;
+
+/**
+ *  A path-compressed binary radix tree (Patricia trie) of IP prefixes,
+ *  for IPv4 or IPv6, stored in primitive arrays.
+ *
+ *  Each node is a prefix of up to 128 bits, its length, and two
+ *  child indexes, about 21 bytes for IPv6 and 13 bytes for IPv4.
+ *  There are at most two nodes per prefix added.
+ *  A lookup visits at most one node per bit in which the stored
+ *  prefixes differ, typically far fewer than the key length,
+ *  and does no allocation. For large trees, trim() also builds a
+ *  table indexed by the first 16 bits, so lookups skip the top levels.
+ *
+ *  Keys are left-aligned in two longs, so an IPv4 address is in the
+ *  top 32 bits of the high long, and the low long is zero.
+ *
+ *  A prefix that is covered by one already added is ignored,
+ *  and adding a prefix that covers others cuts them off the tree.
+ *  The space they used is not reclaimed until trim(); that's fine
+ *  for a list loaded once.
+ *
+ *  Not thread-safe for adds. Build it in one thread, then publish
+ *  it through a volatile field, and it may then be read
+ *  by any number of threads without locking, as long as there
+ *  are no more adds. To reload, build a new one and swap it in.
+ *
+ *  @since 0.9.47
+ */
+public class PrefixTree {
+
+    private final int _bits;
+    private long[] _hi;
+    /** null for IPv4 */
+    private long[] _lo;
+    /** prefix length 0-128, unsigned */
+    private byte[] _len;
+    /** child index for a 0 bit, 0 for none, or TERMINAL */
+    private int[] _zero;
+    /** child index for a 1 bit, 0 for none */
+    private int[] _one;
+    /** nodes used, including the root and any cut off */
+    private int _nodes;
+    private int _prefixes;
+    /**
+     *  Where to start a lookup, indexed by the top JUMP_BITS of the key.
+     *  Built by trim() for large trees, null after an add.
+     */
+    private int[] _jump;
+
+    /** the root can never be a child, so 0 is "no child" */
+    private static final int NONE = 0;
+    /** in _zero, this node is the end of a blocked prefix and has no children */
+    private static final int TERMINAL = -1;
+    private static final int MIN_NODES = 16;
+    private static final int JUMP_BITS = 16;
+    /** the table is 256 KB, not worth it for small trees */
+    private static final int MIN_JUMP_NODES = 64 * 1024;
+
+    /**
+     *  @param bits 32 for IPv4 or 128 for IPv6
+     */
+    public PrefixTree(int bits) {
+        this(bits, MIN_NODES);
+    }
+
+    /**
+     *  @param bits 32 for IPv4 or 128 for IPv6
+     *  @param expected number of prefixes, to size the arrays
+     */
+    public PrefixTree(int bits, int expected) {
+        if (bits != 32 && bits != 128)
+            throw new IllegalArgumentException();
+        _bits = bits;
+        allocate((int) Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_NODES, 2L * expected)));
+        // root, length 0, not terminal
+        _nodes = 1;
+    }
+
+    private void allocate(int sz) {
+        if (_hi == null) {
+            _hi = new long[sz];
+            if (_bits > 64)
+                _lo = new long[sz];
+            _len = new byte[sz];
+            _zero = new int[sz];
+            _one = new int[sz];
+        } else {
+            _hi = Arrays.copyOf(_hi, sz);
+            if (_lo != null)
+                _lo = Arrays.copyOf(_lo, sz);
+            _len = Arrays.copyOf(_len, sz);
+            _zero = Arrays.copyOf(_zero, sz);
+            _one = Arrays.copyOf(_one, sz);
+        }
+    }
+
+    /**
+     *  @return 32 or 128
+     */
+    public int getBits() {
+        return _bits;
+    }
+
+    /**
+     *  @return the number of prefixes added that were not already covered.
+     *          Includes prefixes later covered by a shorter one.
+     */
+    public int getPrefixCount() {
+        return _prefixes;
+    }
+
+    /**
+     *  @return the number of nodes in the arrays
+     */
+    public int getNodeCount() {
+        return _nodes;
+    }
+
+    /**
+     *  @return approximate heap used by the arrays, in bytes
+     */
+    public long getMemoryUsage() {
+        int perNode = 8 + 1 + 4 + 4;
+        if (_lo != null)
+            perNode += 8;
+        long rv = ((long) perNode) * _hi.length;
+        if (_jump != null)
+            rv += 4 * _jump.length;
+        return rv;
+    }
+
+    /**
+     *  Add a CIDR prefix.
+     *
+     *  @param ip 4 or 16 bytes, must match the tree
+     *  @param length prefix length, 0 to 32 or 128
+     *  @return true if the tree changed
+     *  @throws IllegalArgumentException on bad length
+     */
+    public boolean add(byte[] ip, int length) {
+        checkIP(ip);
+        if (length < 0 || length > _bits)
+            throw new IllegalArgumentException("bad prefix length " + length);
+        return add(getHi(ip), getLo(ip), length);
+    }
+
+    /**
+     *  Add an inclusive range of addresses, as the smallest set
+     *  of CIDR prefixes that covers it exactly.
+     *
+     *  @param from 4 or 16 bytes, must match the tree
+     *  @param to 4 or 16 bytes, must match the tree, not less than from
+     *  @return the number of prefixes added that were not already covered
+     *  @throws IllegalArgumentException if to is less than from
+     */
+    public int addRange(byte[] from, byte[] to) {
+        checkIP(from);
+        checkIP(to);
+        long fhi = getHi(from);
+        long flo = getLo(from);
+        long thi = getHi(to);
+        long tlo = getLo(to);
+        // fill in the bits we don't use, so the range ends on a boundary
+        if (_bits == 32)
+            tlo = -1L;
+        thi |= _bits == 32 ? 0xffffffffL : 0;
+        if (compare(fhi, flo, thi, tlo) > 0)
+            throw new IllegalArgumentException("backwards range");
+        int rv = 0;
+        while (true) {
+            // largest aligned block starting at from that fits within to
+            int tz;
+            if (flo != 0)
+                tz = Long.numberOfTrailingZeros(flo);
+            else if (fhi != 0)
+                tz = 64 + Long.numberOfTrailingZeros(fhi);
+            else
+                tz = 128;
+            // diff = to - from
+            long dlo = tlo - flo;
+            long dhi = thi - fhi - (Long.compareUnsigned(tlo, flo) < 0 ? 1 : 0);
+            int fit;
+            if (dhi == -1L && dlo == -1L) {
+                fit = 128;
+            } else {
+                // diff + 1
+                long plo = dlo + 1;
+                long phi = dhi + (plo == 0 ? 1 : 0);
+                int nlz = phi != 0 ? Long.numberOfLeadingZeros(phi) : 64 + Long.numberOfLeadingZeros(plo);
+                fit = 127 - nlz;
+            }
+            int k = Math.min(tz, fit);
+            if (add(fhi, flo, 128 - k))
+                rv++;
+            if (k == 128)
+                break;
+            // from += 2**k
+            long olo = flo;
+            if (k < 64) {
+                flo += 1L << k;
+                if (Long.compareUnsigned(flo, olo) < 0)
+                    fhi++;
+            } else {
+                fhi += 1L << (k - 64);
+            }
+            if (fhi == 0 && flo == 0)
+                break;  // wrapped
+            if (compare(fhi, flo, thi, tlo) > 0)
+                break;
+        }
+        return rv;
+    }
+
+    /**
+     *  Is the address covered by any prefix in the tree?
+     *
+     *  @param ip 4 or 16 bytes; returns false if it doesn't match the tree
+     */
+    public boolean contains(byte[] ip) {
+        if (ip == null || ip.length != _bits / 8)
+            return false;
+        return contains(getHi(ip), getLo(ip));
+    }
+
+    /**
+     *  IPv4 only.
+     *
+     *  @param ip big-endian
+     */
+    public boolean contains(int ip) {
+        if (_bits != 32)
+            return false;
+        return contains(((long) ip) << 32, 0);
+    }
+
+    /**
+     *  @param hi the left-aligned address
+     *  @param lo the rest of the address, 0 for IPv4
+     */
+    public boolean contains(long hi, long lo) {
+        int[] jump = _jump;
+        int n = jump != null ? jump[(int) (hi >>> (64 - JUMP_BITS))] : 0;
+        while (true) {
+            int zero = _zero[n];
+            if (zero == TERMINAL)
+                return true;
+            int next = bit(hi, lo, _len[n] & 0xff) == 0 ? zero : _one[n];
+            if (next == NONE)
+                return false;
+            if (!matches(hi, lo, next))
+                return false;
+            n = next;
+        }
+    }
+
+    /**
+     *  Shrink the arrays to the nodes in use,
+     *  drop nodes cut off by covering prefixes,
+     *  and build the jump table if the tree is large.
+     *  Call after the last add.
+     */
+    public void trim() {
+        int live = countLive(0);
+        if (live == _nodes) {
+            if (_hi.length > _nodes)
+                allocate(_nodes);
+        } else {
+            PrefixTree t = new PrefixTree(_bits, 1);
+            t.allocate(live);
+            t._nodes = 1;
+            copy(0, t, 0);
+            _hi = t._hi;
+            _lo = t._lo;
+            _len = t._len;
+            _zero = t._zero;
+            _one = t._one;
+            _nodes = t._nodes;
+        }
+        if (_nodes >= MIN_JUMP_NODES)
+            buildJump();
+    }
+
+    /**
+     *  For each value of the top bits, find the deepest node whose
+     *  prefix is no longer than that, as the path to it
+     *  depends on nothing else.
+     */
+    private void buildJump() {
+        int[] jump = new int[1 << JUMP_BITS];
+        for (int i = 0; i < jump.length; i++) {
+            long hi = ((long) i) << (64 - JUMP_BITS);
+            int n = 0;
+            while (true) {
+                int zero = _zero[n];
+                if (zero == TERMINAL)
+                    break;
+                int next = bit(hi, 0, _len[n] & 0xff) == 0 ? zero : _one[n];
+                if (next == NONE || (_len[next] & 0xff) > JUMP_BITS || !matches(hi, 0, next))
+                    break;
+                n = next;
+            }
+            jump[i] = n;
+        }
+        _jump = jump;
+    }
+
+    /** recursion depth is at most 129 */
+    private int countLive(int n) {
+        int zero = _zero[n];
+        if (zero == TERMINAL)
+            return 1;
+        int rv = 1;
+        if (zero != NONE)
+            rv += countLive(zero);
+        if (_one[n] != NONE)
+            rv += countLive(_one[n]);
+        return rv;
+    }
+
+    private void copy(int n, PrefixTree t, int tn) {
+        t._hi[tn] = _hi[n];
+        if (_lo != null)
+            t._lo[tn] = _lo[n];
+        t._len[tn] = _len[n];
+        int zero = _zero[n];
+        if (zero == TERMINAL) {
+            t._zero[tn] = TERMINAL;
+            return;
+        }
+        if (zero != NONE) {
+            int c = t._nodes++;
+            t._zero[tn] = c;
+            copy(zero, t, c);
+        }
+        if (_one[n] != NONE) {
+            int c = t._nodes++;
+            t._one[tn] = c;
+            copy(_one[n], t, c);
+        }
+    }
+
+    /**
+     *  @param hi left-aligned
+     *  @param lo 0 for IPv4
+     *  @param length 0-128
+     *  @return true if the tree changed
+     */
+    private boolean add(long hi, long lo, int length) {
+        if (length > _bits)
+            length = _bits;
+        hi &= mask(length);
+        lo &= mask(length - 64);
+        if (_zero[0] == TERMINAL)
+            return false;
+        _jump = null;
+        if (length == 0) {
+            _zero[0] = TERMINAL;
+            _one[0] = NONE;
+            _prefixes++;
+            return true;
+        }
+        int n = 0;
+        while (true) {
+            int b = bit(hi, lo, _len[n] & 0xff);
+            int child = b == 0 ? _zero[n] : _one[n];
+            if (child == NONE) {
+                setChild(n, b, newNode(hi, lo, length, true));
+                break;
+            }
+            int clen = _len[child] & 0xff;
+            int c = Math.min(Math.min(clen, length), common(hi, lo, child));
+            if (c == clen) {
+                if (_zero[child] == TERMINAL)
+                    return false;
+                if (clen == length) {
+                    // covers everything below
+                    _zero[child] = TERMINAL;
+                    _one[child] = NONE;
+                    break;
+                }
+                n = child;
+                continue;
+            }
+            int leaf = newNode(hi, lo, length, true);
+            if (c == length) {
+                // covers the child
+                setChild(n, b, leaf);
+                break;
+            }
+            int split = newNode(hi & mask(c), lo & mask(c - 64), c, false);
+            if (bit(hi, lo, c) == 0) {
+                _zero[split] = leaf;
+                _one[split] = child;
+            } else {
+                _zero[split] = child;
+                _one[split] = leaf;
+            }
+            setChild(n, b, split);
+            break;
+        }
+        _prefixes++;
+        return true;
+    }
+
+    private int newNode(long hi, long lo, int length, boolean terminal) {
+        if (_nodes >= _hi.length) {
+            int sz = Math.min(Integer.MAX_VALUE - 8, _hi.length + (_hi.length >> 1) + MIN_NODES);
+            if (sz <= _nodes)
+                throw new IllegalStateException("full");
+            allocate(sz);
+        }
+        int rv = _nodes++;
+        _hi[rv] = hi;
+        if (_lo != null)
+            _lo[rv] = lo;
+        _len[rv] = (byte) length;
+        _zero[rv] = terminal ? TERMINAL : NONE;
+        _one[rv] = NONE;
+        return rv;
+    }
+
+    private void setChild(int n, int bit, int child) {
+        if (bit == 0)
+            _zero[n] = child;
+        else
+            _one[n] = child;
+    }
+
+    /**
+     *  @return true if the first _len[n] bits of the key are the node's prefix
+     */
+    private boolean matches(long hi, long lo, int n) {
+        int len = _len[n] & 0xff;
+        if (len <= 64)
+            return ((hi ^ _hi[n]) & mask(len)) == 0;
+        return hi == _hi[n] && ((lo ^ _lo[n]) & mask(len - 64)) == 0;
+    }
+
+    /**
+     *  @return the number of leading bits the key and node's prefix have in common
+     */
+    private int common(long hi, long lo, int n) {
+        long x = hi ^ _hi[n];
+        if (x != 0)
+            return Long.numberOfLeadingZeros(x);
+        if (_lo == null)
+            return 128;
+        return 64 + Long.numberOfLeadingZeros(lo ^ _lo[n]);
+    }
+
+    /**
+     *  @param i 0-127, 0 is the MSB of hi
+     */
+    private static int bit(long hi, long lo, int i) {
+        if (i < 64)
+            return (int) (hi >>> (63 - i)) & 0x01;
+        return (int) (lo >>> (127 - i)) & 0x01;
+    }
+
+    /**
+     *  @param len number of leading one bits, clamped to 0-64
+     */
+    private static long mask(int len) {
+        if (len <= 0)
+            return 0;
+        if (len >= 64)
+            return -1L;
+        return -1L << (64 - len);
+    }
+
+    private static int compare(long hi1, long lo1, long hi2, long lo2) {
+        int rv = Long.compareUnsigned(hi1, hi2);
+        if (rv != 0)
+            return rv;
+        return Long.compareUnsigned(lo1, lo2);
+    }
+
+    private void checkIP(byte[] ip) {
+        if (ip.length != _bits / 8)
+            throw new IllegalArgumentException("IP length " + ip.length + " in " + _bits + " bit tree");
+    }
+
+    private static long getHi(byte[] ip) {
+        long rv = 0;
+        int len = Math.min(8, ip.length);
+        for (int i = 0; i < len; i++) {
+            rv |= ((long) (ip[i] & 0xff)) << ((7 - i) * 8);
+        }
+        return rv;
+    }
+
+    private static long getLo(byte[] ip) {
+        long rv = 0;
+        for (int i = 8; i < ip.length; i++) {
+            rv |= ((long) (ip[i] & 0xff)) << ((15 - i) * 8);
+        }
+        return rv;
+    }
+}
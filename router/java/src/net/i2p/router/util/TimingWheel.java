@@ -0,0 +1,202 @@
+package net.i2p.router.util;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Hashed timing wheel.
+ *  Ref: Varghese and Lauck, "Hashed and Hierarchical Timing Wheels"
+ *
+ *  Each element is scheduled for a single expiration time.
+ *  Scheduling, rescheduling, and removal are O(1).
+ *  Expiration costs O(expired) plus the number of slots passed and
+ *  the number of elements in those slots due in a later revolution.
+ *
+ *  Elements are stored in a HashMap, so they must have
+ *  stable equals() and hashCode().
+ *
+ *  All methods are synchronized. Not a replacement for SimpleTimer2,
+ *  there is no thread here; the caller must call expire() regularly.
+ *
+ *  @since 0.9.47
+ */
+public class TimingWheel<E> {
+
+    private final long _tick;
+    private final int _mask;
+    private final Entry<E>[] _slots;
+    private final Map<E, Entry<E>> _entries;
+    /** the tick number we have expired through, exclusive */
+    private long _current;
+
+    private static class Entry<E> {
+        final E element;
+        long when;
+        Entry<E> prev, next;
+        int slot;
+
+        Entry(E e) { element = e; }
+    }
+
+    /**
+     *  @param tick resolution in ms, greater than zero
+     *  @param slots will be rounded up to a power of 2
+     *  @param now current time
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tick, int slots, long now) {
+        if (tick <= 0 || slots <= 0)
+            throw new IllegalArgumentException();
+        int sz = Integer.highestOneBit(slots);
+        if (sz < slots)
+            sz <<= 1;
+        _tick = tick;
+        _mask = sz - 1;
+        _slots = (Entry<E>[]) new Entry<?>[sz];
+        _entries = new HashMap<E, Entry<E>>(64);
+        _current = now / tick;
+    }
+
+    /**
+     *  Schedule the element, or reschedule it if already present.
+     *  Times in the past expire on the next call to expire().
+     */
+    public synchronized void schedule(E element, long when) {
+        Entry<E> e = _entries.get(element);
+        if (e == null) {
+            e = new Entry<E>(element);
+            _entries.put(element, e);
+        } else {
+            unlink(e);
+        }
+        e.when = when;
+        long t = Math.max(when / _tick, _current);
+        link(e, (int) (t & _mask));
+    }
+
+    /**
+     *  Schedule the element only if it is not present,
+     *  or if it is present with a later expiration.
+     */
+    public synchronized void scheduleIfEarlier(E element, long when) {
+        Entry<E> e = _entries.get(element);
+        if (e == null || when < e.when)
+            schedule(element, when);
+    }
+
+    /**
+     *  @return true if it was present
+     */
+    public synchronized boolean remove(E element) {
+        Entry<E> e = _entries.remove(element);
+        if (e == null)
+            return false;
+        unlink(e);
+        return true;
+    }
+
+    /**
+     *  @return true if scheduled
+     */
+    public synchronized boolean contains(E element) {
+        return _entries.containsKey(element);
+    }
+
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return _entries.isEmpty();
+    }
+
+    public synchronized void clear() {
+        _entries.clear();
+        for (int i = 0; i < _slots.length; i++) {
+            _slots[i] = null;
+        }
+    }
+
+    /**
+     *  Remove all elements with an expiration at or before now,
+     *  and add them to the collection.
+     *
+     *  @param out expired elements are added here, in no particular order
+     *  @return the number expired
+     */
+    public synchronized int expire(long now, Collection<? super E> out) {
+        if (_entries.isEmpty()) {
+            _current = Math.max(_current, now / _tick);
+            return 0;
+        }
+        long end = now / _tick;
+        // if we are more than one revolution behind, visit each slot once
+        long start = Math.max(_current, end - _mask);
+        int rv = 0;
+        for (long t = start; t <= end; t++) {
+            Entry<E> e = _slots[(int) (t & _mask)];
+            while (e != null) {
+                Entry<E> next = e.next;
+                if (e.when <= now) {
+                    unlink(e);
+                    _entries.remove(e.element);
+                    out.add(e.element);
+                    rv++;
+                }
+                e = next;
+            }
+        }
+        // The current tick may have more entries due later in the tick,
+        // so don't advance past it.
+        _current = end;
+        return rv;
+    }
+
+    /**
+     *  The earliest expiration in the next revolution of the wheel.
+     *  Does not look further ahead than that.
+     *
+     *  @return the earliest expiration time, or Long.MAX_VALUE if
+     *          nothing is due within one revolution after now
+     */
+    public synchronized long getNextExpiration(long now) {
+        if (_entries.isEmpty())
+            return Long.MAX_VALUE;
+        long first = Math.max(_current, now / _tick - _mask);
+        long last = now / _tick + _mask;
+        for (long t = first; t <= last; t++) {
+            long limit = (t + 1) * _tick;
+            long rv = Long.MAX_VALUE;
+            for (Entry<E> e = _slots[(int) (t & _mask)]; e != null; e = e.next) {
+                if (e.when < limit && e.when < rv)
+                    rv = e.when;
+            }
+            if (rv != Long.MAX_VALUE)
+                return rv;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** caller must synch */
+    private void link(Entry<E> e, int slot) {
+        e.slot = slot;
+        e.prev = null;
+        e.next = _slots[slot];
+        if (e.next != null)
+            e.next.prev = e;
+        _slots[slot] = e;
+    }
+
+    /** caller must synch */
+    private void unlink(Entry<E> e) {
+        if (e.prev != null)
+            e.prev.next = e.next;
+        else
+            _slots[e.slot] = e.next;
+        if (e.next != null)
+            e.next.prev = e.prev;
+        e.prev = null;
+        e.next = null;
+    }
+}
@@ -0,0 +1,119 @@
+package net.i2p.router.transport;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import net.i2p.I2PAppContext;
+import net.i2p.router.OutNetMessage;
+
+import org.junit.Test;
+
+/**
+ *  Checks that with priority classes, our own traffic isn't stuck
+ *  behind a queue of participating traffic.
+ */
+public class FIFOBandwidthLimiterTest {
+
+    private static final int LOW = 50;
+    private static final int HIGH = 5;
+    private static final int SIZE = 1024;
+
+    private FIFOBandwidthLimiter _lim;
+
+    @Test
+    public void testPriorityClasses() throws Exception {
+        List<Integer> order = run(true);
+        int last = -1;
+        for (int i = 0; i < order.size(); i++) {
+            if (order.get(i).intValue() == OutNetMessage.PRIORITY_MY_DATA)
+                last = i;
+        }
+        assertEquals(LOW + HIGH, order.size());
+        // weights are 4:2:1, so high should be done well before the low queue
+        assertTrue(last < 2 * HIGH);
+        assertEquals(HIGH, sum(_lim.getOutboundDelayHistogram(OutNetMessage.PRIORITY_MY_DATA)));
+        assertEquals(LOW, sum(_lim.getOutboundDelayHistogram(OutNetMessage.PRIORITY_PARTICIPATING)));
+    }
+
+    @Test
+    public void testDelayBuckets() {
+        assertEquals(0, FIFOBandwidthLimiter.getDelayBucket(0));
+        assertEquals(1, FIFOBandwidthLimiter.getDelayBucket(1));
+        assertEquals(2, FIFOBandwidthLimiter.getDelayBucket(2));
+        assertEquals(2, FIFOBandwidthLimiter.getDelayBucket(3));
+        assertEquals(11, FIFOBandwidthLimiter.getDelayBucket(1500));
+        assertEquals(FIFOBandwidthLimiter.DELAY_BUCKETS - 1, FIFOBandwidthLimiter.getDelayBucket(Long.MAX_VALUE));
+        for (int i = 0; i < FIFOBandwidthLimiter.DELAY_BUCKETS - 1; i++) {
+            long limit = FIFOBandwidthLimiter.getDelayBucketLimit(i);
+            assertEquals(i, FIFOBandwidthLimiter.getDelayBucket(limit));
+            assertEquals(i + 1, FIFOBandwidthLimiter.getDelayBucket(limit + 1));
+        }
+    }
+
+    private static long sum(long[] hist) {
+        long rv = 0;
+        for (long n : hist) {
+            rv += n;
+        }
+        return rv;
+    }
+
+    @Test
+    public void testFIFO() throws Exception {
+        List<Integer> order = run(false);
+        assertEquals(LOW + HIGH, order.size());
+        for (int i = 0; i < LOW; i++) {
+            assertEquals(OutNetMessage.PRIORITY_PARTICIPATING, order.get(i).intValue());
+        }
+    }
+
+    /**
+     *  @return priorities in order of completion
+     */
+    private List<Integer> run(boolean classes) throws Exception {
+        Properties props = new Properties();
+        props.setProperty(FIFOBandwidthLimiter.PROP_PRIORITY_CLASSES, Boolean.toString(classes));
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH, "64");
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BURST_BANDWIDTH, "64");
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH_PEAK, "64");
+        I2PAppContext ctx = new I2PAppContext(props);
+        FIFOBandwidthLimiter lim = new FIFOBandwidthLimiter(ctx);
+        _lim = lim;
+        final List<Integer> order = new ArrayList<Integer>();
+        FIFOBandwidthLimiter.CompleteListener lsnr = new FIFOBandwidthLimiter.CompleteListener() {
+            public void complete(FIFOBandwidthLimiter.Request req) {
+                if (req.getAborted())
+                    return;
+                synchronized (order) {
+                    order.add(Integer.valueOf(req.getPriority()));
+                }
+            }
+        };
+        try {
+            // use up the available bandwidth so the rest must wait
+            FIFOBandwidthLimiter.Request plug = lim.requestOutbound(10*1024*1024, 0, "plug");
+            for (int i = 0; i < LOW; i++) {
+                lim.requestOutbound(SIZE, OutNetMessage.PRIORITY_PARTICIPATING, "low").setCompleteListener(lsnr);
+            }
+            for (int i = 0; i < HIGH; i++) {
+                lim.requestOutbound(SIZE, OutNetMessage.PRIORITY_MY_DATA, "high").setCompleteListener(lsnr);
+            }
+            plug.abort();
+            for (int i = 0; i < 100; i++) {
+                synchronized (order) {
+                    if (order.size() >= LOW + HIGH)
+                        break;
+                }
+                Thread.sleep(50);
+            }
+        } finally {
+            lim.shutdown();
+        }
+        synchronized (order) {
+            return new ArrayList<Integer>(order);
+        }
+    }
+}
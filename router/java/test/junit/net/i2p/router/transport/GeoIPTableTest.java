@@ -0,0 +1,91 @@
+package net.i2p.router.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+public class GeoIPTableTest {
+
+    @Test
+    public void testCompile() throws Exception {
+        File f = File.createTempFile("geoip-table", ".dat");
+        try {
+            GeoIPTable.Builder b4 = new GeoIPTable.Builder();
+            // out of order, overlapping, adjacent same code
+            b4.add(200, 299, "de");
+            b4.add(100, 199, "us");
+            b4.add(150, 250, "fr");
+            b4.add(300, 399, "de");
+            b4.add(0xffffff00L, 0xffffffffL, "jp");
+            GeoIPTable.Builder b6 = new GeoIPTable.Builder();
+            b6.add(0x2001000000000000L, 0x2001ffffffffffffL, "nl");
+            b6.add(0xfe80000000000000L, -1L, "xx");
+            GeoIPTable.write(f, 1234, b4, b6);
+
+            assertNull(GeoIPTable.open(f, 1235, null));
+            GeoIPTable t = GeoIPTable.open(f, 1234, null);
+            assertNotNull(t);
+            assertTrue(t.covers(true));
+            assertTrue(t.covers(false));
+            // 0 -, 100 us, 200 fr, 251 de, 400 -, ffffff00 jp
+            assertEquals(6, t.size(true));
+            assertNull(t.getIPv4(0));
+            assertNull(t.getIPv4(99));
+            assertEquals("us", t.getIPv4(100));
+            assertEquals("us", t.getIPv4(199));
+            assertEquals("fr", t.getIPv4(200));
+            assertEquals("fr", t.getIPv4(250));
+            assertEquals("de", t.getIPv4(251));
+            assertEquals("de", t.getIPv4(399));
+            assertNull(t.getIPv4(400));
+            assertNull(t.getIPv4(0xfffffeffL));
+            assertEquals("jp", t.getIPv4(0xffffff00L));
+            assertEquals("jp", t.getIPv4(0xffffffffL));
+            assertNull(t.getIPv6(0x2000ffffffffffffL));
+            assertEquals("nl", t.getIPv6(0x2001000000000000L));
+            assertEquals("nl", t.getIPv6(0x2001123456789abcL));
+            assertNull(t.getIPv6(0x2002000000000000L));
+            assertEquals("xx", t.getIPv6(-1L));
+
+            GeoIPTable.write(f, 99, null, b6);
+            t = GeoIPTable.open(f, 99, null);
+            assertFalse(t.covers(true));
+            assertEquals("nl", t.getIPv6(0x2001000000000000L));
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     *  Truncated files are rejected before mapping
+     */
+    @Test
+    public void testTruncated() throws Exception {
+        File f = File.createTempFile("geoip-table", ".dat");
+        try {
+            GeoIPTable.Builder b4 = new GeoIPTable.Builder();
+            b4.add(100, 199, "us");
+            GeoIPTable.write(f, 1234, b4, null);
+            long len = f.length();
+            assertNotNull(GeoIPTable.open(f, 1234, null));
+            long[] sizes = { len - 1, 30, 20, 10, 0 };
+            for (long sz : sizes) {
+                RandomAccessFile raf = new RandomAccessFile(f, "rw");
+                try {
+                    raf.setLength(sz);
+                } finally {
+                    raf.close();
+                }
+                assertNull(GeoIPTable.open(f, 1234, null));
+            }
+            // and can be replaced
+            GeoIPTable.write(f, 1234, b4, null);
+            assertEquals("us", GeoIPTable.open(f, 1234, null).getIPv4(150));
+        } finally {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package net.i2p.router.transport;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TokenStripesTest {
+
+    @Test
+    public void testSingleThread() {
+        AtomicInteger shared = new AtomicInteger(1000);
+        TokenStripes ts = new TokenStripes(shared, 3);
+        assertEquals(4, ts.getStripeCount());
+        ts.setChunk(300);
+        assertTrue(ts.tryAcquire(100));
+        // took a chunk of 300
+        assertEquals(700, shared.get());
+        assertEquals(200, ts.getHeld());
+        assertTrue(ts.tryAcquire(200));
+        assertEquals(700, shared.get());
+        assertEquals(0, ts.getHeld());
+        // bigger than the chunk
+        assertTrue(ts.tryAcquire(650));
+        assertEquals(50, shared.get());
+        assertFalse(ts.tryAcquire(51));
+        assertEquals(50, shared.get());
+        assertEquals(950, ts.getGranted());
+    }
+
+    @Test
+    public void testDrain() {
+        AtomicInteger shared = new AtomicInteger(1000);
+        TokenStripes ts = new TokenStripes(shared, 8);
+        ts.setChunk(500);
+        assertTrue(ts.tryAcquire(10));
+        assertEquals(500, shared.get());
+        assertEquals(490, ts.drain());
+        assertEquals(990, shared.get());
+        assertEquals(0, ts.getHeld());
+        assertEquals(0, ts.drain());
+    }
+
+    /**
+     *  Many threads, never grant more than was put in,
+     *  and every token is either granted, held, or shared.
+     */
+    @Test
+    public void testConcurrent() throws Exception {
+        final int threads = 8;
+        final int total = 10*1000*1000;
+        final AtomicInteger shared = new AtomicInteger(total);
+        final TokenStripes ts = new TokenStripes(shared, threads);
+        ts.setChunk(4096);
+        final AtomicLong granted = new AtomicLong();
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int sz = 100 + 37 * i;
+            t[i] = new Thread() {
+                public void run() {
+                    long mine = 0;
+                    int fails = 0;
+                    while (fails < 100) {
+                        if (ts.tryAcquire(sz)) {
+                            mine += sz;
+                        } else {
+                            fails++;
+                            if ((fails & 7) == 0)
+                                ts.drain();
+                        }
+                    }
+                    granted.addAndGet(mine);
+                }
+            };
+        }
+        for (int i = 0; i < threads; i++) {
+            t[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            t[i].join();
+        }
+        assertEquals(granted.get(), ts.getGranted());
+        assertEquals(total, granted.get() + ts.getHeld() + shared.get());
+        assertTrue(shared.get() >= 0);
+    }
+}
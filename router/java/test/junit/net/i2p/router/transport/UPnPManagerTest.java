@@ -0,0 +1,86 @@
+package net.i2p.router.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.router.Router;
+import net.i2p.router.RouterContext;
+import net.i2p.stat.Rate;
+import net.i2p.util.Addresses;
+import net.i2p.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Async start, with the UPnP stack replaced by a latch,
+ *  so no network or gateway is needed.
+ */
+public class UPnPManagerTest {
+
+    private File _dir;
+    private RouterContext _context;
+
+    @Before
+    public void setUp() throws Exception {
+        _dir = File.createTempFile("upnp-test", "");
+        _dir.delete();
+        _dir.mkdirs();
+        Properties props = new Properties();
+        props.setProperty("i2p.dir.base", _dir.getAbsolutePath());
+        props.setProperty("i2p.dir.config", _dir.getAbsolutePath());
+        props.setProperty("stat.full", "true");
+        props.setProperty("i2np.upnp.enable", "false");
+        props.setProperty("i2np.upnp.asyncStart", "true");
+        Router r = new Router(props);
+        // the default one logs through the router, which isn't running
+        r.setUPnPScannerCallback(null);
+        _context = r.getContext();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.rmdir(_dir, false);
+    }
+
+    @Test
+    public void testAsyncStart() throws Exception {
+        // start() doesn't start anything if there's no network
+        if (!Addresses.isConnected())
+            return;
+        final CountDownLatch changed = new CountDownLatch(1);
+        TransportManager tm = new TransportManager(_context) {
+            @Override
+            public void transportAddressChanged() {
+                changed.countDown();
+            }
+        };
+        final CountDownLatch release = new CountDownLatch(1);
+        UPnPManager upnp = new UPnPManager(_context, tm) {
+            @Override
+            boolean runPlugin() {
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    return false;
+                }
+                return true;
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        upnp.start();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, changed.getCount());
+
+        release.countDown();
+        assertTrue(changed.await(10, TimeUnit.SECONDS));
+        Rate rate = _context.statManager().getRate("transport.upnpStartTime").getRate(60*60*1000);
+        assertEquals(1, rate.getCurrentEventCount());
+    }
+}
@@ -0,0 +1,61 @@
+package net.i2p.router.transport.ntcp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class DirectBufferPoolTest {
+
+    @Test
+    public void testSizeClass() {
+        assertEquals(0, DirectBufferPool.sizeClass(1));
+        assertEquals(0, DirectBufferPool.sizeClass(512));
+        assertEquals(1, DirectBufferPool.sizeClass(513));
+        assertEquals(1, DirectBufferPool.sizeClass(1024));
+        assertEquals(7, DirectBufferPool.sizeClass(65536));
+        // largest NTCP2 frame
+        assertEquals(8, DirectBufferPool.sizeClass(65535 + 2));
+        assertEquals(8, DirectBufferPool.sizeClass(128*1024));
+        assertEquals(-1, DirectBufferPool.sizeClass(128*1024 + 1));
+    }
+
+    @Test
+    public void testAcquire() {
+        DirectBufferPool pool = new DirectBufferPool();
+        ByteBuffer buf = pool.acquire(1000);
+        assertTrue(buf.isDirect());
+        assertEquals(1024, buf.capacity());
+        assertEquals(0, buf.position());
+        assertEquals(1000, buf.limit());
+        buf = pool.acquire(200*1024);
+        assertTrue(buf.isDirect());
+        assertEquals(200*1024, buf.capacity());
+    }
+
+    @Test
+    public void testReuse() {
+        DirectBufferPool pool = new DirectBufferPool();
+        ByteBuffer buf = pool.acquire(3000);
+        buf.put((byte) 1);
+        pool.release(buf);
+        ByteBuffer buf2 = pool.acquire(2500);
+        assertSame(buf, buf2);
+        assertEquals(0, buf2.position());
+        assertEquals(2500, buf2.limit());
+        // different class
+        assertNotSame(buf, pool.acquire(3000 * 2));
+    }
+
+    @Test
+    public void testReleaseForeign() {
+        DirectBufferPool pool = new DirectBufferPool();
+        // heap and odd sizes are ignored
+        pool.release(ByteBuffer.allocate(1024));
+        pool.release(ByteBuffer.allocateDirect(1000));
+        ByteBuffer buf = pool.acquire(1000);
+        assertTrue(buf.isDirect());
+        assertEquals(1024, buf.capacity());
+    }
+}
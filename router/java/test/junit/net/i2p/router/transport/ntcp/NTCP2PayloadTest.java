@@ -0,0 +1,159 @@
+package net.i2p.router.transport.ntcp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2p.data.i2np.I2NPMessage;
+import net.i2p.data.router.RouterInfo;
+
+import org.junit.Test;
+
+public class NTCP2PayloadTest {
+
+    private static final byte[] OPTS = new byte[] { 1, 2, 3, 4, 0, 5, 0, 6, 0, 7, 0, 8 };
+
+    private static byte[] frame(List<NTCP2Payload.Block> blocks) {
+        int len = 0;
+        for (NTCP2Payload.Block b : blocks) {
+            len += b.getTotalLength();
+        }
+        byte[] rv = new byte[len + 10];
+        // offset 5 to check the offsets
+        int end = NTCP2Payload.writePayload(rv, 5, blocks);
+        assertEquals(len + 5, end);
+        return rv;
+    }
+
+    @Test
+    public void testIterator() throws IOException {
+        List<NTCP2Payload.Block> blocks = new ArrayList<NTCP2Payload.Block>();
+        blocks.add(new NTCP2Payload.OptionsBlock(OPTS));
+        blocks.add(new NTCP2Payload.TerminationBlock(3, 99));
+        blocks.add(new NTCP2Payload.PaddingBlock(17));
+        byte[] data = frame(blocks);
+        int len = data.length - 10;
+
+        NTCP2Payload.BlockIterator iter = new NTCP2Payload.BlockIterator();
+        for (int pass = 0; pass < 2; pass++) {
+            iter.reset(data, 5, len, false);
+            assertTrue(iter.next());
+            assertEquals(NTCP2Payload.BLOCK_OPTIONS, iter.getType());
+            assertEquals(8, iter.getOffset());
+            assertEquals(OPTS.length, iter.getLength());
+            assertTrue(iter.next());
+            assertEquals(NTCP2Payload.BLOCK_TERMINATION, iter.getType());
+            assertEquals(9, iter.getLength());
+            assertTrue(iter.next());
+            assertEquals(NTCP2Payload.BLOCK_PADDING, iter.getType());
+            assertEquals(17, iter.getLength());
+            assertFalse(iter.next());
+            assertEquals(3, iter.getBlockCount());
+        }
+    }
+
+    @Test
+    public void testBadFrames() {
+        List<NTCP2Payload.Block> blocks = new ArrayList<NTCP2Payload.Block>();
+        blocks.add(new NTCP2Payload.PaddingBlock(4));
+        blocks.add(new NTCP2Payload.OptionsBlock(OPTS));
+        byte[] data = frame(blocks);
+        NTCP2Payload.BlockIterator iter = new NTCP2Payload.BlockIterator();
+        // block after padding
+        assertFails(iter, data, 5, data.length - 10, false);
+        // runs over
+        assertFails(iter, data, 5, data.length - 11, false);
+        // handshake must start with RI
+        assertFails(iter, data, 5, data.length - 10, true);
+        // empty handshake
+        assertFails(iter, data, 5, 0, true);
+    }
+
+    private static void assertFails(NTCP2Payload.BlockIterator iter, byte[] data, int off, int len, boolean hs) {
+        iter.reset(data, off, len, hs);
+        try {
+            while (iter.next()) {}
+            fail();
+        } catch (IOException expected) {}
+    }
+
+    /**
+     *  The options must be passed in place to a RawPayloadCallback,
+     *  and parse the same as a copy.
+     */
+    @Test
+    public void testRawCallback() throws Exception {
+        List<NTCP2Payload.Block> blocks = new ArrayList<NTCP2Payload.Block>();
+        blocks.add(new NTCP2Payload.OptionsBlock(OPTS));
+        blocks.add(new NTCP2Payload.PaddingBlock(20));
+        byte[] data = frame(blocks);
+        Callback cb = new Callback();
+        int n = NTCP2Payload.processPayload(null, cb, new NTCP2Payload.BlockIterator(),
+                                            data, 5, data.length - 10, false);
+        assertEquals(2, n);
+        assertSame(data, cb.optData);
+        assertEquals(8, cb.optOff);
+        assertEquals(20, cb.padding);
+        NTCP2Options o1 = NTCP2Options.fromByteArray(OPTS);
+        NTCP2Options o2 = NTCP2Options.fromByteArray(data, cb.optOff, cb.optLen);
+        assertEquals(o1.toString(), o2.toString());
+        assertNull(NTCP2Options.fromByteArray(data, cb.optOff, 11));
+    }
+
+    /**
+     *  A data phase frame of the blocks that don't become objects
+     *  should not allocate anything when the iterator is reused.
+     */
+    @Test
+    public void testNoAllocation() throws Exception {
+        com.sun.management.ThreadMXBean mx;
+        try {
+            mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        } catch (ClassCastException cce) {
+            return;
+        }
+        if (!mx.isThreadAllocatedMemorySupported())
+            return;
+        mx.setThreadAllocatedMemoryEnabled(true);
+        List<NTCP2Payload.Block> blocks = new ArrayList<NTCP2Payload.Block>();
+        blocks.add(new NTCP2Payload.OptionsBlock(OPTS));
+        blocks.add(new NTCP2Payload.PaddingBlock(64));
+        byte[] data = frame(blocks);
+        int len = data.length - 10;
+        Callback cb = new Callback();
+        NTCP2Payload.BlockIterator iter = new NTCP2Payload.BlockIterator();
+        final int count = 200000;
+        for (int i = 0; i < count; i++) {
+            NTCP2Payload.processPayload(null, cb, iter, data, 5, len, false);
+        }
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < count; i++) {
+            NTCP2Payload.processPayload(null, cb, iter, data, 5, len, false);
+        }
+        long after = mx.getThreadAllocatedBytes(tid);
+        long perFrame = (after - before) / count;
+        assertTrue(perFrame < 8);
+    }
+
+    private static class Callback implements NTCP2Payload.RawPayloadCallback {
+        byte[] optData;
+        int optOff, optLen, padding;
+
+        public void gotDateTime(long time) {}
+        public void gotI2NP(I2NPMessage msg) { fail(); }
+        public void gotI2NP(byte[] data, int off, int len) {}
+        public void gotOptions(byte[] options, boolean isHandshake) { fail(); }
+        public void gotOptions(byte[] data, int off, int len, boolean isHandshake) {
+            optData = data;
+            optOff = off;
+            optLen = len;
+        }
+        public void gotRI(RouterInfo ri, boolean isHandshake, boolean flood) {}
+        public void gotTermination(int reason, long lastReceived) {}
+        public void gotPadding(int paddingLength, int frameLength) { padding = paddingLength; }
+        public void gotUnknown(int type, int len) {}
+    }
+}
@@ -0,0 +1,132 @@
+package net.i2p.router.transport.ntcp;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/**
+ *  Compare the two NTCP outbound modes over loopback:
+ *  heap frames wrapped and written one per call (the default), and
+ *  frames copied into pooled direct buffers and written with
+ *  gathering writes (i2np.ntcp.useDirectBuffers=true).
+ *
+ *  Reports throughput, bytes allocated by the writing thread,
+ *  and GC count and time.
+ *
+ *  Usage: NTCPWriteBench [frames]
+ */
+public class NTCPWriteBench {
+    private static final int GATHER = 16;
+
+    public static void main(String args[]) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        // warmup
+        run(false, frames / 10, false);
+        run(true, frames / 10, false);
+        run(false, frames, true);
+        run(true, frames, true);
+    }
+
+    private static void run(boolean direct, int frames, boolean print) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final SocketChannel out = SocketChannel.open(server.socket().getLocalSocketAddress());
+        final SocketChannel in = server.accept();
+        Thread drain = new Thread() {
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocateDirect(256*1024);
+                try {
+                    while (in.read(buf) >= 0) {
+                        buf.clear();
+                    }
+                } catch (IOException ioe) {}
+            }
+        };
+        drain.start();
+
+        // typical NTCP2 frames, a tunnel data message or two
+        Random rand = new Random(1);
+        byte[][] payloads = new byte[64][];
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = new byte[1000 + rand.nextInt(2200)];
+            rand.nextBytes(payloads[i]);
+        }
+
+        DirectBufferPool pool = new DirectBufferPool();
+        ByteBuffer[] bufs = new ByteBuffer[GATHER];
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long alloc = mx.getThreadAllocatedBytes(tid);
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; ) {
+            int n = Math.min(GATHER, frames - i);
+            for (int j = 0; j < n; j++) {
+                // the encrypted frame, as passed to EventPumper.wantsWrite()
+                byte[] data = payloads[(i + j) & 63].clone();
+                bytes += data.length;
+                if (direct) {
+                    ByteBuffer buf = pool.acquire(data.length);
+                    buf.put(data);
+                    buf.flip();
+                    bufs[j] = buf;
+                } else {
+                    bufs[j] = ByteBuffer.wrap(data);
+                }
+            }
+            if (direct) {
+                while (bufs[n - 1].hasRemaining()) {
+                    out.write(bufs, 0, n);
+                }
+                for (int j = 0; j < n; j++) {
+                    pool.release(bufs[j]);
+                }
+            } else {
+                for (int j = 0; j < n; j++) {
+                    while (bufs[j].hasRemaining()) {
+                        out.write(bufs[j]);
+                    }
+                }
+            }
+            i += n;
+        }
+        long time = System.nanoTime() - start;
+        alloc = mx.getThreadAllocatedBytes(tid) - alloc;
+        gcCount = gcCount() - gcCount;
+        gcTime = gcTime() - gcTime;
+        out.close();
+        drain.join();
+        in.close();
+        server.close();
+        if (print) {
+            System.out.println((direct ? "direct+gather" : "heap+single  ") + ": " + frames + " frames, " +
+                               (bytes * 1000 / time) + " MB/s, " +
+                               (alloc / frames) + " bytes allocated/frame, " +
+                               gcCount + " GCs in " + gcTime + " ms");
+        }
+    }
+
+    private static long gcCount() {
+        long rv = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            rv += gc.getCollectionCount();
+        }
+        return rv;
+    }
+
+    private static long gcTime() {
+        long rv = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            rv += gc.getCollectionTime();
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,86 @@
+package net.i2p.router.transport.udp;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import net.i2p.data.DataHelper;
+
+import org.junit.Test;
+
+public class ACKTrackerTest {
+
+    private static Set<Long> read(byte[] data, int count) {
+        Set<Long> rv = new HashSet<Long>();
+        for (int i = 0; i < count; i++) {
+            rv.add(Long.valueOf(DataHelper.fromLong(data, 4 * i, 4)));
+        }
+        return rv;
+    }
+
+    @Test
+    public void testNewAndResend() {
+        ACKTracker t = new ACKTracker(16, 1000);
+        byte[] data = new byte[4 * 64];
+        assertEquals(0, t.write(data, 0, 10, 10, true, 0, 0));
+        for (int i = 1; i <= 40; i++) {
+            assertTrue(t.add(i));
+        }
+        assertFalse(t.add(7));
+        assertEquals(40, t.getNewCount());
+
+        // oldest first, no resends yet
+        assertEquals(30, t.write(data, 0, 30, 5, true, 100, 3));
+        assertEquals(1, DataHelper.fromLong(data, 0, 4));
+        assertEquals(30, DataHelper.fromLong(data, 4 * 29, 4));
+        assertEquals(10, t.getNewCount());
+        assertEquals(16, t.getResendCount());
+
+        // remaining 10 new, pushing out 15-24, then 5 of the 6 left from before this call
+        assertEquals(15, t.write(data, 0, 20, 5, true, 200, 12345));
+        Set<Long> got = read(data, 15);
+        assertEquals(15, got.size());
+        for (long i = 31; i <= 40; i++) {
+            assertTrue(got.contains(Long.valueOf(i)));
+        }
+        for (Long l : got) {
+            long v = l.longValue();
+            assertTrue(v >= 25 && v <= 40);
+        }
+        assertEquals(0, t.getNewCount());
+
+        // no new, resends only if asked
+        assertEquals(0, t.write(data, 0, 20, 5, false, 300, 0));
+        assertEquals(5, t.write(data, 0, 20, 5, true, 300, 0));
+        for (Long l : read(data, 5)) {
+            assertTrue(l.longValue() >= 25);
+        }
+
+        // expired
+        assertEquals(0, t.write(data, 0, 20, 5, true, 1200, 0));
+        assertEquals(0, t.getResendCount());
+    }
+
+    @Test
+    public void testLoadFrom() {
+        ACKTracker old = new ACKTracker(4, 1000);
+        byte[] data = new byte[4 * 16];
+        old.add(1);
+        old.add(2);
+        old.write(data, 0, 1, 0, true, 0, 0);
+        old.add(3);
+        ACKTracker t = new ACKTracker(4, 1000);
+        t.add(3);
+        t.loadFrom(old);
+        assertEquals(0, old.getNewCount());
+        assertEquals(0, old.getResendCount());
+        assertEquals(2, t.getNewCount());
+        assertEquals(1, t.getResendCount());
+        assertEquals(3, t.write(data, 0, 16, 16, true, 10, 0));
+        Set<Long> got = read(data, 3);
+        assertTrue(got.contains(Long.valueOf(1)));
+        assertTrue(got.contains(Long.valueOf(2)));
+        assertTrue(got.contains(Long.valueOf(3)));
+    }
+}
@@ -0,0 +1,49 @@
+package net.i2p.router.transport.udp;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BBRCongestionControlTest {
+
+    @Test
+    public void testWindowAndPacing() {
+        long now = 1000000;
+        BBRCongestionControl cc = new BBRCongestionControl(now);
+        int initial = cc.getWindow();
+        assertTrue(cc.canSend(initial * 4, 0, now));
+        cc.sent(1000, 0, now);
+        assertEquals(initial - 1000, cc.getWindowRemaining());
+        // retransmissions are not counted again
+        cc.sent(1000, 1, now + 1000);
+        assertEquals(initial - 1000, cc.getWindowRemaining());
+        cc.failed(1000);
+        assertEquals(initial, cc.getWindowRemaining());
+
+        // steady 100 KBps at 100 ms RTT
+        for (int i = 0; i < 100; i++) {
+            now += 10;
+            cc.sent(1024, 0, now);
+            cc.acked(1024, 100, 1, now);
+        }
+        assertEquals(100, cc.getMinRTT());
+        int bdp = cc.getSlowStartThreshold();
+        assertTrue("bdp " + bdp, bdp >= 9 * 1024 && bdp <= 11 * 1024);
+        assertTrue(cc.getPacingRate() >= 75 * 1024);
+        assertTrue(cc.getWindow() >= bdp);
+
+        // a burst is paced
+        // the loop above ignored the pacing, wait it out
+        long t = now + 10000;
+        int sent = 0;
+        while (cc.canSend(1024, 1, t)) {
+            cc.sent(1024, 1, t);
+            sent++;
+        }
+        assertTrue("sent " + sent + " " + cc, sent > 0 && sent < 10);
+        assertTrue(cc.getNextSendTime() > t);
+        assertTrue(cc.canSend(1024, 1, t + 1000));
+
+        assertFalse(cc.congestionOccurred(1000, t));
+    }
+}
@@ -0,0 +1,71 @@
+package net.i2p.router.transport.udp;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IPThrottlerTest {
+
+    private static final int MAX = 12;
+    private static final long TIME = 10*60*1000;
+
+    private static byte[] ip(int i) {
+        return new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i };
+    }
+
+    @Test
+    public void testThrottle() {
+        IPThrottler t = new IPThrottler(MAX, TIME);
+        byte[] ip = ip(1);
+        int allowed = 0;
+        for (int i = 0; i < 100; i++) {
+            if (!t.shouldThrottle(ip))
+                allowed++;
+        }
+        assertTrue(allowed >= MAX);
+        assertTrue(allowed <= 2 * MAX);
+    }
+
+    /**
+     *  Enough spoofed sources to push every estimate over the max
+     */
+    @Test
+    public void testFlood() {
+        IPThrottler t = new IPThrottler(MAX, TIME);
+        for (int i = 0; i < 200000; i++) {
+            t.shouldThrottle(ip(i + 100));
+        }
+        byte[] legit = new byte[] { (byte) 192, (byte) 168, 0, 1 };
+        for (int i = 0; i < MAX; i++) {
+            assertFalse(t.shouldThrottle(legit));
+        }
+        // a heavy sender during the flood is still throttled
+        byte[] heavy = new byte[] { (byte) 192, (byte) 168, 0, 2 };
+        int allowed = 0;
+        for (int i = 0; i < 100; i++) {
+            if (!t.shouldThrottle(heavy))
+                allowed++;
+        }
+        assertTrue("allowed " + allowed, allowed <= 3 * MAX);
+    }
+
+    /**
+     *  A heavy sender hidden in a steady flood of new spoofed sources,
+     *  which keep trying to take its place in the exact table
+     */
+    @Test
+    public void testInterleavedFlood() {
+        IPThrottler t = new IPThrottler(MAX, TIME);
+        byte[] heavy = new byte[] { (byte) 192, (byte) 168, 0, 2 };
+        int allowed = 0;
+        int spoofed = 100;
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < 2000; j++) {
+                t.shouldThrottle(ip(spoofed++));
+            }
+            if (!t.shouldThrottle(heavy))
+                allowed++;
+        }
+        assertTrue("allowed " + allowed, allowed <= 3 * MAX);
+    }
+}
@@ -0,0 +1,189 @@
+package net.i2p.router.transport.udp;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  DataReader views, and bytes allocated per packet
+ *  with the old array API vs. the views.
+ */
+public class UDPPacketReaderTest {
+
+    private static final int OFFSET = 16 + 16;  // MAC + IV
+
+    private UDPPacketReader reader;
+    private byte[] packet;
+    private int len;
+
+    @Before
+    public void setUp() {
+        reader = new UDPPacketReader(I2PAppContext.getGlobalContext());
+        packet = new byte[1572];
+        len = buildDataPacket(packet, OFFSET);
+    }
+
+    /**
+     *  2 full ACKs, 2 partial ACKs (1 and 2 byte bitfields),
+     *  3 fragments of 100, 0, and 200 bytes
+     */
+    private static int buildDataPacket(byte[] buf, int off) {
+        int start = off;
+        buf[off++] = (byte) (UDPPacket.PAYLOAD_TYPE_DATA << 4);
+        DataHelper.toLong(buf, off, 4, 12345);
+        off += 4;
+        buf[off++] = (byte) (UDPPacket.DATA_FLAG_EXPLICIT_ACK | UDPPacket.DATA_FLAG_ACK_BITFIELDS);
+        buf[off++] = 2;
+        DataHelper.toLong(buf, off, 4, 1001);
+        off += 4;
+        DataHelper.toLong(buf, off, 4, 1002);
+        off += 4;
+        buf[off++] = 2;
+        DataHelper.toLong(buf, off, 4, 2001);
+        off += 4;
+        buf[off++] = 0x05;  // 0 and 2
+        DataHelper.toLong(buf, off, 4, 2002);
+        off += 4;
+        buf[off++] = (byte) (UDPPacket.BITFIELD_CONTINUATION | 0x01);  // 0
+        buf[off++] = 0x01;  // 7
+        int[] sizes = { 100, 0, 200 };
+        buf[off++] = (byte) sizes.length;
+        for (int i = 0; i < sizes.length; i++) {
+            DataHelper.toLong(buf, off, 4, 3000 + i);
+            off += 4;
+            buf[off++] = (byte) ((i << 1) | (i == sizes.length - 1 ? 1 : 0));
+            DataHelper.toLong(buf, off, 2, sizes[i]);
+            off += 2;
+            for (int j = 0; j < sizes[i]; j++) {
+                buf[off++] = (byte) (i + j);
+            }
+        }
+        return off - start;
+    }
+
+    @Test
+    public void testViews() throws Exception {
+        reader.initialize(packet, OFFSET, len);
+        UDPPacketReader.DataReader dr = reader.getDataReader();
+        assertEquals(2, dr.readACKCount());
+        assertEquals(1002, dr.readACK(1));
+        assertEquals(2, dr.readACKBitfieldCount());
+        ACKBitfield bf = dr.readACKBitfield(0);
+        assertEquals(2001, bf.getMessageId());
+        assertEquals(2, bf.ackCount());
+        assertTrue(bf.received(2));
+        bf = dr.readACKBitfield(1);
+        assertEquals(2002, bf.getMessageId());
+        assertEquals(7, bf.highestReceived());
+        // random access backwards
+        assertEquals(2001, dr.readACKBitfield(0).getMessageId());
+
+        assertEquals(3, dr.readFragmentCount());
+        // random access order
+        assertEquals(200, dr.readMessageFragmentSize(2));
+        assertEquals(3000, dr.readMessageId(0));
+        assertEquals(0, dr.readMessageFragmentSize(1));
+        assertTrue(dr.readMessageIsLast(2));
+        assertEquals(2, dr.readMessageFragmentNum(2));
+        byte[] data = dr.getData();
+        int off = dr.readMessageFragmentOffset(2);
+        assertEquals(2, data[off]);
+        assertEquals((byte) 201, data[off + 199]);
+
+        byte[] copy = new byte[200];
+        dr.readMessageFragment(0, copy, 0);
+        assertEquals(99, copy[99]);
+    }
+
+    /** the cache must be reset for each packet */
+    @Test
+    public void testReinitialize() throws Exception {
+        reader.initialize(packet, OFFSET, len);
+        UDPPacketReader.DataReader dr = reader.getDataReader();
+        dr.readMessageId(2);
+        dr.readACKBitfield(1);
+        byte[] packet2 = new byte[1572];
+        int len2 = buildDataPacket(packet2, 0);
+        reader.initialize(packet2, 0, len2);
+        assertEquals(3001, dr.readMessageId(1));
+        assertEquals(2002, dr.readACKBitfield(1).getMessageId());
+    }
+
+    @Test
+    public void testAllocationPerPacket() throws Exception {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean smx = (com.sun.management.ThreadMXBean) mx;
+        if (!smx.isThreadAllocatedMemorySupported())
+            return;
+        smx.setThreadAllocatedMemoryEnabled(true);
+        final int packets = 1000000;
+        byte[] frag = new byte[1572];
+        long id = Thread.currentThread().getId();
+        // warmup
+        readOld(frag, packets / 10);
+        readNew(frag, packets / 10);
+
+        long before = smx.getThreadAllocatedBytes(id);
+        long oldSum = readOld(frag, packets);
+        long oldBytes = smx.getThreadAllocatedBytes(id) - before;
+        before = smx.getThreadAllocatedBytes(id);
+        long newSum = readNew(frag, packets);
+        long newBytes = smx.getThreadAllocatedBytes(id) - before;
+        assertEquals(oldSum, newSum);
+        assertTrue(newBytes < oldBytes);
+        assertTrue(newBytes / packets < 8);
+    }
+
+    /** as InboundMessageFragments did before the views */
+    private long readOld(byte[] frag, int packets) throws Exception {
+        long rv = 0;
+        UDPPacketReader.DataReader dr = reader.getDataReader();
+        for (int p = 0; p < packets; p++) {
+            reader.initialize(packet, OFFSET, len);
+            int count = dr.readFragmentCount();
+            for (int i = 0; i < count; i++) {
+                rv += dr.readMessageId(i);
+                rv += dr.readMessageFragmentNum(i);
+                dr.readMessageFragment(i, frag, 0);
+                rv += dr.readMessageFragmentSize(i);
+                rv += dr.readMessageIsLast(i) ? 1 : 0;
+            }
+            ACKBitfield[] bfs = dr.readACKBitfields();
+            for (int i = 0; i < bfs.length; i++) {
+                rv += bfs[i].ackCount();
+            }
+        }
+        return rv;
+    }
+
+    private long readNew(byte[] frag, int packets) throws Exception {
+        long rv = 0;
+        UDPPacketReader.DataReader dr = reader.getDataReader();
+        for (int p = 0; p < packets; p++) {
+            reader.initialize(packet, OFFSET, len);
+            int count = dr.readFragmentCount();
+            for (int i = 0; i < count; i++) {
+                rv += dr.readMessageId(i);
+                rv += dr.readMessageFragmentNum(i);
+                int size = dr.readMessageFragmentSize(i);
+                System.arraycopy(dr.getData(), dr.readMessageFragmentOffset(i), frag, 0, size);
+                rv += size;
+                rv += dr.readMessageIsLast(i) ? 1 : 0;
+            }
+            int bfs = dr.readACKBitfieldCount();
+            for (int i = 0; i < bfs; i++) {
+                rv += dr.readACKBitfield(i).ackCount();
+            }
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,50 @@
+package net.i2p.router.tunnel;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+
+public class FragmentedMessageTest {
+
+    @Test
+    public void testOutOfOrderAndDups() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        byte[] data = new byte[2500];
+        ctx.random().nextBytes(data);
+        FragmentedMessage msg = new FragmentedMessage(ctx, 1234);
+        assertTrue(msg.receive(2, data, 1800, 700, true));
+        assertFalse(msg.isComplete());
+        assertTrue(msg.receive(data, 0, 900, false, null, null));
+        assertFalse(msg.isComplete());
+        // dup is accepted but not counted
+        assertTrue(msg.receive(2, data, 1800, 700, true));
+        assertEquals(2, msg.getFragmentCount());
+        assertTrue(msg.receive(1, data, 900, 900, false));
+        assertTrue(msg.isComplete());
+        assertEquals(2500, msg.getCompleteSize());
+        byte[] out = new byte[4096];
+        assertEquals(2500, msg.toByteArray(out));
+        assertTrue(DataHelper.eq(data, 0, out, 0, 2500));
+        assertTrue(msg.isReleased());
+        assertEquals(-1, msg.toByteArray(out));
+        assertEquals(3, msg.getFragmentCount());
+    }
+
+    @Test
+    public void testMaxFragments() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        byte[] data = new byte[64];
+        FragmentedMessage msg = new FragmentedMessage(ctx, 5678);
+        assertTrue(msg.receive(data, 0, 1, false, null, null));
+        for (int i = 1; i < 63; i++) {
+            assertTrue(msg.receive(i, data, i, 1, false));
+        }
+        assertFalse(msg.isComplete());
+        assertTrue(msg.receive(63, data, 63, 1, true));
+        assertTrue(msg.isComplete());
+        assertFalse(msg.receive(64, data, 0, 1, true));
+    }
+}
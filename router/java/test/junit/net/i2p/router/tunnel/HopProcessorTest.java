@@ -0,0 +1,34 @@
+package net.i2p.router.tunnel;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+
+/**
+ * The keyed Cipher and the AESEngine must produce the same layer encryption.
+ */
+public class HopProcessorTest {
+
+    @Test
+    public void testCipherMatchesEngine() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        HopConfig cfg = new HopConfig();
+        cfg.setIVKey(ctx.keyGenerator().generateSessionKey());
+        cfg.setLayerKey(ctx.keyGenerator().generateSessionKey());
+        HopProcessor engine = new HopProcessor(ctx, cfg, DummyValidator.getInstance(), false);
+        HopProcessor cipher = new HopProcessor(ctx, cfg, DummyValidator.getInstance(), true);
+        for (int i = 0; i < 20; i++) {
+            byte[] a = new byte[1024 + 64];
+            ctx.random().nextBytes(a);
+            byte[] b = new byte[a.length];
+            System.arraycopy(a, 0, b, 0, a.length);
+            // at an offset, as in a TunnelDataMessage
+            assertTrue(engine.process(a, 32, 1024, null));
+            assertTrue(cipher.process(b, 32, 1024, null));
+            assertTrue(DataHelper.eq(a, b));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package net.i2p.router.tunnel.pool;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+
+import org.junit.Test;
+
+/**
+ *  The queue hand-off and shutdown of the pipelined BuildHandler reply stage
+ */
+public class BuildReplyStageTest {
+
+    private static final I2PAppContext _context = I2PAppContext.getGlobalContext();
+
+    @Test
+    public void testHandoff() throws Exception {
+        final AtomicInteger handled = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(100);
+        BuildReplyStage<Integer> stage = new BuildReplyStage<Integer>(_context, "handoff", 2, 4) {
+            protected void handle(Integer item) {
+                handled.incrementAndGet();
+                done.countDown();
+            }
+        };
+        stage.start();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(stage.put(Integer.valueOf(i)));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(100, handled.get());
+        stage.stop();
+        assertTrue(waitForThreads("handoff"));
+    }
+
+    /**
+     *  With the reply threads stuck and the queue full, a producer
+     *  blocks in put(). stop() must release it and end the threads,
+     *  and the stage must start again with nothing left over.
+     */
+    @Test
+    public void testStopWithFullQueue() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        final BuildReplyStage<Integer> stage = new BuildReplyStage<Integer>(_context, "stopfull", 1, 2) {
+            protected void handle(Integer item) {
+                handled.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {}
+            }
+        };
+        stage.start();
+        final AtomicInteger queued = new AtomicInteger();
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    if (stage.put(Integer.valueOf(i)))
+                        queued.incrementAndGet();
+                }
+            }
+        };
+        producer.start();
+        // one in handle(), two in the queue, the producer blocked on the fourth
+        for (int i = 0; i < 100 && queued.get() < 3; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+        stage.stop();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(0, stage.getThreadCount());
+        assertTrue(waitForThreads("stopfull"));
+        assertEquals(1, handled.get());
+
+        // restart, as on a soft restart
+        release.countDown();
+        stage.start();
+        assertEquals(0, stage.size());
+        assertEquals(1, stage.getThreadCount());
+        assertTrue(stage.put(Integer.valueOf(99)));
+        for (int i = 0; i < 100 && handled.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, handled.get());
+        stage.stop();
+        assertTrue(waitForThreads("stopfull"));
+    }
+
+    /**
+     *  @return true if no thread with the name prefix is left after a few seconds
+     */
+    private static boolean waitForThreads(String name) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            boolean found = false;
+            for (Thread t : Thread.getAllStackTraces().keySet()) {
+                if (t.getName().startsWith(name + ' ') && t.isAlive()) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found)
+                return true;
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,46 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import net.i2p.I2PAppContext;
+
+import org.junit.Test;
+
+public class BlockedBloomFilterTest {
+
+    @Test
+    public void testAddAndDecay() {
+        BlockedBloomFilter f = new BlockedBloomFilter(I2PAppContext.getGlobalContext(),
+                                                      10*60*1000, 16, "test", 20);
+        Random r = new Random(1);
+        byte[][] entries = new byte[10000][16];
+        int falsePos = 0;
+        for (int i = 0; i < entries.length; i++) {
+            r.nextBytes(entries[i]);
+            if (f.add(entries[i]))
+                falsePos++;
+        }
+        // 10K in 1M bits, k = 11
+        assertTrue("false positives: " + falsePos, falsePos < 10);
+        for (int i = 0; i < entries.length; i++) {
+            assertTrue(f.add(entries[i]));
+        }
+        assertEquals(entries.length - falsePos, f.getInsertedCount());
+
+        assertFalse(f.isKnown(12345L));
+        assertFalse(f.add(12345L));
+        assertTrue(f.isKnown(12345L));
+
+        // still known in previous
+        f.decay();
+        assertTrue(f.add(entries[0]));
+        assertTrue(f.isKnown(12345L));
+        // gone
+        f.decay();
+        assertFalse(f.isKnown(12345L));
+        assertFalse(f.add(entries[0]));
+        f.stopDecaying();
+    }
+}
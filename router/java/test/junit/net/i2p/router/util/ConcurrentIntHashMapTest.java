@@ -0,0 +1,96 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class ConcurrentIntHashMapTest {
+
+    @Test
+    public void testBasic() {
+        ConcurrentIntHashMap<String> m = new ConcurrentIntHashMap<String>(4);
+        assertTrue(m.isEmpty());
+        assertNull(m.get(0));
+        assertNull(m.put(5, "a"));
+        assertEquals("a", m.putIfAbsent(5, "b"));
+        assertEquals("a", m.put(5, "c"));
+        assertNull(m.putIfAbsent(0xffffffff, "d"));
+        assertEquals("d", m.get((int) 0xffffffffL));
+        assertEquals(2, m.size());
+        assertFalse(m.remove(5, "a"));
+        assertTrue(m.remove(5, "c"));
+        assertFalse(m.containsKey(5));
+        assertNull(m.remove(5));
+        // removed slot is reused
+        assertNull(m.putIfAbsent(5, "e"));
+        assertEquals(2, m.size());
+        m.clear();
+        assertTrue(m.isEmpty());
+        try {
+            m.put(0, "x");
+            fail();
+        } catch (IllegalArgumentException iae) {}
+    }
+
+    @Test
+    public void testGrowAndChurn() {
+        ConcurrentIntHashMap<Integer> m = new ConcurrentIntHashMap<Integer>();
+        for (int i = 1; i <= 20000; i++) {
+            assertNull(m.put(i, Integer.valueOf(i)));
+        }
+        assertEquals(20000, m.size());
+        for (int i = 1; i <= 20000; i += 2) {
+            assertEquals(Integer.valueOf(i), m.remove(i));
+        }
+        assertEquals(10000, m.size());
+        assertEquals(10000, m.values().size());
+        // many more keys through the removed slots
+        for (int i = 20001; i <= 100000; i++) {
+            m.put(i, Integer.valueOf(i));
+            m.remove(i);
+        }
+        for (int i = 1; i <= 20000; i++) {
+            Integer v = m.get(i);
+            if ((i & 1) == 0)
+                assertEquals(Integer.valueOf(i), v);
+            else
+                assertNull(v);
+        }
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final ConcurrentIntHashMap<Integer> m = new ConcurrentIntHashMap<Integer>(2);
+        // permanent keys that readers must always find
+        for (int i = 1; i <= 1000; i++) {
+            m.put(-i, Integer.valueOf(-i));
+        }
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = (t + 1) * 1000000;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 50000; i++) {
+                        int k = base + i;
+                        if (m.putIfAbsent(k, Integer.valueOf(k)) != null)
+                            failed.set(true);
+                        Integer v = m.get(-1 - (i % 1000));
+                        if (v == null || v.intValue() != -1 - (i % 1000))
+                            failed.set(true);
+                        if (i >= 100 && m.remove(k - 100) == null)
+                            failed.set(true);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertFalse(failed.get());
+        assertEquals(1000 + 4 * 100, m.size());
+    }
+}
@@ -0,0 +1,58 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CountMinSketchTest {
+
+    private static byte[] ip(int a, int b, int c, int d) {
+        return new byte[] { (byte) a, (byte) b, (byte) c, (byte) d };
+    }
+
+    @Test
+    public void testNeverUnderestimates() {
+        CountMinSketch s = new CountMinSketch(256, 4);
+        for (int i = 0; i < 1000; i++) {
+            for (int j = 0; j <= i % 5; j++) {
+                s.increment(ip(10, 0, i >> 8, i));
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(s.count(ip(10, 0, i >> 8, i)) >= (i % 5) + 1);
+        }
+        s.decay();
+        assertTrue(s.count(ip(10, 0, 0, 4)) >= 2);
+        s.clear();
+        assertEquals(0, s.count(ip(10, 0, 0, 4)));
+    }
+
+    @Test
+    public void testHeavyHitters() {
+        CountMinSketch s = new CountMinSketch(64, 2, 2, 3);
+        byte[] a = ip(1, 2, 3, 4);
+        byte[] b = ip(5, 6, 7, 8);
+        byte[] c = ip(9, 9, 9, 9);
+        assertEquals(0, s.heavyCount(a));
+        for (int i = 0; i < 10; i++) {
+            s.increment(a);
+        }
+        for (int i = 0; i < 5; i++) {
+            s.increment(b);
+        }
+        assertEquals(10, s.heavyCount(a));
+        assertTrue(s.heavyCount(b) >= 5);
+        assertEquals(2, s.getHeavyHitters().size());
+        // c must pass b to replace it
+        for (int i = 0; i < 20; i++) {
+            s.increment(c);
+        }
+        assertEquals(0, s.heavyCount(b));
+        assertTrue(s.heavyCount(c) >= 10);
+        assertEquals(10, s.heavyCount(a));
+        s.decay();
+        assertEquals(5, s.heavyCount(a));
+        // never incremented
+        assertEquals(0, s.heavyCount(ip(127, 0, 0, 1)));
+    }
+}
@@ -0,0 +1,74 @@
+package net.i2p.router.util;
+
+import java.util.Random;
+
+/**
+ *  Load a large random blocklist into a PrefixTree and time lookups.
+ *
+ *  Usage: PrefixTreeBench [entries]
+ *
+ *  Default is 1M entries for each of IPv4 (/16 to /32)
+ *  and IPv6 (/32 to /64).
+ *  Reports build time, nodes, heap footprint, and lookup ns/op.
+ *
+ *  @since 0.9.47
+ */
+public class PrefixTreeBench {
+
+    private static final int LOOKUPS = 4 * 1000 * 1000;
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000 * 1000;
+        for (int i = 0; i < 2; i++) {
+            // second round after warmup
+            System.out.println(i == 0 ? "Warmup:" : "Results:");
+            run(32, entries);
+            run(128, entries);
+        }
+    }
+
+    private static void run(int bits, int entries) {
+        Random r = new Random(42);
+        int len = bits / 8;
+        long heap0 = usedHeap();
+        long start = System.nanoTime();
+        PrefixTree t = new PrefixTree(bits, entries);
+        byte[] ip = new byte[len];
+        for (int i = 0; i < entries; i++) {
+            r.nextBytes(ip);
+            int plen = bits == 32 ? 16 + r.nextInt(17) : 32 + r.nextInt(33);
+            t.add(ip, plen);
+        }
+        t.trim();
+        long build = System.nanoTime() - start;
+        long heap = usedHeap() - heap0;
+
+        byte[][] keys = new byte[1024][len];
+        for (int i = 0; i < keys.length; i++) {
+            r.nextBytes(keys[i]);
+        }
+        int hits = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (t.contains(keys[i & 1023]))
+                hits++;
+        }
+        long lookup = System.nanoTime() - start;
+
+        System.out.println("IPv" + (bits == 32 ? 4 : 6) + ": " + entries + " entries, " +
+                           t.getPrefixCount() + " prefixes, " + t.getNodeCount() + " nodes, " +
+                           "built in " + (build / 1000000) + " ms");
+        System.out.println("      arrays " + (t.getMemoryUsage() / 1024) + " KB, heap delta " + (heap / 1024) + " KB, " +
+                           (((double) t.getMemoryUsage()) / entries) + " bytes/entry");
+        System.out.println("      " + (((double) lookup) / LOOKUPS) + " ns/lookup, " + hits + " hits");
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try { Thread.sleep(50); } catch (InterruptedException ie) {}
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
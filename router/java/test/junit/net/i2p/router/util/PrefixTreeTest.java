@@ -0,0 +1,143 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PrefixTreeTest {
+
+    private static byte[] ip(int a, int b, int c, int d) {
+        return new byte[] { (byte) a, (byte) b, (byte) c, (byte) d };
+    }
+
+    @Test
+    public void testIPv4() {
+        PrefixTree t = new PrefixTree(32);
+        assertFalse(t.contains(ip(10, 0, 0, 1)));
+        assertTrue(t.add(ip(10, 1, 0, 0), 16));
+        assertTrue(t.add(ip(192, 168, 1, 7), 32));
+        assertTrue(t.add(ip(10, 2, 3, 0), 24));
+        assertTrue(t.contains(ip(10, 1, 255, 255)));
+        assertTrue(t.contains(ip(10, 2, 3, 99)));
+        assertTrue(t.contains(ip(192, 168, 1, 7)));
+        assertFalse(t.contains(ip(192, 168, 1, 6)));
+        assertFalse(t.contains(ip(10, 2, 4, 0)));
+        assertFalse(t.contains(ip(10, 0, 255, 255)));
+        // covered
+        assertFalse(t.add(ip(10, 1, 2, 0), 24));
+        // covers the two 10.x entries
+        assertTrue(t.add(ip(10, 0, 0, 0), 8));
+        assertTrue(t.contains(ip(10, 200, 0, 1)));
+        int nodes = t.getNodeCount();
+        t.trim();
+        assertTrue(t.getNodeCount() < nodes);
+        assertTrue(t.contains(ip(10, 200, 0, 1)));
+        assertTrue(t.contains(ip(192, 168, 1, 7)));
+        assertFalse(t.contains(ip(11, 0, 0, 0)));
+        assertFalse(t.contains(new byte[16]));
+        t.add(ip(0, 0, 0, 0), 0);
+        assertTrue(t.contains(ip(11, 0, 0, 0)));
+    }
+
+    @Test
+    public void testRange() {
+        PrefixTree t = new PrefixTree(32);
+        // 10.0.0.1 - 10.0.1.2 is .1/32 .2/31 .4/30 ... .128/25 1.0/31 1.2/32
+        assertEquals(10, t.addRange(ip(10, 0, 0, 1), ip(10, 0, 1, 2)));
+        assertFalse(t.contains(ip(10, 0, 0, 0)));
+        assertTrue(t.contains(ip(10, 0, 0, 1)));
+        assertTrue(t.contains(ip(10, 0, 0, 200)));
+        assertTrue(t.contains(ip(10, 0, 1, 2)));
+        assertFalse(t.contains(ip(10, 0, 1, 3)));
+        t = new PrefixTree(32);
+        assertEquals(1, t.addRange(ip(0, 0, 0, 0), ip(255, 255, 255, 255)));
+        assertTrue(t.contains(ip(128, 0, 0, 0)));
+        t = new PrefixTree(128);
+        byte[] from = new byte[16];
+        byte[] to = new byte[16];
+        from[0] = 0x20;
+        from[1] = 0x01;
+        from[15] = (byte) 0xff;
+        System.arraycopy(from, 0, to, 0, 16);
+        to[7] = 1;
+        to[15] = 0;
+        t.addRange(from, to);
+        assertTrue(t.contains(from));
+        assertTrue(t.contains(to));
+        byte[] x = from.clone();
+        x[15] = (byte) 0xfe;
+        assertFalse(t.contains(x));
+        x = to.clone();
+        x[15] = 1;
+        assertFalse(t.contains(x));
+        x = from.clone();
+        x[10] = 0x77;
+        assertTrue(t.contains(x));
+    }
+
+    /**
+     *  Random IPv6 prefixes, checked against a brute force search
+     */
+    @Test
+    public void testIPv6Random() {
+        Random r = new Random(5555);
+        PrefixTree t = new PrefixTree(128);
+        List<BigInteger[]> ranges = new ArrayList<BigInteger[]>();
+        for (int i = 0; i < 2000; i++) {
+            byte[] ip = new byte[16];
+            r.nextBytes(ip);
+            // cluster them so there are overlaps
+            ip[0] = 0x20;
+            ip[1] = (byte) (r.nextInt(4));
+            int len = 8 + r.nextInt(121);
+            t.add(ip, len);
+            BigInteger bi = new BigInteger(1, ip).shiftRight(128 - len);
+            BigInteger lo = bi.shiftLeft(128 - len);
+            BigInteger hi = bi.add(BigInteger.ONE).shiftLeft(128 - len).subtract(BigInteger.ONE);
+            ranges.add(new BigInteger[] { lo, hi });
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            Random r2 = new Random(1234);
+            for (int i = 0; i < 20000; i++) {
+                byte[] ip;
+                BigInteger[] rg = ranges.get(r2.nextInt(ranges.size()));
+                if ((i & 1) == 0) {
+                    // inside a range, but maybe on the edge
+                    ip = toBytes((i & 2) == 0 ? rg[0] : rg[1]);
+                    if ((i & 4) == 0)
+                        ip[15] ^= (byte) r2.nextInt(256);
+                } else {
+                    ip = new byte[16];
+                    r2.nextBytes(ip);
+                    ip[0] = 0x20;
+                    ip[1] = (byte) (r2.nextInt(4));
+                }
+                BigInteger bi = new BigInteger(1, ip);
+                boolean expect = false;
+                for (BigInteger[] rr : ranges) {
+                    if (bi.compareTo(rr[0]) >= 0 && bi.compareTo(rr[1]) <= 0) {
+                        expect = true;
+                        break;
+                    }
+                }
+                assertEquals(expect, t.contains(ip));
+            }
+            t.trim();
+        }
+    }
+
+    private static byte[] toBytes(BigInteger bi) {
+        byte[] ba = bi.toByteArray();
+        byte[] rv = new byte[16];
+        if (ba.length > 16)
+            System.arraycopy(ba, ba.length - 16, rv, 0, 16);
+        else
+            System.arraycopy(ba, 0, rv, 16 - ba.length, ba.length);
+        return rv;
+    }
+}
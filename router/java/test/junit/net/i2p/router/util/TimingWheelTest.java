@@ -0,0 +1,161 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private static final long TICK = 10;
+    private static final int SLOTS = 512;
+
+    private TimingWheel<Integer> wheel;
+    private List<Integer> out;
+
+    @Before
+    public void setUp() {
+        wheel = new TimingWheel<Integer>(TICK, SLOTS, 0);
+        out = new ArrayList<Integer>();
+    }
+
+    @Test
+    public void testExpireInOrder() {
+        wheel.schedule(1, 100);
+        wheel.schedule(2, 200);
+        wheel.schedule(3, 205);
+        assertEquals(3, wheel.size());
+
+        assertEquals(0, wheel.expire(99, out));
+        assertEquals(1, wheel.expire(100, out));
+        assertEquals(Integer.valueOf(1), out.get(0));
+        // 3 is in the same tick as 2 but not due
+        assertEquals(1, wheel.expire(202, out));
+        assertEquals(Integer.valueOf(2), out.get(1));
+        assertEquals(1, wheel.expire(205, out));
+        assertEquals(Integer.valueOf(3), out.get(2));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testReschedule() {
+        wheel.schedule(1, 100);
+        wheel.schedule(1, 500);
+        assertEquals(1, wheel.size());
+        assertEquals(0, wheel.expire(400, out));
+        // not earlier, still 500
+        wheel.scheduleIfEarlier(1, 600);
+        wheel.scheduleIfEarlier(1, 450);
+        assertEquals(0, wheel.expire(449, out));
+        assertEquals(1, wheel.expire(450, out));
+    }
+
+    @Test
+    public void testRemove() {
+        wheel.schedule(1, 100);
+        wheel.schedule(2, 100);
+        assertTrue(wheel.remove(1));
+        assertFalse(wheel.remove(1));
+        assertFalse(wheel.contains(1));
+        assertEquals(1, wheel.expire(100, out));
+        assertEquals(Integer.valueOf(2), out.get(0));
+    }
+
+    @Test
+    public void testPast() {
+        wheel.expire(1000, out);
+        wheel.schedule(1, 0);
+        assertEquals(1, wheel.expire(1000, out));
+    }
+
+    /** more than one revolution out */
+    @Test
+    public void testLaterRevolution() {
+        long far = 3 * TICK * SLOTS + 50;
+        wheel.schedule(1, far);
+        for (long t = 0; t < far; t += 7 * TICK) {
+            assertEquals(0, wheel.expire(t, out));
+        }
+        assertEquals(1, wheel.expire(far, out));
+    }
+
+    /** expire not called for more than a revolution */
+    @Test
+    public void testSkipAhead() {
+        wheel.schedule(1, 20);
+        wheel.schedule(2, 2 * TICK * SLOTS);
+        wheel.schedule(3, 5 * TICK * SLOTS);
+        assertEquals(2, wheel.expire(4 * TICK * SLOTS, out));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void testNextExpiration() {
+        assertEquals(Long.MAX_VALUE, wheel.getNextExpiration(0));
+        wheel.schedule(1, 300);
+        wheel.schedule(2, 255);
+        assertEquals(255, wheel.getNextExpiration(0));
+        wheel.remove(2);
+        assertEquals(300, wheel.getNextExpiration(0));
+        wheel.schedule(3, 10 * TICK * SLOTS);
+        wheel.remove(1);
+        assertEquals(Long.MAX_VALUE, wheel.getNextExpiration(0));
+    }
+
+    /**
+     *  5000 peers, a few of which are due at any time, rescheduled when
+     *  visited, as by OutboundMessageFragments in timer wheel mode.
+     *  Each wakeup must return exactly the peers that are due, no others.
+     */
+    @Test
+    public void testVisitsWith5kPeers() {
+        final int peers = 5000;
+        final long duration = 60*1000;
+        Random rand = new Random(1234);
+        long[] due = new long[peers];
+        for (int i = 0; i < peers; i++) {
+            due[i] = nextDue(rand, 0, i);
+            wheel.schedule(i, due[i]);
+        }
+
+        long visits = 0;
+        boolean[] seen = new boolean[peers];
+        for (long now = 0; now < duration; now += TICK) {
+            int dueNow = 0;
+            for (int i = 0; i < peers; i++) {
+                if (due[i] <= now)
+                    dueNow++;
+            }
+            out.clear();
+            assertEquals(dueNow, wheel.expire(now, out));
+            assertEquals(dueNow, out.size());
+            for (Integer p : out) {
+                int i = p.intValue();
+                assertTrue(due[i] <= now);
+                assertFalse(seen[i]);
+                seen[i] = true;
+            }
+            for (Integer p : out) {
+                int i = p.intValue();
+                seen[i] = false;
+                due[i] = nextDue(rand, now, i);
+                wheel.schedule(p, due[i]);
+            }
+            assertEquals(peers, wheel.size());
+            visits += dueNow;
+        }
+        // a full scan per wakeup would visit every peer every time
+        assertTrue(visits * 20 < peers * (duration / TICK));
+    }
+
+    /** 1% of peers busy, sending every 50 ms, the rest every 10 s or so */
+    private static long nextDue(Random rand, long now, int peer) {
+        if (peer % 100 == 0)
+            return now + 50;
+        return now + 5000 + rand.nextInt(10000);
+    }
+}